@@ -0,0 +1,180 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.errorprone.annotations.Var;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link PersistentBTreeMap} with different fanouts compared against {@link
+ * PathCopyingPersistentTreeMap}, for workloads that mix lookups and updates. Each benchmark
+ * invocation performs {@link #OPERATIONS} operations on a map that evolves over time, such that the
+ * benchmarks also cover the effects of the garbage that is produced by the updates.
+ *
+ * <p>Run with {@code ant benchmark}. The large sizes need a heap of a few GB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Thread)
+public class PersistentBTreeMapBenchmark {
+
+  /** The number of operations per benchmark invocation. */
+  private static final int OPERATIONS = 10;
+
+  /** The map implementations that are compared. */
+  public enum Implementation {
+    PATH_COPYING_PERSISTENT_TREE_MAP {
+      @Override
+      PersistentSortedMap<Integer, Integer> copyOf(TreeMap<Integer, Integer> map) {
+        return PathCopyingPersistentTreeMap.copyOf(map);
+      }
+    },
+
+    B_TREE_16 {
+      @Override
+      PersistentSortedMap<Integer, Integer> copyOf(TreeMap<Integer, Integer> map) {
+        return PersistentBTreeMap.copyOf(map, 16);
+      }
+    },
+
+    B_TREE_32 {
+      @Override
+      PersistentSortedMap<Integer, Integer> copyOf(TreeMap<Integer, Integer> map) {
+        return PersistentBTreeMap.copyOf(map, 32);
+      }
+    },
+
+    B_TREE_64 {
+      @Override
+      PersistentSortedMap<Integer, Integer> copyOf(TreeMap<Integer, Integer> map) {
+        return PersistentBTreeMap.copyOf(map, 64);
+      }
+    };
+
+    /** Create an instance of this implementation with the same content as the given map. */
+    abstract PersistentSortedMap<Integer, Integer> copyOf(TreeMap<Integer, Integer> map);
+  }
+
+  @Param({"10000", "100000", "1000000", "10000000"})
+  public int size;
+
+  @Param public Implementation implementation;
+
+  /**
+   * Initially contains the keys 0, 2, 4, ..., 2*(size-1). The updates add and remove keys in the
+   * same range at the same rate, so the size stays roughly constant.
+   */
+  private PersistentSortedMap<Integer, Integer> map;
+
+  /** Keys in the range of {@link #map} of which about half are contained in it, in random order. */
+  private Integer[] keys;
+
+  private int nextKey = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(0);
+    TreeMap<Integer, Integer> content = new TreeMap<>();
+    for (int i = 0; i < size; i++) {
+      content.put(2 * i, i);
+    }
+    map = implementation.copyOf(content);
+
+    keys = new Integer[4096];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = random.nextInt(2 * size);
+    }
+  }
+
+  private Integer nextKey() {
+    nextKey = (nextKey + 1) & (keys.length - 1);
+    return keys[nextKey];
+  }
+
+  /** Apply an update that alternately adds and removes a mapping. */
+  private void update() {
+    Integer key = nextKey();
+    if ((key & 1) == 0) {
+      map = map.putAndCopy(key, -key);
+    } else {
+      map = map.removeAndCopy(key - 1);
+    }
+  }
+
+  /** Only lookups, for reference. */
+  @Benchmark
+  public long lookupOnly() {
+    @Var long sum = 0;
+    for (int i = 0; i < OPERATIONS; i++) {
+      Integer value = map.get(nextKey());
+      if (value != null) {
+        sum += value;
+      }
+    }
+    return sum;
+  }
+
+  /** 90% lookups and 10% updates. */
+  @Benchmark
+  public long lookupHeavy() {
+    @Var long sum = 0;
+    for (int i = 0; i < OPERATIONS - 1; i++) {
+      Integer value = map.get(nextKey());
+      if (value != null) {
+        sum += value;
+      }
+    }
+    update();
+    return sum;
+  }
+
+  /** 10% lookups and 90% updates. */
+  @Benchmark
+  public long updateHeavy() {
+    @Var long sum = 0;
+    Integer value = map.get(nextKey());
+    if (value != null) {
+      sum += value;
+    }
+    for (int i = 0; i < OPERATIONS - 1; i++) {
+      update();
+    }
+    return sum;
+  }
+
+  /** Lookups of the neighbors of keys, which is common for range queries. */
+  @Benchmark
+  public long ceilingAndFloor() {
+    @Var long sum = 0;
+    for (int i = 0; i < OPERATIONS / 2; i++) {
+      Integer key = nextKey();
+      Integer ceiling = map.ceilingKey(key);
+      Integer floor = map.floorKey(key);
+      sum += (ceiling == null ? 0 : ceiling) + (floor == null ? 0 : floor);
+    }
+    return sum;
+  }
+}
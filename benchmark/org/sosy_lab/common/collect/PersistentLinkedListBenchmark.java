@@ -0,0 +1,253 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link PersistentLinkedList}, compared against {@link ImmutableList} and {@link
+ * ArrayList}.
+ *
+ * <p>As in {@link SortedMapBenchmark}, the non-persistent lists do not support non-destructive
+ * updates, so for them every update copies the whole list first. Updates are made at the start of
+ * the list, because this is where {@link PersistentLinkedList} adds elements.
+ *
+ * <p>Run with {@code ant benchmark}, this also reports allocation rates (JMH's GC profiler).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistentLinkedListBenchmark {
+
+  /** The number of elements that are added by {@link #withAll}. */
+  private static final int BATCH_SIZE = 100;
+
+  /** The list implementations that are compared. */
+  public enum Implementation {
+    PERSISTENT_LINKED_LIST {
+      @Override
+      List<Integer> copyOf(List<Integer> list) {
+        return PersistentLinkedList.copyOf(list);
+      }
+
+      @Override
+      List<Integer> with(List<Integer> list, Integer value) {
+        return ((PersistentLinkedList<Integer>) list).with(value);
+      }
+
+      @Override
+      List<Integer> withAll(List<Integer> list, List<Integer> values) {
+        return ((PersistentLinkedList<Integer>) list).withAll(values);
+      }
+
+      @Override
+      List<Integer> without(List<Integer> list, Integer value) {
+        return ((PersistentLinkedList<Integer>) list).without(value);
+      }
+
+      @Override
+      List<Integer> reversed(List<Integer> list) {
+        return ((PersistentLinkedList<Integer>) list).reversed();
+      }
+    },
+
+    IMMUTABLE_LIST {
+      @Override
+      ImmutableList<Integer> copyOf(List<Integer> list) {
+        return ImmutableList.copyOf(list);
+      }
+
+      @Override
+      ImmutableList<Integer> with(List<Integer> list, Integer value) {
+        return ImmutableList.<Integer>builderWithExpectedSize(list.size() + 1)
+            .add(value)
+            .addAll(list)
+            .build();
+      }
+
+      @Override
+      ImmutableList<Integer> withAll(List<Integer> list, List<Integer> values) {
+        return ImmutableList.<Integer>builderWithExpectedSize(list.size() + values.size())
+            .addAll(values)
+            .addAll(list)
+            .build();
+      }
+
+      @Override
+      ImmutableList<Integer> without(List<Integer> list, Integer value) {
+        List<Integer> copy = new ArrayList<>(list);
+        copy.remove(value);
+        return ImmutableList.copyOf(copy);
+      }
+
+      @Override
+      ImmutableList<Integer> reversed(List<Integer> list) {
+        return ((ImmutableList<Integer>) list).reverse();
+      }
+    },
+
+    ARRAY_LIST {
+      @Override
+      List<Integer> copyOf(List<Integer> list) {
+        return new ArrayList<>(list);
+      }
+    };
+
+    /** Create an instance of this implementation with the same content as the given list. */
+    abstract List<Integer> copyOf(List<Integer> list);
+
+    /** Return a list with the given value followed by the content of the given list. */
+    List<Integer> with(List<Integer> list, Integer value) {
+      List<Integer> result = copyOf(list);
+      result.add(0, value);
+      return result;
+    }
+
+    /** Return a list with the given values followed by the content of the given list. */
+    List<Integer> withAll(List<Integer> list, List<Integer> values) {
+      List<Integer> result = copyOf(list);
+      result.addAll(0, values);
+      return result;
+    }
+
+    /** Return a list with the content of the given list without the first occurrence of value. */
+    List<Integer> without(List<Integer> list, Integer value) {
+      List<Integer> result = copyOf(list);
+      result.remove(value);
+      return result;
+    }
+
+    /** Return a list with the content of the given list in reverse order. */
+    List<Integer> reversed(List<Integer> list) {
+      List<Integer> result = copyOf(list);
+      return Lists.reverse(result);
+    }
+  }
+
+  @Param({"10", "100", "1000", "10000", "100000", "1000000"})
+  public int size;
+
+  @Param public Implementation implementation;
+
+  /** Contains the elements 0, 1, ..., size-1 in this order. */
+  private List<Integer> list;
+
+  /** The same elements as {@link #list}, in an {@link ArrayList}. */
+  private List<Integer> content;
+
+  /** {@link #BATCH_SIZE} elements that are added by {@link #withAll}, in an {@link ArrayList}. */
+  private List<Integer> batch;
+
+  /** Elements that are contained in {@link #list}, in random order. */
+  private Integer[] existingValues;
+
+  private int nextValue = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(0);
+    content = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      content.add(i);
+    }
+    list = implementation.copyOf(content);
+
+    batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(-i);
+    }
+
+    int valueCount = 1024;
+    existingValues = new Integer[valueCount];
+    for (int i = 0; i < valueCount; i++) {
+      existingValues[i] = random.nextInt(size);
+    }
+  }
+
+  private int nextIndex() {
+    nextValue = (nextValue + 1) & (existingValues.length - 1);
+    return nextValue;
+  }
+
+  @Benchmark
+  public List<Integer> with() {
+    return implementation.with(list, -1);
+  }
+
+  @Benchmark
+  public List<Integer> withAll() {
+    return implementation.withAll(list, batch);
+  }
+
+  /** Build a list element by element, which is the typical use of {@link PersistentLinkedList}. */
+  @Benchmark
+  public List<Integer> withRepeatedly() {
+    @Var List<Integer> result = implementation.copyOf(ImmutableList.of());
+    for (Integer value : batch) {
+      result = implementation.with(result, value);
+    }
+    return result;
+  }
+
+  @Benchmark
+  public List<Integer> without() {
+    return implementation.without(list, existingValues[nextIndex()]);
+  }
+
+  /** Copy from a list of another type, because copying from the same type may be a no-op. */
+  @Benchmark
+  public List<Integer> copyOf() {
+    return implementation.copyOf(content);
+  }
+
+  @Benchmark
+  public List<Integer> reversed() {
+    return implementation.reversed(list);
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return list.contains(existingValues[nextIndex()]);
+  }
+
+  @Benchmark
+  public long iteration() {
+    @Var long sum = 0;
+    for (Integer value : list) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int size() {
+    return list.size();
+  }
+}
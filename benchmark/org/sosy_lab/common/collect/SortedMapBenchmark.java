@@ -0,0 +1,421 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.errorprone.annotations.Var;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the persistent sorted maps of this package, compared against {@link TreeMap},
+ * {@link ImmutableSortedMap}, and {@link ConcurrentSkipListMap}.
+ *
+ * <p>The non-persistent maps do not support non-destructive updates, so for them every "AndCopy"
+ * operation copies the whole map first. This is what a client would have to do if it wanted to keep
+ * the old version of the map, and thus the relevant comparison.
+ *
+ * <p>Run with {@code ant benchmark}, this also reports allocation rates (JMH's GC profiler).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SortedMapBenchmark {
+
+  /** The number of entries in the sub maps that are iterated by {@link #subMap}. */
+  private static final int SUB_MAP_SIZE = 100;
+
+  /** The number of mappings that are added by {@link #putAllAndCopy}. */
+  private static final int BATCH_SIZE = 100;
+
+  /** The number of modifications that separate the two maps in {@link #mergeDerived}. */
+  private static final int DERIVED_MODIFICATIONS = 10;
+
+  /** The map implementations that are compared. */
+  public enum Implementation {
+    PATH_COPYING_PERSISTENT_TREE_MAP {
+      @Override
+      SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map) {
+        return PathCopyingPersistentTreeMap.copyOf(map);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAndCopy(
+          SortedMap<Integer, Integer> map, Integer key, Integer value) {
+        return ((PersistentSortedMap<Integer, Integer>) map).putAndCopy(key, value);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> removeAndCopy(SortedMap<Integer, Integer> map, Integer key) {
+        return ((PersistentSortedMap<Integer, Integer>) map).removeAndCopy(key);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAllAndCopy(
+          SortedMap<Integer, Integer> map, Map<Integer, Integer> updates) {
+        return ((PersistentSortedMap<Integer, Integer>) map).putAllAndCopy(updates);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> merge(
+          SortedMap<Integer, Integer> map1, SortedMap<Integer, Integer> map2) {
+        return PersistentSortedMaps.merge(
+            (PersistentSortedMap<Integer, Integer>) map1,
+            (PersistentSortedMap<Integer, Integer>) map2,
+            PersistentSortedMaps.getMaximumMergeConflictHandler());
+      }
+
+      @Override
+      SortedMap<Integer, Integer> newLiveMap(SortedMap<Integer, Integer> map) {
+        return CopyOnWriteSortedMap.copyOf(PathCopyingPersistentTreeMap.copyOf(map));
+      }
+
+      @Override
+      SortedMap<Integer, Integer> snapshot(SortedMap<Integer, Integer> liveMap) {
+        return ((CopyOnWriteSortedMap<Integer, Integer>) liveMap).getSnapshot();
+      }
+    },
+
+    PERSISTENT_B_TREE_MAP {
+      @Override
+      SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map) {
+        return PersistentBTreeMap.copyOf(map);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAndCopy(
+          SortedMap<Integer, Integer> map, Integer key, Integer value) {
+        return ((PersistentSortedMap<Integer, Integer>) map).putAndCopy(key, value);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> removeAndCopy(SortedMap<Integer, Integer> map, Integer key) {
+        return ((PersistentSortedMap<Integer, Integer>) map).removeAndCopy(key);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAllAndCopy(
+          SortedMap<Integer, Integer> map, Map<Integer, Integer> updates) {
+        return ((PersistentSortedMap<Integer, Integer>) map).putAllAndCopy(updates);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> merge(
+          SortedMap<Integer, Integer> map1, SortedMap<Integer, Integer> map2) {
+        return PersistentSortedMaps.merge(
+            (PersistentSortedMap<Integer, Integer>) map1,
+            (PersistentSortedMap<Integer, Integer>) map2,
+            PersistentSortedMaps.getMaximumMergeConflictHandler());
+      }
+
+      @Override
+      SortedMap<Integer, Integer> newLiveMap(SortedMap<Integer, Integer> map) {
+        return CopyOnWriteSortedMap.copyOf(PersistentBTreeMap.copyOf(map));
+      }
+
+      @Override
+      SortedMap<Integer, Integer> snapshot(SortedMap<Integer, Integer> liveMap) {
+        return ((CopyOnWriteSortedMap<Integer, Integer>) liveMap).getSnapshot();
+      }
+    },
+
+    TREE_MAP {
+      @Override
+      SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map) {
+        return new TreeMap<>(map);
+      }
+    },
+
+    IMMUTABLE_SORTED_MAP {
+      @Override
+      SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map) {
+        return ImmutableSortedMap.copyOfSorted(map);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAndCopy(
+          SortedMap<Integer, Integer> map, Integer key, Integer value) {
+        TreeMap<Integer, Integer> copy = new TreeMap<>(map);
+        copy.put(key, value);
+        return ImmutableSortedMap.copyOfSorted(copy);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> removeAndCopy(SortedMap<Integer, Integer> map, Integer key) {
+        TreeMap<Integer, Integer> copy = new TreeMap<>(map);
+        copy.remove(key);
+        return ImmutableSortedMap.copyOfSorted(copy);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> putAllAndCopy(
+          SortedMap<Integer, Integer> map, Map<Integer, Integer> updates) {
+        TreeMap<Integer, Integer> copy = new TreeMap<>(map);
+        copy.putAll(updates);
+        return ImmutableSortedMap.copyOfSorted(copy);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> merge(
+          SortedMap<Integer, Integer> map1, SortedMap<Integer, Integer> map2) {
+        TreeMap<Integer, Integer> result = new TreeMap<>(map1);
+        map2.forEach((k, v) -> result.merge(k, v, Math::max));
+        return ImmutableSortedMap.copyOfSorted(result);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> newLiveMap(SortedMap<Integer, Integer> map) {
+        return new TreeMap<>(map);
+      }
+    },
+
+    CONCURRENT_SKIP_LIST_MAP {
+      @Override
+      SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map) {
+        return new ConcurrentSkipListMap<>(map);
+      }
+
+      @Override
+      SortedMap<Integer, Integer> snapshot(SortedMap<Integer, Integer> liveMap) {
+        return ((ConcurrentSkipListMap<Integer, Integer>) liveMap).clone();
+      }
+    };
+
+    /** Create an instance of this implementation with the same content as the given map. */
+    abstract SortedMap<Integer, Integer> copyOf(SortedMap<Integer, Integer> map);
+
+    /** Return a map with the content of the given map and the given additional mapping. */
+    SortedMap<Integer, Integer> putAndCopy(
+        SortedMap<Integer, Integer> map, Integer key, Integer value) {
+      SortedMap<Integer, Integer> result = copyOf(map);
+      result.put(key, value);
+      return result;
+    }
+
+    /** Return a map with the content of the given map but without the given key. */
+    SortedMap<Integer, Integer> removeAndCopy(SortedMap<Integer, Integer> map, Integer key) {
+      SortedMap<Integer, Integer> result = copyOf(map);
+      result.remove(key);
+      return result;
+    }
+
+    /** Return a map with the content of the given map and all the given additional mappings. */
+    SortedMap<Integer, Integer> putAllAndCopy(
+        SortedMap<Integer, Integer> map, Map<Integer, Integer> updates) {
+      SortedMap<Integer, Integer> result = copyOf(map);
+      result.putAll(updates);
+      return result;
+    }
+
+    /** Return the union of two maps, taking the maximum value for keys that are in both maps. */
+    SortedMap<Integer, Integer> merge(
+        SortedMap<Integer, Integer> map1, SortedMap<Integer, Integer> map2) {
+      SortedMap<Integer, Integer> result = copyOf(map1);
+      map2.forEach((k, v) -> result.merge(k, v, Math::max));
+      return result;
+    }
+
+    /** Create a mutable map that supports {@link #snapshot(SortedMap)}. */
+    SortedMap<Integer, Integer> newLiveMap(SortedMap<Integer, Integer> map) {
+      return copyOf(map);
+    }
+
+    /** Return an unchanging view of the current state of a map created by {@link #newLiveMap}. */
+    SortedMap<Integer, Integer> snapshot(SortedMap<Integer, Integer> liveMap) {
+      return copyOf(liveMap);
+    }
+  }
+
+  @Param({"10", "100", "1000", "10000", "100000", "1000000"})
+  public int size;
+
+  @Param public Implementation implementation;
+
+  /** Contains the keys 0, 2, 4, ..., 2*(size-1), each mapped to its own half. */
+  private SortedMap<Integer, Integer> map;
+
+  /** The lower 3/4 of the keys of {@link #map}. */
+  private SortedMap<Integer, Integer> lowerPart;
+
+  /** The upper 3/4 of the keys of {@link #map}. */
+  private SortedMap<Integer, Integer> upperPart;
+
+  /** A map with {@link #SUB_MAP_SIZE} random keys in the range of {@link #map}. */
+  private SortedMap<Integer, Integer> smallMap;
+
+  /** {@link #map} with a few values changed, using the operations of the implementation. */
+  private SortedMap<Integer, Integer> derivedMap;
+
+  private SortedMap<Integer, Integer> liveMap;
+
+  /** {@link #BATCH_SIZE} mappings for keys in the range of {@link #map}, in a hash map. */
+  private Map<Integer, Integer> batch;
+
+  /** Keys that are contained in {@link #map}, in random order. */
+  private Integer[] existingKeys;
+
+  /** Keys in the range of {@link #map} of which half are contained in it, in random order. */
+  private Integer[] mixedKeys;
+
+  private int nextKey = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(0);
+    TreeMap<Integer, Integer> content = new TreeMap<>();
+    for (int i = 0; i < size; i++) {
+      content.put(2 * i, i);
+    }
+    map = implementation.copyOf(content);
+    lowerPart = implementation.copyOf(content.headMap(2 * (size * 3 / 4)));
+    upperPart = implementation.copyOf(content.tailMap(2 * (size / 4)));
+
+    derivedMap = map;
+    for (int i = 0; i < DERIVED_MODIFICATIONS; i++) {
+      derivedMap = implementation.putAndCopy(derivedMap, 2 * random.nextInt(size), -i);
+    }
+    liveMap = implementation.newLiveMap(content);
+
+    TreeMap<Integer, Integer> smallContent = new TreeMap<>();
+    for (int i = 0; i < SUB_MAP_SIZE; i++) {
+      smallContent.put(random.nextInt(2 * size), -i);
+    }
+    smallMap = implementation.copyOf(smallContent);
+
+    batch = new HashMap<>();
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.put(random.nextInt(2 * size), -i);
+    }
+
+    int keyCount = 1024;
+    existingKeys = new Integer[keyCount];
+    mixedKeys = new Integer[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      existingKeys[i] = 2 * random.nextInt(size);
+      mixedKeys[i] = random.nextInt(2 * size);
+    }
+  }
+
+  private int nextIndex() {
+    nextKey = (nextKey + 1) & (existingKeys.length - 1);
+    return nextKey;
+  }
+
+  @Benchmark
+  public Map<Integer, Integer> putAndCopy() {
+    return implementation.putAndCopy(map, mixedKeys[nextIndex()], -1);
+  }
+
+  /** Apply a batch of updates at once. */
+  @Benchmark
+  public Map<Integer, Integer> putAllAndCopy() {
+    return implementation.putAllAndCopy(map, batch);
+  }
+
+  /** Apply the same updates as {@link #putAllAndCopy} one after another, for comparison. */
+  @Benchmark
+  public Map<Integer, Integer> putAndCopyRepeatedly() {
+    @Var SortedMap<Integer, Integer> result = map;
+    for (Map.Entry<Integer, Integer> entry : batch.entrySet()) {
+      result = implementation.putAndCopy(result, entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  @Benchmark
+  public Map<Integer, Integer> removeAndCopy() {
+    return implementation.removeAndCopy(map, existingKeys[nextIndex()]);
+  }
+
+  @Benchmark
+  public Integer get() {
+    return map.get(mixedKeys[nextIndex()]);
+  }
+
+  @Benchmark
+  public long iteration() {
+    @Var long sum = 0;
+    for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+      sum += entry.getKey() + entry.getValue();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public void subMap(Blackhole blackhole) {
+    int from = existingKeys[nextIndex()];
+    for (Map.Entry<Integer, Integer> entry : map.subMap(from, from + 2 * SUB_MAP_SIZE).entrySet()) {
+      blackhole.consume(entry);
+    }
+  }
+
+  /** Internal iteration, which does not need an iterator for persistent maps. */
+  @Benchmark
+  public void forEach(Blackhole blackhole) {
+    map.forEach((key, value) -> blackhole.consume(key + value));
+  }
+
+  @Benchmark
+  public void subMapForEach(Blackhole blackhole) {
+    int from = existingKeys[nextIndex()];
+    map.subMap(from, from + 2 * SUB_MAP_SIZE).forEach((key, value) -> blackhole.consume(value));
+  }
+
+  @Benchmark
+  public Map<Integer, Integer> merge() {
+    return implementation.merge(lowerPart, upperPart);
+  }
+
+  /** Merge a small map into a large one, which should not need to look at all entries. */
+  @Benchmark
+  public Map<Integer, Integer> mergeSmall() {
+    return implementation.merge(map, smallMap);
+  }
+
+  @Benchmark
+  public Map<Integer, Integer> mergeDerived() {
+    return implementation.merge(map, derivedMap);
+  }
+
+  /** A typical use of snapshots: modify a shared map and let readers access a stable version. */
+  @Benchmark
+  public Map<Integer, Integer> putAndSnapshot() {
+    int index = nextIndex();
+    liveMap.put(mixedKeys[index], index);
+    return implementation.snapshot(liveMap);
+  }
+
+  @Benchmark
+  public Integer getFromSnapshot() {
+    return ((NavigableMap<Integer, Integer>) implementation.snapshot(liveMap))
+        .ceilingKey(mixedKeys[nextIndex()]);
+  }
+}
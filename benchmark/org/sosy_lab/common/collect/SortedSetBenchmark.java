@@ -0,0 +1,128 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.errorprone.annotations.Var;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the algorithms on sorted sets in {@link Collections3}, comparing the strategies
+ * for skipping through the larger set.
+ *
+ * <p>{@link Strategy#LINEAR} iterates through both sets simultaneously, {@link Strategy#LOOKUP}
+ * looks up each element of the smaller set, and {@link Strategy#ADAPTIVE} is what {@link
+ * Collections3} does by default. The crossover between linear iteration and lookups is visible
+ * when varying {@code smallSize} for a fixed {@code largeSize}, e.g., with {@code ant benchmark
+ * -Dbenchmark.args="SortedSetBenchmark.containsAll -p largeSize=100000"}. Intersection and
+ * disjointness always use the default strategy and are included for reference.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SortedSetBenchmark {
+
+  /** The strategies for skipping through the larger set that are compared. */
+  public enum Strategy {
+    LINEAR {
+      @Override
+      int gallopThreshold(int largeSize, int smallSize) {
+        return Integer.MAX_VALUE;
+      }
+    },
+    LOOKUP {
+      @Override
+      int gallopThreshold(int largeSize, int smallSize) {
+        return 0;
+      }
+    },
+    ADAPTIVE {
+      @Override
+      int gallopThreshold(int largeSize, int smallSize) {
+        return Collections3.gallopThreshold(largeSize, smallSize);
+      }
+    },
+    ;
+
+    abstract int gallopThreshold(int largeSize, int smallSize);
+  }
+
+  @Param({"1000", "100000"})
+  private int largeSize;
+
+  @Param({"1", "10", "100", "1000"})
+  private int smallSize;
+
+  @Param private Strategy strategy;
+
+  @Param({"PATH_COPYING_PERSISTENT_TREE_MAP", "TREE_MAP"})
+  private String implementation;
+
+  private NavigableSet<Integer> largeSet;
+  private NavigableSet<Integer> subset;
+  private int gallopThreshold;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(0);
+    TreeSet<Integer> elements = new TreeSet<>();
+    while (elements.size() < largeSize) {
+      elements.add(random.nextInt());
+    }
+    TreeSet<Integer> subsetElements = new TreeSet<>();
+    Integer[] elementArray = elements.toArray(new Integer[0]);
+    while (subsetElements.size() < Math.min(smallSize, largeSize)) {
+      subsetElements.add(elementArray[random.nextInt(elementArray.length)]);
+    }
+
+    if (implementation.equals("PATH_COPYING_PERSISTENT_TREE_MAP")) {
+      @Var PersistentSortedMap<Integer, Boolean> map = PathCopyingPersistentTreeMap.of();
+      for (Integer element : elements) {
+        map = map.putAndCopy(element, true);
+      }
+      largeSet = map.navigableKeySet();
+    } else {
+      largeSet = elements;
+    }
+    subset = subsetElements;
+    gallopThreshold = strategy.gallopThreshold(largeSize, subset.size());
+  }
+
+  @Benchmark
+  public boolean containsAll() {
+    return Collections3.sortedSetContainsAll(largeSet, subset, null, gallopThreshold);
+  }
+
+  @Benchmark
+  public Object intersection() {
+    return Collections3.sortedSetIntersection(largeSet, subset);
+  }
+
+  @Benchmark
+  public boolean disjoint() {
+    return Collections3.sortedSetDisjoint(largeSet, subset);
+  }
+}
@@ -0,0 +1,87 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for taking snapshots of a {@link StripedCopyOnWriteSortedMap}. A snapshot after a
+ * write joins all stripes and should need time logarithmic in the size of the map.
+ *
+ * <p>Run with {@code ant benchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class StripedCopyOnWriteSortedMapBenchmark {
+
+  @Param({"4096", "65536", "1048576"})
+  public int size;
+
+  /** Initially contains the keys 0, 2, 4, ..., 2*(size-1). */
+  private StripedCopyOnWriteSortedMap<Integer, Integer> map;
+
+  /** Odd keys in the range of {@link #map} in random order. */
+  private Integer[] keys;
+
+  private int nextKey = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(0);
+    TreeMap<Integer, Integer> content = new TreeMap<>();
+    for (int i = 0; i < size; i++) {
+      content.put(2 * i, i);
+    }
+    map = StripedCopyOnWriteSortedMap.copyOf(PathCopyingPersistentTreeMap.copyOf(content));
+    map.put(-1, 0);
+    map.getSnapshot(); // split into stripes
+
+    keys = new Integer[4096];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = 2 * random.nextInt(size) + 1;
+    }
+  }
+
+  private Integer nextKey() {
+    nextKey = (nextKey + 1) & (keys.length - 1);
+    return keys[nextKey];
+  }
+
+  /** A snapshot of a map that was not modified, for reference. */
+  @Benchmark
+  public PersistentSortedMap<Integer, Integer> snapshotOnly() {
+    return map.getSnapshot();
+  }
+
+  /** A write followed by a snapshot, which needs to join the stripes. */
+  @Benchmark
+  public PersistentSortedMap<Integer, Integer> putAndSnapshot() {
+    Integer key = nextKey();
+    map.put(key, key);
+    return map.getSnapshot();
+  }
+}
@@ -19,7 +19,10 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 @Immutable(containerOf = {"K", "V"})
 abstract sealed class AbstractImmutableMap<K, V extends @Nullable Object> implements Map<K, V>
-    permits AbstractImmutableSortedMap {
+    permits AbstractImmutableSortedMap,
+        PersistentHashMap,
+        PersistentOrderStatisticTreeMap,
+        PrimitiveKeySortedMapView {
 
   @Deprecated
   @Override
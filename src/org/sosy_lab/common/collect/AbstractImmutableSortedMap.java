@@ -9,69 +9,21 @@
 package org.sosy_lab.common.collect;
 
 import com.google.errorprone.annotations.DoNotCall;
-import com.google.errorprone.annotations.Var;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.NoSuchElementException;
-import java.util.SortedMap;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 abstract sealed class AbstractImmutableSortedMap<K, V extends @Nullable Object>
     extends AbstractImmutableMap<K, V> implements OurSortedMap<K, V>
     permits OurSortedMap.EmptyImmutableOurSortedMap,
         PathCopyingPersistentTreeMap,
-        PathCopyingPersistentTreeMap.PartialSortedMap {
+        PathCopyingPersistentTreeMap.PartialSortedMap,
+        PersistentBTreeMap,
+        PersistentBTreeMap.PartialSortedMap {
 
   @Override
   public boolean equals(@Nullable Object pObj) {
-    if (this == pObj) {
-      return true;
-    }
-    if (!(pObj instanceof Map)) {
-      return false;
-    }
-    @Var Map<?, ?> other = (Map<?, ?>) pObj;
-    if (size() != other.size()) {
-      return false;
-    }
-
-    // Order is irrelevant for the comparison, but if the order is the same
-    // (or the same as ours, but reversed), we can do a linear comparison
-    @Var boolean hasSameOrder = false;
-    if (other instanceof SortedMap<?, ?>) {
-      @SuppressWarnings("JdkObsolete") // want to handle other SortedMaps here
-      Comparator<?> comparator = ((SortedMap<?, ?>) other).comparator();
-      if (Collections3.guaranteedSameOrder(comparator(), comparator)) {
-        hasSameOrder = true;
-      } else if (other instanceof NavigableMap<?, ?>) {
-        NavigableMap<?, ?> descendingOther = ((NavigableMap<?, ?>) other).descendingMap();
-
-        if (Collections3.guaranteedSameOrder(comparator(), descendingOther.comparator())) {
-          hasSameOrder = true;
-          other = descendingOther;
-        }
-      }
-    }
-
-    if (hasSameOrder) {
-      Iterator<?> it1 = this.entrySet().iterator();
-      Iterator<?> it2 = other.entrySet().iterator();
-      try {
-        while (it1.hasNext()) {
-          if (!it1.next().equals(it2.next())) {
-            return false;
-          }
-        }
-        return true;
-      } catch (NoSuchElementException e) {
-        return false; // concurrent change to other map
-      }
-    }
-
-    return this.entrySet().equals(other.entrySet());
+    return Collections3.sortedMapEquals(this, pObj);
   }
 
   @Override
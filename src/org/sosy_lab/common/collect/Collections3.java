@@ -10,13 +10,16 @@ package org.sosy_lab.common.collect;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Equivalence;
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
@@ -47,6 +50,12 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 /** Utility class similar to {@link Collections} and {@link Collections2}. */
 public final class Collections3 {
 
+  /**
+   * Number of elements that a {@link SortedSetCursor} skips one by one before it jumps ahead with a
+   * lookup.
+   */
+  private static final int MIN_GALLOP = 8;
+
   private Collections3() {}
 
   /**
@@ -226,7 +235,8 @@ public final class Collections3 {
 
   /**
    * Given a {@link NavigableMap} with {@link String}s as key, return a partial map (similar to
-   * {@link NavigableMap#subMap(Object, Object)}) of all keys that have a given prefix.
+   * {@link NavigableMap#subMap(Object, Object)}) of all keys that have a given prefix. For a {@link
+   * PatriciaTrieMap}, this returns {@link PatriciaTrieMap#prefixMap(String)}.
    *
    * @param map The map to filter.
    * @param prefix The prefix that all keys in the result need to have.
@@ -236,6 +246,9 @@ public final class Collections3 {
       NavigableMap<String, V> map, String prefix) {
     checkNotNull(map);
     checkArgument(!prefix.isEmpty());
+    if (map instanceof PatriciaTrieMap<V> trieMap) {
+      return trieMap.prefixMap(prefix);
+    }
 
     // As the end marker of the set, create the string that is
     // the next bigger string than all possible strings with the given prefix.
@@ -255,6 +268,9 @@ public final class Collections3 {
   public static <V> SortedMap<String, V> subMapWithPrefix(SortedMap<String, V> map, String prefix) {
     checkNotNull(map);
     checkArgument(!prefix.isEmpty());
+    if (map instanceof PatriciaTrieMap<V> trieMap) {
+      return trieMap.prefixMap(prefix);
+    }
 
     // As the end marker of the set, create the string that is
     // the next bigger string than all possible strings with the given prefix.
@@ -264,7 +280,8 @@ public final class Collections3 {
 
   /**
    * Given a {@link NavigableSet} of {@link String}, return a set (similar to {@link
-   * NavigableSet#subSet(Object, Object)}) of all entries that have a given prefix.
+   * NavigableSet#subSet(Object, Object)}) of all entries that have a given prefix. For a {@link
+   * PatriciaTrieSet}, this returns {@link PatriciaTrieSet#prefixSet(String)}.
    *
    * @param set The set to filter.
    * @param prefix The prefix that all keys in the result need to have.
@@ -273,6 +290,9 @@ public final class Collections3 {
   public static NavigableSet<String> subSetWithPrefix(NavigableSet<String> set, String prefix) {
     checkNotNull(set);
     checkArgument(!prefix.isEmpty());
+    if (set instanceof PatriciaTrieSet trieSet) {
+      return trieSet.prefixSet(prefix);
+    }
 
     // As the end marker of the set, create the string that is
     // the next bigger string than all possible strings with the given prefix.
@@ -292,6 +312,9 @@ public final class Collections3 {
   public static SortedSet<String> subSetWithPrefix(SortedSet<String> set, String prefix) {
     checkNotNull(set);
     checkArgument(!prefix.isEmpty());
+    if (set instanceof PatriciaTrieSet trieSet) {
+      return trieSet.prefixSet(prefix);
+    }
 
     // As the end marker of the set, create the string that is
     // the next bigger string than all possible strings with the given prefix.
@@ -378,6 +401,59 @@ public final class Collections3 {
     }
   }
 
+  /**
+   * An implementation of {@link Map#equals(Object)} for sorted maps. If the other map has the same
+   * order (or the reverse order), this compares the entries in linear time.
+   */
+  @SuppressWarnings({"JdkObsolete", "IllegalType"}) // handling SortedMap is more general
+  static boolean sortedMapEquals(SortedMap<?, ?> map1, @Nullable Object pMap2) {
+    checkNotNull(map1);
+    if (map1 == pMap2) {
+      return true;
+    }
+    if (!(pMap2 instanceof Map)) {
+      return false;
+    }
+    @Var Map<?, ?> other = (Map<?, ?>) pMap2;
+    if (map1.size() != other.size()) {
+      return false;
+    }
+
+    // Order is irrelevant for the comparison, but if the order is the same
+    // (or the same as ours, but reversed), we can do a linear comparison
+    @Var boolean hasSameOrder = false;
+    if (other instanceof SortedMap<?, ?>) {
+      Comparator<?> comparator = ((SortedMap<?, ?>) other).comparator();
+      if (guaranteedSameOrder(map1.comparator(), comparator)) {
+        hasSameOrder = true;
+      } else if (other instanceof NavigableMap<?, ?>) {
+        NavigableMap<?, ?> descendingOther = ((NavigableMap<?, ?>) other).descendingMap();
+
+        if (guaranteedSameOrder(map1.comparator(), descendingOther.comparator())) {
+          hasSameOrder = true;
+          other = descendingOther;
+        }
+      }
+    }
+
+    if (hasSameOrder) {
+      Iterator<?> it1 = map1.entrySet().iterator();
+      Iterator<?> it2 = other.entrySet().iterator();
+      try {
+        while (it1.hasNext()) {
+          if (!it1.next().equals(it2.next())) {
+            return false;
+          }
+        }
+        return true;
+      } catch (NoSuchElementException e) {
+        return false; // concurrent change to other map
+      }
+    }
+
+    return map1.entrySet().equals(other.entrySet());
+  }
+
   /** This method implements {@link SortedSet#containsAll}. */
   @SuppressWarnings({"JdkObsolete", "IllegalType"}) // handling SortedSet is more general
   @SuppressFBWarnings(
@@ -406,69 +482,234 @@ public final class Collections3 {
       if (coll2.size() > coll1.size()) {
         return false;
       }
+      return sortedSetContainsAll(
+          coll1, coll2, pAdditionalEquality, gallopThreshold(coll1.size(), coll2.size()));
+    }
 
-      // There are two strategies for containsAll of two sorted sets with the same order:
-      // 1) iterate through both sets simultaneously
-      // 2) iterate through the other set and check for containment each time
-      // Assuming this set has n elements and the other has k, the time is as follows:
-      // 1) O(n)              (because k < n)
-      // 2) O(k * log(n))     (lookup is logarithmic)
-      // Here we implement method 1)
+    for (Object val2 : coll2) {
+      if (!coll1.contains(val2)) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-      @SuppressWarnings("unchecked")
-      Comparator<Object> comparator =
-          (Comparator<Object>)
-              Objects.requireNonNullElse(coll1.comparator(), Comparator.naturalOrder());
+  /**
+   * Implementation of {@link #sortedSetContainsAll(SortedSet, Collection, Equivalence)} for two
+   * sorted sets with the same order and a given strategy for skipping elements of the first set.
+   *
+   * <p>There are two strategies for containsAll of two sorted sets with the same order: iterating
+   * through both sets simultaneously, or iterating through the other set and looking up each
+   * element. Assuming this set has n elements and the other has k, the former needs O(n) time and
+   * the latter O(k * log(n)). We iterate through both sets, but skip elements of this set with a
+   * lookup after the given number of elements were skipped one by one (0 means to always do a
+   * lookup), and thus get the best of both.
+   */
+  @VisibleForTesting
+  @SuppressWarnings({"JdkObsolete", "IllegalType"}) // handling SortedSet is more general
+  @SuppressFBWarnings(
+      value = "DCN_NULLPOINTER_EXCEPTION",
+      justification = "handle null even if comparator does not")
+  static boolean sortedSetContainsAll(
+      SortedSet<?> coll1,
+      Collection<?> coll2,
+      @Nullable Equivalence<Object> pAdditionalEquality,
+      int gallopThreshold) {
+    checkNotNull(coll2);
+    SortedSetCursor cursor = new SortedSetCursor(coll1, gallopThreshold);
+    try {
+      for (Object val2 : coll2) {
+        if (!cursor.seek(val2)) {
+          return false; // all elements of coll1 are smaller than val2
+        }
+        Object val1 = cursor.current();
+        if (cursor.comparator.compare(val1, val2) != 0) {
+          return false; // val1 > val2, there is no matching entry of val2 in coll1.
+        }
+        if (pAdditionalEquality != null && !pAdditionalEquality.equivalent(val1, val2)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (ClassCastException | NullPointerException e) {
+      return false;
+    }
+  }
 
-      Iterator<?> it1 = coll1.iterator();
-      Iterator<?> it2 = coll2.iterator();
+  /**
+   * Return whether two sets have no element in common. If both sets are sorted sets with the same
+   * order, this iterates through the smaller set and skips through the larger set, which needs
+   * time O(min(n, k * log(n))) for sets of sizes k &le; n. Otherwise this is the same as {@link
+   * Collections#disjoint(Collection, Collection)}.
+   */
+  @SuppressWarnings({"JdkObsolete", "IllegalType"}) // handling SortedSet is more general
+  public static boolean sortedSetDisjoint(SortedSet<?> set1, Set<?> set2) {
+    checkNotNull(set1);
+    checkNotNull(set2);
+    if (!(set2 instanceof SortedSet<?> sortedSet2)
+        || !guaranteedSameOrder(set1.comparator(), sortedSet2.comparator())) {
+      return Collections.disjoint(set1, set2);
+    }
+    if (set1.isEmpty() || set2.isEmpty()) {
+      return true;
+    }
 
-      // val2 is always the next value we have to find in this set.
-      // If its not there, we can return false.
-      @Var Object val2 = it2.next();
+    SortedSet<?> larger = set1.size() >= set2.size() ? set1 : sortedSet2;
+    SortedSet<?> smaller = larger == set1 ? sortedSet2 : set1;
+    SortedSetCursor cursor =
+        new SortedSetCursor(larger, gallopThreshold(larger.size(), smaller.size()));
+    for (Object element : smaller) {
+      if (!cursor.seek(element)) {
+        return true;
+      }
+      if (cursor.comparator.compare(cursor.current(), element) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-      while (true) {
-        Object val1 = it1.next();
+  /**
+   * Return the elements of the first set that are also contained in the second set, as a sorted set
+   * with the same order as the first set. If both sets are sorted sets with the same order, this
+   * iterates through the smaller set and skips through the larger set, which needs time O(min(n, k
+   * * log(n))) for sets of sizes k &le; n (plus the time for building the result). Otherwise this
+   * iterates through the first set and looks up each element in the second set.
+   */
+  @SuppressWarnings({"JdkObsolete", "IllegalType"}) // handling SortedSet is more general
+  public static <E> ImmutableSortedSet<E> sortedSetIntersection(SortedSet<E> set1, Set<?> set2) {
+    checkNotNull(set1);
+    checkNotNull(set2);
+    @SuppressWarnings("unchecked")
+    Comparator<? super E> comparator =
+        (Comparator<? super E>)
+            Objects.requireNonNullElse(set1.comparator(), Comparator.naturalOrder());
+    ImmutableSortedSet.Builder<E> result = new ImmutableSortedSet.Builder<>(comparator);
+
+    if (!(set2 instanceof SortedSet<?> sortedSet2)
+        || !guaranteedSameOrder(set1.comparator(), sortedSet2.comparator())) {
+      for (E element : set1) {
+        if (set2.contains(element)) {
+          result.add(element);
+        }
+      }
+      return result.build();
+    }
+    if (set1.isEmpty() || set2.isEmpty()) {
+      return result.build();
+    }
 
-        int comp;
-        try {
-          comp = comparator.compare(val1, val2);
-        } catch (ClassCastException | NullPointerException e) {
-          return false;
+    if (set1.size() >= set2.size()) {
+      // Skip through set1, the found elements are those we need to return
+      SortedSetCursor cursor =
+          new SortedSetCursor(set1, gallopThreshold(set1.size(), sortedSet2.size()));
+      for (Object element : sortedSet2) {
+        if (!cursor.seek(element)) {
+          break;
         }
-        if (comp < 0) {
-          // val1 < val2
-          if (!it1.hasNext()) {
-            // There is no matching entry of val2 in coll1.
-            return false;
-          }
+        if (cursor.comparator.compare(cursor.current(), element) == 0) {
+          @SuppressWarnings("unchecked") // element of set1
+          E found = (E) cursor.current();
+          result.add(found);
+        }
+      }
+    } else {
+      SortedSetCursor cursor =
+          new SortedSetCursor(sortedSet2, gallopThreshold(sortedSet2.size(), set1.size()));
+      for (E element : set1) {
+        if (!cursor.seek(element)) {
+          break;
+        }
+        if (cursor.comparator.compare(cursor.current(), element) == 0) {
+          result.add(element);
+        }
+      }
+    }
+    return result.build();
+  }
 
-        } else if (comp > 0) {
-          // val1 > val2
-          // There is no matching entry of val2 in coll1.
-          return false;
+  /**
+   * Choose how many elements of a sorted set with the given size should be skipped one by one
+   * before skipping with a lookup, when looking for the elements of a set with the given smaller
+   * size. If looking up each element is cheaper than iterating through the large set, we always do
+   * a lookup. Otherwise we do a lookup only after a long run of skipped elements, because a lookup
+   * (including creating a new iterator) is more expensive than a step of an iterator.
+   */
+  @VisibleForTesting
+  static int gallopThreshold(int largeSize, int smallSize) {
+    int lookupCost = 32 - Integer.numberOfLeadingZeros(largeSize); // log2(largeSize) + 1
+    return (long) smallSize * lookupCost * MIN_GALLOP < largeSize ? 0 : MIN_GALLOP;
+  }
 
-        } else {
-          // val1 = val2
-          if (pAdditionalEquality != null && !pAdditionalEquality.equivalent(val1, val2)) {
-            return false;
-          }
-          if (!it2.hasNext()) {
-            return true; // coll2 finished, all elements were in coll1.
-          }
-          if (!it1.hasNext()) {
-            return false; // No matching entry of it2.next in coll1.
-          }
-          val2 = it2.next();
+  /**
+   * A cursor over a sorted set that can move forward to the next element that is not smaller than
+   * a given element. It first iterates through the set, but after a run of skipped elements it
+   * jumps ahead with a lookup ({@link SortedSet#tailSet(Object)}), like the galloping mode of
+   * merge algorithms.
+   */
+  private static final class SortedSetCursor {
+
+    private final SortedSet<Object> set;
+    private final Comparator<Object> comparator;
+    private final int gallopThreshold;
+
+    private Iterator<Object> iterator;
+    private @Nullable Object current = null;
+    private boolean hasCurrent = false;
+
+    @SuppressWarnings({"unchecked", "JdkObsolete", "IllegalType"})
+    SortedSetCursor(SortedSet<?> pSet, int pGallopThreshold) {
+      set = (SortedSet<Object>) pSet;
+      comparator =
+          (Comparator<Object>)
+              Objects.requireNonNullElse(pSet.comparator(), Comparator.naturalOrder());
+      gallopThreshold = pGallopThreshold;
+      iterator = set.iterator();
+    }
+
+    /**
+     * Move to the first element that is greater than or equal to the given element, starting from
+     * the current element. The given elements need to be ascending for consecutive calls.
+     *
+     * @return Whether there is such an element.
+     */
+    boolean seek(Object target) {
+      @Var int skipped = 0;
+      while (!hasCurrent || comparator.compare(current, target) < 0) {
+        if (skipped >= gallopThreshold) {
+          iterator = jump(target);
+          skipped = -1; // next element is not smaller than target, no need to jump again
+        }
+        if (!iterator.hasNext()) {
+          hasCurrent = false;
+          return false;
         }
+        current = iterator.next();
+        hasCurrent = true;
+        skipped++;
       }
+      return true;
     }
 
-    for (Object val2 : coll2) {
-      if (!coll1.contains(val2)) {
-        return false;
+    /**
+     * Return an iterator over all elements that are greater than or equal to the given element.
+     * Views of a range of a set throw an exception from {@link SortedSet#tailSet(Object)} for
+     * elements outside of their range, so we never pass such elements.
+     */
+    private Iterator<Object> jump(Object target) {
+      if (set.isEmpty() || comparator.compare(target, set.last()) > 0) {
+        return Collections.emptyIterator();
+      } else if (comparator.compare(target, set.first()) <= 0) {
+        return set.iterator();
+      } else {
+        return set.tailSet(target).iterator();
       }
     }
-    return true;
+
+    /** The element found by the last successful call to {@link #seek(Object)}. */
+    Object current() {
+      checkState(hasCurrent);
+      return current;
+    }
   }
 }
@@ -12,9 +12,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -108,4 +113,126 @@ public class Collections3Test {
     assertThat(Collections3.subSetWithPrefix((SortedSet<String>) testSet, "b"))
         .isEqualTo(resultSet);
   }
+
+  private static NavigableSet<Integer> randomSet(Random rnd, int size, int range) {
+    NavigableSet<Integer> result = new TreeSet<>();
+    while (result.size() < size) {
+      result.add(rnd.nextInt(range));
+    }
+    return result;
+  }
+
+  @Test
+  public void testSortedSetContainsAll() {
+    Random rnd = new Random(0); // static seed for reproducibility
+    for (int size1 : ImmutableList.of(1, 10, 1000)) {
+      for (int size2 : ImmutableList.of(1, 3, 10, 1000)) {
+        NavigableSet<Integer> set1 = randomSet(rnd, size1, 2000);
+        NavigableSet<Integer> subset = randomSet(rnd, Math.min(size1, size2), size1);
+        subset.retainAll(set1);
+        NavigableSet<Integer> other = randomSet(rnd, size2, 2000);
+        boolean expected = set1.containsAll(other);
+
+        for (int threshold : ImmutableList.of(0, 1, 8, Integer.MAX_VALUE)) {
+          assertThat(Collections3.sortedSetContainsAll(set1, subset, null, threshold)).isTrue();
+          assertThat(Collections3.sortedSetContainsAll(set1, other, null, threshold))
+              .isEqualTo(expected);
+        }
+        assertThat(Collections3.sortedSetContainsAll(set1, subset, null)).isTrue();
+        assertThat(Collections3.sortedSetContainsAll(set1, other, null)).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void testSortedSetContainsAll_view() {
+    NavigableSet<Integer> set = new TreeSet<>(ImmutableList.of(1, 2, 3, 4, 5, 10, 20));
+    NavigableSet<Integer> headSet = set.headSet(5, true);
+
+    for (int threshold : ImmutableList.of(0, 1, 8, Integer.MAX_VALUE)) {
+      assertThat(
+              Collections3.sortedSetContainsAll(
+                  headSet, ImmutableSortedSet.of(1, 5), null, threshold))
+          .isTrue();
+      assertThat(
+              Collections3.sortedSetContainsAll(
+                  headSet, ImmutableSortedSet.of(1, 10), null, threshold))
+          .isFalse();
+    }
+  }
+
+  @Test
+  public void testGallopThreshold() {
+    assertThat(Collections3.gallopThreshold(1_000_000, 3)).isEqualTo(0);
+    assertThat(Collections3.gallopThreshold(1000, 1000)).isGreaterThan(0);
+  }
+
+  @Test
+  public void testSortedSetIntersectionAndDisjoint() {
+    Random rnd = new Random(0); // static seed for reproducibility
+    for (int size1 : ImmutableList.of(0, 1, 10, 1000)) {
+      for (int size2 : ImmutableList.of(0, 1, 3, 10, 1000)) {
+        NavigableSet<Integer> set1 = randomSet(rnd, size1, 2000);
+        NavigableSet<Integer> set2 = randomSet(rnd, size2, 2000);
+        Set<Integer> expected = Sets.intersection(set1, set2);
+
+        assertThat(Collections3.sortedSetIntersection(set1, set2))
+            .containsExactlyElementsIn(expected)
+            .inOrder();
+        assertThat(Collections3.sortedSetIntersection(set2, set1))
+            .containsExactlyElementsIn(expected)
+            .inOrder();
+        assertThat(Collections3.sortedSetDisjoint(set1, set2)).isEqualTo(expected.isEmpty());
+        assertThat(Collections3.sortedSetDisjoint(set2, set1)).isEqualTo(expected.isEmpty());
+
+        // sets with different order
+        Set<Integer> reversed = ImmutableSortedSet.copyOf(Comparator.reverseOrder(), set2);
+        assertThat(Collections3.sortedSetIntersection(set1, reversed))
+            .containsExactlyElementsIn(expected)
+            .inOrder();
+        assertThat(Collections3.sortedSetDisjoint(set1, reversed)).isEqualTo(expected.isEmpty());
+      }
+    }
+  }
+
+  @Test
+  public void testSortedSetIntersectionAndDisjoint_views() {
+    NavigableSet<Integer> big = new TreeSet<>();
+    for (int i = 0; i < 1000; i++) {
+      big.add(i);
+    }
+    NavigableSet<Integer> view = big.subSet(100, true, 1000, false);
+    NavigableSet<Integer> small = new TreeSet<>(ImmutableList.of(5, 500));
+    assertThat(Collections3.sortedSetIntersection(small, view)).containsExactly(500);
+    assertThat(Collections3.sortedSetIntersection(view, small)).containsExactly(500);
+    assertThat(Collections3.sortedSetDisjoint(small, view)).isFalse();
+    assertThat(Collections3.sortedSetDisjoint(view, small)).isFalse();
+
+    Random rnd = new Random(0); // static seed for reproducibility
+    for (int size2 : ImmutableList.of(1, 3, 10, 1000)) {
+      NavigableSet<Integer> set1 = randomSet(rnd, 1000, 2000);
+      NavigableSet<Integer> set2 = randomSet(rnd, size2, 2000);
+      ImmutableList<NavigableSet<Integer>> views1 =
+          ImmutableList.of(
+              set1.subSet(500, true, 1500, false),
+              set1.headSet(700, true),
+              set1.tailSet(1200, true));
+      ImmutableList<NavigableSet<Integer>> views2 =
+          ImmutableList.of(set2, set2.subSet(300, true, 1000, true), set2.tailSet(900, false));
+      for (NavigableSet<Integer> view1 : views1) {
+        for (NavigableSet<Integer> view2 : views2) {
+          Set<Integer> expected = Sets.intersection(view1, view2);
+
+          assertThat(Collections3.sortedSetIntersection(view1, view2))
+              .containsExactlyElementsIn(expected)
+              .inOrder();
+          assertThat(Collections3.sortedSetIntersection(view2, view1))
+              .containsExactlyElementsIn(expected)
+              .inOrder();
+          assertThat(Collections3.sortedSetDisjoint(view1, view2)).isEqualTo(expected.isEmpty());
+          assertThat(Collections3.sortedSetDisjoint(view2, view1)).isEqualTo(expected.isEmpty());
+        }
+      }
+    }
+  }
 }
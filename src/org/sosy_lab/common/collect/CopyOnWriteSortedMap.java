@@ -20,7 +20,12 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -42,7 +47,12 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  * the {@link Iterator#remove()} method. Thus it is safe to iterate over the map while changing it.
  *
  * <p>This implementation is thread-safe and lock free, but does not guarantee freedom of
- * starvation. Bulk operations are not atomic.
+ * starvation. All modifying operations, including {@link #putAll(Map)}, {@link #compute}, {@link
+ * #merge}, and {@link #updateAll(Function)}, are atomic: each of them computes the new map from a
+ * snapshot of the current one and replaces the map with a single compare-and-set operation, which
+ * is retried if the map was modified concurrently. Retries use an exponential backoff, and the
+ * number of retries is available from {@link #getRetryCount()} and {@link
+ * #getContendedUpdateCount()}.
  *
  * @param <K> The type of keys.
  * @param <V> The type of values.
@@ -50,8 +60,14 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
     extends ForwardingNavigableMap<K, V> {
 
+  /** Maximal exponent for the number of spins of the exponential backoff. */
+  private static final int MAX_BACKOFF_SHIFT = 10;
+
   private final AtomicReference<PersistentSortedMap<K, V>> map;
 
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder contendedUpdates = new LongAdder();
+
   private CopyOnWriteSortedMap(PersistentSortedMap<K, V> pMap) {
     map = new AtomicReference<>(checkNotNull(pMap));
   }
@@ -86,6 +102,60 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
     return map.get();
   }
 
+  /**
+   * Atomically replace the map with the result of applying the given function to the current map,
+   * and return a result computed from the previous and the new map. If the map was modified
+   * concurrently, the function is applied again to the new current map after an exponential
+   * backoff. If the function returns the given map, the map is not modified.
+   */
+  private <R> R update(
+      Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>> pFunction,
+      BiFunction<? super PersistentSortedMap<K, V>, ? super PersistentSortedMap<K, V>, R>
+          pResult) {
+    @Var int failures = 0;
+    while (true) {
+      PersistentSortedMap<K, V> oldMap = map.get();
+      PersistentSortedMap<K, V> newMap = checkNotNull(pFunction.apply(oldMap));
+      if (newMap == oldMap || map.compareAndSet(oldMap, newMap)) {
+        if (failures > 0) {
+          contendedUpdates.increment();
+        }
+        return pResult.apply(oldMap, newMap);
+      }
+      failures++;
+      retries.increment();
+      backoff(failures);
+    }
+  }
+
+  /**
+   * Wait for a random time that grows exponentially with the number of failed attempts, such that
+   * contending threads are unlikely to collide again.
+   */
+  private static void backoff(int failures) {
+    int spins = ThreadLocalRandom.current().nextInt(1 << Math.min(failures, MAX_BACKOFF_SHIFT));
+    for (int i = 0; i < spins; i++) {
+      Thread.onSpinWait();
+    }
+    if (failures > MAX_BACKOFF_SHIFT) {
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Return how often an update of this map failed because of a concurrent modification and was
+   * retried. Together with {@link #getContendedUpdateCount()}, this shows whether the map is a
+   * contention hotspot.
+   */
+  public long getRetryCount() {
+    return retries.sum();
+  }
+
+  /** Return how many updates of this map needed at least one retry. */
+  public long getContendedUpdateCount() {
+    return contendedUpdates.sum();
+  }
+
   /**
    * This method is not starvation free, and thus not strictly guaranteed to terminate in presence
    * of concurrent modifying operations.
@@ -95,21 +165,7 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
   @Override
   @CanIgnoreReturnValue
   public @Nullable V put(K pKey, V pValue) {
-    PersistentSortedMap<K, V> oldMap = put0(pKey, pValue);
-
-    return oldMap.get(pKey);
-  }
-
-  /** Update and replace the map, returning the previous map. */
-  private PersistentSortedMap<K, V> put0(K pKey, V pValue) {
-    @Var PersistentSortedMap<K, V> oldMap;
-    @Var PersistentSortedMap<K, V> newMap;
-    do {
-      oldMap = map.get();
-      newMap = oldMap.putAndCopy(pKey, pValue);
-    } while (!map.compareAndSet(oldMap, newMap));
-
-    return oldMap;
+    return update(m -> m.putAndCopy(pKey, pValue), (oldMap, newMap) -> oldMap.get(pKey));
   }
 
   /**
@@ -121,19 +177,9 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
   @Override
   @CanIgnoreReturnValue
   public @Nullable V remove(Object pKey) {
-    @Var PersistentSortedMap<K, V> oldMap;
-    @Var PersistentSortedMap<K, V> newMap;
-
-    do {
-      oldMap = map.get();
-      if (!oldMap.containsKey(pKey)) {
-        return null;
-      }
-
-      newMap = oldMap.removeAndCopy(pKey);
-    } while (!map.compareAndSet(oldMap, newMap));
-
-    return oldMap.get(pKey);
+    return update(
+        m -> m.containsKey(pKey) ? m.removeAndCopy(pKey) : m,
+        (oldMap, newMap) -> oldMap.get(pKey));
   }
 
   /**
@@ -145,20 +191,12 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
   @Override
   @CanIgnoreReturnValue
   public @Nullable Entry<K, V> pollFirstEntry() {
-    @Var PersistentSortedMap<K, V> oldMap;
-    @Var PersistentSortedMap<K, V> newMap;
-    @Var Entry<K, V> firstEntry;
-
-    do {
-      oldMap = map.get();
-      firstEntry = oldMap.firstEntry();
-      if (firstEntry == null) {
-        return null;
-      }
-      newMap = oldMap.removeAndCopy(firstEntry.getKey());
-    } while (!map.compareAndSet(oldMap, newMap));
-
-    return firstEntry;
+    return update(
+        m -> {
+          Entry<K, V> firstEntry = m.firstEntry();
+          return firstEntry == null ? m : m.removeAndCopy(firstEntry.getKey());
+        },
+        (oldMap, newMap) -> oldMap.firstEntry());
   }
 
   /**
@@ -170,25 +208,17 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
   @Override
   @CanIgnoreReturnValue
   public @Nullable Entry<K, V> pollLastEntry() {
-    @Var PersistentSortedMap<K, V> oldMap;
-    @Var PersistentSortedMap<K, V> newMap;
-    @Var Entry<K, V> lastEntry;
-
-    do {
-      oldMap = map.get();
-      lastEntry = oldMap.lastEntry();
-      if (lastEntry == null) {
-        return null;
-      }
-      newMap = oldMap.removeAndCopy(lastEntry.getKey());
-    } while (!map.compareAndSet(oldMap, newMap));
-
-    return lastEntry;
+    return update(
+        m -> {
+          Entry<K, V> lastEntry = m.lastEntry();
+          return lastEntry == null ? m : m.removeAndCopy(lastEntry.getKey());
+        },
+        (oldMap, newMap) -> oldMap.lastEntry());
   }
 
   /**
-   * This method is not atomic! It inserts all keys one after the other, and in between each
-   * operation arbitrary operations from other threads might get executed.
+   * This method is atomic: it inserts all entries at once and other threads see either none or all
+   * of them.
    *
    * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
    * presence of concurrent modifying operations.
@@ -197,7 +227,126 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
    */
   @Override
   public void putAll(Map<? extends K, ? extends V> pMap) {
-    pMap.forEach((key, value) -> put(key, value));
+    checkNotNull(pMap);
+    update(m -> m.putAllAndCopy(pMap), (oldMap, newMap) -> null);
+  }
+
+  /**
+   * Atomically replace the content of this map with the result of the given function, which is
+   * applied to a snapshot of the current content. The function may be applied several times if
+   * the map is modified concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @return The new content of the map.
+   */
+  @CanIgnoreReturnValue
+  public PersistentSortedMap<K, V> updateAll(
+      Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>> pFunction) {
+    checkNotNull(pFunction);
+    return update(pFunction, (oldMap, newMap) -> newMap);
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#compute(Object, BiFunction)
+   */
+  @Override
+  public @Nullable V compute(
+      K pKey, BiFunction<? super K, ? super @Nullable V, ? extends V> pRemappingFunction) {
+    checkNotNull(pRemappingFunction);
+    return update(
+        m -> {
+          V oldValue = m.get(pKey);
+          V newValue = pRemappingFunction.apply(pKey, oldValue);
+          if (newValue != null) {
+            return m.putAndCopy(pKey, newValue);
+          } else if (oldValue != null || m.containsKey(pKey)) {
+            return m.removeAndCopy(pKey);
+          } else {
+            return m;
+          }
+        },
+        (oldMap, newMap) -> newMap.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#computeIfAbsent(Object, Function)
+   */
+  @Override
+  public V computeIfAbsent(K pKey, Function<? super K, ? extends V> pMappingFunction) {
+    checkNotNull(pMappingFunction);
+    return update(
+        m -> {
+          if (m.get(pKey) != null) {
+            return m;
+          }
+          V newValue = pMappingFunction.apply(pKey);
+          return newValue == null ? m : m.putAndCopy(pKey, newValue);
+        },
+        (oldMap, newMap) -> newMap.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#computeIfPresent(Object, BiFunction)
+   */
+  @Override
+  public @Nullable V computeIfPresent(
+      K pKey, BiFunction<? super K, ? super V, ? extends @Nullable V> pRemappingFunction) {
+    checkNotNull(pRemappingFunction);
+    return update(
+        m -> {
+          V oldValue = m.get(pKey);
+          if (oldValue == null) {
+            return m;
+          }
+          V newValue = pRemappingFunction.apply(pKey, oldValue);
+          return newValue == null ? m.removeAndCopy(pKey) : m.putAndCopy(pKey, newValue);
+        },
+        (oldMap, newMap) -> newMap.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#merge(Object, Object, BiFunction)
+   */
+  @Override
+  public @Nullable V merge(
+      K pKey,
+      V pValue,
+      BiFunction<? super V, ? super V, ? extends @Nullable V> pRemappingFunction) {
+    checkNotNull(pValue);
+    checkNotNull(pRemappingFunction);
+    return update(
+        m -> {
+          V oldValue = m.get(pKey);
+          V newValue = oldValue == null ? pValue : pRemappingFunction.apply(oldValue, pValue);
+          return newValue == null ? m.removeAndCopy(pKey) : m.putAndCopy(pKey, newValue);
+        },
+        (oldMap, newMap) -> newMap.get(pKey));
   }
 
   /** See {@link Map#clear()}. */
@@ -217,6 +366,12 @@ public final class CopyOnWriteSortedMap<K, V extends @Nullable Object>
       protected NavigableSet<Map.Entry<K, V>> delegate() {
         return map.get().entrySet();
       }
+
+      @Override
+      public Spliterator<Map.Entry<K, V>> spliterator() {
+        // not forwarded by ForwardingNavigableSet, but the snapshot has a splittable one
+        return delegate().spliterator();
+      }
     };
   }
 
@@ -8,6 +8,10 @@
 
 package org.sosy_lab.common.collect;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.testing.AbstractTester;
 import com.google.common.collect.testing.FeatureSpecificTestSuiteBuilder;
@@ -28,13 +32,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
-import junit.framework.Test;
+import junit.framework.JUnit4TestAdapter;
 import junit.framework.TestSuite;
+import org.junit.Test;
 
 public class CopyOnWriteSortedMapTest {
 
-  private CopyOnWriteSortedMapTest() {}
+  private static final int THREADS = 4;
+  private static final int UPDATES_PER_THREAD = 10_000;
 
   /** A delegating {@link FeatureSpecificTestSuiteBuilder} that overrides the set of features. */
   private static class FeatureOverrideTestSuiteBuilder<K, V>
@@ -87,7 +98,7 @@ public class CopyOnWriteSortedMapTest {
    * A {@link NavigableMapTestSuiteBuilder} that ensures that submaps, entry set etc. are not tested
    * for mutability.
    */
-  private static class UnmodifiableViewSortedMapTestSuiteBuilder<K, V>
+  static class UnmodifiableViewSortedMapTestSuiteBuilder<K, V>
       extends NavigableMapTestSuiteBuilder<K, V> {
 
     @Override
@@ -128,22 +139,159 @@ public class CopyOnWriteSortedMapTest {
         }
       };
 
-  public static Test suite() throws NoSuchMethodException {
+  public static junit.framework.Test suite() throws NoSuchMethodException {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(CopyOnWriteSortedMapTest.class));
+
     // Our collection views are unmodifiable, so we need special TestSuiteBuilder
-    return new UnmodifiableViewSortedMapTestSuiteBuilder<String, String>()
-        .usingGenerator(mapGenerator)
-        .named("CopyOnWriteSortedMap")
-        .withFeatures(
-            MapFeature.GENERAL_PURPOSE,
-            MapFeature.ALLOWS_NULL_VALUES,
-            CollectionFeature.KNOWN_ORDER,
-            CollectionSize.ANY)
-
-        // We do not support Map.Entry.setValue()
-        .suppressing(MapEntrySetTester.class.getMethod("testSetValue"))
-        .suppressing(MapEntrySetTester.class.getMethod("testSetValueWithNullValuesPresent"))
-        .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllPreservesOrder"))
-        .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllRotate"))
-        .createTestSuite();
+    suite.addTest(
+        new UnmodifiableViewSortedMapTestSuiteBuilder<String, String>()
+            .usingGenerator(mapGenerator)
+            .named("CopyOnWriteSortedMap")
+            .withFeatures(
+                MapFeature.GENERAL_PURPOSE,
+                MapFeature.ALLOWS_NULL_VALUES,
+                CollectionFeature.KNOWN_ORDER,
+                CollectionSize.ANY)
+
+            // We do not support Map.Entry.setValue()
+            .suppressing(MapEntrySetTester.class.getMethod("testSetValue"))
+            .suppressing(MapEntrySetTester.class.getMethod("testSetValueWithNullValuesPresent"))
+            .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllPreservesOrder"))
+            .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllRotate"))
+            .createTestSuite());
+
+    return suite;
+  }
+
+  private static CopyOnWriteSortedMap<String, Integer> emptyMap() {
+    return CopyOnWriteSortedMap.copyOf(PathCopyingPersistentTreeMap.<String, Integer>of());
+  }
+
+  /** Run the given action concurrently in several threads and wait for all of them. */
+  private static void runConcurrently(Runnable action) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures =
+          Stream.generate(
+                  () ->
+                      executor.submit(
+                          () -> {
+                            start.await();
+                            action.run();
+                            return null;
+                          }))
+              .limit(THREADS)
+              .collect(toImmutableList());
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMergeConcurrently() throws Exception {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            map.merge("key" + (i % 3), 1, Integer::sum);
+          }
+        });
+
+    assertThat(map)
+        .containsExactly("key0", THREADS * 3334, "key1", THREADS * 3333, "key2", THREADS * 3333);
+    assertThat(map.getContendedUpdateCount()).isAtMost(map.getRetryCount());
+  }
+
+  @Test
+  public void testComputeConcurrently() throws Exception {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            map.compute("key", (k, v) -> v == null ? 1 : v + 1);
+          }
+        });
+
+    assertThat(map).containsExactly("key", THREADS * UPDATES_PER_THREAD);
+  }
+
+  @Test
+  public void testComputeIfAbsentConcurrently() throws Exception {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            Integer value = map.computeIfAbsent("key" + (i % 100), k -> k.length());
+            assertThat(value).isAnyOf(4, 5);
+          }
+        });
+
+    assertThat(map).hasSize(100);
+  }
+
+  @Test
+  public void testUpdateAllIsAtomic() throws Exception {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    map.put("a", 0);
+    map.put("b", 0);
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            PersistentSortedMap<String, Integer> snapshot =
+                map.updateAll(
+                    m -> m.putAndCopy("a", m.get("a") + 1).putAndCopy("b", m.get("b") - 1));
+            // Both keys are always updated together.
+            assertThat(snapshot.get("a") + snapshot.get("b")).isEqualTo(0);
+          }
+        });
+
+    assertThat(map)
+        .containsExactly("a", THREADS * UPDATES_PER_THREAD, "b", -THREADS * UPDATES_PER_THREAD);
+  }
+
+  @Test
+  public void testPutAllIsAtomic() throws Exception {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            map.putAll(ImmutableMap.of("a", i, "b", i));
+            PersistentSortedMap<String, Integer> snapshot = map.getSnapshot();
+            assertThat(snapshot.get("a")).isEqualTo(snapshot.get("b"));
+          }
+        });
+
+    assertThat(map).hasSize(2);
+  }
+
+  @Test
+  public void testComputeRemovesOnNull() {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    map.put("a", 1);
+
+    assertThat(map.compute("a", (k, v) -> null)).isNull();
+    assertThat(map).isEmpty();
+    assertThat(map.computeIfAbsent("a", k -> null)).isNull();
+    assertThat(map).isEmpty();
+    assertThat(map.merge("a", 1, Integer::sum)).isEqualTo(1);
+    assertThat(map.merge("a", 1, (v1, v2) -> null)).isNull();
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testCountersWithoutContention() {
+    CopyOnWriteSortedMap<String, Integer> map = emptyMap();
+    map.put("a", 1);
+    map.merge("a", 1, Integer::sum);
+    map.updateAll(m -> m.putAndCopy("b", 2));
+
+    assertThat(map.getRetryCount()).isEqualTo(0);
+    assertThat(map.getContendedUpdateCount()).isEqualTo(0);
   }
 }
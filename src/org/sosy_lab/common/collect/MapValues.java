@@ -15,6 +15,7 @@ import java.io.Serializable;
 import java.util.AbstractCollection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.function.Consumer;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 final class MapValues<E extends @Nullable Object> extends AbstractCollection<E>
@@ -34,6 +35,12 @@ final class MapValues<E extends @Nullable Object> extends AbstractCollection<E>
     return Iterators.transform(delegate.entrySet().iterator(), Map.Entry::getValue);
   }
 
+  @Override
+  public void forEach(Consumer<? super E> pAction) {
+    checkNotNull(pAction);
+    delegate.forEach((key, value) -> pAction.accept(value));
+  }
+
   @Override
   public void clear() {
     delegate.clear();
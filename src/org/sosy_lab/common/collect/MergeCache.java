@@ -0,0 +1,169 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.lang.ref.WeakReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentSortedMaps.MergeConflictHandler;
+
+/**
+ * Memo table for the results of {@link PersistentSortedMaps#merge(PersistentSortedMap,
+ * PersistentSortedMap, MergeConflictHandler)}, to be passed to {@link
+ * PersistentSortedMaps#merge(PersistentSortedMap, PersistentSortedMap, MergeConflictHandler,
+ * MergeCache)}. This is useful if the same pairs of maps are merged repeatedly, e.g., in a fixpoint
+ * iteration, because a repeated merge then takes O(1) time instead of the time for merging.
+ *
+ * <p>Results are cached for the identity of the two input maps and of the conflict handler, not
+ * for their equality, such that lookups do not need to look at the content of the maps. Thus, only
+ * merges of the same instances can hit, and the conflict handler needs to be the same instance as
+ * well (e.g., a constant or one of the handlers returned by {@link PersistentSortedMaps}). The
+ * conflict handler needs to be deterministic, otherwise cached results may differ from fresh ones.
+ *
+ * <p>The cache references the input maps, the conflict handler, and the result only weakly, so it
+ * does not prevent any of them from being garbage collected. Entries whose result was collected are
+ * removed, and entries whose inputs were collected can no longer be hit. Furthermore, the cache
+ * holds at most a given number of entries and evicts the least recently used entries if necessary.
+ * All instances of this class are thread safe.
+ *
+ * <p>The cache counts how often a merge result was already present ("hit") and how often a merge
+ * had to be computed ("miss"). Merges of a map with itself are trivial and neither cached nor
+ * counted.
+ */
+public final class MergeCache {
+
+  /**
+   * Key of the cache, which compares the referenced objects by identity. Keys of which a referent
+   * was collected are equal only to themselves.
+   */
+  private static final class Key {
+    private final WeakReference<PersistentSortedMap<?, ?>> map1;
+    private final WeakReference<PersistentSortedMap<?, ?>> map2;
+    private final WeakReference<MergeConflictHandler<?, ?>> conflictHandler;
+    private final int hash;
+
+    Key(
+        PersistentSortedMap<?, ?> pMap1,
+        PersistentSortedMap<?, ?> pMap2,
+        MergeConflictHandler<?, ?> pConflictHandler) {
+      map1 = new WeakReference<>(pMap1);
+      map2 = new WeakReference<>(pMap2);
+      conflictHandler = new WeakReference<>(pConflictHandler);
+      hash =
+          31 * (31 * System.identityHashCode(pMap1) + System.identityHashCode(pMap2))
+              + System.identityHashCode(pConflictHandler);
+    }
+
+    private static boolean sameReferent(WeakReference<?> ref1, WeakReference<?> ref2) {
+      Object referent = ref1.get();
+      return referent != null && referent == ref2.get();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object pObj) {
+      if (this == pObj) {
+        return true;
+      }
+      return pObj instanceof Key other
+          && hash == other.hash
+          && sameReferent(map1, other.map1)
+          && sameReferent(map2, other.map2)
+          && sameReferent(conflictHandler, other.conflictHandler);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final Cache<Key, PersistentSortedMap<?, ?>> cache;
+
+  private MergeCache(int maximumSize) {
+    cache = CacheBuilder.newBuilder().maximumSize(maximumSize).weakValues().recordStats().build();
+  }
+
+  /** Create a new empty cache that holds at most the given number of merge results. */
+  public static MergeCache create(int maximumSize) {
+    checkArgument(maximumSize > 0, "maximum size %s is not positive", maximumSize);
+    return new MergeCache(maximumSize);
+  }
+
+  /**
+   * Return the cached result of merging the given maps, or merge them and cache the result.
+   *
+   * @see PersistentSortedMaps#merge(PersistentSortedMap, PersistentSortedMap, MergeConflictHandler,
+   *     MergeCache)
+   */
+  <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> merge(
+      PersistentSortedMap<K, V> map1,
+      PersistentSortedMap<K, V> map2,
+      MergeConflictHandler<K, V> conflictHandler) {
+    checkNotNull(map1);
+    checkNotNull(map2);
+    checkNotNull(conflictHandler);
+    if (map1 == map2) {
+      return map1;
+    }
+
+    Key key = new Key(map1, map2, conflictHandler);
+    // The result is computed outside of the cache such that concurrent lookups are not blocked
+    // and exceptions of the conflict handler are not wrapped.
+    @SuppressWarnings("unchecked") // the key determines the types of the result
+    PersistentSortedMap<K, V> cached = (PersistentSortedMap<K, V>) cache.getIfPresent(key);
+    if (cached != null) {
+      return cached;
+    }
+    PersistentSortedMap<K, V> result = PersistentSortedMaps.merge(map1, map2, conflictHandler);
+    cache.put(key, result);
+    return result;
+  }
+
+  /** Return the approximate number of cached merge results. */
+  public long size() {
+    cache.cleanUp();
+    return cache.size();
+  }
+
+  /** Remove all cached merge results. This does not reset the statistics. */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /** Return how often a merge result was found in the cache. */
+  public long getHitCount() {
+    return cache.stats().hitCount();
+  }
+
+  /** Return how often a merge result had to be computed. */
+  public long getMissCount() {
+    return cache.stats().missCount();
+  }
+
+  /**
+   * Return how often a merge result was removed because the cache was full or because the result
+   * was garbage collected.
+   */
+  public long getEvictionCount() {
+    return cache.stats().evictionCount();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = cache.stats();
+    return String.format(
+        "MergeCache with %d hits, %d misses, and %d evictions",
+        stats.hitCount(), stats.missCount(), stats.evictionCount());
+  }
+}
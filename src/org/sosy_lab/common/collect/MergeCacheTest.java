@@ -0,0 +1,138 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.testing.GcFinalization;
+import com.google.errorprone.annotations.Var;
+import java.lang.ref.WeakReference;
+import org.junit.Test;
+import org.sosy_lab.common.collect.PersistentSortedMaps.MergeConflictHandler;
+
+public class MergeCacheTest {
+
+  private static final MergeConflictHandler<Integer, Integer> MAX =
+      PersistentSortedMaps.getMaximumMergeConflictHandler();
+
+  private final MergeCache cache = MergeCache.create(100);
+
+  private static PersistentSortedMap<Integer, Integer> buildMap(int from, int to) {
+    @Var PersistentSortedMap<Integer, Integer> result = PathCopyingPersistentTreeMap.of();
+    for (int i = from; i < to; i++) {
+      result = result.putAndCopy(i, i);
+    }
+    return result;
+  }
+
+  @Test
+  public void testRepeatedMerge() {
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(0, 100);
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(50, 150).putAndCopy(60, 1000);
+
+    PersistentSortedMap<Integer, Integer> result =
+        PersistentSortedMaps.merge(map1, map2, MAX, cache);
+    assertThat(result).isEqualTo(PersistentSortedMaps.merge(map1, map2, MAX));
+    assertThat(cache.getHitCount()).isEqualTo(0);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+
+    assertThat(PersistentSortedMaps.merge(map1, map2, MAX, cache)).isSameInstanceAs(result);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testIdentityOfInputs() {
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(0, 100);
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(50, 150);
+    PersistentSortedMap<Integer, Integer> result =
+        PersistentSortedMaps.merge(map1, map2, MAX, cache);
+
+    // equal but not identical maps, swapped maps, and other conflict handlers do not hit
+    assertThat(PersistentSortedMaps.merge(buildMap(0, 100), map2, MAX, cache))
+        .isNotSameInstanceAs(result);
+    assertThat(PersistentSortedMaps.merge(map2, map1, MAX, cache)).isNotSameInstanceAs(result);
+    assertThat(
+            PersistentSortedMaps.merge(
+                map1, map2, PersistentSortedMaps.getMinimumMergeConflictHandler(), cache))
+        .isNotSameInstanceAs(result);
+    assertThat(cache.getHitCount()).isEqualTo(0);
+    assertThat(cache.getMissCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testMergeWithItself() {
+    PersistentSortedMap<Integer, Integer> map = buildMap(0, 10);
+    assertThat(PersistentSortedMaps.merge(map, map, MAX, cache)).isSameInstanceAs(map);
+    assertThat(cache.getMissCount()).isEqualTo(0);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBounded() {
+    MergeCache smallCache = MergeCache.create(1);
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(0, 10);
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(5, 15);
+    PersistentSortedMap<Integer, Integer> result1 =
+        PersistentSortedMaps.merge(map1, map2, MAX, smallCache);
+    PersistentSortedMap<Integer, Integer> result2 =
+        PersistentSortedMaps.merge(map2, map1, MAX, smallCache);
+
+    assertThat(smallCache.size()).isEqualTo(1);
+    assertThat(smallCache.getEvictionCount()).isEqualTo(1);
+    assertThat(PersistentSortedMaps.merge(map2, map1, MAX, smallCache)).isSameInstanceAs(result2);
+    assertThat(PersistentSortedMaps.merge(map1, map2, MAX, smallCache))
+        .isNotSameInstanceAs(result1);
+  }
+
+  @Test
+  public void testConflictHandlerException() {
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(0, 10);
+    PersistentSortedMap<Integer, Integer> map2 = map1.putAndCopy(5, -5);
+    MergeConflictHandler<Integer, Integer> handler =
+        PersistentSortedMaps.getExceptionMergeConflictHandler();
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> PersistentSortedMaps.merge(map1, map2, handler, cache));
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  private WeakReference<PersistentSortedMap<Integer, Integer>> mergeTemporaryMap(
+      PersistentSortedMap<Integer, Integer> other) {
+    PersistentSortedMap<Integer, Integer> map = buildMap(100, 110);
+    assertThat(PersistentSortedMaps.merge(map, other, MAX, cache)).hasSize(20);
+    return new WeakReference<>(map);
+  }
+
+  @Test
+  public void testInputsAreWeak() {
+    PersistentSortedMap<Integer, Integer> other = buildMap(0, 10);
+    GcFinalization.awaitClear(mergeTemporaryMap(other));
+  }
+
+  private WeakReference<PersistentSortedMap<Integer, Integer>> mergeWithTemporaryResult(
+      PersistentSortedMap<Integer, Integer> map1, PersistentSortedMap<Integer, Integer> map2) {
+    return new WeakReference<>(PersistentSortedMaps.merge(map1, map2, MAX, cache));
+  }
+
+  @Test
+  public void testResultsAreWeak() {
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(0, 10);
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(20, 30);
+    GcFinalization.awaitClear(mergeWithTemporaryResult(map1, map2));
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidSize() {
+    assertThrows(IllegalArgumentException.class, () -> MergeCache.create(0));
+  }
+}
@@ -148,33 +148,33 @@ public interface OrderStatisticMap<K, V extends @Nullable Object> extends Naviga
 
   /**
    * Creates a new empty OrderStatisticMap using natural ordering. The returned map guarantees
-   * performance only in O(n) for the operations specific to the OrderStatisticMap interface.
+   * performance in O(log n) for the operations specific to the OrderStatisticMap interface.
    */
   static <K, V> OrderStatisticMap<K, V> create() {
-    return NaiveOrderStatisticMap.createMap();
+    return OrderStatisticTreeMap.createMap();
   }
 
   /**
    * Creates a new empty OrderStatisticMap using the given comparator over its keys. The returned
-   * map guarantees performance only in O(n) for the operations specific to the OrderStatisticMap
+   * map guarantees performance in O(log n) for the operations specific to the OrderStatisticMap
    * interface.
    */
   static <K, V> OrderStatisticMap<K, V> create(Comparator<? super K> pComparator) {
-    return NaiveOrderStatisticMap.createMap(pComparator);
+    return OrderStatisticTreeMap.createMap(pComparator);
   }
 
   /**
    * Creates a new OrderStatisticSet containing the same entries as the given map, using natural
-   * ordering over its keys. The returned map guarantees performance only in O(n) for the operations
+   * ordering over its keys. The returned map guarantees performance in O(log n) for the operations
    * specific to the OrderStatisticMap interface.
    */
   static <K, V> OrderStatisticMap<K, V> createWithNaturalOrder(Map<? extends K, ? extends V> pMap) {
-    return NaiveOrderStatisticMap.createMapWithNaturalOrder(pMap);
+    return OrderStatisticTreeMap.createMapWithNaturalOrder(pMap);
   }
 
   /**
    * Creates a new OrderStatisticMap containing the same entries and using the same order over keys
-   * as the given {@link SortedMap}. The returned map guarantees performance only in O(n) for the
+   * as the given {@link SortedMap}. The returned map guarantees performance in O(log n) for the
    * operations specific to the OrderStatisticMap interface.
    *
    * @param pSortedMap map to use entries and ordering of
@@ -185,6 +185,6 @@ public interface OrderStatisticMap<K, V extends @Nullable Object> extends Naviga
    */
   @SuppressWarnings("IllegalType") // handling SortedSet is more general
   static <K, V> OrderStatisticMap<K, V> createWithSameOrder(SortedMap<K, ? extends V> pSortedMap) {
-    return NaiveOrderStatisticMap.createMapWithSameOrder(pSortedMap);
+    return OrderStatisticTreeMap.createMapWithSameOrder(pSortedMap);
   }
 }
@@ -0,0 +1,199 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.Iterators;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Implementation of {@link OrderStatisticSet} to be used as the key set of an {@link
+ * OrderStatisticMap}.
+ *
+ * <p>This implementation forwards all methods to the underlying map, so the rank operations are as
+ * efficient as those of the map.
+ */
+final class OrderStatisticMapKeySet<K> extends AbstractSet<K>
+    implements OrderStatisticSet<K>, Serializable {
+
+  private static final long serialVersionUID = -6410624327845210457L;
+
+  @SuppressWarnings("serial") // This class only needs to be serializable if map is.
+  private final OrderStatisticMap<K, ?> map;
+
+  OrderStatisticMapKeySet(OrderStatisticMap<K, ?> pMap) {
+    map = checkNotNull(pMap);
+  }
+
+  private @Nullable K keyOrNull(@Nullable Entry<K, ?> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  @Override
+  public Iterator<K> iterator() {
+    return Iterators.transform(map.entrySet().iterator(), Map.Entry::getKey);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object pO) {
+    return Collections3.sortedSetEquals(this, pO);
+  }
+
+  @Override
+  @SuppressWarnings("RedundantOverride") // to document that using super.hashCode is intended
+  public int hashCode() {
+    return super.hashCode();
+  }
+
+  @Override
+  public boolean contains(@Nullable Object pO) {
+    return map.containsKey(pO);
+  }
+
+  @Override
+  public boolean containsAll(Collection<?> pC) {
+    return Collections3.sortedSetContainsAll(this, pC, null);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public @Nullable Comparator<? super K> comparator() {
+    return map.comparator();
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+  }
+
+  @Override
+  public boolean remove(@Nullable Object pO) {
+    if (map.containsKey(pO)) {
+      map.remove(pO);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public K first() {
+    return map.firstKey();
+  }
+
+  @Override
+  public K last() {
+    return map.lastKey();
+  }
+
+  @Override
+  public @Nullable K lower(K pE) {
+    return map.lowerKey(pE);
+  }
+
+  @Override
+  public @Nullable K floor(K pE) {
+    return map.floorKey(pE);
+  }
+
+  @Override
+  public @Nullable K ceiling(K pE) {
+    return map.ceilingKey(pE);
+  }
+
+  @Override
+  public @Nullable K higher(K pE) {
+    return map.higherKey(pE);
+  }
+
+  @Override
+  public @Nullable K pollFirst() {
+    return keyOrNull(map.pollFirstEntry());
+  }
+
+  @Override
+  public @Nullable K pollLast() {
+    return keyOrNull(map.pollLastEntry());
+  }
+
+  @Override
+  public K getByRank(int pIndex) {
+    return map.getKeyByRank(pIndex);
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public K removeByRank(int pIndex) {
+    return map.removeByRank(pIndex);
+  }
+
+  @Override
+  public int rankOf(K pObj) {
+    return map.rankOf(pObj);
+  }
+
+  @Override
+  public OrderStatisticSet<K> descendingSet() {
+    return map.descendingKeySet();
+  }
+
+  @Override
+  public Iterator<K> descendingIterator() {
+    return descendingSet().iterator();
+  }
+
+  @Override
+  public OrderStatisticSet<K> subSet(
+      K pFromElement, boolean pFromInclusive, K pToElement, boolean pToInclusive) {
+    return new OrderStatisticMapKeySet<>(
+        map.subMap(pFromElement, pFromInclusive, pToElement, pToInclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<K> headSet(K pToElement, boolean pInclusive) {
+    return new OrderStatisticMapKeySet<>(map.headMap(pToElement, pInclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<K> tailSet(K pFromElement, boolean pInclusive) {
+    return new OrderStatisticMapKeySet<>(map.tailMap(pFromElement, pInclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<K> subSet(K pFromElement, K pToElement) {
+    return subSet(pFromElement, /* pFromInclusive= */ true, pToElement, /* pToInclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticSet<K> headSet(K pToElement) {
+    return headSet(pToElement, /* pInclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticSet<K> tailSet(K pFromElement) {
+    return tailSet(pFromElement, /* pInclusive= */ true);
+  }
+}
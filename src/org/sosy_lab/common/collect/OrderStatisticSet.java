@@ -117,34 +117,34 @@ public interface OrderStatisticSet<E> extends NavigableSet<E> {
   OrderStatisticSet<E> tailSet(E pFromElement);
 
   /**
-   * Creates a new empty OrderStatisticSet using natural ordering. The returned map guarantees
-   * performance only in O(n) for the operations specific to the OrderStatisticSet interface.
+   * Creates a new empty OrderStatisticSet using natural ordering. The returned set guarantees
+   * performance in O(log n) for the operations specific to the OrderStatisticSet interface.
    */
   static <E> OrderStatisticSet<E> create() {
-    return NaiveOrderStatisticSet.createSet();
+    return OrderStatisticTreeSet.createSet();
   }
 
   /**
-   * Creates a new empty OrderStatisticSet using the given comparator. The returned map guarantees
-   * performance only in O(n) for the operations specific to the OrderStatisticSet interface.
+   * Creates a new empty OrderStatisticSet using the given comparator. The returned set guarantees
+   * performance in O(log n) for the operations specific to the OrderStatisticSet interface.
    */
   static <E> OrderStatisticSet<E> create(Comparator<? super E> pComparator) {
-    return NaiveOrderStatisticSet.createSet(pComparator);
+    return OrderStatisticTreeSet.createSet(pComparator);
   }
 
   /**
    * Creates a new OrderStatisticSet containing the same elements as the given Iterable, using
-   * natural ordering. The returned map guarantees performance only in O(n) for the operations
+   * natural ordering. The returned set guarantees performance in O(log n) for the operations
    * specific to the OrderStatisticSet interface.
    */
   static <E> OrderStatisticSet<E> createWithNaturalOrder(Iterable<E> pCollection) {
-    return NaiveOrderStatisticSet.createSetWithNaturalOrder(pCollection);
+    return OrderStatisticTreeSet.createSetWithNaturalOrder(pCollection);
   }
 
   /**
    * Creates a new OrderStatisticSet containing the same elements and using the same order as the
-   * given {@link SortedSet}. The returned map guarantees performance only in O(n) for the
-   * operations specific to the OrderStatisticSet interface.
+   * given {@link SortedSet}. The returned set guarantees performance in O(log n) for the operations
+   * specific to the OrderStatisticSet interface.
    *
    * @param pSortedSet set to use elements and ordering of
    * @param <E> type of the elements of the given and new set
@@ -153,6 +153,6 @@ public interface OrderStatisticSet<E> extends NavigableSet<E> {
    */
   @SuppressWarnings("IllegalType") // handling SortedSet is more general
   static <E> OrderStatisticSet<E> createWithSameOrder(SortedSet<E> pSortedSet) {
-    return NaiveOrderStatisticSet.createSetWithSameOrder(pSortedSet);
+    return OrderStatisticTreeSet.createSetWithSameOrder(pSortedSet);
   }
 }
@@ -0,0 +1,1032 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.areBalanced;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.isBalanced;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.isSingleRotation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.Var;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An {@link OrderStatisticMap} that is based on a mutable weight-balanced tree.
+ *
+ * <p>Each node stores the size of its subtree, which serves both for the rank operations and as
+ * balancing information (with the same balancing parameters as {@link
+ * PersistentOrderStatisticTreeMap}). Thus the operations get, put, remove, {@link
+ * #getEntryByRank(int)}, {@link #removeByRank(int)}, and {@link #rankOf(Object)} are guaranteed to
+ * run in O(log n) time. This also holds for the views returned by {@link #subMap}, {@link
+ * #headMap}, {@link #tailMap}, and {@link #descendingMap()}, and in contrast to {@link
+ * java.util.TreeMap} even {@link #size()} of such a view is O(log n) instead of O(n).
+ *
+ * <p>All views are backed by the map, and all iterators are fail-fast, just like for {@link
+ * java.util.TreeMap}. This implementation does not support <code>null</code> keys (but <code>null
+ * </code> values) and is not thread-safe.
+ *
+ * @param <K> type of the keys of this map. See the Javadoc of {@link OrderStatisticMap} for
+ *     possible constraints on this type
+ * @param <V> type of the values of this map
+ * @see OrderStatisticMap
+ */
+final class OrderStatisticTreeMap<K, V extends @Nullable Object> extends AbstractMap<K, V>
+    implements OrderStatisticMap<K, V>, Serializable {
+
+  private static final long serialVersionUID = 2471582036974215493L;
+
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  private static final class Node<K, V extends @Nullable Object> extends SimpleEntry<K, V> {
+
+    private static final long serialVersionUID = -5893040853652915287L;
+
+    private @Nullable Node<K, V> left;
+    private @Nullable Node<K, V> right;
+    private int size = 1;
+
+    Node(K pKey, V pValue) {
+      super(pKey, pValue);
+    }
+
+    static int size(@Nullable Node<?, ?> n) {
+      return n == null ? 0 : n.size;
+    }
+
+    /** The weight of a tree as defined by {@link PersistentOrderStatisticTreeMap}. */
+    static int weight(@Nullable Node<?, ?> n) {
+      return size(n) + 1;
+    }
+
+    @CanIgnoreReturnValue
+    Node<K, V> setChildren(@Nullable Node<K, V> newLeft, @Nullable Node<K, V> newRight) {
+      left = newLeft;
+      right = newRight;
+      size = size(newLeft) + 1 + size(newRight);
+      return this;
+    }
+  }
+
+  /** The tree with all entries, which is shared between a map and all its views. */
+  private static final class Tree<K, V extends @Nullable Object> implements Serializable {
+
+    private static final long serialVersionUID = 8190356470528512649L;
+
+    @SuppressWarnings("serial") // This class only needs to be serializable if comparator is.
+    private final @Nullable Comparator<? super K> comparator;
+
+    private @Nullable Node<K, V> root = null;
+
+    /** Counter of structural modifications, used by iterators to detect concurrent modification. */
+    private transient int modCount = 0;
+
+    Tree(@Nullable Comparator<? super K> pComparator) {
+      comparator = pComparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    int compare(K key1, K key2) {
+      if (comparator == null) {
+        return ((Comparable<? super K>) key1).compareTo(key2);
+      }
+      return comparator.compare(key1, key2);
+    }
+
+    // lookup methods
+
+    @Nullable Node<K, V> findNode(K key) {
+      checkNotNull(key);
+      @Var Node<K, V> current = root;
+      while (current != null) {
+        int comp = compare(key, current.getKey());
+        if (comp < 0) {
+          current = current.left;
+        } else if (comp > 0) {
+          current = current.right;
+        } else {
+          return current;
+        }
+      }
+      return null;
+    }
+
+    @Nullable Node<K, V> findSmallestNode() {
+      @Var Node<K, V> current = root;
+      while (current != null && current.left != null) {
+        current = current.left;
+      }
+      return current;
+    }
+
+    @Nullable Node<K, V> findLargestNode() {
+      @Var Node<K, V> current = root;
+      while (current != null && current.right != null) {
+        current = current.right;
+      }
+      return current;
+    }
+
+    /**
+     * Find the node with the smallest key that is larger than (or equal to, if inclusive) the given
+     * key.
+     */
+    @Nullable Node<K, V> findNextNode(K key, boolean inclusive) {
+      @Var Node<K, V> result = null;
+      @Var Node<K, V> current = root;
+      while (current != null) {
+        int comp = compare(key, current.getKey());
+        if (comp < 0 || (comp == 0 && inclusive)) {
+          result = current;
+          current = current.left;
+        } else {
+          current = current.right;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Find the node with the largest key that is smaller than (or equal to, if inclusive) the given
+     * key.
+     */
+    @Nullable Node<K, V> findPreviousNode(K key, boolean inclusive) {
+      @Var Node<K, V> result = null;
+      @Var Node<K, V> current = root;
+      while (current != null) {
+        int comp = compare(key, current.getKey());
+        if (comp > 0 || (comp == 0 && inclusive)) {
+          result = current;
+          current = current.right;
+        } else {
+          current = current.left;
+        }
+      }
+      return result;
+    }
+
+    Node<K, V> findNodeByRank(@Var int index) {
+      @Var Node<K, V> current = root;
+      while (current != null) {
+        int leftSize = Node.size(current.left);
+        if (index < leftSize) {
+          current = current.left;
+        } else if (index > leftSize) {
+          index -= leftSize + 1;
+          current = current.right;
+        } else {
+          return current;
+        }
+      }
+      throw new AssertionError("index out of range of tree");
+    }
+
+    /** Count the keys smaller than (or equal to, if inclusive) the given key. */
+    int countSmallerKeys(K key, boolean inclusive) {
+      @Var int count = 0;
+      @Var Node<K, V> current = root;
+      while (current != null) {
+        int comp = compare(key, current.getKey());
+        if (comp < 0 || (comp == 0 && !inclusive)) {
+          current = current.left;
+        } else {
+          count += Node.size(current.left) + 1;
+          current = current.right;
+        }
+      }
+      return count;
+    }
+
+    // modifying methods
+
+    @Nullable V put(K key, V value) {
+      if (root == null) {
+        @SuppressWarnings("unused")
+        int unused = compare(key, key); // type check like in TreeMap
+      }
+      Node<K, V> node = findNode(key);
+      if (node != null) {
+        return node.setValue(value);
+      }
+      root = insert(root, new Node<>(key, value));
+      modCount++;
+      return null;
+    }
+
+    void remove(Node<K, V> node) {
+      root = delete(root, node.getKey());
+      modCount++;
+    }
+
+    void clear() {
+      root = null;
+      modCount++;
+    }
+
+    private Node<K, V> insert(@Nullable Node<K, V> current, Node<K, V> newNode) {
+      if (current == null) {
+        return newNode;
+      }
+      if (compare(newNode.getKey(), current.getKey()) < 0) {
+        current.left = insert(current.left, newNode);
+      } else {
+        current.right = insert(current.right, newNode);
+      }
+      return balance(current);
+    }
+
+    private @Nullable Node<K, V> delete(@Nullable Node<K, V> current, K key) {
+      if (current == null) {
+        return null;
+      }
+      int comp = compare(key, current.getKey());
+      if (comp < 0) {
+        current.left = delete(current.left, key);
+      } else if (comp > 0) {
+        current.right = delete(current.right, key);
+      } else {
+        return concatenate(current.left, current.right);
+      }
+      return balance(current);
+    }
+  }
+
+  /**
+   * Restore the balance of the given node and update its size. This handles only the case where the
+   * subtrees of the node were balanced before a single entry was inserted into or removed from one
+   * of them.
+   *
+   * @return the new root of the subtree
+   */
+  private static <K, V> Node<K, V> balance(Node<K, V> node) {
+    int leftWeight = Node.weight(node.left);
+    int rightWeight = Node.weight(node.right);
+    if (!isBalanced(leftWeight, rightWeight)) {
+      return rotateCounterclockwise(node);
+    } else if (!isBalanced(rightWeight, leftWeight)) {
+      return rotateClockwise(node);
+    } else {
+      return node.setChildren(node.left, node.right);
+    }
+  }
+
+  /** Rotate a subtree whose left subtree is too heavy. */
+  private static <K, V> Node<K, V> rotateClockwise(Node<K, V> node) {
+    Node<K, V> left = node.left;
+    if (isSingleRotation(Node.weight(left.right), Node.weight(left.left))) {
+      node.setChildren(left.right, node.right);
+      return left.setChildren(left.left, node);
+    } else {
+      Node<K, V> newRoot = left.right;
+      left.setChildren(left.left, newRoot.left);
+      node.setChildren(newRoot.right, node.right);
+      return newRoot.setChildren(left, node);
+    }
+  }
+
+  /** Rotate a subtree whose right subtree is too heavy. */
+  private static <K, V> Node<K, V> rotateCounterclockwise(Node<K, V> node) {
+    Node<K, V> right = node.right;
+    if (isSingleRotation(Node.weight(right.left), Node.weight(right.right))) {
+      node.setChildren(node.left, right.left);
+      return right.setChildren(node, right.right);
+    } else {
+      Node<K, V> newRoot = right.left;
+      right.setChildren(newRoot.right, right.right);
+      node.setChildren(node.left, newRoot.left);
+      return newRoot.setChildren(node, right);
+    }
+  }
+
+  /**
+   * Concatenate two trees that were siblings before their parent was removed. All keys in the left
+   * tree need to be smaller than all keys in the right tree.
+   */
+  private static <K, V> @Nullable Node<K, V> concatenate(
+      @Nullable Node<K, V> left, @Nullable Node<K, V> right) {
+    if (left == null) {
+      return right;
+    } else if (right == null) {
+      return left;
+    } else if (left.size > right.size) {
+      @Var Node<K, V> newRoot = left;
+      while (newRoot.right != null) {
+        newRoot = newRoot.right;
+      }
+      return balance(newRoot.setChildren(removeLargestNode(left), right));
+    } else {
+      @Var Node<K, V> newRoot = right;
+      while (newRoot.left != null) {
+        newRoot = newRoot.left;
+      }
+      return balance(newRoot.setChildren(left, removeSmallestNode(right)));
+    }
+  }
+
+  private static <K, V> @Nullable Node<K, V> removeSmallestNode(Node<K, V> current) {
+    if (current.left == null) {
+      return current.right;
+    }
+    current.left = removeSmallestNode(current.left);
+    return balance(current);
+  }
+
+  private static <K, V> @Nullable Node<K, V> removeLargestNode(Node<K, V> current) {
+    if (current.right == null) {
+      return current.left;
+    }
+    current.right = removeLargestNode(current.right);
+    return balance(current);
+  }
+
+  /** Build a perfectly balanced tree from a sorted list of entries without duplicate keys. */
+  private static <K, V extends @Nullable Object> @Nullable Node<K, V> buildTree(
+      List<? extends Entry<? extends K, ? extends V>> entries) {
+    if (entries.isEmpty()) {
+      return null;
+    }
+    int middle = entries.size() / 2;
+    Entry<? extends K, ? extends V> entry = entries.get(middle);
+    return new Node<K, V>(checkNotNull(entry.getKey()), entry.getValue())
+        .setChildren(
+            buildTree(entries.subList(0, middle)),
+            buildTree(entries.subList(middle + 1, entries.size())));
+  }
+
+  // static creation methods
+
+  /** Creates a new empty OrderStatisticMap using natural ordering. */
+  static <K, V extends @Nullable Object> OrderStatisticTreeMap<K, V> createMap() {
+    return new OrderStatisticTreeMap<>(new Tree<>(null));
+  }
+
+  /** Creates a new empty OrderStatisticMap using the given comparator over its keys. */
+  static <K, V extends @Nullable Object> OrderStatisticTreeMap<K, V> createMap(
+      Comparator<? super K> pComparator) {
+    return new OrderStatisticTreeMap<>(new Tree<>(checkNotNull(pComparator)));
+  }
+
+  /**
+   * Creates a new OrderStatisticMap containing the same entries as the given map, using natural
+   * ordering over its keys.
+   */
+  static <K, V extends @Nullable Object> OrderStatisticTreeMap<K, V> createMapWithNaturalOrder(
+      Map<? extends K, ? extends V> pMap) {
+    if (pMap instanceof SortedMap<?, ?> && ((SortedMap<?, ?>) pMap).comparator() == null) {
+      return createMapFromSortedEntries(null, pMap.entrySet());
+    }
+    OrderStatisticTreeMap<K, V> result = createMap();
+    result.putAll(pMap);
+    return result;
+  }
+
+  /**
+   * Creates a new OrderStatisticMap containing the sames entries as the given map and using the
+   * same ordering over its keys as the given map.
+   */
+  @SuppressWarnings("IllegalType") // handling SortedSet is more general
+  static <K, V extends @Nullable Object> OrderStatisticTreeMap<K, V> createMapWithSameOrder(
+      SortedMap<K, ? extends V> pSortedMap) {
+    return createMapFromSortedEntries(pSortedMap.comparator(), pSortedMap.entrySet());
+  }
+
+  /** Creates a new map in O(n) from entries that are already sorted by the given comparator. */
+  private static <K, V extends @Nullable Object>
+      OrderStatisticTreeMap<K, V> createMapFromSortedEntries(
+          @Nullable Comparator<? super K> pComparator,
+          Set<? extends Entry<? extends K, ? extends V>> pEntries) {
+    Tree<K, V> tree = new Tree<>(pComparator);
+    tree.root = buildTree(ImmutableList.copyOf(pEntries));
+    return new OrderStatisticTreeMap<>(tree);
+  }
+
+  // instance fields and constructors
+
+  private final Tree<K, V> tree;
+
+  /** The lower bound of the range of this view, or <code>null</code> if it is unbounded. */
+  @SuppressWarnings("serial") // This class only needs to be serializable if the keys are.
+  private final @Nullable K fromKey;
+
+  private final boolean fromInclusive;
+
+  /** The upper bound of the range of this view, or <code>null</code> if it is unbounded. */
+  @SuppressWarnings("serial") // This class only needs to be serializable if the keys are.
+  private final @Nullable K toKey;
+
+  private final boolean toInclusive;
+
+  /**
+   * Whether this view is in descending order. The bounds of the range are always given in ascending
+   * order.
+   */
+  private final boolean descending;
+
+  private OrderStatisticTreeMap(Tree<K, V> pTree) {
+    this(
+        pTree,
+        null,
+        /* pFromInclusive= */ false,
+        null,
+        /* pToInclusive= */ false,
+        /* pDescending= */ false);
+  }
+
+  private OrderStatisticTreeMap(
+      Tree<K, V> pTree,
+      @Nullable K pFromKey,
+      boolean pFromInclusive,
+      @Nullable K pToKey,
+      boolean pToInclusive,
+      boolean pDescending) {
+    tree = pTree;
+    fromKey = pFromKey;
+    fromInclusive = pFromInclusive;
+    toKey = pToKey;
+    toInclusive = pToInclusive;
+    descending = pDescending;
+  }
+
+  @VisibleForTesting
+  void checkAssertions() {
+    checkState(Node.size(tree.root) == checkAssertions(tree.root), "Wrong size of tree");
+  }
+
+  private int checkAssertions(@Nullable Node<K, V> current) {
+    if (current == null) {
+      return 0;
+    }
+    if (current.left != null) {
+      checkState(
+          tree.compare(current.getKey(), current.left.getKey()) > 0,
+          "Tree is not sorted at node %s",
+          current);
+    }
+    if (current.right != null) {
+      checkState(
+          tree.compare(current.getKey(), current.right.getKey()) < 0,
+          "Tree is not sorted at node %s",
+          current);
+    }
+    int size = checkAssertions(current.left) + 1 + checkAssertions(current.right);
+    checkState(size == current.size, "Wrong size %s at node %s", current.size, current);
+    checkState(
+        areBalanced(Node.weight(current.left), Node.weight(current.right)),
+        "Tree is not balanced at node %s",
+        current);
+    return size;
+  }
+
+  // range handling
+
+  private boolean isTooLow(K key) {
+    if (fromKey == null) {
+      return false;
+    }
+    int comp = tree.compare(key, fromKey);
+    return comp < 0 || (comp == 0 && !fromInclusive);
+  }
+
+  private boolean isTooHigh(K key) {
+    if (toKey == null) {
+      return false;
+    }
+    int comp = tree.compare(key, toKey);
+    return comp > 0 || (comp == 0 && !toInclusive);
+  }
+
+  private boolean isInRange(K key) {
+    return !isTooLow(key) && !isTooHigh(key);
+  }
+
+  /** Check whether the given key is allowed as a bound for a view of this map. */
+  private boolean isValidBound(K key, boolean inclusive) {
+    if (inclusive) {
+      return isInRange(key);
+    }
+    return (fromKey == null || tree.compare(key, fromKey) >= 0)
+        && (toKey == null || tree.compare(key, toKey) <= 0);
+  }
+
+  /** Number of keys in the tree that are smaller than all keys in the range of this view. */
+  private int countKeysBeforeRange() {
+    return fromKey == null ? 0 : tree.countSmallerKeys(fromKey, !fromInclusive);
+  }
+
+  /** Number of keys in the tree that are not larger than all keys in the range of this view. */
+  private int countKeysUntilEndOfRange() {
+    return toKey == null ? Node.size(tree.root) : tree.countSmallerKeys(toKey, toInclusive);
+  }
+
+  // navigation in ascending order, restricted to the range of this view
+
+  private @Nullable Node<K, V> findSmallestNodeInRange() {
+    Node<K, V> result =
+        fromKey == null ? tree.findSmallestNode() : tree.findNextNode(fromKey, fromInclusive);
+    return result == null || isTooHigh(result.getKey()) ? null : result;
+  }
+
+  private @Nullable Node<K, V> findLargestNodeInRange() {
+    Node<K, V> result =
+        toKey == null ? tree.findLargestNode() : tree.findPreviousNode(toKey, toInclusive);
+    return result == null || isTooLow(result.getKey()) ? null : result;
+  }
+
+  private @Nullable Node<K, V> findNextNodeInRange(K key, boolean inclusive) {
+    if (isTooLow(checkNotNull(key))) {
+      return findSmallestNodeInRange();
+    }
+    Node<K, V> result = tree.findNextNode(key, inclusive);
+    return result == null || isTooHigh(result.getKey()) ? null : result;
+  }
+
+  private @Nullable Node<K, V> findPreviousNodeInRange(K key, boolean inclusive) {
+    if (isTooHigh(checkNotNull(key))) {
+      return findLargestNodeInRange();
+    }
+    Node<K, V> result = tree.findPreviousNode(key, inclusive);
+    return result == null || isTooLow(result.getKey()) ? null : result;
+  }
+
+  private @Nullable Node<K, V> findNodeInRange(@Nullable Object key) {
+    @SuppressWarnings("unchecked")
+    K k = (K) checkNotNull(key);
+    return isInRange(k) ? tree.findNode(k) : null;
+  }
+
+  // navigation in the order of this view
+
+  private @Nullable Node<K, V> findFirstNode() {
+    return descending ? findLargestNodeInRange() : findSmallestNodeInRange();
+  }
+
+  private @Nullable Node<K, V> findLastNode() {
+    return descending ? findSmallestNodeInRange() : findLargestNodeInRange();
+  }
+
+  private @Nullable Node<K, V> findHigherNode(K key, boolean inclusive) {
+    return descending
+        ? findPreviousNodeInRange(key, inclusive)
+        : findNextNodeInRange(key, inclusive);
+  }
+
+  private @Nullable Node<K, V> findLowerNode(K key, boolean inclusive) {
+    return descending
+        ? findNextNodeInRange(key, inclusive)
+        : findPreviousNodeInRange(key, inclusive);
+  }
+
+  private static <K, V> @Nullable Entry<K, V> exportEntry(@Nullable Node<K, V> node) {
+    return node == null ? null : Maps.immutableEntry(node.getKey(), node.getValue());
+  }
+
+  private static <K> @Nullable K keyOrNull(@Nullable Node<K, ?> node) {
+    return node == null ? null : node.getKey();
+  }
+
+  private static <K> K keyOrNoSuchElement(@Nullable Node<K, ?> node) {
+    if (node == null) {
+      throw new NoSuchElementException();
+    }
+    return node.getKey();
+  }
+
+  // methods of Map
+
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    Node<K, V> node = findNodeInRange(key);
+    return node == null ? null : node.getValue();
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return findNodeInRange(key) != null;
+  }
+
+  @Override
+  public @Nullable V put(K key, V value) {
+    checkArgument(isInRange(checkNotNull(key)), "key out of range");
+    return tree.put(key, value);
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    Node<K, V> node = findNodeInRange(key);
+    if (node == null) {
+      return null;
+    }
+    tree.remove(node);
+    return node.getValue();
+  }
+
+  @Override
+  public void clear() {
+    if (fromKey == null && toKey == null) {
+      tree.clear();
+    } else {
+      Iterator<Entry<K, V>> it = entryIterator();
+      while (it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    if (fromKey == null && toKey == null) {
+      return Node.size(tree.root);
+    }
+    return Math.max(0, countKeysUntilEndOfRange() - countKeysBeforeRange());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return findFirstNode() == null;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object pObj) {
+    return Collections3.sortedMapEquals(this, pObj);
+  }
+
+  @Override
+  @SuppressWarnings("RedundantOverride") // to document that using super.hashCode is intended
+  public int hashCode() {
+    return super.hashCode();
+  }
+
+  // methods of OrderStatisticMap
+
+  private Node<K, V> findNodeByRank(int pIndex) {
+    int before = countKeysBeforeRange();
+    int size = Math.max(0, countKeysUntilEndOfRange() - before);
+    checkElementIndex(pIndex, size);
+    return tree.findNodeByRank(before + (descending ? size - 1 - pIndex : pIndex));
+  }
+
+  @Override
+  public K getKeyByRank(int pIndex) {
+    return findNodeByRank(pIndex).getKey();
+  }
+
+  @Override
+  public Entry<K, V> getEntryByRank(int pIndex) {
+    return exportEntry(findNodeByRank(pIndex));
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public K removeByRank(int pIndex) {
+    Node<K, V> node = findNodeByRank(pIndex);
+    tree.remove(node);
+    return node.getKey();
+  }
+
+  @Override
+  public int rankOf(K pObj) {
+    if (!isInRange(checkNotNull(pObj)) || tree.findNode(pObj) == null) {
+      return -1;
+    }
+    int rank = tree.countSmallerKeys(pObj, /* inclusive= */ false) - countKeysBeforeRange();
+    return descending ? size() - 1 - rank : rank;
+  }
+
+  // methods of NavigableMap
+
+  @Override
+  public @Nullable Comparator<? super K> comparator() {
+    return descending ? Collections.reverseOrder(tree.comparator) : tree.comparator;
+  }
+
+  @Override
+  public @Nullable Entry<K, V> firstEntry() {
+    return exportEntry(findFirstNode());
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lastEntry() {
+    return exportEntry(findLastNode());
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrNoSuchElement(findFirstNode());
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrNoSuchElement(findLastNode());
+  }
+
+  @Override
+  public @Nullable Entry<K, V> pollFirstEntry() {
+    Node<K, V> node = findFirstNode();
+    if (node != null) {
+      tree.remove(node);
+    }
+    return exportEntry(node);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> pollLastEntry() {
+    Node<K, V> node = findLastNode();
+    if (node != null) {
+      tree.remove(node);
+    }
+    return exportEntry(node);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> ceilingEntry(K pKey) {
+    return exportEntry(findHigherNode(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable K ceilingKey(K pKey) {
+    return keyOrNull(findHigherNode(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> floorEntry(K pKey) {
+    return exportEntry(findLowerNode(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable K floorKey(K pKey) {
+    return keyOrNull(findLowerNode(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> higherEntry(K pKey) {
+    return exportEntry(findHigherNode(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable K higherKey(K pKey) {
+    return keyOrNull(findHigherNode(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lowerEntry(K pKey) {
+    return exportEntry(findLowerNode(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable K lowerKey(K pKey) {
+    return keyOrNull(findLowerNode(pKey, /* inclusive= */ false));
+  }
+
+  // views
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public OrderStatisticSet<K> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public OrderStatisticSet<K> navigableKeySet() {
+    return new OrderStatisticMapKeySet<>(this);
+  }
+
+  @Override
+  public OrderStatisticSet<K> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> descendingMap() {
+    return new OrderStatisticTreeMap<>(
+        tree, fromKey, fromInclusive, toKey, toInclusive, !descending);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> subMap(
+      K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+    checkNotNull(pFromKey);
+    checkNotNull(pToKey);
+    if (descending) {
+      return ascendingSubMap(pToKey, pToInclusive, pFromKey, pFromInclusive);
+    }
+    return ascendingSubMap(pFromKey, pFromInclusive, pToKey, pToInclusive);
+  }
+
+  private OrderStatisticMap<K, V> ascendingSubMap(
+      K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+    checkArgument(tree.compare(pFromKey, pToKey) <= 0, "fromKey > toKey");
+    checkArgument(isValidBound(pFromKey, pFromInclusive), "fromKey out of range");
+    checkArgument(isValidBound(pToKey, pToInclusive), "toKey out of range");
+    return new OrderStatisticTreeMap<>(
+        tree, pFromKey, pFromInclusive, pToKey, pToInclusive, descending);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> headMap(K pToKey, boolean pInclusive) {
+    checkArgument(isValidBound(checkNotNull(pToKey), pInclusive), "toKey out of range");
+    if (descending) {
+      return new OrderStatisticTreeMap<>(
+          tree, pToKey, pInclusive, toKey, toInclusive, /* pDescending= */ true);
+    }
+    return new OrderStatisticTreeMap<>(
+        tree, fromKey, fromInclusive, pToKey, pInclusive, /* pDescending= */ false);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> tailMap(K pFromKey, boolean pInclusive) {
+    checkArgument(isValidBound(checkNotNull(pFromKey), pInclusive), "fromKey out of range");
+    if (descending) {
+      return new OrderStatisticTreeMap<>(
+          tree, fromKey, fromInclusive, pFromKey, pInclusive, /* pDescending= */ true);
+    }
+    return new OrderStatisticTreeMap<>(
+        tree, pFromKey, pInclusive, toKey, toInclusive, /* pDescending= */ false);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> subMap(K pFromKey, K pToKey) {
+    return subMap(pFromKey, /* pFromInclusive= */ true, pToKey, /* pToInclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> headMap(K pToKey) {
+    return headMap(pToKey, /* pInclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticMap<K, V> tailMap(K pFromKey) {
+    return tailMap(pFromKey, /* pInclusive= */ true);
+  }
+
+  private Iterator<Entry<K, V>> entryIterator() {
+    return new EntryIterator();
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+      return entryIterator();
+    }
+
+    @Override
+    public int size() {
+      return OrderStatisticTreeMap.this.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return OrderStatisticTreeMap.this.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+      OrderStatisticTreeMap.this.clear();
+    }
+
+    private @Nullable Node<K, V> findNodeForEntry(@Nullable Object pObj) {
+      if (!(pObj instanceof Entry<?, ?>)) {
+        return null;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) pObj;
+      if (entry.getKey() == null) {
+        return null;
+      }
+      Node<K, V> node = findNodeInRange(entry.getKey());
+      return node != null && Objects.equals(node.getValue(), entry.getValue()) ? node : null;
+    }
+
+    @Override
+    public boolean contains(@Nullable Object pObj) {
+      return findNodeForEntry(pObj) != null;
+    }
+
+    @Override
+    public boolean remove(@Nullable Object pObj) {
+      Node<K, V> node = findNodeForEntry(pObj);
+      if (node == null) {
+        return false;
+      }
+      tree.remove(node);
+      return true;
+    }
+  }
+
+  /**
+   * Iterator over the entries in the range of this view. It keeps the path to the next node on a
+   * stack, so each step is O(1) amortized. After a removal, the path is searched anew, because the
+   * tree may have been rebalanced.
+   */
+  private final class EntryIterator implements Iterator<Entry<K, V>> {
+
+    private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+    private @Nullable Node<K, V> lastReturned = null;
+    private int expectedModCount = tree.modCount;
+
+    EntryIterator() {
+      if (descending) {
+        pushPathToFirstNode(toKey, toInclusive);
+      } else {
+        pushPathToFirstNode(fromKey, fromInclusive);
+      }
+    }
+
+    /**
+     * Fill the stack with the path to the first node (in iteration order) that is not before the
+     * given bound. A bound of <code>null</code> means no bound.
+     */
+    private void pushPathToFirstNode(@Nullable K bound, boolean inclusive) {
+      stack.clear();
+      @Var Node<K, V> current = tree.root;
+      while (current != null) {
+        if (bound != null && isBefore(current.getKey(), bound, inclusive)) {
+          current = descending ? current.left : current.right;
+        } else {
+          stack.push(current);
+          current = descending ? current.right : current.left;
+        }
+      }
+    }
+
+    private boolean isBefore(K key, K bound, boolean inclusive) {
+      int comp = descending ? tree.compare(bound, key) : tree.compare(key, bound);
+      return comp < 0 || (comp == 0 && !inclusive);
+    }
+
+    /** Push the given node and all nodes on the path to the first node of its subtree. */
+    private void pushFirstNodes(@Var @Nullable Node<K, V> current) {
+      while (current != null) {
+        stack.push(current);
+        current = descending ? current.right : current.left;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      Node<K, V> next = stack.peek();
+      return next != null && (descending ? !isTooLow(next.getKey()) : !isTooHigh(next.getKey()));
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      checkForConcurrentModification();
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Node<K, V> current = stack.pop();
+      pushFirstNodes(descending ? current.left : current.right);
+      lastReturned = current;
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      checkState(lastReturned != null, "no element to remove");
+      checkForConcurrentModification();
+      tree.remove(lastReturned);
+      pushPathToFirstNode(lastReturned.getKey(), /* inclusive= */ false);
+      lastReturned = null;
+      expectedModCount = tree.modCount;
+    }
+
+    private void checkForConcurrentModification() {
+      if (tree.modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
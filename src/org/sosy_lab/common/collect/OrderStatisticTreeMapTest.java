@@ -0,0 +1,172 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.TestSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class OrderStatisticTreeMapTest extends OrderStatisticMapTestSuite {
+
+  private static class OrderStatisticMapProxyFactory extends OrderStatisticMapFactory {
+
+    @Override
+    protected OrderStatisticMap<String, String> create(Map.Entry<String, String>[] pEntries) {
+      return create(Arrays.asList(pEntries));
+    }
+
+    @Override
+    protected OrderStatisticMap<String, String> create(List<Map.Entry<String, String>> pEntries) {
+      OrderStatisticTreeMap<String, String> map = createMap();
+      for (Map.Entry<String, String> e : pEntries) {
+        @SuppressWarnings("unused")
+        String unused = map.put(e.getKey(), e.getValue());
+      }
+      return map;
+    }
+
+    private static <K, V> OrderStatisticTreeMap<K, V> createMap() {
+      return OrderStatisticTreeMap.createMap();
+    }
+  }
+
+  public OrderStatisticTreeMapTest() {
+    super(new OrderStatisticMapProxyFactory());
+  }
+
+  public static junit.framework.Test suite() {
+    TestSortedMapGenerator<String, String> testSetGenerator = new OrderStatisticMapProxyFactory();
+
+    TestSuite suite =
+        NavigableMapTestSuiteBuilder.using(testSetGenerator)
+            .named("OrderStatisticTreeMap")
+            .withFeatures(
+                CollectionSize.ANY,
+                CollectionFeature.KNOWN_ORDER,
+                CollectionFeature.SERIALIZABLE,
+                CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                MapFeature.GENERAL_PURPOSE,
+                MapFeature.ALLOWS_NULL_VALUES)
+            .createTestSuite();
+
+    suite.addTest(new JUnit4TestAdapter(OrderStatisticTreeMapTest.class));
+
+    return suite;
+  }
+
+  @Test
+  public void testNoReference() {
+    NavigableMap<String, String> testMap =
+        new TreeMap<>(ImmutableMap.of("a", "Va", "b", "Vb", "bc", "Vbc", "d", "Vd"));
+    OrderStatisticMap<String, String> map = OrderStatisticTreeMap.createMapWithSameOrder(testMap);
+
+    testMap.remove("a");
+    assertThat(testMap).doesNotContainKey("a");
+    assertThat(map).containsKey("a");
+    map.remove("bc");
+    assertThat(testMap).containsKey("bc");
+    assertThat(map).doesNotContainKey("bc");
+  }
+
+  private static void checkEqualTo(
+      NavigableMap<Integer, Integer> comparison, OrderStatisticMap<Integer, Integer> map) {
+    assertThat(map).containsExactlyEntriesIn(comparison).inOrder();
+    assertThat(map.size()).isEqualTo(comparison.size());
+    ImmutableList<Integer> keys = ImmutableList.copyOf(comparison.keySet());
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(map.getKeyByRank(i)).isEqualTo(keys.get(i));
+      assertThat(map.rankOf(keys.get(i))).isEqualTo(i);
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    int keyRange = 300;
+    OrderStatisticTreeMap<Integer, Integer> map = OrderStatisticTreeMap.createMap();
+    NavigableMap<Integer, Integer> comparison = new TreeMap<>();
+
+    for (int i = 0; i < 3000; i++) {
+      Integer key = rnd.nextInt(keyRange);
+      int low = rnd.nextInt(keyRange);
+      int high = low + rnd.nextInt(keyRange - low);
+      boolean lowInclusive = rnd.nextBoolean();
+      boolean highInclusive = rnd.nextBoolean();
+
+      switch (rnd.nextInt(4)) {
+        case 0 -> assertThat(map.remove(key)).isEqualTo(comparison.remove(key));
+        case 1 -> {
+          // remove some entries of a sub map with its iterator
+          Iterator<Integer> it =
+              map.subMap(low, lowInclusive, high, highInclusive).descendingKeySet().iterator();
+          Iterator<Integer> comparisonIt =
+              comparison
+                  .subMap(low, lowInclusive, high, highInclusive)
+                  .descendingKeySet()
+                  .iterator();
+          while (it.hasNext()) {
+            assertThat(it.next()).isEqualTo(comparisonIt.next());
+            if (rnd.nextInt(4) == 0) {
+              it.remove();
+              comparisonIt.remove();
+            }
+          }
+          assertThat(comparisonIt.hasNext()).isFalse();
+        }
+        default -> assertThat(map.put(key, i)).isEqualTo(comparison.put(key, i));
+      }
+      map.checkAssertions();
+
+      if (i % 20 == 0) {
+        checkEqualTo(comparison, map);
+        checkEqualTo(
+            comparison.subMap(low, lowInclusive, high, highInclusive),
+            map.subMap(low, lowInclusive, high, highInclusive));
+        checkEqualTo(
+            comparison.descendingMap().headMap(low, lowInclusive),
+            map.descendingMap().headMap(low, lowInclusive));
+        checkEqualTo(
+            comparison.tailMap(high, highInclusive).descendingMap(),
+            map.tailMap(high, highInclusive).descendingMap());
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveByRankOfView() {
+    OrderStatisticMap<Integer, Integer> map = OrderStatisticTreeMap.createMap();
+    for (int i = 0; i < 100; i++) {
+      map.put(i, i);
+    }
+    OrderStatisticMap<Integer, Integer> view = map.headMap(50).descendingMap();
+    assertThat(view.removeByRank(0)).isEqualTo(49);
+    assertThat(view.rankOf(48)).isEqualTo(0);
+    assertThat(view.rankOf(49)).isEqualTo(-1);
+    assertThat(view.rankOf(60)).isEqualTo(-1);
+    assertThat(view.size()).isEqualTo(49);
+    assertThat(map.size()).isEqualTo(99);
+    assertThat(map.containsKey(49)).isFalse();
+  }
+}
@@ -0,0 +1,155 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ForwardingNavigableSet;
+import com.google.common.collect.Maps;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.SortedSet;
+
+/**
+ * An {@link OrderStatisticSet} that is based on the mutable weight-balanced tree of {@link
+ * OrderStatisticTreeMap}. It stores its elements as keys of such a map, and all operations have the
+ * same complexity as the respective operations of the map.
+ *
+ * @param <E> type of the elements of this set. See the Javadoc of {@link OrderStatisticSet} for
+ *     possible constraints on this type
+ * @see OrderStatisticSet
+ */
+final class OrderStatisticTreeSet<E> extends ForwardingNavigableSet<E>
+    implements OrderStatisticSet<E>, Serializable {
+
+  private static final long serialVersionUID = -4426318463398750512L;
+
+  /** The backing map, whose values are irrelevant. */
+  @SuppressWarnings("serial") // This class only needs to be serializable if the elements are.
+  private final OrderStatisticMap<E, Boolean> map;
+
+  /** The key set of the backing map, which supports everything except adding elements. */
+  @SuppressWarnings("serial") // This class only needs to be serializable if the elements are.
+  private final OrderStatisticSet<E> delegate;
+
+  private OrderStatisticTreeSet(OrderStatisticMap<E, Boolean> pMap) {
+    map = pMap;
+    delegate = pMap.navigableKeySet();
+  }
+
+  /** Creates a new empty OrderStatisticSet using natural ordering. */
+  static <E> OrderStatisticTreeSet<E> createSet() {
+    return new OrderStatisticTreeSet<>(OrderStatisticTreeMap.createMap());
+  }
+
+  /** Creates a new empty OrderStatisticSet using the given comparator. */
+  static <E> OrderStatisticTreeSet<E> createSet(Comparator<? super E> pComparator) {
+    return new OrderStatisticTreeSet<>(OrderStatisticTreeMap.createMap(pComparator));
+  }
+
+  /**
+   * Creates a new OrderStatisticSet containing the same elements as the given Iterable, using
+   * natural ordering.
+   */
+  static <E> OrderStatisticTreeSet<E> createSetWithNaturalOrder(Iterable<E> pSet) {
+    OrderStatisticTreeSet<E> result = createSet();
+    for (E element : pSet) {
+      result.add(element);
+    }
+    return result;
+  }
+
+  /**
+   * Creates a new OrderStatisticSet containing the same elements and using the same order as the
+   * given {@link SortedSet}.
+   *
+   * @param pSortedSet set to use elements and ordering of
+   * @param <E> type of the elements of the given and new set
+   * @return a new OrderStatisticSet containing the same elements and using the same order as the
+   *     given set
+   */
+  @SuppressWarnings("IllegalType") // handling SortedSet is more general
+  static <E> OrderStatisticTreeSet<E> createSetWithSameOrder(SortedSet<E> pSortedSet) {
+    return new OrderStatisticTreeSet<>(
+        OrderStatisticTreeMap.createMapWithSameOrder(
+            Maps.asMap(checkNotNull(pSortedSet), e -> Boolean.TRUE)));
+  }
+
+  @Override
+  protected OrderStatisticSet<E> delegate() {
+    return delegate;
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public boolean add(E pElement) {
+    return map.put(pElement, Boolean.TRUE) == null;
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public boolean addAll(Collection<? extends E> pCollection) {
+    return standardAddAll(pCollection);
+  }
+
+  @Override
+  public E getByRank(int pIndex) {
+    return delegate.getByRank(pIndex);
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public E removeByRank(int pIndex) {
+    return delegate.removeByRank(pIndex);
+  }
+
+  @Override
+  public int rankOf(E pObj) {
+    return delegate.rankOf(pObj);
+  }
+
+  @Override
+  public OrderStatisticSet<E> descendingSet() {
+    return new OrderStatisticTreeSet<>(map.descendingMap());
+  }
+
+  @Override
+  public OrderStatisticSet<E> subSet(
+      E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+    return new OrderStatisticTreeSet<>(
+        map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<E> headSet(E toElement, boolean inclusive) {
+    return new OrderStatisticTreeSet<>(map.headMap(toElement, inclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<E> tailSet(E fromElement, boolean inclusive) {
+    return new OrderStatisticTreeSet<>(map.tailMap(fromElement, inclusive));
+  }
+
+  @Override
+  public OrderStatisticSet<E> headSet(E toElement) {
+    return headSet(toElement, /* inclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticSet<E> subSet(E fromElement, E toElement) {
+    return subSet(fromElement, /* fromInclusive= */ true, toElement, /* toInclusive= */ false);
+  }
+
+  @Override
+  public OrderStatisticSet<E> tailSet(E fromElement) {
+    return tailSet(fromElement, /* inclusive= */ true);
+  }
+}
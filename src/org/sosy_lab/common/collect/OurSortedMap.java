@@ -18,6 +18,9 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -27,12 +30,56 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 sealed interface OurSortedMap<K, V extends @Nullable Object> extends NavigableMap<K, V>
     permits AbstractImmutableSortedMap,
         DescendingSortedMap,
-        PathCopyingPersistentTreeMap.PartialSortedMap {
+        PatriciaTrieMap,
+        PathCopyingPersistentTreeMap.PartialSortedMap,
+        PersistentBTreeMap.PartialSortedMap,
+        PersistentOrderStatisticTreeMap,
+        PrimitiveKeySortedMapView {
 
   Iterator<Entry<K, V>> entryIterator();
 
   Iterator<Entry<K, V>> descendingEntryIterator();
 
+  /**
+   * Return a {@link Spliterator} over the entries of this map, which is used by {@link
+   * #entrySet()}. The default implementation is based on {@link #entryIterator()} and splits only
+   * by copying entries into arrays, like the default implementation of {@link
+   * java.util.SortedSet#spliterator()}. Implementations based on trees should override this and
+   * split at subtree boundaries.
+   */
+  default Spliterator<Entry<K, V>> entrySpliterator() {
+    Iterator<Entry<K, V>> iterator = entryIterator();
+    Comparator<? super Entry<K, V>> entryComparator = entrySet().comparator();
+    return new Spliterators.AbstractSpliterator<>(
+        size(),
+        Spliterator.DISTINCT | Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SORTED) {
+
+      @Override
+      public boolean tryAdvance(Consumer<? super Entry<K, V>> pAction) {
+        if (!iterator.hasNext()) {
+          return false;
+        }
+        pAction.accept(iterator.next());
+        return true;
+      }
+
+      @Override
+      public Comparator<? super Entry<K, V>> getComparator() {
+        return entryComparator;
+      }
+    };
+  }
+
+  /**
+   * Perform the given action for each entry of this map in iteration order, which is used by the
+   * {@code forEach} methods of {@link #entrySet()} and {@link #keySet()}. The default
+   * implementation is based on {@link #entryIterator()}. Implementations based on trees should
+   * override this and traverse the tree without allocating an iterator.
+   */
+  default void forEachEntry(Consumer<? super Entry<K, V>> pAction) {
+    entryIterator().forEachRemaining(pAction);
+  }
+
   @Nullable Entry<K, V> getEntry(Object pKey);
 
   @Override
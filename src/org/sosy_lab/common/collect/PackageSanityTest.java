@@ -22,6 +22,20 @@ public class PackageSanityTest extends AbstractPackageSanityTests {
             PathCopyingPersistentTreeMap.<String, String>of().putAndCopy("test", "test");
     setDistinctValues(
         OurSortedMap.class, OurSortedMap.EmptyImmutableOurSortedMap.of(), singletonMap);
+    setDistinctValues(
+        PathCopyingPersistentTreeMap.class,
+        (PathCopyingPersistentTreeMap<?, ?>) PathCopyingPersistentTreeMap.of(),
+        (PathCopyingPersistentTreeMap<?, ?>) singletonMap);
+    setDistinctValues(
+        OrderStatisticMap.class,
+        PersistentOrderStatisticTreeMap.of(),
+        PersistentOrderStatisticTreeMap.<String, String>of().putAndCopy("test", "test"));
+    setDistinctValues(
+        PersistentLongSortedMap.class,
+        PersistentLongSortedMap.of(),
+        PersistentLongSortedMap.of().putAndCopy(1, "test"));
+    // used for the fanout of PersistentBTreeMap, which needs to be in a certain range
+    setDefault(int.class, PersistentBTreeMap.DEFAULT_FANOUT);
     ignoreClasses(Classes.IS_GENERATED);
   }
 }
@@ -14,30 +14,45 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Verify.verify;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Equivalence;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.math.LongMath;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.errorprone.annotations.Immutable;
 import com.google.errorprone.annotations.Var;
 import com.google.errorprone.annotations.concurrent.LazyInit;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.SortedMap;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentSortedMaps.MergeConflictHandler;
 
 /**
  * This is an implementation of {@link PersistentSortedMap} that is based on left-leaning red-black
@@ -47,8 +62,10 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  *
  * <p>The operations insert, lookup, and remove are guaranteed to run in O(log n) time. Insert and
  * remove allocate at most O(log n) memory. Traversal through all entries also allocates up to O(log
- * n) memory. Per entry, this map needs memory for one object with 4 reference fields and 1 boolean.
- * (This is a little bit less than {@link TreeMap} needs.)
+ * n) memory. Per entry, this map needs memory for one object with either 2 reference fields (for
+ * leaves, which are about half of the entries) or 4 reference fields. (This is considerably less
+ * than {@link TreeMap} needs.) For applying many modifications at once, {@link #toTransient()}
+ * avoids allocating a new path through the tree for each of them.
  *
  * <p>This implementation does not support <code>null</code> keys (but <code>null</code> values) and
  * always compares according to the natural ordering. All methods may throw {@link
@@ -77,89 +94,272 @@ public final class PathCopyingPersistentTreeMap<
 
   private static final long serialVersionUID = 1041711151457528188L;
 
-  @SuppressWarnings("unused")
+  /**
+   * A node of the tree, which is also the entry for its mapping. The color of a node and whether it
+   * has children are encoded in its class instead of in fields: leaves are instances of {@link
+   * BlackLeaf} and {@link RedLeaf} without any fields of their own, and nodes with at least one
+   * child are instances of {@link BlackInnerNode} and {@link RedInnerNode}. About half of the nodes
+   * of a tree are leaves, and not storing the two child references for them saves 8 bytes per leaf
+   * (with compressed references). Not storing the color saves another 8 bytes per node with compact
+   * object headers, which leave no gap for it. Only nodes that are still modified by a {@link
+   * Transient} are instances of {@link MutableNode}, which has all fields. Nodes should always be
+   * created with {@link #create}, which selects the appropriate class.
+   *
+   * <p>The accessors are final and check the class instead of being overridden, because virtual
+   * calls with this many receiver classes would be considerably slower.
+   */
   @SuppressFBWarnings(
       value = "EQ_DOESNT_OVERRIDE_EQUALS",
       justification = "Inherits equals() according to specification.")
   @Immutable(containerOf = {"K", "V"})
-  private static final class Node<K, V extends @Nullable Object>
+  private abstract static class Node<K, V extends @Nullable Object>
       extends SimpleImmutableEntry<K, V> {
 
-    // Constants for isRed field
+    // Constants for colors
     private static final boolean RED = true;
     private static final boolean BLACK = false;
 
-    private static final long serialVersionUID = -7393505826652634501L;
-
-    private final @Nullable Node<K, V> left;
-    private final @Nullable Node<K, V> right;
-    private final boolean isRed;
+    private static final long serialVersionUID = -3052471969562373370L;
 
-    // Leaf node
-    Node(K pKey, V pValue) {
+    private Node(K pKey, V pValue) {
       super(pKey, pValue);
-      left = null;
-      right = null;
-      isRed = RED;
     }
 
     // Any node
-    Node(K pKey, V pValue, Node<K, V> pLeft, Node<K, V> pRight, boolean pRed) {
-      super(pKey, pValue);
-      left = pLeft;
-      right = pRight;
-      isRed = pRed;
+    static <K, V extends @Nullable Object> Node<K, V> create(
+        K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight, boolean pRed) {
+      if (pLeft == null && pRight == null) {
+        return pRed ? new RedLeaf<>(pKey, pValue) : new BlackLeaf<>(pKey, pValue);
+      }
+      return pRed
+          ? new RedInnerNode<>(pKey, pValue, pLeft, pRight)
+          : new BlackInnerNode<>(pKey, pValue, pLeft, pRight);
+    }
+
+    // Any node, possibly mutable
+    static <K, V extends @Nullable Object> Node<K, V> create(
+        K pKey,
+        V pValue,
+        @Nullable Node<K, V> pLeft,
+        @Nullable Node<K, V> pRight,
+        boolean pRed,
+        boolean pMutable) {
+      if (pMutable) {
+        return new MutableNode<>(pKey, pValue, pLeft, pRight, pRed);
+      }
+      return create(pKey, pValue, pLeft, pRight, pRed);
+    }
+
+    final @Nullable Node<K, V> getLeft() {
+      return this instanceof InnerNode ? ((InnerNode<K, V>) this).left : null;
+    }
+
+    final @Nullable Node<K, V> getRight() {
+      return this instanceof InnerNode ? ((InnerNode<K, V>) this).right : null;
+    }
+
+    /** Whether this is an immutable node of a class without child references. */
+    final boolean isLeaf() {
+      return !(this instanceof InnerNode);
     }
 
-    boolean isLeaf() {
-      return left == null && right == null;
+    /**
+     * Whether this node was created by a {@link Transient} that may still modify it in place. Such
+     * nodes are reachable only from the root of that transient, and all their ancestors are mutable
+     * as well.
+     */
+    final boolean isMutable() {
+      return this instanceof MutableNode;
     }
 
-    boolean getColor() {
-      return isRed;
+    final boolean getColor() {
+      Class<?> cls = getClass();
+      return cls == RedLeaf.class
+          || cls == RedInnerNode.class
+          || (cls == MutableNode.class && ((MutableNode<?, ?>) this).isRed);
     }
 
     static boolean isRed(@Nullable Node<?, ?> n) {
-      return n != null && n.isRed;
+      return n != null && n.getColor();
     }
 
     static boolean isBlack(@Nullable Node<?, ?> n) {
-      return n != null && !n.isRed;
+      return n != null && !n.getColor();
     }
 
     // Methods for creating new nodes based on current node.
+    // If the current node is mutable, they modify it in place instead.
+    // The parameter mutable determines whether newly created nodes are mutable.
 
     Node<K, V> withColor(boolean color) {
-      if (isRed == color) {
-        return this;
-      } else {
-        return new Node<>(getKey(), getValue(), left, right, color);
-      }
+      return withColor(color, /* mutable= */ false);
+    }
+
+    Node<K, V> withColor(boolean color, boolean mutable) {
+      return with(getLeft(), getRight(), color, mutable);
     }
 
-    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
     Node<K, V> withLeftChild(Node<K, V> newLeft) {
-      if (newLeft == left) {
-        return this;
-      } else {
-        return new Node<>(getKey(), getValue(), newLeft, right, isRed);
-      }
+      return withLeftChild(newLeft, /* mutable= */ false);
+    }
+
+    Node<K, V> withLeftChild(Node<K, V> newLeft, boolean mutable) {
+      return with(newLeft, getRight(), getColor(), mutable);
     }
 
-    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
     Node<K, V> withRightChild(Node<K, V> newRight) {
-      if (newRight == right) {
+      return withRightChild(newRight, /* mutable= */ false);
+    }
+
+    Node<K, V> withRightChild(Node<K, V> newRight, boolean mutable) {
+      return with(getLeft(), newRight, getColor(), mutable);
+    }
+
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    final Node<K, V> with(
+        @Nullable Node<K, V> newLeft,
+        @Nullable Node<K, V> newRight,
+        boolean newColor,
+        boolean mutable) {
+      if (newLeft == getLeft() && newRight == getRight() && newColor == getColor()) {
+        return this;
+      } else if (this instanceof MutableNode) {
+        MutableNode<K, V> node = (MutableNode<K, V>) this;
+        node.left = newLeft;
+        node.right = newRight;
+        node.isRed = newColor;
         return this;
       } else {
-        return new Node<>(getKey(), getValue(), left, newRight, isRed);
+        return create(getKey(), getValue(), newLeft, newRight, newColor, mutable);
+      }
+    }
+
+    /**
+     * Replace all mutable nodes in the given tree with immutable ones and return the new tree.
+     * Immutable nodes are reused.
+     */
+    static <K, V extends @Nullable Object> @Nullable Node<K, V> freeze(@Nullable Node<K, V> n) {
+      // Mutable nodes have only mutable ancestors, so we need to look only below those.
+      if (n == null || !n.isMutable()) {
+        return n;
       }
+      return create(
+          n.getKey(), n.getValue(), freeze(n.getLeft()), freeze(n.getRight()), n.getColor());
     }
 
     static int countNodes(@Nullable Node<?, ?> n) {
       if (n == null) {
         return 0;
       }
-      return countNodes(n.left) + 1 + countNodes(n.right);
+      return countNodes(n.getLeft()) + 1 + countNodes(n.getRight());
+    }
+  }
+
+  /** A black node without children. */
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class BlackLeaf<K, V extends @Nullable Object> extends Node<K, V> {
+
+    private static final long serialVersionUID = 8216377285718412385L;
+
+    private BlackLeaf(K pKey, V pValue) {
+      super(pKey, pValue);
+    }
+  }
+
+  /** A red node without children. */
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class RedLeaf<K, V extends @Nullable Object> extends Node<K, V> {
+
+    private static final long serialVersionUID = -4606541624546496932L;
+
+    private RedLeaf(K pKey, V pValue) {
+      super(pKey, pValue);
+    }
+  }
+
+  /** A node with child references. */
+  @SuppressWarnings("Immutable") // fields are only written by MutableNode
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private abstract static class InnerNode<K, V extends @Nullable Object> extends Node<K, V> {
+
+    private static final long serialVersionUID = 3904285170392937457L;
+
+    // Modified only in MutableNode instances, i.e., before the node is reachable from any map
+    // instance. Afterwards, the final field root of the map guarantees their safe publication just
+    // like if they were final.
+    @Nullable Node<K, V> left;
+    @Nullable Node<K, V> right;
+
+    private InnerNode(K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight) {
+      super(pKey, pValue);
+      left = pLeft;
+      right = pRight;
+    }
+  }
+
+  /** A black node with at least one child. */
+  @SuppressWarnings("Immutable") // fields are only written by MutableNode
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class BlackInnerNode<K, V extends @Nullable Object> extends InnerNode<K, V> {
+
+    private static final long serialVersionUID = -1372043725317464712L;
+
+    private BlackInnerNode(
+        K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight) {
+      super(pKey, pValue, pLeft, pRight);
+      assert pLeft != null || pRight != null;
+    }
+  }
+
+  /** A red node with at least one child. */
+  @SuppressWarnings("Immutable") // fields are only written by MutableNode
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class RedInnerNode<K, V extends @Nullable Object> extends InnerNode<K, V> {
+
+    private static final long serialVersionUID = 6179560313245027315L;
+
+    private RedInnerNode(
+        K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight) {
+      super(pKey, pValue, pLeft, pRight);
+      assert pLeft != null || pRight != null;
+    }
+  }
+
+  /**
+   * A node created by a {@link Transient}, which modifies it in place until {@link
+   * Transient#persist()} replaces it with an immutable node. Instances are never reachable from a
+   * map and may have no children.
+   */
+  @SuppressWarnings("Immutable") // fields are only written while not reachable from any map
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class MutableNode<K, V extends @Nullable Object> extends InnerNode<K, V> {
+
+    private static final long serialVersionUID = -7869528094012573125L;
+
+    private boolean isRed;
+
+    private MutableNode(
+        K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight, boolean pRed) {
+      super(pKey, pValue, pLeft, pRight);
+      isRed = pRed;
     }
   }
 
@@ -174,6 +374,10 @@ public final class PathCopyingPersistentTreeMap<
     return (PersistentSortedMap<K, V>) EMPTY_MAP;
   }
 
+  /**
+   * Return a map with the same mappings as the given map. If the given map is a {@link SortedMap}
+   * with natural ordering, this takes linear time, otherwise the entries need to be sorted first.
+   */
   public static <K extends Comparable<? super K>, V extends @Nullable Object>
       PersistentSortedMap<K, V> copyOf(Map<K, V> map) {
     checkNotNull(map);
@@ -182,11 +386,14 @@ public final class PathCopyingPersistentTreeMap<
       return (PathCopyingPersistentTreeMap<K, V>) map;
     }
 
-    @Var PersistentSortedMap<K, V> result = of();
-    for (Map.Entry<K, V> entry : map.entrySet()) {
-      result = result.putAndCopy(entry.getKey(), entry.getValue());
+    List<Map.Entry<K, V>> entries = new ArrayList<>(map.entrySet());
+    if (map instanceof SortedMap<?, ?> sortedMap
+        && Collections3.guaranteedSameOrder(sortedMap.comparator(), null)) {
+      // Entries are already sorted and have unique keys.
+      return fromSortedEntries(entries);
     }
-    return result;
+    // Like for repeated calls to putAndCopy(), later entries for the same key win.
+    return fromUnsortedEntries(entries, (entry1, entry2) -> entry2);
   }
 
   /**
@@ -209,7 +416,9 @@ public final class PathCopyingPersistentTreeMap<
   /**
    * Return a {@link Collector} that accumulates elements into a {@link
    * PathCopyingPersistentTreeMap}. Keys and values are the result of the respective functions.
-   * Duplicate keys are resolved using the given merge function.
+   * Duplicate keys are resolved using the given merge function. Like for {@link
+   * java.util.stream.Collectors#toMap(Function, Function, BinaryOperator)}, a key is removed if the
+   * merge function returns null.
    */
   public static <T, K extends Comparable<? super K>, V extends @Nullable Object>
       Collector<T, ?, PersistentSortedMap<K, V>> toPathCopyingPersistentTreeMap(
@@ -219,13 +428,122 @@ public final class PathCopyingPersistentTreeMap<
     checkNotNull(keyFunction);
     checkNotNull(valueFunction);
     checkNotNull(mergeFunction);
-    return Collectors.collectingAndThen(
-        Collectors.toMap(
-            keyFunction,
-            valueFunction,
-            mergeFunction,
-            () -> CopyOnWriteSortedMap.copyOf(PathCopyingPersistentTreeMap.<K, V>of())),
-        CopyOnWriteSortedMap::getSnapshot);
+    return Collector.of(
+        ArrayList<Map.Entry<K, V>>::new,
+        (entries, element) ->
+            entries.add(
+                new SimpleImmutableEntry<>(
+                    checkNotNull(keyFunction.apply(element)),
+                    // null values are forbidden like for Collectors.toMap()
+                    checkNotNull(valueFunction.apply(element)))),
+        (entries1, entries2) -> {
+          entries1.addAll(entries2);
+          return entries1;
+        },
+        entries ->
+            fromUnsortedEntries(
+                entries,
+                (entry1, entry2) -> {
+                  V value = mergeFunction.apply(entry1.getValue(), entry2.getValue());
+                  return value == null ? null : new SimpleImmutableEntry<>(entry1.getKey(), value);
+                }));
+  }
+
+  /**
+   * Create a map from a list of entries in arbitrary order. Entries with the same key are combined
+   * with the given function, in the order in which they appear in the list. If the function returns
+   * null, the key is removed, and a later entry with the same key is added again, like for {@link
+   * Map#merge}. The list is modified.
+   */
+  private static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentSortedMap<K, V> fromUnsortedEntries(
+          List<Map.Entry<K, V>> entries,
+          BiFunction<Map.Entry<K, V>, Map.Entry<K, V>, Map.@Nullable Entry<K, V>> mergeFunction) {
+    // List.sort() is stable (needed for the merge order) and fast for already sorted input.
+    entries.sort(Map.Entry.comparingByKey());
+
+    // Combine entries with equal keys, moving the remaining entries to the front of the list.
+    @Var int uniqueEntries = 0;
+    for (Map.Entry<K, V> entry : entries) {
+      if (uniqueEntries > 0) {
+        Map.Entry<K, V> previous = entries.get(uniqueEntries - 1);
+        if (previous.getKey().compareTo(entry.getKey()) == 0) {
+          Map.Entry<K, V> merged = mergeFunction.apply(previous, entry);
+          if (merged == null) {
+            uniqueEntries--;
+          } else {
+            entries.set(uniqueEntries - 1, merged);
+          }
+          continue;
+        }
+      }
+      entries.set(uniqueEntries++, entry);
+    }
+    return fromSortedEntries(entries.subList(0, uniqueEntries));
+  }
+
+  /**
+   * Create a map from a list of entries whose keys are strictly increasing. This takes O(n) time,
+   * compared to O(n log n) for inserting the entries one by one, and allocates only the n nodes of
+   * the final tree.
+   */
+  static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentSortedMap<K, V> fromSortedEntries(List<? extends Map.Entry<K, V>> entries) {
+    if (entries.isEmpty()) {
+      return of();
+    }
+    int count = entries.size();
+    // The smallest possible black height for a tree with count entries
+    // (a tree with black height h has at most 3^h - 1 entries).
+    int blackHeight = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(count + 1);
+    Node<K, V> root = buildTree(entries, 0, count, LongMath.pow(3, blackHeight) - 1);
+    assert checkAssertions(root) == blackHeight;
+    return new PathCopyingPersistentTreeMap<>(root);
+  }
+
+  /**
+   * Build a tree for the entries in the given range of a sorted list. Seen as a 2-3 tree, all
+   * leaves of the created tree are on the same level, i.e., the tree has a fixed black height h.
+   * Such a tree has between 2^h - 1 entries (only black nodes) and 3^h - 1 entries (every black
+   * node has a red left child), and we can create it for any number of entries in this range by
+   * deciding per node whether it gets a red child, and distributing the entries evenly among the
+   * subtrees. The black height is given implicitly as the maximal number of entries of the tree.
+   *
+   * @param maxSize The value 3^h - 1 for the black height h of the tree to create.
+   * @return The root of the new tree, which is black.
+   */
+  private static <K, V extends @Nullable Object> @Nullable Node<K, V> buildTree(
+      List<? extends Map.Entry<K, V>> entries, int from, int to, long maxSize) {
+    int count = to - from;
+    if (count == 0) {
+      return null;
+    }
+    assert count <= maxSize;
+    long maxChildSize = (maxSize + 1) / 3 - 1;
+
+    if (count - 1 <= 2 * maxChildSize) {
+      // Black node with two black (or empty) children.
+      int middle = from + (count - 1) / 2;
+      Node<K, V> left = buildTree(entries, from, middle, maxChildSize);
+      Node<K, V> right = buildTree(entries, middle + 1, to, maxChildSize);
+      return newNode(entries.get(middle), left, right, Node.BLACK);
+
+    } else {
+      // Black node with red left child, and thus three black (or empty) grand-children.
+      int remaining = count - 2;
+      int redIndex = from + (remaining + 2) / 3;
+      int blackIndex = redIndex + 1 + (remaining + 1) / 3;
+      Node<K, V> leftLeft = buildTree(entries, from, redIndex, maxChildSize);
+      Node<K, V> leftRight = buildTree(entries, redIndex + 1, blackIndex, maxChildSize);
+      Node<K, V> left = newNode(entries.get(redIndex), leftLeft, leftRight, Node.RED);
+      Node<K, V> right = buildTree(entries, blackIndex + 1, to, maxChildSize);
+      return newNode(entries.get(blackIndex), left, right, Node.BLACK);
+    }
+  }
+
+  private static <K, V extends @Nullable Object> Node<K, V> newNode(
+      Map.Entry<K, V> entry, @Nullable Node<K, V> left, @Nullable Node<K, V> right, boolean color) {
+    return Node.create(entry.getKey(), entry.getValue(), left, right, color);
   }
 
   // state and constructor
@@ -238,10 +556,26 @@ public final class PathCopyingPersistentTreeMap<
 
   @LazyInit private transient int size;
 
+  /**
+   * The hash code of this map. As for {@link String}, 0 means not yet computed unless {@link
+   * #hashCodeIsZero} is set, such that concurrent accesses without synchronization are safe.
+   */
+  @LazyInit private transient int hashCode;
+
+  @LazyInit private transient boolean hashCodeIsZero;
+
   private PathCopyingPersistentTreeMap(@Nullable Node<K, V> pRoot) {
     root = pRoot;
   }
 
+  /**
+   * Receives the previous entry of the key that was modified by {@link #putAndCopy0} or {@link
+   * #removeAndCopy0}. This allows to update size and hash code of a map incrementally.
+   */
+  private static final class PreviousEntry<K, V extends @Nullable Object> {
+    private @Nullable Node<K, V> node;
+  }
+
   // private utility methods
 
   @SuppressWarnings("unchecked")
@@ -262,12 +596,12 @@ public final class PathCopyingPersistentTreeMap<
       if (comp < 0) {
         // key < current.data
 
-        current = current.left;
+        current = current.getLeft();
 
       } else if (comp > 0) {
         // key > current.data
 
-        current = current.right;
+        current = current.getRight();
 
       } else {
         // key == current.data
@@ -287,8 +621,8 @@ public final class PathCopyingPersistentTreeMap<
    */
   private static <K extends Comparable<? super K>, V> Node<K, V> findSmallestNode(Node<K, V> root) {
     @Var Node<K, V> current = root;
-    while (current.left != null) {
-      current = current.left;
+    while (current.getLeft() != null) {
+      current = current.getLeft();
     }
     return current;
   }
@@ -302,8 +636,8 @@ public final class PathCopyingPersistentTreeMap<
    */
   private static <K extends Comparable<? super K>, V> Node<K, V> findLargestNode(Node<K, V> root) {
     @Var Node<K, V> current = root;
-    while (current.right != null) {
-      current = current.right;
+    while (current.getRight() != null) {
+      current = current.getRight();
     }
     return current;
   }
@@ -336,14 +670,14 @@ public final class PathCopyingPersistentTreeMap<
         // (current is always smaller than the previous result and still bigger than key).
 
         result = current;
-        current = current.left;
+        current = current.getLeft();
 
       } else if (comp > 0) {
         // key > current.data
         // All nodes to the left of current are irrelevant because they are too small.
         // current itself is too small, too.
 
-        current = current.right;
+        current = current.getRight();
 
       } else {
         // key == current.data
@@ -354,11 +688,11 @@ public final class PathCopyingPersistentTreeMap<
           // All nodes to the left of current are irrelevant because they are too small.
           // current itself is too small, too.
           // The left-most node in the right subtree of child is the result.
-          if (current.right == null) {
+          if (current.getRight() == null) {
             // no node smaller than key in this subtree
             return result;
           } else {
-            return findSmallestNode(current.right);
+            return findSmallestNode(current.getRight());
           }
         }
       }
@@ -397,7 +731,7 @@ public final class PathCopyingPersistentTreeMap<
         // All nodes to the right of current are irrelevant because they are too big.
         // current itself is too big, too.
 
-        current = current.left;
+        current = current.getLeft();
 
       } else if (comp > 0) {
         // key > current.data
@@ -406,7 +740,7 @@ public final class PathCopyingPersistentTreeMap<
         // (current is always bigger than the previous result and still smaller than key).
 
         result = current;
-        current = current.right;
+        current = current.getRight();
 
       } else {
         // key == current.data
@@ -417,11 +751,11 @@ public final class PathCopyingPersistentTreeMap<
           // All nodes to the right of current are irrelevant because they are too big.
           // current itself is too big, too.
           // The right-most node in the left subtree of child is the result.
-          if (current.left == null) {
+          if (current.getLeft() == null) {
             // no node smaller than key in this subtree
             return result;
           } else {
-            return findLargestNode(current.left);
+            return findLargestNode(current.getLeft());
           }
         }
       }
@@ -434,7 +768,7 @@ public final class PathCopyingPersistentTreeMap<
     return null;
   }
 
-  private static <K extends Comparable<? super K>> boolean exceedsLowerBound(
+  static <K extends Comparable<? super K>> boolean exceedsLowerBound(
       K pKey, K pLowerBound, boolean pLowerInclusive) {
     if (pLowerInclusive) {
       return pKey.compareTo(pLowerBound) < 0;
@@ -443,7 +777,7 @@ public final class PathCopyingPersistentTreeMap<
     }
   }
 
-  private static <K extends Comparable<? super K>> boolean exceedsUpperBound(
+  static <K extends Comparable<? super K>> boolean exceedsUpperBound(
       K pKey, K pUpperBound, boolean pUpperInclusive) {
     if (pUpperInclusive) {
       return pKey.compareTo(pUpperBound) > 0;
@@ -452,35 +786,107 @@ public final class PathCopyingPersistentTreeMap<
     }
   }
 
+  /**
+   * Pass all nodes of a tree to the given action in order. This recurses only into left subtrees
+   * (i.e., at most to the height of the tree) and does not allocate any objects.
+   */
+  private static <K, V extends @Nullable Object> void forEachNode(
+      @Var @Nullable Node<K, V> current, Consumer<? super Node<K, V>> action) {
+    while (current != null) {
+      forEachNode(current.getLeft(), action);
+      action.accept(current);
+      current = current.getRight();
+    }
+  }
+
+  /**
+   * Pass all nodes of a tree whose keys are within the given bounds to the given action in order,
+   * like {@link #forEachNode}. Subtrees out of range are skipped, and keys are compared only along
+   * the paths to the first and last node in range.
+   *
+   * @param pFromKey null or lower bound
+   * @param pToKey null or upper bound
+   */
+  private static <K extends Comparable<? super K>, V extends @Nullable Object>
+      void forEachNodeInRange(
+          @Var @Nullable Node<K, V> current,
+          @Var @Nullable K pFromKey,
+          boolean pFromInclusive,
+          @Nullable K pToKey,
+          boolean pToInclusive,
+          Consumer<? super Node<K, V>> action) {
+    while (current != null) {
+      if (pFromKey == null && pToKey == null) {
+        forEachNode(current, action);
+        return;
+      }
+      K key = current.getKey();
+      if (pFromKey != null && exceedsLowerBound(key, pFromKey, pFromInclusive)) {
+        // current and left subtree can be ignored
+        current = current.getRight();
+      } else if (pToKey != null && exceedsUpperBound(key, pToKey, pToInclusive)) {
+        // current and right subtree can be ignored
+        current = current.getLeft();
+      } else {
+        // All keys of the left subtree are below the upper bound,
+        // all keys of the right subtree are above the lower bound.
+        forEachNodeInRange(
+            current.getLeft(), pFromKey, pFromInclusive, null, /* pToInclusive= */ false, action);
+        action.accept(current);
+        current = current.getRight();
+        pFromKey = null;
+      }
+    }
+  }
+
+  /** Fold all nodes of a tree in order, like {@link #forEachNode}. */
+  private static <K, V extends @Nullable Object, R extends @Nullable Object> R foldNodes(
+      @Var @Nullable Node<K, V> current,
+      @Var R result,
+      BiFunction<? super R, ? super Entry<K, V>, ? extends R> function) {
+    while (current != null) {
+      result = foldNodes(current.getLeft(), result, function);
+      result = function.apply(result, current);
+      current = current.getRight();
+    }
+    return result;
+  }
+
   private static <K extends Comparable<? super K>, V> int checkAssertions(
       @Nullable Node<K, V> current) {
     if (current == null) {
       return 0;
     }
 
+    @Nullable Node<K, V> left = current.getLeft();
+    @Nullable Node<K, V> right = current.getRight();
+    checkState(
+        current.isLeaf() == (left == null && right == null),
+        "Node with children is stored as leaf or vice versa");
+
     // check property of binary search tree
-    if (current.left != null) {
+    if (left != null) {
       checkState(
-          current.getKey().compareTo(current.left.getKey()) > 0,
+          current.getKey().compareTo(left.getKey()) > 0,
           "Tree has left child that is not smaller.");
     }
-    if (current.right != null) {
+    if (right != null) {
       checkState(
-          current.getKey().compareTo(current.right.getKey()) < 0,
+          current.getKey().compareTo(right.getKey()) < 0,
           "Tree has right child that is not bigger.");
     }
 
     // Check LLRB invariants
     // No red right child.
-    checkState(!Node.isRed(current.right), "LLRB has red right child");
+    checkState(!Node.isRed(right), "LLRB has red right child");
     // No more than two consecutive red nodes.
     checkState(
-        !Node.isRed(current) || !Node.isRed(current.left) || !Node.isRed(current.left.left),
+        !Node.isRed(current) || !Node.isRed(left) || !Node.isRed(left.getLeft()),
         "LLRB has three red nodes in a row.");
 
     // Check recursively.
-    int leftBlackHeight = checkAssertions(current.left);
-    int rightBlackHeight = checkAssertions(current.right);
+    int leftBlackHeight = checkAssertions(left);
+    int rightBlackHeight = checkAssertions(right);
 
     // Check black height balancing.
     checkState(
@@ -490,7 +896,7 @@ public final class PathCopyingPersistentTreeMap<
         rightBlackHeight);
 
     @Var int blackHeight = leftBlackHeight;
-    if (!current.isRed) {
+    if (!current.getColor()) {
       blackHeight++;
     }
     return blackHeight;
@@ -528,38 +934,89 @@ public final class PathCopyingPersistentTreeMap<
     }
   }
 
+  /**
+   * Create a map instance with a given root node whose content differs from this map by the given
+   * differences of size and hash code. If size or hash code of this map are known, the respective
+   * value of the new map is known as well.
+   *
+   * @param hashCodeDelta Only relevant if the hash code of this map is known.
+   */
+  private PersistentSortedMap<K, V> mapFromModifiedTree(
+      @Nullable Node<K, V> newRoot, int sizeDelta, int hashCodeDelta) {
+    PersistentSortedMap<K, V> result = mapFromTree(newRoot);
+    if (result != this && !result.isEmpty()) {
+      PathCopyingPersistentTreeMap<K, V> newMap = (PathCopyingPersistentTreeMap<K, V>) result;
+      if (isSizeKnown()) {
+        newMap.size = size + sizeDelta;
+      }
+      if (isHashCodeKnown()) {
+        newMap.setHashCode(hashCode + hashCodeDelta);
+      }
+    }
+    return result;
+  }
+
+  /** The hash code of an entry as defined by {@link Map.Entry#hashCode()}. */
+  private static int entryHashCode(Object key, @Nullable Object value) {
+    return key.hashCode() ^ Objects.hashCode(value);
+  }
+
+  private static int entryHashCode(@Nullable Node<?, ?> node) {
+    return node == null ? 0 : node.hashCode();
+  }
+
   @Override
   public PersistentSortedMap<K, V> putAndCopy(K key, V value) {
-    return mapFromTree(putAndCopy0(checkNotNull(key), value, root));
+    PreviousEntry<K, V> previous = new PreviousEntry<>();
+    Node<K, V> newRoot =
+        putAndCopy0(checkNotNull(key), value, root, /* mutable= */ false, previous);
+    return mapFromModifiedTree(
+        newRoot,
+        previous.node == null ? 1 : 0,
+        isHashCodeKnown() ? entryHashCode(key, value) - entryHashCode(previous.node) : 0);
   }
 
+  /**
+   * Insert a mapping into a tree.
+   *
+   * @param mutable Whether new nodes should be created as mutable. Nodes that are already mutable
+   *     are modified in place.
+   * @param previous Receives the previous node for the key, if present.
+   */
   private static <K extends Comparable<? super K>, V> Node<K, V> putAndCopy0(
-      K key, V value, @Var @Nullable Node<K, V> current) {
+      K key,
+      V value,
+      @Var @Nullable Node<K, V> current,
+      boolean mutable,
+      PreviousEntry<K, V> previous) {
     // Inserting is easy:
     // We find the place where to insert,
     // and afterwards fix the invariants by some rotations or re-colorings.
 
     if (current == null) {
-      return new Node<>(key, value);
+      return Node.create(key, value, null, null, Node.RED, mutable);
     }
 
     int comp = key.compareTo(current.getKey());
     if (comp < 0) {
       // key < current.data
-      Node<K, V> newLeft = putAndCopy0(key, value, current.left);
-      current = current.withLeftChild(newLeft);
+      Node<K, V> newLeft = putAndCopy0(key, value, current.getLeft(), mutable, previous);
+      current = current.withLeftChild(newLeft, mutable);
 
     } else if (comp > 0) {
       // key > current.data
-      Node<K, V> newRight = putAndCopy0(key, value, current.right);
-      current = current.withRightChild(newRight);
+      Node<K, V> newRight = putAndCopy0(key, value, current.getRight(), mutable, previous);
+      current = current.withRightChild(newRight, mutable);
 
     } else {
-      current = new Node<>(key, value, current.left, current.right, current.getColor());
+      previous.node = current;
+      current =
+          Node.create(
+              key, value, current.getLeft(), current.getRight(), current.getColor(), mutable);
     }
 
     // restore invariants
-    return restoreInvariants(current);
+    return restoreInvariants(current, mutable);
   }
 
   @SuppressWarnings("unchecked")
@@ -568,11 +1025,24 @@ public final class PathCopyingPersistentTreeMap<
     if (isEmpty()) {
       return this;
     }
-    return mapFromTree(removeAndCopy0((K) checkNotNull(key), root));
+    PreviousEntry<K, V> previous = new PreviousEntry<>();
+    Node<K, V> newRoot =
+        removeAndCopy0((K) checkNotNull(key), root, /* mutable= */ false, previous);
+    return mapFromModifiedTree(
+        newRoot,
+        previous.node == null ? 0 : -1,
+        isHashCodeKnown() ? -entryHashCode(previous.node) : 0);
   }
 
+  /**
+   * Remove a mapping from a tree.
+   *
+   * @param mutable Whether new nodes should be created as mutable. Nodes that are already mutable
+   *     are modified in place.
+   * @param previous Receives the removed node, if present.
+   */
   private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> removeAndCopy0(
-      K key, @Var Node<K, V> current) {
+      K key, @Var Node<K, V> current, boolean mutable, PreviousEntry<K, V> previous) {
     // Removing a node is more difficult.
     // We can remove a leaf if it is red.
     // So we try to always have a red node while going downwards.
@@ -589,47 +1059,48 @@ public final class PathCopyingPersistentTreeMap<
 
     if (comp < 0) {
       // key < current.data
-      if (current.left == null) {
+      if (current.getLeft() == null) {
         // Target key is not in map.
         return current;
       }
 
       // Go down leftwards, keeping a red node.
 
-      if (!Node.isRed(current.left) && !Node.isRed(current.left.left)) {
+      if (!Node.isRed(current.getLeft()) && !Node.isRed(current.getLeft().getLeft())) {
         // Push red to left if necessary.
-        current = makeLeftRed(current);
+        current = makeLeftRed(current, mutable);
       }
 
       // recursive descent
-      Node<K, V> newLeft = removeAndCopy0(key, current.left);
-      current = current.withLeftChild(newLeft);
+      Node<K, V> newLeft = removeAndCopy0(key, current.getLeft(), mutable, previous);
+      current = current.withLeftChild(newLeft, mutable);
 
     } else {
       // key >= current.data
-      if ((comp > 0) && (current.right == null)) {
+      if ((comp > 0) && (current.getRight() == null)) {
         // Target key is not in map.
         return current;
       }
 
-      if (Node.isRed(current.left)) {
+      if (Node.isRed(current.getLeft())) {
         // First chance to push red to right.
-        current = rotateClockwise(current);
+        current = rotateClockwise(current, mutable);
 
         // re-update comp
         comp = key.compareTo(current.getKey());
         assert comp >= 0;
       }
 
-      if ((comp == 0) && (current.right == null)) {
-        assert current.left == null;
+      if ((comp == 0) && (current.getRight() == null)) {
+        assert current.getLeft() == null;
         // We can delete the node easily, it's a leaf.
+        previous.node = current;
         return null;
       }
 
-      if (!Node.isRed(current.right) && !Node.isRed(current.right.left)) {
+      if (!Node.isRed(current.getRight()) && !Node.isRed(current.getRight().getLeft())) {
         // Push red to right.
-        current = makeRightRed(current);
+        current = makeRightRed(current, mutable);
 
         // re-update comp
         comp = key.compareTo(current.getKey());
@@ -640,33 +1111,35 @@ public final class PathCopyingPersistentTreeMap<
         // We have to delete current, but is has children.
         // We replace current with the smallest node in the right subtree (the "successor"),
         // and delete that (leaf) node there.
+        previous.node = current;
 
-        @Var Node<K, V> successor = current.right;
-        while (successor.left != null) {
-          successor = successor.left;
+        @Var Node<K, V> successor = current.getRight();
+        while (successor.getLeft() != null) {
+          successor = successor.getLeft();
         }
 
         // Delete the successor
-        Node<K, V> newRight = removeMininumNodeInTree(current.right);
+        Node<K, V> newRight = removeMininumNodeInTree(current.getRight(), mutable);
         // and replace current with it
         current =
-            new Node<>(
+            Node.create(
                 successor.getKey(),
                 successor.getValue(),
-                current.left,
+                current.getLeft(),
                 newRight,
-                current.getColor());
+                current.getColor(),
+                mutable);
 
       } else {
         // key > current.data
         // Go down rightwards.
 
-        Node<K, V> newRight = removeAndCopy0(key, current.right);
-        current = current.withRightChild(newRight);
+        Node<K, V> newRight = removeAndCopy0(key, current.getRight(), mutable, previous);
+        current = current.withRightChild(newRight, mutable);
       }
     }
 
-    return restoreInvariants(current);
+    return restoreInvariants(current, mutable);
   }
 
   /**
@@ -674,22 +1147,23 @@ public final class PathCopyingPersistentTreeMap<
    *
    * @return A new subtree reflecting the change.
    */
-  private static <K, V> @Nullable Node<K, V> removeMininumNodeInTree(@Var Node<K, V> current) {
-    if (current.left == null) {
+  private static <K, V> @Nullable Node<K, V> removeMininumNodeInTree(
+      @Var Node<K, V> current, boolean mutable) {
+    if (current.getLeft() == null) {
       // This is the minium node to delete
       return null;
     }
 
-    if (!Node.isRed(current.left) && !Node.isRed(current.left.left)) {
+    if (!Node.isRed(current.getLeft()) && !Node.isRed(current.getLeft().getLeft())) {
       // Push red to left if necessary (similar to general removal strategy).
-      current = makeLeftRed(current);
+      current = makeLeftRed(current, mutable);
     }
 
     // recursive descent
-    Node<K, V> newLeft = removeMininumNodeInTree(current.left);
-    current = current.withLeftChild(newLeft);
+    Node<K, V> newLeft = removeMininumNodeInTree(current.getLeft(), mutable);
+    current = current.withLeftChild(newLeft, mutable);
 
-    return restoreInvariants(current);
+    return restoreInvariants(current, mutable);
   }
 
   /**
@@ -698,22 +1172,22 @@ public final class PathCopyingPersistentTreeMap<
    *
    * @return A new subtree with the same content that is a legal LLRB.
    */
-  private static <K, V> Node<K, V> restoreInvariants(@Var Node<K, V> current) {
-    if (Node.isRed(current.right)) {
+  private static <K, V> Node<K, V> restoreInvariants(@Var Node<K, V> current, boolean mutable) {
+    if (Node.isRed(current.getRight())) {
       // Right should not be red in a left-leaning red-black tree.
-      current = rotateCounterclockwise(current);
+      current = rotateCounterclockwise(current, mutable);
     }
 
-    if (Node.isRed(current.left) && Node.isRed(current.left.left)) {
+    if (Node.isRed(current.getLeft()) && Node.isRed(current.getLeft().getLeft())) {
       // Don't have consecutive red nodes.
-      current = rotateClockwise(current);
+      current = rotateClockwise(current, mutable);
     }
 
-    if (Node.isRed(current.left) && Node.isRed(current.right)) {
+    if (Node.isRed(current.getLeft()) && Node.isRed(current.getRight())) {
       // Again, don't have red right children.
       // We make both children black and this one red,
       // so we pass the potential problem of having a red right upwards in the tree.
-      current = colorFlip(current);
+      current = colorFlip(current, mutable);
     }
 
     return current;
@@ -726,136 +1200,587 @@ public final class PathCopyingPersistentTreeMap<
    * @param current A node with two children.
    * @return The same subtree, but with inverted colors for the three top nodes.
    */
-  private static <K, V> Node<K, V> colorFlip(Node<K, V> current) {
-    Node<K, V> newLeft = current.left.withColor(!current.left.getColor());
-    Node<K, V> newRight = current.right.withColor(!current.right.getColor());
-    return new Node<>(current.getKey(), current.getValue(), newLeft, newRight, !current.getColor());
+  private static <K, V> Node<K, V> colorFlip(Node<K, V> current, boolean mutable) {
+    Node<K, V> newLeft = current.getLeft().withColor(!current.getLeft().getColor(), mutable);
+    Node<K, V> newRight = current.getRight().withColor(!current.getRight().getColor(), mutable);
+    return current.with(newLeft, newRight, !current.getColor(), mutable);
   }
 
-  private static <K, V> Node<K, V> rotateCounterclockwise(Node<K, V> current) {
+  // The rotations read all fields before calling with(), which may modify mutable nodes in place.
+
+  private static <K, V> Node<K, V> rotateCounterclockwise(Node<K, V> current, boolean mutable) {
+    Node<K, V> oldRight = current.getRight();
+    boolean color = current.getColor();
     // the node that is moved between subtrees:
-    Node<K, V> crossoverNode = current.right.left;
-    Node<K, V> newLeft =
-        new Node<>(current.getKey(), current.getValue(), current.left, crossoverNode, Node.RED);
-    return new Node<>(
-        current.right.getKey(),
-        current.right.getValue(),
-        newLeft,
-        current.right.right,
-        current.getColor());
-  }
-
-  private static <K, V> Node<K, V> rotateClockwise(Node<K, V> current) {
+    Node<K, V> crossoverNode = oldRight.getLeft();
+    Node<K, V> newLeft = current.with(current.getLeft(), crossoverNode, Node.RED, mutable);
+    return oldRight.with(newLeft, oldRight.getRight(), color, mutable);
+  }
+
+  private static <K, V> Node<K, V> rotateClockwise(Node<K, V> current, boolean mutable) {
+    Node<K, V> oldLeft = current.getLeft();
+    boolean color = current.getColor();
     // the node that is moved between subtrees:
-    Node<K, V> crossOverNode = current.left.right;
-    Node<K, V> newRight =
-        new Node<>(current.getKey(), current.getValue(), crossOverNode, current.right, Node.RED);
-    return new Node<>(
-        current.left.getKey(),
-        current.left.getValue(),
-        current.left.left,
-        newRight,
-        current.getColor());
-  }
-
-  private static <K, V> Node<K, V> makeLeftRed(@Var Node<K, V> current) {
-    // Make current.left or one of its children red
+    Node<K, V> crossOverNode = oldLeft.getRight();
+    Node<K, V> newRight = current.with(crossOverNode, current.getRight(), Node.RED, mutable);
+    return oldLeft.with(oldLeft.getLeft(), newRight, color, mutable);
+  }
+
+  private static <K, V> Node<K, V> makeLeftRed(@Var Node<K, V> current, boolean mutable) {
+    // Make current.getLeft() or one of its children red
     // (assuming that current is red and both current.left and current.left.left are black).
 
-    current = colorFlip(current);
-    if (Node.isRed(current.right.left)) {
-      Node<K, V> newRight = rotateClockwise(current.right);
-      current =
-          new Node<>(
-              current.getKey(), current.getValue(), current.left, newRight, current.getColor());
+    current = colorFlip(current, mutable);
+    if (Node.isRed(current.getRight().getLeft())) {
+      Node<K, V> newRight = rotateClockwise(current.getRight(), mutable);
+      current = current.withRightChild(newRight, mutable);
 
-      current = rotateCounterclockwise(current);
-      current = colorFlip(current);
+      current = rotateCounterclockwise(current, mutable);
+      current = colorFlip(current, mutable);
     }
     return current;
   }
 
-  private static <K, V> Node<K, V> makeRightRed(@Var Node<K, V> current) {
-    // Make current.right or one of its children red
+  private static <K, V> Node<K, V> makeRightRed(@Var Node<K, V> current, boolean mutable) {
+    // Make current.getRight() or one of its children red
     // (assuming that current is red and both current.right and current.right.left are black).
 
-    current = colorFlip(current);
-    if (Node.isRed(current.left.left)) {
-      current = rotateClockwise(current);
-      current = colorFlip(current);
+    current = colorFlip(current, mutable);
+    if (Node.isRed(current.getLeft().getLeft())) {
+      current = rotateClockwise(current, mutable);
+      current = colorFlip(current, mutable);
     }
     return current;
   }
 
-  // read operations
-
-  @Override
-  @SuppressWarnings("ReferenceEquality") // comparing nodes with equals would not suffice
-  public boolean equals(@Nullable Object pObj) {
-    if (pObj instanceof PathCopyingPersistentTreeMap<?, ?>
-        && ((PathCopyingPersistentTreeMap<?, ?>) pObj).root == root) {
-      return true;
-    }
-    return super.equals(pObj);
-  }
-
-  @Override
-  @SuppressWarnings("RedundantOverride") // to document that using super.hashCode is intended
-  public int hashCode() {
-    return super.hashCode();
-  }
-
-  @Override
-  public @Nullable Entry<K, V> getEntry(Object pKey) {
-    return findNode(pKey, root);
-  }
+  // transient modifications
 
-  @Override
-  public Iterator<Entry<K, V>> entryIterator() {
-    return EntryInOrderIterator.create(root);
+  /**
+   * Return a {@link Transient} for applying a batch of modifications to the content of this map
+   * efficiently. This map itself is not affected.
+   */
+  public Transient<K, V> toTransient() {
+    return new Transient<>(this);
   }
 
-  @Override
-  public Iterator<Entry<K, V>> descendingEntryIterator() {
-    return DescendingEntryInOrderIterator.create(root);
-  }
+  /**
+   * A mutable version of a {@link PathCopyingPersistentTreeMap} for applying a batch of
+   * modifications efficiently. Like the persistent map it copies the nodes on the path to each
+   * modified node, but nodes that it created itself are modified in place by later operations. So
+   * applying k modifications in a row does not allocate k full paths through the tree, most of
+   * which would be garbage immediately. The map from which the transient was created is never
+   * affected.
+   *
+   * <p>After all modifications are done, {@link #persist()} returns a persistent map with the
+   * content of the transient in O(number of allocated nodes) time. The transient cannot be used
+   * anymore afterwards.
+   *
+   * <p>Instances of this class are not thread-safe.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  public static final class Transient<K extends Comparable<? super K>, V extends @Nullable Object> {
 
-  @Override
-  public PersistentSortedMap<K, V> empty() {
-    return of();
-  }
+    private final PathCopyingPersistentTreeMap<K, V> original;
 
-  @Override
-  public boolean containsKey(Object pObj) {
-    return findNode(pObj, root) != null;
-  }
+    private @Nullable Node<K, V> root;
 
-  @Override
-  public @Nullable V get(Object pObj) {
-    Node<K, V> node = findNode(pObj, root);
-    return node == null ? null : node.getValue();
-  }
+    private boolean persisted = false;
 
-  @Override
-  public V getOrDefault(Object pKey, V pDefaultValue) {
-    Node<K, V> node = findNode(pKey, root);
-    return node == null ? pDefaultValue : node.getValue();
-  }
+    // Changes of size and hash code (the latter only if tracked) compared to the original map.
+    private final PreviousEntry<K, V> previous = new PreviousEntry<>();
+    private final boolean trackHashCode;
+    private int sizeDelta = 0;
+    private int hashCodeDelta = 0;
 
-  @Override
-  public boolean isEmpty() {
-    return root == null;
-  }
+    private Transient(PathCopyingPersistentTreeMap<K, V> pOriginal) {
+      original = pOriginal;
+      root = pOriginal.root;
+      trackHashCode = pOriginal.isHashCodeKnown();
+    }
 
-  @Override
-  public int size() {
-    if (size <= 0) {
-      size = Node.countNodes(root);
+    private void checkNotPersisted() {
+      checkState(!persisted, "Transient map cannot be used after persist()");
     }
-    return size;
-  }
 
-  @Override
+    /** Add a mapping, replacing the existing mapping for the same key if present. */
+    @CanIgnoreReturnValue
+    public Transient<K, V> put(K key, V value) {
+      checkNotNull(key);
+      checkNotPersisted();
+      // Root is always black.
+      previous.node = null;
+      root =
+          putAndCopy0(key, value, root, /* mutable= */ true, previous)
+              .withColor(Node.BLACK, /* mutable= */ true);
+      if (previous.node == null) {
+        sizeDelta++;
+      }
+      if (trackHashCode) {
+        hashCodeDelta += entryHashCode(key, value) - entryHashCode(previous.node);
+      }
+      return this;
+    }
+
+    /** Remove the mapping for a key if present. */
+    @CanIgnoreReturnValue
+    @SuppressWarnings("unchecked")
+    public Transient<K, V> remove(Object key) {
+      checkNotNull(key);
+      checkNotPersisted();
+      if (root != null) {
+        previous.node = null;
+        Node<K, V> newRoot = removeAndCopy0((K) key, root, /* mutable= */ true, previous);
+        root = newRoot == null ? null : newRoot.withColor(Node.BLACK, /* mutable= */ true);
+        if (previous.node != null) {
+          sizeDelta--;
+          if (trackHashCode) {
+            hashCodeDelta -= entryHashCode(previous.node);
+          }
+        }
+      }
+      return this;
+    }
+
+    public @Nullable V get(Object key) {
+      checkNotPersisted();
+      Node<K, V> node = findNode(key, root);
+      return node == null ? null : node.getValue();
+    }
+
+    public boolean containsKey(Object key) {
+      checkNotPersisted();
+      return findNode(key, root) != null;
+    }
+
+    public boolean isEmpty() {
+      checkNotPersisted();
+      return root == null;
+    }
+
+    /**
+     * Return a persistent map with the current content of this transient, which must not be used
+     * anymore afterwards. If no changes were made, the original map is returned.
+     */
+    public PersistentSortedMap<K, V> persist() {
+      checkNotPersisted();
+      persisted = true;
+      root = Node.freeze(root);
+      previous.node = null;
+      return original.mapFromModifiedTree(root, sizeDelta, hashCodeDelta);
+    }
+  }
+
+  // bulk operations
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation is based on splitting and joining trees and needs O(m log(n/m + 1)) time
+   * for maps of sizes m and n with m &le; n. Subtrees that are shared by both maps are reused as a
+   * whole. If the key ranges of both maps do not overlap, the trees are concatenated in O(log n)
+   * time, and size and hash code of the result are known if they are known for both maps.
+   */
+  @Override
+  public PersistentSortedMap<K, V> unionAndCopy(
+      PersistentSortedMap<K, V> other, MergeConflictHandler<? super K, V> conflictHandler) {
+    return merge(
+        this,
+        asTreeMap(other),
+        Equivalence.equals(),
+        checkNotNull(conflictHandler),
+        MapsDifference.ignoreMapsDifference());
+  }
+
+  /**
+   * Implementation of {@link #unionAndCopy} and of {@link
+   * PersistentSortedMaps#merge(PersistentSortedMap, PersistentSortedMap, Equivalence,
+   * MergeConflictHandler, MapsDifference.Visitor)} for two maps of this class. Values that are
+   * equivalent are taken from the first map. The differences are passed to the visitor in ascending
+   * order of keys.
+   */
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+  static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> merge(
+      PathCopyingPersistentTreeMap<K, V> map1,
+      PathCopyingPersistentTreeMap<K, V> map2,
+      Equivalence<? super V> valueEquals,
+      MergeConflictHandler<? super K, V> conflictHandler,
+      MapsDifference.Visitor<? super K, ? super V> collectDifferences) {
+    SplitJoin<K, V> splitJoin = new SplitJoin<>(valueEquals, conflictHandler, collectDifferences);
+    if (map1.root != null && map2.root != null) {
+      if (isBefore(map1.root, map2.root)) {
+        splitJoin.visitOnlyInOneTree(map1.root, /* left= */ true);
+        splitJoin.visitOnlyInOneTree(map2.root, /* left= */ false);
+        return concat(map1, map2);
+      } else if (isBefore(map2.root, map1.root)) {
+        splitJoin.visitOnlyInOneTree(map2.root, /* left= */ false);
+        splitJoin.visitOnlyInOneTree(map1.root, /* left= */ true);
+        return concat(map2, map1);
+      }
+    }
+    Node<K, V> newRoot =
+        splitJoin.union(map1.root, map1.blackHeight(), map2.root, map2.blackHeight());
+    return newRoot == map2.root ? map2 : map1.mapFromTree(newRoot);
+  }
+
+  /** Whether all keys of the first tree are smaller than all keys of the second tree. */
+  private static <K extends Comparable<? super K>, V> boolean isBefore(
+      Node<K, V> root1, Node<K, V> root2) {
+    return findLargestNode(root1).getKey().compareTo(findSmallestNode(root2).getKey()) < 0;
+  }
+
+  /**
+   * Create a map with the entries of two non-empty maps where all keys of the first map are smaller
+   * than all keys of the second map. Size and hash code are the sum of those of both maps.
+   */
+  private static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> concat(
+      PathCopyingPersistentTreeMap<K, V> lower, PathCopyingPersistentTreeMap<K, V> higher) {
+    Node<K, V> newRoot =
+        checkNotNull(
+            new SplitJoin<K, V>(null)
+                .join2(lower.root, lower.blackHeight(), higher.root, higher.blackHeight()));
+    // Root is always black.
+    PathCopyingPersistentTreeMap<K, V> result =
+        new PathCopyingPersistentTreeMap<>(newRoot.withColor(Node.BLACK));
+    if (lower.isSizeKnown() && higher.isSizeKnown()) {
+      result.size = lower.size + higher.size;
+    }
+    if (lower.isHashCodeKnown() && higher.isHashCodeKnown()) {
+      result.setHashCode(lower.hashCode + higher.hashCode);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation is based on splitting and joining trees and needs O(m log(n/m + 1)) time
+   * for maps of sizes m and n with m &le; n. Subtrees that are shared by both maps are reused as a
+   * whole.
+   */
+  @Override
+  public PersistentSortedMap<K, V> intersectionAndCopy(PersistentSortedMap<K, ?> other) {
+    PathCopyingPersistentTreeMap<K, V> otherMap = asTreeMapIgnoringValues(other);
+    return mapFromTree(
+        new SplitJoin<K, V>(null)
+            .intersection(root, blackHeight(), otherMap.root, otherMap.blackHeight()));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation is based on splitting and joining trees and needs O(m log(n/m + 1)) time
+   * for maps of sizes m and n with m &le; n. Subtrees that are shared by both maps are removed as a
+   * whole.
+   */
+  @Override
+  public PersistentSortedMap<K, V> differenceAndCopy(PersistentSortedMap<K, ?> other) {
+    PathCopyingPersistentTreeMap<K, V> otherMap = asTreeMapIgnoringValues(other);
+    return mapFromTree(
+        new SplitJoin<K, V>(null)
+            .difference(root, blackHeight(), otherMap.root, otherMap.blackHeight()));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given keys and needs O(log n) time.
+   */
+  @Override
+  public PersistentSortedMap<K, V> subMapAndCopy(
+      K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    checkArgument(fromKey.compareTo(checkNotNull(toKey)) <= 0, "fromKey > toKey");
+    return headMapAndCopy(toKey, toInclusive).tailMapAndCopy(fromKey, fromInclusive);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given key and needs O(log n) time.
+   */
+  @Override
+  public PersistentSortedMap<K, V> headMapAndCopy(K toKey, boolean inclusive) {
+    checkNotNull(toKey);
+    if (root == null || !exceedsUpperBound(findLargestNode(root).getKey(), toKey, inclusive)) {
+      return this;
+    }
+    SplitJoin<K, V> splitJoin = new SplitJoin<>(null);
+    splitJoin.split(root, blackHeight(), toKey);
+    if (inclusive && splitJoin.splitMatch != null) {
+      return mapFromTree(
+          splitJoin.join(
+              splitJoin.splitLeft, splitJoin.splitLeftHeight, splitJoin.splitMatch, null, 0));
+    }
+    return mapFromTree(splitJoin.splitLeft);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given key and needs O(log n) time.
+   */
+  @Override
+  public PersistentSortedMap<K, V> tailMapAndCopy(K fromKey, boolean inclusive) {
+    checkNotNull(fromKey);
+    if (root == null || !exceedsLowerBound(findSmallestNode(root).getKey(), fromKey, inclusive)) {
+      return this;
+    }
+    SplitJoin<K, V> splitJoin = new SplitJoin<>(null);
+    splitJoin.split(root, blackHeight(), fromKey);
+    if (inclusive && splitJoin.splitMatch != null) {
+      return mapFromTree(
+          splitJoin.join(
+              null, 0, splitJoin.splitMatch, splitJoin.splitRight, splitJoin.splitRightHeight));
+    }
+    return mapFromTree(splitJoin.splitRight);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation uses a {@link Transient} and thus copies each node of this map at most
+   * once instead of once per entry. If the given map is also an instance of this class, it uses
+   * {@link #unionAndCopy(PersistentSortedMap, MergeConflictHandler)} instead.
+   */
+  @Override
+  public PersistentSortedMap<K, V> putAllAndCopy(Map<? extends K, ? extends V> map) {
+    if (map instanceof PathCopyingPersistentTreeMap<?, ?>) {
+      @SuppressWarnings("unchecked") // safe because persistent maps are immutable
+      PathCopyingPersistentTreeMap<K, V> other = (PathCopyingPersistentTreeMap<K, V>) map;
+      return unionAndCopy(other, (key, value1, value2) -> value2);
+    }
+    Transient<K, V> result = toTransient();
+    map.forEach(result::put);
+    return result.persist();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation uses a {@link Transient} and thus copies each node of this map at most
+   * once instead of once per key.
+   */
+  @Override
+  public PersistentSortedMap<K, V> removeAllAndCopy(Collection<?> keys) {
+    if (isEmpty()) {
+      checkNotNull(keys);
+      return this;
+    }
+    Transient<K, V> result = toTransient();
+    keys.forEach(result::remove);
+    return result.persist();
+  }
+
+  private int blackHeight() {
+    return SplitJoin.blackHeight(root);
+  }
+
+  private static <K extends Comparable<? super K>, V> PathCopyingPersistentTreeMap<K, V> asTreeMap(
+      PersistentSortedMap<K, V> map) {
+    return (PathCopyingPersistentTreeMap<K, V>) copyOf(map);
+  }
+
+  /**
+   * Convert a map for an operation that looks only at its keys, such that its tree can be handled
+   * like a tree of this map.
+   */
+  @SuppressWarnings("unchecked") // values of the other tree never end up in the result
+  private static <K extends Comparable<? super K>, V>
+      PathCopyingPersistentTreeMap<K, V> asTreeMapIgnoringValues(PersistentSortedMap<K, ?> map) {
+    return (PathCopyingPersistentTreeMap<K, V>) (PathCopyingPersistentTreeMap<K, ?>) asTreeMap(map);
+  }
+
+  // read operations
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>For two instances of this class, this method returns early if the cached hash codes or sizes
+   * differ, and otherwise compares only those parts of the trees that are not shared by both maps.
+   */
+  @Override
+  @SuppressWarnings("ReferenceEquality") // comparing nodes with equals would not suffice
+  public boolean equals(@Nullable Object pObj) {
+    if (!(pObj instanceof PathCopyingPersistentTreeMap<?, ?>)) {
+      return super.equals(pObj);
+    }
+    @SuppressWarnings("unchecked") // keys are compared (which may fail), values only with equals
+    PathCopyingPersistentTreeMap<K, V> other = (PathCopyingPersistentTreeMap<K, V>) pObj;
+    if (other.root == root) {
+      return true;
+    }
+    if ((isHashCodeKnown() && other.isHashCodeKnown() && hashCode() != other.hashCode())
+        || (isSizeKnown() && other.isSizeKnown() && size() != other.size())) {
+      return false;
+    }
+
+    TreeDifferenceCursor<K, V> differences = new TreeDifferenceCursor<>(root, other.root);
+    try {
+      while (differences.advance()) {
+        Entry<K, V> leftEntry = differences.leftEntry();
+        if (leftEntry == null || !leftEntry.equals(differences.rightEntry())) {
+          return false;
+        }
+      }
+    } catch (ClassCastException e) {
+      // Incomparable keys, like in AbstractMap.equals()
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The hash code is cached. It is computed in O(n) on the first call, and maps that are derived
+   * from a map with known hash code by {@link #putAndCopy}, {@link #removeAndCopy}, or a {@link
+   * Transient} know their hash code in O(1). Maps derived from maps whose hash code was never
+   * requested do not pay the cost for tracking it. Like for all maps, the hash code is not stable
+   * if the hash codes of the values change.
+   */
+  @Override
+  public int hashCode() {
+    if (root == null) {
+      return 0; // not cached such that maps derived from the empty map do not track it
+    }
+    @Var int result = hashCode;
+    if (result == 0 && !hashCodeIsZero) {
+      result = super.hashCode();
+      setHashCode(result);
+    }
+    return result;
+  }
+
+  private void setHashCode(int pHashCode) {
+    if (pHashCode == 0) {
+      hashCodeIsZero = true;
+    } else {
+      hashCode = pHashCode;
+    }
+  }
+
+  private boolean isHashCodeKnown() {
+    return hashCode != 0 || hashCodeIsZero;
+  }
+
+  private boolean isSizeKnown() {
+    return size > 0 || root == null;
+  }
+
+  @Override
+  public @Nullable Entry<K, V> getEntry(Object pKey) {
+    return findNode(pKey, root);
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> entryIterator() {
+    return EntryInOrderIterator.create(root);
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> descendingEntryIterator() {
+    return DescendingEntryInOrderIterator.create(root);
+  }
+
+  @Override
+  public Spliterator<Entry<K, V>> entrySpliterator() {
+    return EntrySpliterator.create(root, size());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This traverses the tree directly and does not allocate any objects per entry.
+   */
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> pAction) {
+    checkNotNull(pAction);
+    forEachNode(root, node -> pAction.accept(node.getKey(), node.getValue()));
+  }
+
+  @Override
+  public void forEachEntry(Consumer<? super Entry<K, V>> pAction) {
+    checkNotNull(pAction);
+    forEachNode(root, pAction);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This traverses the tree directly, compares keys with the bounds only along the paths to the
+   * first and last entry in range, and does not allocate any objects per entry.
+   */
+  @Override
+  public void forEachInRange(
+      K pFromKey,
+      boolean pFromInclusive,
+      K pToKey,
+      boolean pToInclusive,
+      BiConsumer<? super K, ? super V> pAction) {
+    checkNotNull(pFromKey);
+    checkNotNull(pToKey);
+    checkNotNull(pAction);
+    checkArgument(pFromKey.compareTo(pToKey) <= 0, "fromKey > toKey");
+
+    forEachNodeInRange(
+        root,
+        pFromKey,
+        pFromInclusive,
+        pToKey,
+        pToInclusive,
+        node -> pAction.accept(node.getKey(), node.getValue()));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This traverses the tree directly and does not allocate any objects per entry. The entries
+   * passed to the function are the (immutable) nodes of the tree.
+   */
+  @Override
+  public <R extends @Nullable Object> R foldLeft(
+      R pInitial, BiFunction<? super R, ? super Entry<K, V>, ? extends R> pFunction) {
+    checkNotNull(pFunction);
+    return foldNodes(root, pInitial, pFunction);
+  }
+
+  @Override
+  public PersistentSortedMap<K, V> empty() {
+    return of();
+  }
+
+  @Override
+  public boolean containsKey(Object pObj) {
+    return findNode(pObj, root) != null;
+  }
+
+  @Override
+  public @Nullable V get(Object pObj) {
+    Node<K, V> node = findNode(pObj, root);
+    return node == null ? null : node.getValue();
+  }
+
+  @Override
+  public V getOrDefault(Object pKey, V pDefaultValue) {
+    Node<K, V> node = findNode(pKey, root);
+    return node == null ? pDefaultValue : node.getValue();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  @Override
+  public int size() {
+    if (size <= 0) {
+      size = Node.countNodes(root);
+    }
+    return size;
+  }
+
+  @Override
   public @Nullable Entry<K, V> firstEntry() {
     if (isEmpty()) {
       return null;
@@ -986,212 +1911,1088 @@ public final class PathCopyingPersistentTreeMap<
       }
     }
 
-    private EntryInOrderIterator(
-        Node<K, V> root,
-        @Nullable K pLowKey,
-        boolean pLowInclusive,
-        @Nullable K pHighKey,
-        boolean pHighInclusive) {
-      stack = new ArrayDeque<>();
-      highKey = pHighKey;
-      highInclusive = pHighInclusive;
+    private EntryInOrderIterator(
+        Node<K, V> root,
+        @Nullable K pLowKey,
+        boolean pLowInclusive,
+        @Nullable K pHighKey,
+        boolean pHighInclusive) {
+      stack = new ArrayDeque<>();
+      highKey = pHighKey;
+      highInclusive = pHighInclusive;
+
+      if (pLowKey == null) {
+        pushLeftMostNodesOnStack(root);
+      } else {
+        // TODO: optimize: this iterates twice through the tree
+        pushNodesToKeyOnStack(root, findNextGreaterNode(pLowKey, root, pLowInclusive).getKey());
+      }
+      stopFurtherIterationIfOutOfRange();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    private void pushLeftMostNodesOnStack(@Var Node<K, V> current) {
+      while (current.getLeft() != null) {
+        stack.push(current);
+        current = current.getLeft();
+      }
+      stack.push(current);
+    }
+
+    private void pushNodesToKeyOnStack(@Var Node<K, V> current, K key) {
+      while (current != null) {
+        int comp = key.compareTo(current.getKey());
+
+        if (comp < 0) {
+          stack.push(current);
+          current = current.getLeft();
+
+        } else if (comp > 0) {
+          // This node and it's left subtree can be ignored completely.
+          current = current.getRight();
+
+        } else {
+          stack.push(current);
+          return;
+        }
+      }
+      throw new AssertionError(
+          "PartialEntryInOrderIterator created with lower bound that is not in map");
+    }
+
+    private void stopFurtherIterationIfOutOfRange() {
+      if (highKey != null
+          && !stack.isEmpty()
+          && exceedsUpperBound(stack.peek().getKey(), highKey, highInclusive)) {
+        // We have reached the end, next element would already be too large
+        stack.clear();
+      }
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      Node<K, V> current = stack.pop();
+      // this is the element to be returned
+
+      // if it has a right subtree,
+      // push it on stack so that it will be handled next
+      if (current.getRight() != null) {
+        pushLeftMostNodesOnStack(current.getRight());
+      }
+
+      stopFurtherIterationIfOutOfRange();
+
+      return current;
+    }
+  }
+
+  /**
+   * Reverse tree iterator with in-order iteration returning node objects, with possibility for
+   * lower and upper bound. The iteration starts at the upper bound and goes to the lower bound.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  private static final class DescendingEntryInOrderIterator<
+          K extends Comparable<? super K>, V extends @Nullable Object>
+      extends UnmodifiableIterator<Map.Entry<K, V>> {
+
+    // invariants:
+    // stack.top is always the next element to be returned
+    // (i.e., its right subtree has already been handled)
+
+    private final Deque<Node<K, V>> stack;
+
+    // If not null, iteration stops at this key.
+    private final @Nullable K lowKey;
+    private final boolean lowInclusive; // only relevant if lowKey != null
+
+    static <K extends Comparable<? super K>, V> Iterator<Map.Entry<K, V>> create(
+        @Nullable Node<K, V> root) {
+      if (root == null) {
+        return Collections.emptyIterator();
+      } else {
+        return new DescendingEntryInOrderIterator<>(
+            root, null, /* pLowInclusive= */ false, null, /* pHighInclusive= */ false);
+      }
+    }
+
+    /**
+     * Create a new iterator with an optional lower and upper bound.
+     *
+     * @param pFromKey null or inclusive lower bound
+     * @param pToKey null or exclusive lower bound
+     */
+    static <K extends Comparable<? super K>, V> Iterator<Map.Entry<K, V>> createWithBounds(
+        @Nullable Node<K, V> root,
+        @Nullable K pFromKey,
+        boolean pFromInclusive,
+        @Nullable K pToKey,
+        boolean pToInclusive) {
+      if (root == null) {
+        return Collections.emptyIterator();
+      } else {
+        return new DescendingEntryInOrderIterator<>(
+            root, pFromKey, pFromInclusive, pToKey, pToInclusive);
+      }
+    }
+
+    private DescendingEntryInOrderIterator(
+        Node<K, V> root,
+        @Nullable K pLowKey,
+        boolean pLowInclusive,
+        @Nullable K pHighKey,
+        boolean pHighInclusive) {
+      stack = new ArrayDeque<>();
+      lowKey = pLowKey;
+      lowInclusive = pLowInclusive;
+
+      if (pHighKey == null) {
+        pushRightMostNodesOnStack(root);
+      } else {
+        // TODO: optimize: this iterates twice through the tree
+        pushNodesToKeyOnStack(root, findNextSmallerNode(pHighKey, root, pHighInclusive).getKey());
+      }
+      stopFurtherIterationIfOutOfRange();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    private void pushRightMostNodesOnStack(@Var Node<K, V> current) {
+      while (current.getRight() != null) {
+        stack.push(current);
+        current = current.getRight();
+      }
+      stack.push(current);
+    }
+
+    private void pushNodesToKeyOnStack(@Var Node<K, V> current, K key) {
+      while (current != null) {
+        int comp = key.compareTo(current.getKey());
+
+        if (comp > 0) {
+          stack.push(current);
+          current = current.getRight();
+
+        } else if (comp < 0) {
+          // This node and it's right subtree can be ignored completely.
+          current = current.getLeft();
+
+        } else {
+          stack.push(current);
+          return;
+        }
+      }
+      throw new AssertionError(
+          "PartialEntryInOrderIterator created with upper bound that is not in map");
+    }
+
+    private void stopFurtherIterationIfOutOfRange() {
+      if (lowKey != null
+          && !stack.isEmpty()
+          && exceedsLowerBound(stack.peek().getKey(), lowKey, lowInclusive)) {
+        // We have reached the end, next element would already be too small
+        stack.clear();
+      }
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      Node<K, V> current = stack.pop();
+      // this is the element to be returned
+
+      // if it has a left subtree,
+      // push it on stack so that it will be handled next
+      if (current.getLeft() != null) {
+        pushRightMostNodesOnStack(current.getLeft());
+      }
+
+      stopFurtherIterationIfOutOfRange();
+
+      return current;
+    }
+  }
+
+  /**
+   * Spliterator over the entries of a tree with optional lower and upper bound, which splits at
+   * subtree boundaries. The remaining entries are always the entries of {@link #firstNode} (if not
+   * null) and of {@link #subtree} that are within the bounds. Splitting off a prefix means handing
+   * over the first node and the left subtree of the current subtree to a new spliterator, and
+   * continuing with the root and the right subtree. Once the traversal of the subtree has begun, a
+   * stack of nodes like for {@link EntryInOrderIterator} is used and the spliterator does not split
+   * anymore.
+   *
+   * <p>Nodes do not store the size of their subtree, so only the size before the first split is
+   * known exactly. Like for {@link java.util.TreeMap}, each split halves the estimated size.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  private static final class EntrySpliterator<
+          K extends Comparable<? super K>, V extends @Nullable Object>
+      implements Spliterator<Map.Entry<K, V>> {
+
+    private static final int CHARACTERISTICS =
+        Spliterator.DISTINCT
+            | Spliterator.IMMUTABLE
+            | Spliterator.NONNULL
+            | Spliterator.ORDERED
+            | Spliterator.SORTED;
+
+    // invariant: firstNode and root of subtree are within the bounds
+    private @Nullable Node<K, V> firstNode;
+    private @Nullable Node<K, V> subtree;
+
+    // not null once the traversal of subtree has begun, top is next node as for the iterator
+    private @Nullable Deque<Node<K, V>> stack = null;
+
+    // null if there is no according bound, in this case the "inclusive" boolean is irrelevant
+    private final @Nullable K fromKey;
+    private final boolean fromInclusive;
+    private final @Nullable K toKey;
+    private final boolean toInclusive;
+
+    private long estimatedSize;
+    private int characteristics;
+
+    private EntrySpliterator(
+        @Nullable Node<K, V> pFirstNode,
+        @Nullable Node<K, V> pSubtree,
+        @Nullable K pFromKey,
+        boolean pFromInclusive,
+        @Nullable K pToKey,
+        boolean pToInclusive,
+        long pEstimatedSize,
+        int pCharacteristics) {
+      firstNode = pFirstNode;
+      fromKey = pFromKey;
+      fromInclusive = pFromInclusive;
+      toKey = pToKey;
+      toInclusive = pToInclusive;
+      subtree = skipSubtreesOutOfRange(pSubtree);
+      estimatedSize = pEstimatedSize;
+      characteristics = pCharacteristics;
+    }
+
+    /** Create a spliterator over all entries of a tree whose size is known. */
+    static <K extends Comparable<? super K>, V> Spliterator<Map.Entry<K, V>> create(
+        @Nullable Node<K, V> root, int size) {
+      return new EntrySpliterator<>(
+          null,
+          root,
+          null,
+          /* pFromInclusive= */ false,
+          null,
+          /* pToInclusive= */ false,
+          size,
+          CHARACTERISTICS | Spliterator.SIZED);
+    }
+
+    /** Create a spliterator over the entries of a tree that are within the given bounds. */
+    static <K extends Comparable<? super K>, V> Spliterator<Map.Entry<K, V>> createWithBounds(
+        Node<K, V> root,
+        @Nullable K pFromKey,
+        boolean pFromInclusive,
+        @Nullable K pToKey,
+        boolean pToInclusive) {
+      return new EntrySpliterator<>(
+          null,
+          root,
+          pFromKey,
+          pFromInclusive,
+          pToKey,
+          pToInclusive,
+          Long.MAX_VALUE,
+          CHARACTERISTICS);
+    }
+
+    private boolean tooLow(K key) {
+      return fromKey != null && exceedsLowerBound(key, fromKey, fromInclusive);
+    }
+
+    private boolean tooHigh(K key) {
+      return toKey != null && exceedsUpperBound(key, toKey, toInclusive);
+    }
+
+    /** Return the largest subtree of the given tree that contains all its entries in range. */
+    private @Nullable Node<K, V> skipSubtreesOutOfRange(@Var @Nullable Node<K, V> current) {
+      while (current != null) {
+        if (tooLow(current.getKey())) {
+          current = current.getRight();
+        } else if (tooHigh(current.getKey())) {
+          current = current.getLeft();
+        } else {
+          return current;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public @Nullable Spliterator<Map.Entry<K, V>> trySplit() {
+      Node<K, V> current = subtree;
+      if (stack != null || current == null) {
+        return null;
+      }
+      Node<K, V> prefixFirstNode = firstNode;
+      Node<K, V> prefixSubtree = skipSubtreesOutOfRange(current.getLeft());
+      firstNode = current;
+      subtree = skipSubtreesOutOfRange(current.getRight());
+      if (prefixFirstNode == null && prefixSubtree == null) {
+        // prefix would be empty, but now firstNode is set and the next attempt succeeds
+        return trySplit();
+      }
+      estimatedSize >>>= 1;
+      characteristics &= ~Spliterator.SIZED;
+      return new EntrySpliterator<>(
+          prefixFirstNode,
+          prefixSubtree,
+          fromKey,
+          fromInclusive,
+          toKey,
+          toInclusive,
+          estimatedSize,
+          characteristics);
+    }
+
+    /** Push the given node and all nodes in range on the path to the first node of its subtree. */
+    private void pushFirstNodesOnStack(
+        Deque<Node<K, V>> pStack, @Var @Nullable Node<K, V> current) {
+      while (current != null) {
+        if (tooLow(current.getKey())) {
+          current = current.getRight();
+        } else {
+          pStack.push(current);
+          current = current.getLeft();
+        }
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> pAction) {
+      checkNotNull(pAction);
+      Node<K, V> first = firstNode;
+      if (first != null) {
+        firstNode = null;
+        pAction.accept(first);
+        return true;
+      }
+      @Var Deque<Node<K, V>> currentStack = stack;
+      if (currentStack == null) {
+        currentStack = new ArrayDeque<>();
+        pushFirstNodesOnStack(currentStack, subtree);
+        subtree = null;
+        stack = currentStack;
+      }
+      Node<K, V> current = currentStack.poll();
+      if (current == null || tooHigh(current.getKey())) {
+        currentStack.clear();
+        return false;
+      }
+      pushFirstNodesOnStack(currentStack, current.getRight());
+      pAction.accept(current);
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<K, V>> pAction) {
+      checkNotNull(pAction);
+      if (stack != null) {
+        // traversal of subtree has already begun
+        Spliterator.super.forEachRemaining(pAction);
+        return;
+      }
+      Node<K, V> first = firstNode;
+      Node<K, V> current = subtree;
+      firstNode = null;
+      subtree = null;
+      if (first != null) {
+        pAction.accept(first);
+      }
+      forEachNodeInRange(current, fromKey, fromInclusive, toKey, toInclusive, pAction);
+    }
+
+    @Override
+    public long estimateSize() {
+      return estimatedSize;
+    }
+
+    @Override
+    public int characteristics() {
+      return characteristics;
+    }
+
+    @Override
+    public Comparator<? super Map.Entry<K, V>> getComparator() {
+      return Map.Entry.comparingByKey();
+    }
+  }
+
+  /**
+   * Implementation of bulk operations on trees based on the two primitives split and join as
+   * described by Blelloch, Ferizovic, and Sun in "Just Join for Parallel Ordered Sets" (SPAA 2016).
+   * Join combines two trees and a middle node whose key lies between the keys of both trees, and
+   * needs O(|h1 - h2|) time for trees with black heights h1 and h2. Split divides a tree at a given
+   * key and needs O(log n) time. Union, intersection, and difference expose the root of the smaller
+   * tree, split the larger tree at its key, recurse into both halves, and join the results. This
+   * needs O(m log(n/m + 1)) time for trees with m &le; n nodes. Subtrees that are shared by both
+   * trees are handled without looking at them.
+   *
+   * <p>The black height of a tree is the number of black nodes on each path from its root to a
+   * leaf. Roots of the given trees and of the resulting trees may be red. All methods get the black
+   * heights of their input trees as parameters, and all methods that return a tree store its black
+   * height in {@link #height}. Method {@link #split} stores its results in fields as well. Callers
+   * need to read these fields before the next call.
+   */
+  private static final class SplitJoin<K extends Comparable<? super K>, V> {
+
+    // The following fields are only used by union().
+
+    /** Equivalence that determines whether the values of a key in both trees differ. */
+    private final Equivalence<? super V> valueEquals;
+
+    /** Handler for values that differ in both trees. */
+    private final @Nullable MergeConflictHandler<? super K, V> conflictHandler;
+
+    /** Visitor for the keys that are only in one tree or have differing values. */
+    private final MapsDifference.Visitor<? super K, ? super V> collectDifferences;
+
+    /** The black height of the tree that was returned by the last call. */
+    private int height;
+
+    // Results of the last call to split().
+    private @Nullable Node<K, V> splitLeft;
+    private int splitLeftHeight;
+    private @Nullable Node<K, V> splitMatch;
+    private @Nullable Node<K, V> splitRight;
+    private int splitRightHeight;
+
+    SplitJoin(@Nullable MergeConflictHandler<? super K, V> pConflictHandler) {
+      this(Equivalence.equals(), pConflictHandler, MapsDifference.ignoreMapsDifference());
+    }
+
+    SplitJoin(
+        Equivalence<? super V> pValueEquals,
+        @Nullable MergeConflictHandler<? super K, V> pConflictHandler,
+        MapsDifference.Visitor<? super K, ? super V> pCollectDifferences) {
+      valueEquals = checkNotNull(pValueEquals);
+      conflictHandler = pConflictHandler;
+      collectDifferences = checkNotNull(pCollectDifferences);
+    }
+
+    static int blackHeight(@Nullable Node<?, ?> tree) {
+      @Var int result = 0;
+      for (@Var Node<?, ?> current = tree; current != null; current = current.getLeft()) {
+        if (!current.getColor()) {
+          result++;
+        }
+      }
+      return result;
+    }
+
+    private static int childHeight(Node<?, ?> tree, int treeHeight) {
+      return tree.getColor() ? treeHeight : treeHeight - 1;
+    }
+
+    /**
+     * Create a tree with all nodes of two trees and the key and value of a given middle node. All
+     * keys in the left tree need to be smaller than the middle key, and all keys in the right tree
+     * need to be larger.
+     */
+    Node<K, V> join(
+        @Var @Nullable Node<K, V> left,
+        @Var int leftHeight,
+        Node<K, V> middle,
+        @Var @Nullable Node<K, V> right,
+        @Var int rightHeight) {
+      if (Node.isRed(left)) {
+        left = left.withColor(Node.BLACK);
+        leftHeight++;
+      }
+      if (Node.isRed(right)) {
+        right = right.withColor(Node.BLACK);
+        rightHeight++;
+      }
+
+      if (leftHeight == rightHeight) {
+        height = leftHeight;
+        return Node.create(middle.getKey(), middle.getValue(), left, right, Node.RED);
+      } else if (leftHeight > rightHeight) {
+        height = leftHeight;
+        return joinRight(left, leftHeight, middle, right, rightHeight);
+      } else {
+        height = rightHeight;
+        return joinLeft(left, leftHeight, middle, right, rightHeight);
+      }
+    }
+
+    /**
+     * Join by descending along the right spine of the higher left tree until the heights match. The
+     * new red node is then inserted there like in {@link #putAndCopy0}.
+     */
+    private Node<K, V> joinRight(
+        Node<K, V> left,
+        int leftHeight,
+        Node<K, V> middle,
+        @Nullable Node<K, V> right,
+        int rightHeight) {
+      if (leftHeight == rightHeight) {
+        // left is black because nodes on the right spine are never red
+        return Node.create(middle.getKey(), middle.getValue(), left, right, Node.RED);
+      }
+      Node<K, V> newRight = joinRight(left.getRight(), leftHeight - 1, middle, right, rightHeight);
+      return restoreInvariants(left.withRightChild(newRight), /* mutable= */ false);
+    }
+
+    /**
+     * Join by descending along the left spine of the higher right tree until the heights match. The
+     * new red node is then inserted there like in {@link #putAndCopy0}.
+     */
+    private Node<K, V> joinLeft(
+        @Nullable Node<K, V> left,
+        int leftHeight,
+        Node<K, V> middle,
+        Node<K, V> right,
+        int rightHeight) {
+      if (leftHeight == rightHeight && !Node.isRed(right)) {
+        return Node.create(middle.getKey(), middle.getValue(), left, right, Node.RED);
+      }
+      Node<K, V> newLeft =
+          joinLeft(left, leftHeight, middle, right.getLeft(), childHeight(right, rightHeight));
+      return restoreInvariants(right.withLeftChild(newLeft), /* mutable= */ false);
+    }
+
+    /**
+     * Like {@link #join}, but without a middle node. All keys in the left tree need to be smaller
+     * than all keys in the right tree.
+     */
+    private @Nullable Node<K, V> join2(
+        @Nullable Node<K, V> left, int leftHeight, @Nullable Node<K, V> right, int rightHeight) {
+      if (right == null) {
+        height = leftHeight;
+        return left;
+      } else if (left == null) {
+        height = rightHeight;
+        return right;
+      }
+      Node<K, V> smallest = findSmallestNode(right);
+      split(right, rightHeight, smallest.getKey());
+      return join(left, leftHeight, smallest, splitRight, splitRightHeight);
+    }
+
+    /**
+     * Split a tree at a given key into a tree with all smaller keys ({@link #splitLeft}), the node
+     * with the given key if it exists ({@link #splitMatch}), and a tree with all larger keys
+     * ({@link #splitRight}).
+     */
+    void split(@Nullable Node<K, V> tree, int treeHeight, K key) {
+      if (tree == null) {
+        splitLeft = null;
+        splitLeftHeight = 0;
+        splitMatch = null;
+        splitRight = null;
+        splitRightHeight = 0;
+        return;
+      }
+
+      int childHeight = childHeight(tree, treeHeight);
+      int comp = key.compareTo(tree.getKey());
+      if (comp < 0) {
+        split(tree.getLeft(), childHeight, key);
+        splitRight = join(splitRight, splitRightHeight, tree, tree.getRight(), childHeight);
+        splitRightHeight = height;
+
+      } else if (comp > 0) {
+        split(tree.getRight(), childHeight, key);
+        splitLeft = join(tree.getLeft(), childHeight, tree, splitLeft, splitLeftHeight);
+        splitLeftHeight = height;
 
-      if (pLowKey == null) {
-        pushLeftMostNodesOnStack(root);
       } else {
-        // TODO: optimize: this iterates twice through the tree
-        pushNodesToKeyOnStack(root, findNextGreaterNode(pLowKey, root, pLowInclusive).getKey());
+        splitLeft = tree.getLeft();
+        splitLeftHeight = childHeight;
+        splitMatch = tree;
+        splitRight = tree.getRight();
+        splitRightHeight = childHeight;
       }
-      stopFurtherIterationIfOutOfRange();
     }
 
-    @Override
-    public boolean hasNext() {
-      return !stack.isEmpty();
+    /**
+     * Compute the union of two trees. For keys that exist in both trees with values that are not
+     * equivalent, the conflict handler is called with the value from the first tree as first value.
+     * All keys that exist only in one tree or have such values are passed to the visitor for
+     * differences in ascending order.
+     */
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    @Nullable Node<K, V> union(
+        @Nullable Node<K, V> tree1, int height1, @Nullable Node<K, V> tree2, int height2) {
+      if (tree1 == tree2) {
+        height = height1;
+        return tree1;
+      } else if (tree2 == null) {
+        visitOnlyInOneTree(tree1, /* left= */ true);
+        height = height1;
+        return tree1;
+      } else if (tree1 == null) {
+        visitOnlyInOneTree(tree2, /* left= */ false);
+        height = height2;
+        return tree2;
+      }
+
+      // The recursive calls and resolve() need to happen in key order for the visitor.
+      if (height1 <= height2) {
+        split(tree2, height2, tree1.getKey());
+        Node<K, V> match = splitMatch;
+        Node<K, V> right2 = splitRight;
+        int right2Height = splitRightHeight;
+        int childHeight = childHeight(tree1, height1);
+        Node<K, V> left = union(tree1.getLeft(), childHeight, splitLeft, splitLeftHeight);
+        int leftHeight = height;
+        Node<K, V> middle = resolve(tree1, match, tree1);
+        Node<K, V> right = union(tree1.getRight(), childHeight, right2, right2Height);
+        int rightHeight = height;
+
+        if (middle == tree1 && left == tree1.getLeft() && right == tree1.getRight()) {
+          height = height1;
+          return tree1;
+        }
+        return join(left, leftHeight, middle, right, rightHeight);
+
+      } else {
+        split(tree1, height1, tree2.getKey());
+        Node<K, V> match = splitMatch;
+        Node<K, V> right1 = splitRight;
+        int right1Height = splitRightHeight;
+        int childHeight = childHeight(tree2, height2);
+        Node<K, V> left = union(splitLeft, splitLeftHeight, tree2.getLeft(), childHeight);
+        int leftHeight = height;
+        Node<K, V> middle = resolve(match, tree2, tree2);
+        Node<K, V> right = union(right1, right1Height, tree2.getRight(), childHeight);
+        int rightHeight = height;
+
+        if (middle == tree2 && left == tree2.getLeft() && right == tree2.getRight()) {
+          height = height2;
+          return tree2;
+        }
+        return join(left, leftHeight, middle, right, rightHeight);
+      }
     }
 
-    private void pushLeftMostNodesOnStack(@Var Node<K, V> current) {
-      while (current.left != null) {
-        stack.push(current);
-        current = current.left;
+    /**
+     * Determine the node for a key in the union of two trees, given the nodes for this key from
+     * both trees (of which one may be missing, this is returned as default).
+     */
+    private Node<K, V> resolve(
+        @Nullable Node<K, V> node1, @Nullable Node<K, V> node2, Node<K, V> defaultNode) {
+      if (node2 == null) {
+        collectDifferences.leftValueOnly(defaultNode.getKey(), defaultNode.getValue());
+        return defaultNode;
+      } else if (node1 == null) {
+        collectDifferences.rightValueOnly(defaultNode.getKey(), defaultNode.getValue());
+        return defaultNode;
       }
-      stack.push(current);
+      K key = node1.getKey();
+      V value1 = node1.getValue();
+      V value2 = node2.getValue();
+      if (valueEquals.equivalent(value1, value2)) {
+        return node1;
+      }
+      V newValue = conflictHandler.resolveConflict(key, value1, value2);
+      collectDifferences.differingValues(key, value1, value2);
+      return Node.create(key, newValue, null, null, Node.RED);
     }
 
-    private void pushNodesToKeyOnStack(@Var Node<K, V> current, K key) {
-      while (current != null) {
-        int comp = key.compareTo(current.getKey());
+    /**
+     * Pass all entries of a tree that exist only in the first (left) or only in the second tree to
+     * the visitor for differences.
+     */
+    void visitOnlyInOneTree(@Nullable Node<K, V> tree, boolean left) {
+      if (tree == null || collectDifferences == MapsDifference.ignoreMapsDifference()) {
+        return;
+      }
+      visitOnlyInOneTree(tree.getLeft(), left);
+      if (left) {
+        collectDifferences.leftValueOnly(tree.getKey(), tree.getValue());
+      } else {
+        collectDifferences.rightValueOnly(tree.getKey(), tree.getValue());
+      }
+      visitOnlyInOneTree(tree.getRight(), left);
+    }
 
-        if (comp < 0) {
-          stack.push(current);
-          current = current.left;
+    /** Compute the intersection of two trees, keeping the nodes of the first tree. */
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    @Nullable Node<K, V> intersection(
+        @Nullable Node<K, V> tree1, int height1, @Nullable Node<K, V> tree2, int height2) {
+      if (tree1 == null || tree2 == null) {
+        height = 0;
+        return null;
+      } else if (tree1 == tree2) {
+        height = height1;
+        return tree1;
+      }
 
-        } else if (comp > 0) {
-          // This node and it's left subtree can be ignored completely.
-          current = current.right;
+      if (height1 <= height2) {
+        split(tree2, height2, tree1.getKey());
+        boolean found = splitMatch != null;
+        Node<K, V> right2 = splitRight;
+        int right2Height = splitRightHeight;
+        int childHeight = childHeight(tree1, height1);
+        Node<K, V> left = intersection(tree1.getLeft(), childHeight, splitLeft, splitLeftHeight);
+        int leftHeight = height;
+        Node<K, V> right = intersection(tree1.getRight(), childHeight, right2, right2Height);
+        int rightHeight = height;
+
+        if (!found) {
+          return join2(left, leftHeight, right, rightHeight);
+        } else if (left == tree1.getLeft() && right == tree1.getRight()) {
+          height = height1;
+          return tree1;
+        }
+        return join(left, leftHeight, tree1, right, rightHeight);
 
-        } else {
-          stack.push(current);
-          return;
+      } else {
+        split(tree1, height1, tree2.getKey());
+        Node<K, V> match = splitMatch;
+        Node<K, V> right1 = splitRight;
+        int right1Height = splitRightHeight;
+        int childHeight = childHeight(tree2, height2);
+        Node<K, V> left = intersection(splitLeft, splitLeftHeight, tree2.getLeft(), childHeight);
+        int leftHeight = height;
+        Node<K, V> right = intersection(right1, right1Height, tree2.getRight(), childHeight);
+        int rightHeight = height;
+
+        if (match == null) {
+          return join2(left, leftHeight, right, rightHeight);
         }
+        return join(left, leftHeight, match, right, rightHeight);
       }
-      throw new AssertionError(
-          "PartialEntryInOrderIterator created with lower bound that is not in map");
     }
 
-    private void stopFurtherIterationIfOutOfRange() {
-      if (highKey != null
-          && !stack.isEmpty()
-          && exceedsUpperBound(stack.peek().getKey(), highKey, highInclusive)) {
-        // We have reached the end, next element would already be too large
-        stack.clear();
+    /** Compute the difference of two trees, keeping the nodes of the first tree. */
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    @Nullable Node<K, V> difference(
+        @Nullable Node<K, V> tree1, int height1, @Nullable Node<K, V> tree2, int height2) {
+      if (tree1 == null || tree1 == tree2) {
+        height = 0;
+        return null;
+      } else if (tree2 == null) {
+        height = height1;
+        return tree1;
       }
-    }
 
-    @Override
-    public Map.Entry<K, V> next() {
-      Node<K, V> current = stack.pop();
-      // this is the element to be returned
+      if (height1 <= height2) {
+        split(tree2, height2, tree1.getKey());
+        boolean found = splitMatch != null;
+        Node<K, V> right2 = splitRight;
+        int right2Height = splitRightHeight;
+        int childHeight = childHeight(tree1, height1);
+        Node<K, V> left = difference(tree1.getLeft(), childHeight, splitLeft, splitLeftHeight);
+        int leftHeight = height;
+        Node<K, V> right = difference(tree1.getRight(), childHeight, right2, right2Height);
+        int rightHeight = height;
+
+        if (found) {
+          return join2(left, leftHeight, right, rightHeight);
+        } else if (left == tree1.getLeft() && right == tree1.getRight()) {
+          height = height1;
+          return tree1;
+        }
+        return join(left, leftHeight, tree1, right, rightHeight);
 
-      // if it has a right subtree,
-      // push it on stack so that it will be handled next
-      if (current.right != null) {
-        pushLeftMostNodesOnStack(current.right);
+      } else {
+        split(tree1, height1, tree2.getKey());
+        Node<K, V> right1 = splitRight;
+        int right1Height = splitRightHeight;
+        int childHeight = childHeight(tree2, height2);
+        Node<K, V> left = difference(splitLeft, splitLeftHeight, tree2.getLeft(), childHeight);
+        int leftHeight = height;
+        Node<K, V> right = difference(right1, right1Height, tree2.getRight(), childHeight);
+        int rightHeight = height;
+        return join2(left, leftHeight, right, rightHeight);
       }
-
-      stopFurtherIterationIfOutOfRange();
-
-      return current;
     }
   }
 
   /**
-   * Reverse tree iterator with in-order iteration returning node objects, with possibility for
-   * lower and upper bound. The iteration starts at the upper bound and goes to the lower bound.
+   * Create a {@link TreeDifferenceCursor} for iterating over the differing entries of two maps.
+   *
+   * @see TreeDifferenceCursor
+   */
+  static <K extends Comparable<? super K>, V extends @Nullable Object>
+      TreeDifferenceCursor<K, V> differenceCursor(
+          PathCopyingPersistentTreeMap<K, V> map1, PathCopyingPersistentTreeMap<K, V> map2) {
+    return new TreeDifferenceCursor<>(map1.root, map2.root);
+  }
+
+  /**
+   * A cursor that iterates simultaneously over the entries of two maps in key order, but visits
+   * only keys whose entries may differ between the maps. It traverses the trees of both maps
+   * structurally and skips all subtrees that are shared by both trees without looking at them,
+   * which is common for maps that were derived from each other or from a common ancestor. Thus the
+   * cost is proportional to the number of differences (times the tree height), not to the size of
+   * the maps.
+   *
+   * <p>After each call to {@link #advance()} that returned true, {@link #leftEntry()} and {@link
+   * #rightEntry()} return the entries of both maps for the current key (at least one of them is
+   * present). If both are present, they are not the same object, but their values may still be
+   * equal.
    *
    * @param <K> The type of keys.
    * @param <V> The type of values.
    */
-  private static final class DescendingEntryInOrderIterator<
+  static final class TreeDifferenceCursor<
           K extends Comparable<? super K>, V extends @Nullable Object>
-      extends UnmodifiableIterator<Map.Entry<K, V>> {
-
-    // invariants:
-    // stack.top is always the next element to be returned
-    // (i.e., its right subtree has already been handled)
+      implements PersistentSortedMaps.DifferenceCursor<K, V> {
 
-    private final Deque<Node<K, V>> stack;
+    private final TraversalStack<K, V> stack1;
+    private final TraversalStack<K, V> stack2;
 
-    // If not null, iteration stops at this key.
-    private final @Nullable K lowKey;
-    private final boolean lowInclusive; // only relevant if lowKey != null
+    private @Nullable Node<K, V> current1;
+    private @Nullable Node<K, V> current2;
 
-    static <K extends Comparable<? super K>, V> Iterator<Map.Entry<K, V>> create(
-        @Nullable Node<K, V> root) {
-      if (root == null) {
-        return Collections.emptyIterator();
-      } else {
-        return new DescendingEntryInOrderIterator<>(
-            root, null, /* pLowInclusive= */ false, null, /* pHighInclusive= */ false);
-      }
+    private TreeDifferenceCursor(@Nullable Node<K, V> root1, @Nullable Node<K, V> root2) {
+      stack1 = new TraversalStack<>(root1);
+      stack2 = new TraversalStack<>(root2);
     }
 
     /**
-     * Create a new iterator with an optional lower and upper bound.
+     * Move to the next key with potentially differing entries.
      *
-     * @param pFromKey null or inclusive lower bound
-     * @param pToKey null or exclusive lower bound
+     * @return Whether there is such a key.
      */
-    static <K extends Comparable<? super K>, V> Iterator<Map.Entry<K, V>> createWithBounds(
-        @Nullable Node<K, V> root,
-        @Nullable K pFromKey,
-        boolean pFromInclusive,
-        @Nullable K pToKey,
-        boolean pToInclusive) {
-      if (root == null) {
-        return Collections.emptyIterator();
-      } else {
-        return new DescendingEntryInOrderIterator<>(
-            root, pFromKey, pFromInclusive, pToKey, pToInclusive);
-      }
-    }
+    @Override
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    public boolean advance() {
+      current1 = null;
+      current2 = null;
+
+      while (true) {
+        if (stack1.isEmpty()) {
+          if (stack2.isEmpty()) {
+            return false;
+          }
+          current2 = stack2.pollEntry();
+          return true;
+        } else if (stack2.isEmpty()) {
+          current1 = stack1.pollEntry();
+          return true;
+        }
 
-    private DescendingEntryInOrderIterator(
-        Node<K, V> root,
-        @Nullable K pLowKey,
-        boolean pLowInclusive,
-        @Nullable K pHighKey,
-        boolean pHighInclusive) {
-      stack = new ArrayDeque<>();
-      lowKey = pLowKey;
-      lowInclusive = pLowInclusive;
+        Node<K, V> top1 = stack1.peek();
+        Node<K, V> top2 = stack2.peek();
 
-      if (pHighKey == null) {
-        pushRightMostNodesOnStack(root);
-      } else {
-        // TODO: optimize: this iterates twice through the tree
-        pushNodesToKeyOnStack(root, findNextSmallerNode(pHighKey, root, pHighInclusive).getKey());
+        if (stack1.isSubtreeOnTop() && stack2.isSubtreeOnTop()) {
+          if (top1 == top2) {
+            // Shared subtree, no differences inside.
+            stack1.pop();
+            stack2.pop();
+            continue;
+          }
+          // Split the subtree with the larger root key, which is likely the larger subtree,
+          // and hope to find a shared subtree inside of it.
+          int comp = top1.getKey().compareTo(top2.getKey());
+          if (comp >= 0) {
+            stack1.expand();
+          }
+          if (comp <= 0) {
+            stack2.expand();
+          }
+
+        } else if (stack1.isSubtreeOnTop()) {
+          stack1.expand();
+
+        } else if (stack2.isSubtreeOnTop()) {
+          stack2.expand();
+
+        } else {
+          // Two single entries
+          int comp = top1.getKey().compareTo(top2.getKey());
+          if (comp <= 0) {
+            current1 = stack1.pop();
+          }
+          if (comp >= 0) {
+            current2 = stack2.pop();
+          }
+          if (current1 != current2) {
+            return true;
+          }
+          // Same node in both trees.
+          current1 = null;
+          current2 = null;
+        }
       }
-      stopFurtherIterationIfOutOfRange();
     }
 
     @Override
-    public boolean hasNext() {
-      return !stack.isEmpty();
+    public Map.@Nullable Entry<K, V> leftEntry() {
+      return current1;
     }
 
-    private void pushRightMostNodesOnStack(@Var Node<K, V> current) {
-      while (current.right != null) {
-        stack.push(current);
-        current = current.right;
-      }
-      stack.push(current);
+    @Override
+    public Map.@Nullable Entry<K, V> rightEntry() {
+      return current2;
     }
+  }
 
-    private void pushNodesToKeyOnStack(@Var Node<K, V> current, K key) {
-      while (current != null) {
-        int comp = key.compareTo(current.getKey());
+  /**
+   * Hash consing for maps of this class, see {@link PersistentInterner}. Maps are canonicalized
+   * according to {@link #equals(Object)}. Their nodes are canonicalized according to their
+   * structure (key, value, color, and identical children), such that equal subtrees of unrelated
+   * maps are shared. Maps that share subtrees are also faster to compare with {@link
+   * TreeDifferenceCursor}.
+   */
+  static final class TreeInterner {
+
+    /** Equivalence of nodes that compares the children by identity. */
+    private static final Equivalence<Node<?, ?>> NODE_STRUCTURE =
+        new Equivalence<>() {
+          @Override
+          @SuppressWarnings("ReferenceEquality") // children are canonical
+          protected boolean doEquivalent(Node<?, ?> a, Node<?, ?> b) {
+            return a.getLeft() == b.getLeft()
+                && a.getRight() == b.getRight()
+                && a.getColor() == b.getColor()
+                && a.getKey().equals(b.getKey())
+                && Objects.equals(a.getValue(), b.getValue());
+          }
 
-        if (comp > 0) {
-          stack.push(current);
-          current = current.right;
+          @Override
+          protected int doHash(Node<?, ?> node) {
+            @Var int hash = node.hashCode(); // hash of entry
+            hash = 31 * hash + System.identityHashCode(node.getLeft());
+            hash = 31 * hash + System.identityHashCode(node.getRight());
+            return 31 * hash + Boolean.hashCode(node.getColor());
+          }
+        };
 
-        } else if (comp < 0) {
-          // This node and it's right subtree can be ignored completely.
-          current = current.left;
+    private final WeakInterner<PathCopyingPersistentTreeMap<?, ?>> maps =
+        new WeakInterner<>(Equivalence.equals());
+    private final WeakInterner<Node<?, ?>> nodes = new WeakInterner<>(NODE_STRUCTURE);
 
-        } else {
-          stack.push(current);
-          return;
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    <K extends Comparable<? super K>, V extends @Nullable Object>
+        PathCopyingPersistentTreeMap<K, V> intern(PathCopyingPersistentTreeMap<K, V> map) {
+      if (map.root == null) {
+        return map; // singleton
+      }
+      @Var PathCopyingPersistentTreeMap<K, V> candidate = map;
+      if (maps.getIfPresent(map) == null) {
+        // Only if the map is new it is worth canonicalizing its nodes.
+        Node<K, V> root = internTree(map.root);
+        if (root != map.root) {
+          candidate = new PathCopyingPersistentTreeMap<>(root);
         }
       }
-      throw new AssertionError(
-          "PartialEntryInOrderIterator created with upper bound that is not in map");
+      @SuppressWarnings("unchecked") // canonical map is equal to the given map
+      PathCopyingPersistentTreeMap<K, V> result =
+          (PathCopyingPersistentTreeMap<K, V>) maps.intern(candidate);
+      return result;
     }
 
-    private void stopFurtherIterationIfOutOfRange() {
-      if (lowKey != null
-          && !stack.isEmpty()
-          && exceedsLowerBound(stack.peek().getKey(), lowKey, lowInclusive)) {
-        // We have reached the end, next element would already be too small
-        stack.clear();
+    @SuppressWarnings({
+      "unchecked", // canonical nodes have the same type as the interned ones
+      "ReferenceEquality", // cannot use equals() for check whether tree is the same
+    })
+    private <K, V extends @Nullable Object> @Nullable Node<K, V> internTree(
+        @Nullable Node<K, V> node) {
+      // Children of canonical nodes are canonical, so we do not need to look at them.
+      if (node == null || nodes.getIfPresent(node) == node) {
+        return node;
       }
+      Node<K, V> left = internTree(node.getLeft());
+      Node<K, V> right = internTree(node.getRight());
+      Node<K, V> candidate =
+          (left == node.getLeft() && right == node.getRight())
+              ? node
+              : Node.create(node.getKey(), node.getValue(), left, right, node.getColor());
+      return (Node<K, V>) nodes.intern(candidate);
     }
 
-    @Override
-    public Map.Entry<K, V> next() {
-      Node<K, V> current = stack.pop();
-      // this is the element to be returned
+    long getHitCount() {
+      return maps.getHitCount() + nodes.getHitCount();
+    }
 
-      // if it has a left subtree,
-      // push it on stack so that it will be handled next
-      if (current.left != null) {
-        pushRightMostNodesOnStack(current.left);
+    long getMissCount() {
+      return maps.getMissCount() + nodes.getMissCount();
+    }
+  }
+
+  /**
+   * Stack of the parts of a tree that still need to be visited by an in-order traversal. Each
+   * element is either a single node (only its entry is pending) or a whole subtree.
+   */
+  private static final class TraversalStack<K, V extends @Nullable Object> {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private @Nullable Node<K, V>[] nodes;
+    private boolean[] isSubtree;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked") // generic array creation
+    TraversalStack(@Nullable Node<K, V> root) {
+      nodes = (@Nullable Node<K, V>[]) new Node<?, ?>[INITIAL_CAPACITY];
+      isSubtree = new boolean[INITIAL_CAPACITY];
+      pushSubtree(root);
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    Node<K, V> peek() {
+      return nodes[size - 1];
+    }
+
+    boolean isSubtreeOnTop() {
+      return isSubtree[size - 1];
+    }
+
+    @CanIgnoreReturnValue
+    Node<K, V> pop() {
+      size--;
+      Node<K, V> result = nodes[size];
+      nodes[size] = null;
+      return result;
+    }
+
+    private void push(Node<K, V> node, boolean subtree) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * size);
+        isSubtree = Arrays.copyOf(isSubtree, 2 * size);
       }
+      nodes[size] = node;
+      isSubtree[size] = subtree;
+      size++;
+    }
 
-      stopFurtherIterationIfOutOfRange();
+    private void pushSubtree(@Nullable Node<K, V> node) {
+      if (node != null) {
+        push(node, /* subtree= */ true);
+      }
+    }
 
-      return current;
+    /** Replace the subtree on top of the stack with its left subtree, its root, and its right. */
+    void expand() {
+      assert isSubtreeOnTop();
+      Node<K, V> node = pop();
+      pushSubtree(node.getRight());
+      push(node, /* subtree= */ false);
+      pushSubtree(node.getLeft());
+    }
+
+    /** Remove and return the next node in order. */
+    Node<K, V> pollEntry() {
+      while (isSubtreeOnTop()) {
+        expand();
+      }
+      return pop();
     }
   }
 
@@ -1271,10 +3072,10 @@ public final class PathCopyingPersistentTreeMap<
 
         if (pFromKey != null && exceedsLowerBound(current.getKey(), pFromKey, pFromInclusive)) {
           // current and left subtree can be ignored
-          current = current.right;
+          current = current.getRight();
         } else if (pToKey != null && exceedsUpperBound(current.getKey(), pToKey, pToInclusive)) {
           // current and right subtree can be ignored
-          current = current.left;
+          current = current.getLeft();
         } else {
           // current is in range
           return current;
@@ -1351,6 +3152,29 @@ public final class PathCopyingPersistentTreeMap<
           root, fromKey, fromInclusive, toKey, toInclusive);
     }
 
+    @Override
+    public Spliterator<Entry<K, V>> entrySpliterator() {
+      return EntrySpliterator.createWithBounds(root, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> pAction) {
+      checkNotNull(pAction);
+      forEachNodeInRange(
+          root,
+          fromKey,
+          fromInclusive,
+          toKey,
+          toInclusive,
+          node -> pAction.accept(node.getKey(), node.getValue()));
+    }
+
+    @Override
+    public void forEachEntry(Consumer<? super Entry<K, V>> pAction) {
+      checkNotNull(pAction);
+      forEachNodeInRange(root, fromKey, fromInclusive, toKey, toInclusive, pAction);
+    }
+
     @Override
     @SuppressWarnings("ReferenceEquality") // comparing nodes with equals would not suffice
     public boolean equals(@Nullable Object pObj) {
@@ -1521,4 +3345,48 @@ public final class PathCopyingPersistentTreeMap<
           root, pFromKey, /* pFromInclusive= */ pInclusive, toKey, /* pToInclusive= */ toInclusive);
     }
   }
+
+  // serialization
+
+  private Object writeReplace() {
+    return new SerializedForm<>(this);
+  }
+
+  private void readObject(@SuppressWarnings("unused") ObjectInputStream in)
+      throws InvalidObjectException {
+    throw new InvalidObjectException("Needs to be deserialized from SerializedForm");
+  }
+
+  /**
+   * Serialized form of the map, which stores only the sorted entries as written by {@link
+   * PersistentCollectionCodec} instead of the tree. This is more compact, does not recurse along
+   * the tree (which could overflow the stack for large maps), and allows to rebuild the tree in
+   * O(n).
+   */
+  private static final class SerializedForm<
+          K extends Comparable<? super K>, V extends @Nullable Object>
+      implements Serializable {
+
+    private static final long serialVersionUID = -6327093434788185442L;
+
+    private transient PersistentSortedMap<K, V> map;
+
+    SerializedForm(PersistentSortedMap<K, V> pMap) {
+      map = pMap;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      PersistentCollectionCodec.writeSortedMap(out, map);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      map = PersistentCollectionCodec.readSortedMap(in);
+    }
+
+    private Object readResolve() {
+      return map;
+    }
+  }
 }
@@ -8,11 +8,15 @@
 
 package org.sosy_lab.common.collect;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.assertThrows;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Range;
 import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
 import com.google.common.collect.testing.TestStringSortedMapGenerator;
 import com.google.common.collect.testing.features.CollectionFeature;
@@ -20,19 +24,30 @@ import com.google.common.collect.testing.features.CollectionSize;
 import com.google.common.collect.testing.features.MapFeature;
 import com.google.common.testing.EqualsTester;
 import com.google.errorprone.annotations.Var;
+import java.math.BigDecimal;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import junit.framework.JUnit4TestAdapter;
 import junit.framework.TestSuite;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
 
 @SuppressWarnings("MemberName")
 public class PathCopyingPersistentTreeMapTest {
@@ -400,6 +415,351 @@ public class PathCopyingPersistentTreeMapTest {
     assertThat(set).containsExactlyElementsIn(comparison).inOrder();
   }
 
+  @Test
+  public void testCopyOf() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size = 0; size < 1000; size += (size < 100 ? 1 : 37)) {
+      Map<Integer, Integer> content = new LinkedHashMap<>();
+      for (int i = 0; i < size; i++) {
+        content.put(rnd.nextInt(), i);
+      }
+      TreeMap<Integer, Integer> comparison = new TreeMap<>(content);
+
+      for (Map<Integer, Integer> input : ImmutableList.of(content, comparison)) {
+        PersistentSortedMap<Integer, Integer> copy = PathCopyingPersistentTreeMap.copyOf(input);
+        ((PathCopyingPersistentTreeMap<?, ?>) copy).checkAssertions();
+        assertThat(copy).containsExactlyEntriesIn(comparison).inOrder();
+      }
+    }
+  }
+
+  @Test
+  public void testCopyOfCompatibleKeys() {
+    // BigDecimal's natural ordering is not consistent with equals,
+    // the last of the entries with compareTo()==0 should win as for repeated putAndCopy() calls.
+    Map<BigDecimal, String> content = new LinkedHashMap<>();
+    content.put(new BigDecimal("1.0"), "a");
+    content.put(new BigDecimal("2"), "b");
+    content.put(new BigDecimal("1.00"), "c");
+
+    PersistentSortedMap<BigDecimal, String> copy = PathCopyingPersistentTreeMap.copyOf(content);
+    ((PathCopyingPersistentTreeMap<?, ?>) copy).checkAssertions();
+    assertThat(copy.values()).containsExactly("c", "b").inOrder();
+  }
+
+  @Test
+  public void testCollector() {
+    PersistentSortedMap<Integer, String> result =
+        IntStream.range(0, 1000)
+            .parallel()
+            .boxed()
+            .collect(
+                PathCopyingPersistentTreeMap.toPathCopyingPersistentTreeMap(
+                    i -> i % 100, String::valueOf, (v1, v2) -> v1 + "," + v2));
+    ((PathCopyingPersistentTreeMap<?, ?>) result).checkAssertions();
+
+    assertThat(result).hasSize(100);
+    assertThat(result.firstKey()).isEqualTo(0);
+    assertThat(result.get(42)).isEqualTo("42,142,242,342,442,542,642,742,842,942");
+  }
+
+  @Test
+  public void testCollectorDuplicate() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            Stream.of("a", "b", "a")
+                .collect(
+                    PathCopyingPersistentTreeMap.toPathCopyingPersistentTreeMap(
+                        s -> s, String::length)));
+  }
+
+  @Test
+  public void testCollectorMergeToNull() {
+    PersistentSortedMap<String, Integer> result =
+        Stream.of("a", "a", "b", "c", "c", "c")
+            .collect(
+                PathCopyingPersistentTreeMap.toPathCopyingPersistentTreeMap(
+                    s -> s, s -> 1, (v1, v2) -> null));
+    ((PathCopyingPersistentTreeMap<?, ?>) result).checkAssertions();
+
+    // like Collectors.toMap: a null merge result removes the key, a later value adds it again
+    assertThat(result).containsExactly("b", 1, "c", 1);
+  }
+
+  private static PersistentSortedMap<Integer, Integer> randomMap(
+      int size, int keyRange, Random rnd) {
+    @Var PersistentSortedMap<Integer, Integer> result = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < size; i++) {
+      result = result.putAndCopy(rnd.nextInt(keyRange), rnd.nextInt(3));
+    }
+    return result;
+  }
+
+  private static void checkBulkResult(
+      SortedMap<Integer, Integer> comparison, PersistentSortedMap<Integer, Integer> result) {
+    ((PathCopyingPersistentTreeMap<?, ?>) result).checkAssertions();
+    assertThat(result).containsExactlyEntriesIn(comparison).inOrder();
+
+    // further modifications rely on the invariants of the tree
+    @Var PersistentSortedMap<Integer, Integer> modified = result;
+    for (Integer key : ImmutableList.copyOf(result.keySet()).reverse()) {
+      modified = modified.removeAndCopy(key);
+      ((PathCopyingPersistentTreeMap<?, ?>) modified).checkAssertions();
+    }
+    assertThat(modified).isEmpty();
+  }
+
+  @Test
+  public void testBulkOperations() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size1 : new int[] {0, 1, 2, 5, 30, 200}) {
+      for (int size2 : new int[] {0, 1, 3, 10, 100, 300}) {
+        PersistentSortedMap<Integer, Integer> map1 = randomMap(size1, 400, rnd);
+        PersistentSortedMap<Integer, Integer> map2 = randomMap(size2, 400, rnd);
+
+        SortedMap<Integer, Integer> union = new TreeMap<>(map1);
+        map2.forEach((k, v) -> union.merge(k, v, (v1, v2) -> v1.equals(v2) ? v1 : 10 * v1 + v2));
+        checkBulkResult(union, map1.unionAndCopy(map2, (k, v1, v2) -> 10 * v1 + v2));
+
+        SortedMap<Integer, Integer> intersection = new TreeMap<>(map1);
+        intersection.keySet().retainAll(map2.keySet());
+        checkBulkResult(intersection, map1.intersectionAndCopy(map2));
+
+        SortedMap<Integer, Integer> difference = new TreeMap<>(map1);
+        difference.keySet().removeAll(map2.keySet());
+        checkBulkResult(difference, map1.differenceAndCopy(map2));
+      }
+    }
+  }
+
+  @Test
+  public void testBulkOperations_derivedMaps() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    PersistentSortedMap<Integer, Integer> base = randomMap(1000, 2000, rnd);
+    for (int i = 0; i < 20; i++) {
+      @Var PersistentSortedMap<Integer, Integer> map1 = base;
+      @Var PersistentSortedMap<Integer, Integer> map2 = base;
+      for (int j = 0; j < i; j++) {
+        map1 = map1.putAndCopy(rnd.nextInt(2000), rnd.nextInt(3));
+        map2 = map2.removeAndCopy(rnd.nextInt(2000));
+      }
+
+      SortedMap<Integer, Integer> union = new TreeMap<>(map1);
+      map2.forEach((k, v) -> union.merge(k, v, (v1, v2) -> v1.equals(v2) ? v1 : 10 * v1 + v2));
+      checkBulkResult(union, map1.unionAndCopy(map2, (k, v1, v2) -> 10 * v1 + v2));
+
+      SortedMap<Integer, Integer> intersection = new TreeMap<>(map1);
+      intersection.keySet().retainAll(map2.keySet());
+      checkBulkResult(intersection, map1.intersectionAndCopy(map2));
+
+      SortedMap<Integer, Integer> difference = new TreeMap<>(map1);
+      difference.keySet().removeAll(map2.keySet());
+      checkBulkResult(difference, map1.differenceAndCopy(map2));
+    }
+
+    assertThat(base.unionAndCopy(base, (k, v1, v2) -> v1)).isSameInstanceAs(base);
+    assertThat(base.intersectionAndCopy(base)).isSameInstanceAs(base);
+    assertThat(base.differenceAndCopy(base)).isEmpty();
+    assertThat(base.unionAndCopy(PathCopyingPersistentTreeMap.of(), (k, v1, v2) -> v1))
+        .isSameInstanceAs(base);
+  }
+
+  @Test
+  public void testUnionOfDisjointMaps() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size1 : new int[] {1, 2, 5, 30, 200}) {
+      for (int size2 : new int[] {1, 3, 10, 100, 300}) {
+        PersistentSortedMap<Integer, Integer> lower = randomMap(size1, 400, rnd);
+        PersistentSortedMap<Integer, Integer> higher =
+            randomMap(size2, 400, rnd).tailMapAndCopy(lower.lastKey(), /* inclusive= */ false);
+        if (higher.isEmpty()) {
+          continue;
+        }
+        // start tracking size and hash code, the union derives them from these
+        assertThat(lower.hashCode()).isEqualTo(new HashMap<>(lower).hashCode());
+        assertThat(higher.hashCode()).isEqualTo(new HashMap<>(higher).hashCode());
+
+        SortedMap<Integer, Integer> union = new TreeMap<>(lower);
+        union.putAll(higher);
+        for (PersistentSortedMap<Integer, Integer> result :
+            ImmutableList.of(
+                lower.unionAndCopy(higher, (k, v1, v2) -> v1),
+                higher.unionAndCopy(lower, (k, v1, v2) -> v1))) {
+          assertThat(result.size()).isEqualTo(union.size());
+          assertThat(result.hashCode()).isEqualTo(union.hashCode());
+          checkBulkResult(union, result);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRangeOperations() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size : new int[] {0, 1, 2, 10, 100, 500}) {
+      PersistentSortedMap<Integer, Integer> testMap = randomMap(size, 2 * size + 1, rnd);
+      NavigableMap<Integer, Integer> comparison = new TreeMap<>(testMap);
+      for (int i = 0; i < 20; i++) {
+        int key1 = rnd.nextInt(2 * size + 3) - 1;
+        int key2 = rnd.nextInt(2 * size + 3) - 1;
+        int low = Math.min(key1, key2);
+        int high = Math.max(key1, key2);
+        boolean inclusive1 = rnd.nextBoolean();
+        boolean inclusive2 = rnd.nextBoolean();
+
+        checkBulkResult(
+            comparison.headMap(key1, inclusive1), testMap.headMapAndCopy(key1, inclusive1));
+        checkBulkResult(
+            comparison.tailMap(key1, inclusive1), testMap.tailMapAndCopy(key1, inclusive1));
+        checkBulkResult(
+            comparison.subMap(low, inclusive1, high, inclusive2),
+            testMap.subMapAndCopy(low, inclusive1, high, inclusive2));
+      }
+    }
+
+    PersistentSortedMap<Integer, Integer> testMap = randomMap(10, 100, rnd);
+    assertThat(testMap.headMapAndCopy(100, /* inclusive= */ false)).isSameInstanceAs(testMap);
+    assertThat(testMap.tailMapAndCopy(-1, /* inclusive= */ true)).isSameInstanceAs(testMap);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> testMap.subMapAndCopy(2, /* fromInclusive= */ true, 1, /* toInclusive= */ true));
+  }
+
+  @Test
+  public void testTransient() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    @Var PersistentSortedMap<Integer, Integer> persisted = randomMap(100, 400, rnd);
+    SortedMap<Integer, Integer> comparison = new TreeMap<>(persisted);
+    for (int i = 0; i < 50; i++) {
+      PersistentSortedMap<Integer, Integer> original = persisted;
+      SortedMap<Integer, Integer> originalContent = new TreeMap<>(original);
+      PathCopyingPersistentTreeMap.Transient<Integer, Integer> transientMap =
+          ((PathCopyingPersistentTreeMap<Integer, Integer>) original).toTransient();
+
+      for (int j = 0; j < 100; j++) {
+        Integer key = rnd.nextInt(400);
+        if (rnd.nextInt(3) == 0) {
+          transientMap.remove(key);
+          comparison.remove(key);
+        } else {
+          transientMap.put(key, j);
+          comparison.put(key, j);
+        }
+        assertThat(transientMap.get(key)).isEqualTo(comparison.get(key));
+        assertThat(transientMap.containsKey(key)).isEqualTo(comparison.containsKey(key));
+      }
+      assertThat(transientMap.isEmpty()).isEqualTo(comparison.isEmpty());
+
+      persisted = transientMap.persist();
+      checkBulkResult(comparison, persisted);
+      assertThat(original).containsExactlyEntriesIn(originalContent).inOrder();
+    }
+  }
+
+  @Test
+  public void testTransient_persist() {
+    PathCopyingPersistentTreeMap<String, String> original =
+        (PathCopyingPersistentTreeMap<String, String>) map.putAndCopy("a", "1");
+    PathCopyingPersistentTreeMap.Transient<String, String> transientMap = original.toTransient();
+    assertThat(transientMap.persist()).isSameInstanceAs(original);
+
+    assertThrows(IllegalStateException.class, () -> transientMap.put("b", "2"));
+    assertThrows(IllegalStateException.class, () -> transientMap.remove("a"));
+    assertThrows(IllegalStateException.class, () -> transientMap.get("a"));
+    assertThrows(IllegalStateException.class, transientMap::persist);
+
+    assertThat(original.toTransient().remove("a").persist()).isEmpty();
+    assertThat(original.toTransient().remove("b").persist()).isSameInstanceAs(original);
+  }
+
+  @Test
+  public void testIncrementalHashCodeAndSize() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    @Var PersistentSortedMap<Integer, Integer> map = randomMap(100, 400, rnd);
+    Map<Integer, Integer> comparison = new HashMap<>(map);
+    assertThat(map.hashCode()).isEqualTo(comparison.hashCode()); // start tracking hash code
+
+    for (int i = 0; i < 500; i++) {
+      if (i % 50 == 0) {
+        PathCopyingPersistentTreeMap.Transient<Integer, Integer> transientMap =
+            ((PathCopyingPersistentTreeMap<Integer, Integer>) map).toTransient();
+        for (int j = 0; j < 20; j++) {
+          Integer key = rnd.nextInt(400);
+          if (rnd.nextBoolean()) {
+            transientMap.remove(key);
+            comparison.remove(key);
+          } else {
+            transientMap.put(key, rnd.nextInt(3));
+            comparison.put(key, transientMap.get(key));
+          }
+        }
+        map = transientMap.persist();
+      } else {
+        Integer key = rnd.nextInt(400);
+        if (rnd.nextInt(3) == 0) {
+          map = map.removeAndCopy(key);
+          comparison.remove(key);
+        } else {
+          map = map.putAndCopy(key, rnd.nextInt(3));
+          comparison.put(key, map.get(key));
+        }
+      }
+      // size and hash code were derived incrementally and cached
+      assertThat(map.size()).isEqualTo(comparison.size());
+      assertThat(map.hashCode()).isEqualTo(comparison.hashCode());
+    }
+  }
+
+  @Test
+  public void testEqualsOfDerivedMaps() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    PersistentSortedMap<Integer, Integer> map = randomMap(1000, 5000, rnd);
+    Integer key = map.firstKey();
+    PersistentSortedMap<Integer, Integer> reinserted =
+        map.removeAndCopy(key).putAndCopy(key, map.get(key));
+    PersistentSortedMap<Integer, Integer> rebuilt = PathCopyingPersistentTreeMap.copyOf(map);
+    PersistentSortedMap<Integer, Integer> modified = map.putAndCopy(key, map.get(key) + 1);
+    PersistentSortedMap<Integer, Integer> extended = map.putAndCopy(-1, 0);
+
+    new EqualsTester()
+        .addEqualityGroup(map, reinserted, rebuilt, new TreeMap<>(map))
+        .addEqualityGroup(modified)
+        .addEqualityGroup(extended)
+        .testEquals();
+
+    // now with cached hash codes
+    assertThat(map.hashCode()).isEqualTo(new TreeMap<>(map).hashCode());
+    assertThat(map.putAndCopy(key, map.get(key) + 1)).isNotEqualTo(map);
+    assertThat(map.removeAndCopy(-1)).isEqualTo(map);
+
+    // keys of different types, which cannot be compared with each other
+    PersistentSortedMap<String, Integer> stringMap =
+        PathCopyingPersistentTreeMap.<String, Integer>of().putAndCopy("a", 1);
+    Object intMap = PathCopyingPersistentTreeMap.<Integer, Integer>of().putAndCopy(1, 1);
+    assertThat(stringMap.equals(intMap)).isFalse();
+  }
+
+  @Test
+  public void testPutAllAndRemoveAll() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size1 : new int[] {0, 1, 2, 5, 30, 200}) {
+      for (int size2 : new int[] {0, 1, 3, 10, 100, 300}) {
+        PersistentSortedMap<Integer, Integer> map1 = randomMap(size1, 400, rnd);
+        PersistentSortedMap<Integer, Integer> map2 = randomMap(size2, 400, rnd);
+
+        SortedMap<Integer, Integer> union = new TreeMap<>(map1);
+        union.putAll(map2);
+        checkBulkResult(union, map1.putAllAndCopy(map2));
+        checkBulkResult(union, map1.putAllAndCopy(new LinkedHashMap<>(map2)));
+
+        SortedMap<Integer, Integer> difference = new TreeMap<>(map1);
+        difference.keySet().removeAll(map2.keySet());
+        checkBulkResult(difference, map1.removeAllAndCopy(map2.keySet()));
+      }
+    }
+  }
+
   @Test
   public void testSubmapSubmap() {
     map = map.putAndCopy("a", "a").putAndCopy("b", "b").putAndCopy("c", "c");
@@ -434,4 +794,120 @@ public class PathCopyingPersistentTreeMapTest {
     assertThat(second.entrySet().containsAll(first.entrySet())).isFalse();
     assertThat(first.entrySet().containsAll(second.entrySet())).isFalse();
   }
+
+  @Test
+  public void testSpliterator() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    PersistentSortedMap<Integer, Integer> testMap = randomMap(10000, 100000, rnd);
+    ImmutableList<Map.Entry<Integer, Integer>> entries = ImmutableList.copyOf(testMap.entrySet());
+
+    Spliterator<Map.Entry<Integer, Integer>> spliterator = testMap.entrySet().spliterator();
+    assertThat(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.IMMUTABLE)).isTrue();
+    assertThat(spliterator.getExactSizeIfKnown()).isEqualTo(testMap.size());
+
+    // splits happen at the root, so both parts are large
+    Spliterator<Map.Entry<Integer, Integer>> prefix = spliterator.trySplit();
+    ImmutableList.Builder<Map.Entry<Integer, Integer>> prefixEntries = ImmutableList.builder();
+    prefix.forEachRemaining(prefixEntries::add);
+    ImmutableList.Builder<Map.Entry<Integer, Integer>> suffixEntries = ImmutableList.builder();
+    spliterator.forEachRemaining(suffixEntries::add);
+    assertThat(prefixEntries.build().size()).isIn(Range.closed(2000, 8000));
+    assertThat(Iterables.concat(prefixEntries.build(), suffixEntries.build()))
+        .containsExactlyElementsIn(entries)
+        .inOrder();
+
+    assertThat(testMap.entrySet().parallelStream().collect(toImmutableList()))
+        .containsExactlyElementsIn(entries)
+        .inOrder();
+    assertThat(testMap.subMap(1000, 50000).entrySet().parallelStream().collect(toImmutableList()))
+        .containsExactlyElementsIn(testMap.subMap(1000, 50000).entrySet())
+        .inOrder();
+  }
+
+  @Test
+  public void testInternalIteration() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    PersistentSortedMap<Integer, Integer> testMap = randomMap(1000, 10000, rnd);
+    ImmutableList<Map.Entry<Integer, Integer>> entries = ImmutableList.copyOf(testMap.entrySet());
+
+    List<Map.Entry<Integer, Integer>> visited = new ArrayList<>();
+    testMap.forEach((key, value) -> visited.add(Map.entry(key, value)));
+    assertThat(visited).containsExactlyElementsIn(entries).inOrder();
+
+    visited.clear();
+    testMap.entrySet().forEach(visited::add);
+    assertThat(visited).containsExactlyElementsIn(entries).inOrder();
+
+    List<Integer> keys = new ArrayList<>();
+    testMap.keySet().forEach(keys::add);
+    assertThat(keys).containsExactlyElementsIn(testMap.keySet()).inOrder();
+
+    int sum = testMap.foldLeft(0, (result, entry) -> result + entry.getValue());
+    assertThat(sum).isEqualTo(testMap.values().stream().mapToInt(Integer::intValue).sum());
+
+    for (int i = 0; i < 100; i++) {
+      int fromKey = rnd.nextInt(10000);
+      int toKey = fromKey + rnd.nextInt(1000);
+      boolean fromInclusive = rnd.nextBoolean();
+      boolean toInclusive = rnd.nextBoolean() || fromKey == toKey;
+      NavigableMap<Integer, Integer> subMap =
+          testMap.subMap(fromKey, fromInclusive, toKey, toInclusive);
+
+      visited.clear();
+      testMap.forEachInRange(
+          fromKey,
+          fromInclusive,
+          toKey,
+          toInclusive,
+          (key, value) -> visited.add(Map.entry(key, value)));
+      assertThat(visited).containsExactlyElementsIn(subMap.entrySet()).inOrder();
+
+      visited.clear();
+      subMap.forEach((key, value) -> visited.add(Map.entry(key, value)));
+      assertThat(visited).containsExactlyElementsIn(subMap.entrySet()).inOrder();
+
+      assertThat(subMap.entrySet().stream().collect(toImmutableList()))
+          .containsExactlyElementsIn(subMap.entrySet())
+          .inOrder();
+    }
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> testMap.forEachInRange(2, true, 1, true, (key, value) -> {}));
+  }
+
+  /**
+   * Check the memory footprint of the nodes of the given map (excluding keys and values): leaves
+   * need no more memory than a plain entry, so on average an entry needs less than an inner node.
+   */
+  private static void checkFootprint(PersistentSortedMap<Integer, Integer> map) {
+    GraphLayout nodes =
+        GraphLayout.parseInstance(map)
+            .subtract(GraphLayout.parseInstance(map.keySet().toArray(), map.values().toArray()));
+
+    @Var long leafSize = Long.MAX_VALUE;
+    @Var long innerNodeSize = 0;
+    for (Class<?> cls : nodes.getClasses()) {
+      if (cls != PathCopyingPersistentTreeMap.class) {
+        long instanceSize = nodes.getClassSizes().count(cls) / nodes.getClassCounts().count(cls);
+        leafSize = Math.min(leafSize, instanceSize);
+        innerNodeSize = Math.max(innerNodeSize, instanceSize);
+      }
+    }
+    assertThat(leafSize)
+        .isEqualTo(ClassLayout.parseClass(SimpleImmutableEntry.class).instanceSize());
+    assertThat(leafSize).isLessThan(innerNodeSize);
+
+    long mapSize = ClassLayout.parseClass(PathCopyingPersistentTreeMap.class).instanceSize();
+    double bytesPerEntry = (nodes.totalSize() - mapSize) / (double) map.size();
+    assertThat(bytesPerEntry).isLessThan(innerNodeSize);
+  }
+
+  @Test
+  public void testFootprint() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    PersistentSortedMap<Integer, Integer> testMap = randomMap(10000, 100000, rnd);
+    checkFootprint(testMap);
+    checkFootprint(PathCopyingPersistentTreeMap.copyOf(new TreeMap<>(testMap)));
+  }
 }
@@ -0,0 +1,1080 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.errorprone.annotations.Var;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A {@link java.util.NavigableMap} with {@link String} keys that is based on a mutable radix trie
+ * (PATRICIA trie). Each edge of the trie is labeled with a string, and keys with a common prefix
+ * share the nodes for this prefix. Chains of nodes with a single child are compressed into one
+ * edge, so the trie has at most twice as many nodes as keys, and the characters of a common prefix
+ * are stored only once.
+ *
+ * <p>Lookups, insertions, and removals need time proportional to the length of the key (times the
+ * logarithm of the number of children per node) and never compare whole keys, which is beneficial
+ * for long keys with common prefixes, like dotted names. The order of the keys is the natural
+ * order of {@link String}.
+ *
+ * <p>{@link #prefixMap(String)} (which is also used by {@link Collections3#subMapWithPrefix} for
+ * instances of this class) returns a view of all keys with a given prefix. Operations on such a
+ * view need time proportional to the length of the prefix on top of the time for the operation
+ * itself, in particular {@link #size()} of a prefix view is O(|prefix|), whereas it is O(n) for
+ * {@link java.util.TreeMap}. {@link #size()} of views created by {@link #subMap}, {@link #headMap},
+ * and {@link #tailMap} is proportional to the length of the bounds as well. Iterating needs a
+ * lookup of the next key in each step.
+ *
+ * <p>All views are backed by the map, and all iterators are fail-fast, just like for {@link
+ * java.util.TreeMap}. This implementation does not support <code>null</code> keys (but <code>null
+ * </code> values) and is not thread-safe.
+ *
+ * @param <V> type of the values of this map
+ * @see PatriciaTrieSet
+ */
+public final class PatriciaTrieMap<V extends @Nullable Object> extends AbstractMap<String, V>
+    implements OurSortedMap<String, V>, Serializable {
+
+  private static final long serialVersionUID = -2395876264413254327L;
+
+  /** A node of the trie, which may or may not represent a key. */
+  private static final class Node<V extends @Nullable Object> implements Serializable {
+
+    private static final long serialVersionUID = 6118396853453786615L;
+
+    @SuppressWarnings("rawtypes")
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /** The label of the edge from the parent to this node, which is empty only for the root. */
+    private String label;
+
+    /** Whether the concatenation of the labels from the root to this node is a key of the map. */
+    private boolean present = false;
+
+    @SuppressWarnings("serial") // This class only needs to be serializable if values are.
+    private @Nullable V value = null;
+
+    /** The children of this node, sorted by the first character of their labels. */
+    private Node<V>[] children = noChildren();
+
+    /** The number of keys in the subtree of this node. */
+    private int size = 0;
+
+    Node(String pLabel) {
+      label = pLabel;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V extends @Nullable Object> Node<V>[] noChildren() {
+      return NO_CHILDREN;
+    }
+
+    /**
+     * Return the index of the child whose label starts with the given character, or (-(insertion
+     * point) - 1) if there is no such child, like {@link Arrays#binarySearch(int[], int)}.
+     */
+    int childIndex(char c) {
+      @Var int low = 0;
+      @Var int high = children.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        char midChar = children[mid].label.charAt(0);
+        if (midChar < c) {
+          low = mid + 1;
+        } else if (midChar > c) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+
+    void insertChild(int index, Node<V> child) {
+      Node<V>[] newChildren = Arrays.copyOf(children, children.length + 1);
+      System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+      newChildren[index] = child;
+      children = newChildren;
+    }
+
+    void removeChild(int index) {
+      if (children.length == 1) {
+        children = noChildren();
+        return;
+      }
+      Node<V>[] newChildren = Arrays.copyOf(children, children.length - 1);
+      System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+      children = newChildren;
+    }
+
+    /**
+     * Replace this child of the given parent by its only child, whose label is extended by the
+     * label of this node accordingly.
+     */
+    void mergeWithOnlyChild(Node<V> parent) {
+      assert !present && children.length == 1;
+      Node<V> child = children[0];
+      child.label = label + child.label;
+      parent.children[parent.childIndex(label.charAt(0))] = child;
+    }
+  }
+
+  /** Return the length of the common prefix of the given label and the key starting at pos. */
+  private static int commonPrefixLength(String label, String key, int pos) {
+    int max = Math.min(label.length(), key.length() - pos);
+    @Var int i = 0;
+    while (i < max && label.charAt(i) == key.charAt(pos + i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * An entry of the map, given by its key and the node of the trie. Because the node for a key is
+   * never replaced as long as the key is present, this entry supports {@link #setValue(Object)}.
+   */
+  private static final class TrieEntry<V extends @Nullable Object> implements Map.Entry<String, V> {
+
+    private final String key;
+    private final Node<V> node;
+
+    TrieEntry(String pKey, Node<V> pNode) {
+      assert pNode.present;
+      key = pKey;
+      node = pNode;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    @SuppressWarnings("nullness") // present nodes have a value of type V
+    public V getValue() {
+      return node.value;
+    }
+
+    @Override
+    public V setValue(V pValue) {
+      V oldValue = getValue();
+      node.value = pValue;
+      return oldValue;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object pObj) {
+      return pObj instanceof Map.Entry<?, ?> other
+          && key.equals(other.getKey())
+          && Objects.equals(getValue(), other.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ Objects.hashCode(getValue());
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
+
+  /**
+   * A node of the trie together with the key of its parent, i.e., the concatenation of the labels
+   * from the root to the parent.
+   */
+  private record Subtree<V extends @Nullable Object>(String parentKey, Node<V> node) {}
+
+  /** The trie with all entries, which is shared between a map and all its views. */
+  private static final class Trie<V extends @Nullable Object> implements Serializable {
+
+    private static final long serialVersionUID = -6741367839458626045L;
+
+    private Node<V> root = new Node<>("");
+
+    /** Counter of structural modifications, used by iterators to detect concurrent modification. */
+    private transient int modCount = 0;
+
+    // lookup methods
+
+    @Nullable Node<V> findNode(String key) {
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      while (pos < key.length()) {
+        int index = current.childIndex(key.charAt(pos));
+        if (index < 0) {
+          return null;
+        }
+        Node<V> child = current.children[index];
+        if (!key.startsWith(child.label, pos)) {
+          return null;
+        }
+        current = child;
+        pos += child.label.length();
+      }
+      return current.present ? current : null;
+    }
+
+    /** Find the smallest node of the subtree of the given node. */
+    private static <V extends @Nullable Object> TrieEntry<V> findFirst(
+        String parentKey, Node<V> node) {
+      @Var Node<V> current = node;
+      StringBuilder key = new StringBuilder(parentKey).append(current.label);
+      while (!current.present) {
+        current = current.children[0];
+        key.append(current.label);
+      }
+      return new TrieEntry<>(key.toString(), current);
+    }
+
+    /** Find the largest node of the subtree of the given node. */
+    private static <V extends @Nullable Object> TrieEntry<V> findLast(
+        String parentKey, Node<V> node) {
+      @Var Node<V> current = node;
+      StringBuilder key = new StringBuilder(parentKey).append(current.label);
+      while (current.children.length > 0) {
+        current = current.children[current.children.length - 1];
+        key.append(current.label);
+      }
+      return new TrieEntry<>(key.toString(), current);
+    }
+
+    @Nullable TrieEntry<V> findFirst() {
+      return root.size == 0 ? null : findFirst("", root);
+    }
+
+    @Nullable TrieEntry<V> findLast() {
+      return root.size == 0 ? null : findLast("", root);
+    }
+
+    /**
+     * Find the node with the smallest key that is larger than (or equal to, if inclusive) the given
+     * key. While descending along the key, we remember the smallest subtree that is larger than
+     * the key, in case the current subtree does not contain a larger key.
+     */
+    @Nullable TrieEntry<V> findNext(String key, boolean inclusive) {
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      @Var Node<V> fallback = null;
+      @Var int fallbackPos = 0;
+      while (true) {
+        if (pos == key.length()) {
+          if (inclusive && current.present) {
+            return new TrieEntry<>(key, current);
+          }
+          if (current.children.length > 0) {
+            return findFirst(key, current.children[0]);
+          }
+          break;
+        }
+        int index = current.childIndex(key.charAt(pos));
+        int nextIndex = index >= 0 ? index + 1 : -index - 1;
+        if (nextIndex < current.children.length) {
+          fallback = current.children[nextIndex];
+          fallbackPos = pos;
+        }
+        if (index < 0) {
+          break;
+        }
+        Node<V> child = current.children[index];
+        int common = commonPrefixLength(child.label, key, pos);
+        if (common == child.label.length()) {
+          current = child;
+          pos += common;
+          continue;
+        }
+        if (pos + common == key.length() || child.label.charAt(common) > key.charAt(pos + common)) {
+          // all keys in subtree of child are larger than key
+          return findFirst(key.substring(0, pos), child);
+        }
+        break;
+      }
+      return fallback == null ? null : findFirst(key.substring(0, fallbackPos), fallback);
+    }
+
+    /**
+     * Find the node with the largest key that is smaller than (or equal to, if inclusive) the given
+     * key. While descending along the key, we remember the largest key or subtree that is smaller
+     * than the key, in case the current subtree does not contain a smaller key.
+     */
+    @Nullable TrieEntry<V> findPrevious(String key, boolean inclusive) {
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      @Var Node<V> fallback = null;
+      @Var int fallbackPos = 0;
+      @Var boolean fallbackIsKey = false; // whether fallback itself or its subtree is the result
+      while (true) {
+        if (pos == key.length()) {
+          if (inclusive && current.present) {
+            return new TrieEntry<>(key, current);
+          }
+          break;
+        }
+        if (current.present) {
+          fallback = current;
+          fallbackPos = pos;
+          fallbackIsKey = true;
+        }
+        int index = current.childIndex(key.charAt(pos));
+        int previousIndex = index >= 0 ? index - 1 : -index - 2;
+        if (previousIndex >= 0) {
+          fallback = current.children[previousIndex];
+          fallbackPos = pos;
+          fallbackIsKey = false;
+        }
+        if (index < 0) {
+          break;
+        }
+        Node<V> child = current.children[index];
+        int common = commonPrefixLength(child.label, key, pos);
+        if (common == child.label.length()) {
+          current = child;
+          pos += common;
+          continue;
+        }
+        if (pos + common < key.length() && child.label.charAt(common) < key.charAt(pos + common)) {
+          // all keys in subtree of child are smaller than key
+          return findLast(key.substring(0, pos), child);
+        }
+        break;
+      }
+      if (fallback == null) {
+        return null;
+      }
+      String fallbackKey = key.substring(0, fallbackPos);
+      return fallbackIsKey
+          ? new TrieEntry<>(fallbackKey, fallback)
+          : findLast(fallbackKey, fallback);
+    }
+
+    /** Find the subtree with all keys that have the given prefix. */
+    @Nullable Subtree<V> findSubtree(String prefix) {
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      while (pos < prefix.length()) {
+        int index = current.childIndex(prefix.charAt(pos));
+        if (index < 0) {
+          return null;
+        }
+        Node<V> child = current.children[index];
+        int common = commonPrefixLength(child.label, prefix, pos);
+        if (common < child.label.length()) {
+          return pos + common == prefix.length()
+              ? new Subtree<>(prefix.substring(0, pos), child)
+              : null;
+        }
+        current = child;
+        pos += common;
+      }
+      return current.size == 0
+          ? null
+          : new Subtree<>(prefix.substring(0, pos - current.label.length()), current);
+    }
+
+    int countKeysWithPrefix(String prefix) {
+      Subtree<V> subtree = findSubtree(prefix);
+      return subtree == null ? 0 : subtree.node().size;
+    }
+
+    /** Count the keys smaller than (or equal to, if inclusive) the given key. */
+    int countSmallerKeys(String key, boolean inclusive) {
+      @Var int count = 0;
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      while (pos < key.length()) {
+        if (current.present) {
+          count++;
+        }
+        int index = current.childIndex(key.charAt(pos));
+        int insertionPoint = index >= 0 ? index : -index - 1;
+        for (int i = 0; i < insertionPoint; i++) {
+          count += current.children[i].size;
+        }
+        if (index < 0) {
+          return count;
+        }
+        Node<V> child = current.children[index];
+        int common = commonPrefixLength(child.label, key, pos);
+        if (common < child.label.length()) {
+          if (pos + common < key.length()
+              && child.label.charAt(common) < key.charAt(pos + common)) {
+            count += child.size;
+          }
+          return count;
+        }
+        current = child;
+        pos += common;
+      }
+      return inclusive && current.present ? count + 1 : count;
+    }
+
+    // modifying methods
+
+    @Nullable V put(String key, V value) {
+      Node<V> existing = findNode(key);
+      if (existing != null) {
+        V oldValue = existing.value;
+        existing.value = value;
+        return oldValue;
+      }
+
+      // The key is new, so all nodes on the path get one more key.
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      while (true) {
+        current.size++;
+        if (pos == key.length()) {
+          current.present = true;
+          current.value = value;
+          break;
+        }
+        int index = current.childIndex(key.charAt(pos));
+        if (index < 0) {
+          Node<V> leaf = new Node<>(key.substring(pos));
+          leaf.present = true;
+          leaf.value = value;
+          leaf.size = 1;
+          current.insertChild(-index - 1, leaf);
+          break;
+        }
+        @Var Node<V> child = current.children[index];
+        int common = commonPrefixLength(child.label, key, pos);
+        if (common < child.label.length()) {
+          // split edge, the node of the child stays the same such that entries remain valid
+          Node<V> middle = new Node<>(child.label.substring(0, common));
+          middle.size = child.size;
+          child.label = child.label.substring(common);
+          middle.insertChild(0, child);
+          current.children[index] = middle;
+          child = middle;
+        }
+        current = child;
+        pos += common;
+      }
+      modCount++;
+      return null;
+    }
+
+    void remove(String key) {
+      List<Node<V>> path = new ArrayList<>();
+      @Var Node<V> current = root;
+      @Var int pos = 0;
+      while (pos < key.length()) {
+        path.add(current);
+        int index = current.childIndex(key.charAt(pos));
+        checkState(index >= 0 && key.startsWith(current.children[index].label, pos));
+        current = current.children[index];
+        pos += current.label.length();
+      }
+      checkState(current.present);
+      current.present = false;
+      current.value = null;
+      current.size--;
+      path.forEach(node -> node.size--);
+
+      // Restore the invariant that all nodes except the root have a key or several children.
+      if (current != root && current.children.length == 1) {
+        current.mergeWithOnlyChild(path.get(path.size() - 1));
+      } else if (current != root && current.children.length == 0) {
+        Node<V> parent = path.get(path.size() - 1);
+        parent.removeChild(parent.childIndex(current.label.charAt(0)));
+        if (parent != root && !parent.present && parent.children.length == 1) {
+          parent.mergeWithOnlyChild(path.get(path.size() - 2));
+        }
+      }
+      modCount++;
+    }
+
+    void clear() {
+      root = new Node<>("");
+      modCount++;
+    }
+  }
+
+  // static creation methods
+
+  /** Creates a new empty map. */
+  public static <V extends @Nullable Object> PatriciaTrieMap<V> create() {
+    return new PatriciaTrieMap<>(new Trie<>());
+  }
+
+  /** Creates a new map containing the same entries as the given map. */
+  public static <V extends @Nullable Object> PatriciaTrieMap<V> copyOf(
+      Map<String, ? extends V> pMap) {
+    PatriciaTrieMap<V> result = create();
+    result.putAll(pMap);
+    return result;
+  }
+
+  // instance fields and constructors
+
+  private final Trie<V> trie;
+
+  /** The lower bound of the range of this view, or <code>null</code> if it is unbounded. */
+  private final @Nullable String fromKey;
+
+  private final boolean fromInclusive;
+
+  /** The upper bound of the range of this view, or <code>null</code> if it is unbounded. */
+  private final @Nullable String toKey;
+
+  private final boolean toInclusive;
+
+  /**
+   * The prefix that all keys in the range of this view have in addition to the above bounds, or
+   * <code>null</code> if there is no such restriction.
+   */
+  private final @Nullable String prefix;
+
+  /**
+   * Whether this view is in descending order. The bounds of the range are always given in
+   * ascending order.
+   */
+  private final boolean descending;
+
+  private PatriciaTrieMap(Trie<V> pTrie) {
+    this(pTrie, null, false, null, false, null, false);
+  }
+
+  private PatriciaTrieMap(
+      Trie<V> pTrie,
+      @Nullable String pFromKey,
+      boolean pFromInclusive,
+      @Nullable String pToKey,
+      boolean pToInclusive,
+      @Nullable String pPrefix,
+      boolean pDescending) {
+    trie = pTrie;
+    fromKey = pFromKey;
+    fromInclusive = pFromInclusive;
+    toKey = pToKey;
+    toInclusive = pToInclusive;
+    prefix = pPrefix;
+    descending = pDescending;
+  }
+
+  @VisibleForTesting
+  void checkAssertions() {
+    checkAssertions(trie.root);
+  }
+
+  private int checkAssertions(Node<V> current) {
+    checkState(current == trie.root || !current.label.isEmpty(), "empty label");
+    checkState(
+        current == trie.root || current.present || current.children.length > 1,
+        "uncompressed node without key");
+    checkState(current.present || current.value == null, "value of absent key");
+    @Var int size = current.present ? 1 : 0;
+    for (int i = 0; i < current.children.length; i++) {
+      checkState(
+          i == 0
+              || current.children[i - 1].label.charAt(0) < current.children[i].label.charAt(0),
+          "children not sorted");
+      size += checkAssertions(current.children[i]);
+    }
+    checkState(current.size == size, "wrong size");
+    return size;
+  }
+
+  // range handling
+
+  private boolean isAfterPrefix(String key) {
+    return prefix != null && key.compareTo(prefix) > 0 && !key.startsWith(prefix);
+  }
+
+  private boolean isTooLow(String key) {
+    if (prefix != null && key.compareTo(prefix) < 0) {
+      return true;
+    }
+    if (fromKey == null) {
+      return false;
+    }
+    int comp = key.compareTo(fromKey);
+    return comp < 0 || (comp == 0 && !fromInclusive);
+  }
+
+  private boolean isTooHigh(String key) {
+    if (isAfterPrefix(key)) {
+      return true;
+    }
+    if (toKey == null) {
+      return false;
+    }
+    int comp = key.compareTo(toKey);
+    return comp > 0 || (comp == 0 && !toInclusive);
+  }
+
+  private boolean isInRange(String key) {
+    return !isTooLow(key) && !isTooHigh(key);
+  }
+
+  /** Check whether the given key is allowed as a bound for a view of this map. */
+  private boolean isValidBound(String key, boolean inclusive) {
+    if (inclusive) {
+      return isInRange(key);
+    }
+    return (prefix == null || key.startsWith(prefix))
+        && (fromKey == null || key.compareTo(fromKey) >= 0)
+        && (toKey == null || key.compareTo(toKey) <= 0);
+  }
+
+  /** Number of keys in the trie that are smaller than all keys in the range of this view. */
+  private int countKeysBeforeRange() {
+    if (prefix != null && (fromKey == null || fromKey.compareTo(prefix) < 0)) {
+      return trie.countSmallerKeys(prefix, /* inclusive= */ false);
+    }
+    return fromKey == null ? 0 : trie.countSmallerKeys(fromKey, !fromInclusive);
+  }
+
+  /** Number of keys in the trie that are not larger than all keys in the range of this view. */
+  private int countKeysUntilEndOfRange() {
+    if (prefix != null && (toKey == null || isAfterPrefix(toKey))) {
+      return trie.countSmallerKeys(prefix, /* inclusive= */ false)
+          + trie.countKeysWithPrefix(prefix);
+    }
+    return toKey == null ? trie.root.size : trie.countSmallerKeys(toKey, toInclusive);
+  }
+
+  // navigation in ascending order, restricted to the range of this view
+
+  private @Nullable TrieEntry<V> findSmallestEntryInRange() {
+    @Var TrieEntry<V> result;
+    if (fromKey != null && (prefix == null || fromKey.compareTo(prefix) >= 0)) {
+      result = trie.findNext(fromKey, fromInclusive);
+    } else if (prefix != null) {
+      result = trie.findNext(prefix, /* inclusive= */ true);
+    } else {
+      result = trie.findFirst();
+    }
+    return result == null || isTooHigh(result.getKey()) ? null : result;
+  }
+
+  private @Nullable TrieEntry<V> findLargestEntryInRange() {
+    @Var TrieEntry<V> result;
+    if (toKey != null && !isAfterPrefix(toKey)) {
+      result = trie.findPrevious(toKey, toInclusive);
+    } else if (prefix != null) {
+      Subtree<V> subtree = trie.findSubtree(prefix);
+      result = subtree == null ? null : Trie.findLast(subtree.parentKey(), subtree.node());
+    } else {
+      result = trie.findLast();
+    }
+    return result == null || isTooLow(result.getKey()) ? null : result;
+  }
+
+  private @Nullable TrieEntry<V> findNextEntryInRange(String key, boolean inclusive) {
+    if (isTooLow(checkNotNull(key))) {
+      return findSmallestEntryInRange();
+    }
+    TrieEntry<V> result = trie.findNext(key, inclusive);
+    return result == null || isTooHigh(result.getKey()) ? null : result;
+  }
+
+  private @Nullable TrieEntry<V> findPreviousEntryInRange(String key, boolean inclusive) {
+    if (isTooHigh(checkNotNull(key))) {
+      return findLargestEntryInRange();
+    }
+    TrieEntry<V> result = trie.findPrevious(key, inclusive);
+    return result == null || isTooLow(result.getKey()) ? null : result;
+  }
+
+  private @Nullable Node<V> findNodeInRange(@Nullable Object key) {
+    if (!(checkNotNull(key) instanceof String k)) {
+      return null;
+    }
+    return isInRange(k) ? trie.findNode(k) : null;
+  }
+
+  // navigation in the order of this view
+
+  private @Nullable TrieEntry<V> findFirstEntry() {
+    return descending ? findLargestEntryInRange() : findSmallestEntryInRange();
+  }
+
+  private @Nullable TrieEntry<V> findLastEntry() {
+    return descending ? findSmallestEntryInRange() : findLargestEntryInRange();
+  }
+
+  private @Nullable TrieEntry<V> findHigherEntry(String key, boolean inclusive) {
+    return descending
+        ? findPreviousEntryInRange(key, inclusive)
+        : findNextEntryInRange(key, inclusive);
+  }
+
+  private @Nullable TrieEntry<V> findLowerEntry(String key, boolean inclusive) {
+    return descending
+        ? findNextEntryInRange(key, inclusive)
+        : findPreviousEntryInRange(key, inclusive);
+  }
+
+  private static <V extends @Nullable Object> @Nullable Entry<String, V> exportEntry(
+      @Nullable TrieEntry<V> entry) {
+    return entry == null ? null : new SimpleImmutableEntry<>(entry);
+  }
+
+  private static @Nullable String keyOrNull(@Nullable TrieEntry<?> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  private static String keyOrNoSuchElement(@Nullable TrieEntry<?> entry) {
+    if (entry == null) {
+      throw new NoSuchElementException();
+    }
+    return entry.getKey();
+  }
+
+  // methods of Map
+
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    Node<V> node = findNodeInRange(key);
+    return node == null ? null : node.value;
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return findNodeInRange(key) != null;
+  }
+
+  @Override
+  public @Nullable Entry<String, V> getEntry(@Nullable Object key) {
+    Node<V> node = findNodeInRange(key);
+    return node == null ? null : new TrieEntry<>((String) key, node);
+  }
+
+  @Override
+  public @Nullable V put(String key, V value) {
+    checkArgument(isInRange(checkNotNull(key)), "key out of range");
+    return trie.put(key, value);
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    Node<V> node = findNodeInRange(key);
+    if (node == null) {
+      return null;
+    }
+    V oldValue = node.value;
+    trie.remove((String) key);
+    return oldValue;
+  }
+
+  @Override
+  public void clear() {
+    if (fromKey == null && toKey == null && prefix == null) {
+      trie.clear();
+    } else {
+      Iterator<Entry<String, V>> it = entryIterator();
+      while (it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    if (fromKey == null && toKey == null) {
+      return prefix == null ? trie.root.size : trie.countKeysWithPrefix(prefix);
+    }
+    return Math.max(0, countKeysUntilEndOfRange() - countKeysBeforeRange());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return findFirstEntry() == null;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object pObj) {
+    return Collections3.sortedMapEquals(this, pObj);
+  }
+
+  @Override
+  @SuppressWarnings("RedundantOverride") // to document that using super.hashCode is intended
+  public int hashCode() {
+    return super.hashCode();
+  }
+
+  // methods of NavigableMap
+
+  @Override
+  public @Nullable Comparator<? super String> comparator() {
+    return descending ? Collections.reverseOrder() : null;
+  }
+
+  @Override
+  public @Nullable Entry<String, V> firstEntry() {
+    return exportEntry(findFirstEntry());
+  }
+
+  @Override
+  public @Nullable Entry<String, V> lastEntry() {
+    return exportEntry(findLastEntry());
+  }
+
+  @Override
+  public String firstKey() {
+    return keyOrNoSuchElement(findFirstEntry());
+  }
+
+  @Override
+  public String lastKey() {
+    return keyOrNoSuchElement(findLastEntry());
+  }
+
+  @Override
+  public @Nullable Entry<String, V> pollFirstEntry() {
+    TrieEntry<V> entry = findFirstEntry();
+    if (entry == null) {
+      return null;
+    }
+    Entry<String, V> result = exportEntry(entry);
+    trie.remove(entry.getKey());
+    return result;
+  }
+
+  @Override
+  public @Nullable Entry<String, V> pollLastEntry() {
+    TrieEntry<V> entry = findLastEntry();
+    if (entry == null) {
+      return null;
+    }
+    Entry<String, V> result = exportEntry(entry);
+    trie.remove(entry.getKey());
+    return result;
+  }
+
+  @Override
+  public @Nullable Entry<String, V> ceilingEntry(String pKey) {
+    return exportEntry(findHigherEntry(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable String ceilingKey(String pKey) {
+    return keyOrNull(findHigherEntry(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable Entry<String, V> floorEntry(String pKey) {
+    return exportEntry(findLowerEntry(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable String floorKey(String pKey) {
+    return keyOrNull(findLowerEntry(pKey, /* inclusive= */ true));
+  }
+
+  @Override
+  public @Nullable Entry<String, V> higherEntry(String pKey) {
+    return exportEntry(findHigherEntry(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable String higherKey(String pKey) {
+    return keyOrNull(findHigherEntry(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable Entry<String, V> lowerEntry(String pKey) {
+    return exportEntry(findLowerEntry(pKey, /* inclusive= */ false));
+  }
+
+  @Override
+  public @Nullable String lowerKey(String pKey) {
+    return keyOrNull(findLowerEntry(pKey, /* inclusive= */ false));
+  }
+
+  // views
+
+  @Override
+  public NavigableSet<Entry<String, V>> entrySet() {
+    return new SortedMapEntrySet<>(this);
+  }
+
+  @Override
+  public NavigableSet<String> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public NavigableSet<String> navigableKeySet() {
+    return new SortedMapKeySet<>(this);
+  }
+
+  @Override
+  public NavigableSet<String> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  @Override
+  public PatriciaTrieMap<V> descendingMap() {
+    return new PatriciaTrieMap<>(
+        trie, fromKey, fromInclusive, toKey, toInclusive, prefix, !descending);
+  }
+
+  /**
+   * Return a view of all entries of this map whose keys start with the given prefix. This is
+   * equivalent to {@link Collections3#subMapWithPrefix(java.util.NavigableMap, String)} but does
+   * not need to compute an upper bound, and it allows an empty prefix (which returns a view of the
+   * whole map).
+   *
+   * <p>The bounds of maps derived from the returned view need to start with the prefix.
+   *
+   * @throws IllegalArgumentException if this map is itself a prefix view and the two prefixes do
+   *     not extend each other
+   */
+  public PatriciaTrieMap<V> prefixMap(String pPrefix) {
+    checkNotNull(pPrefix);
+    @Var String newPrefix = pPrefix;
+    if (prefix != null) {
+      checkArgument(
+          pPrefix.startsWith(prefix) || prefix.startsWith(pPrefix), "prefix out of range");
+      newPrefix = pPrefix.length() > prefix.length() ? pPrefix : prefix;
+    }
+    return new PatriciaTrieMap<>(
+        trie,
+        fromKey,
+        fromInclusive,
+        toKey,
+        toInclusive,
+        newPrefix.isEmpty() ? null : newPrefix,
+        descending);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> subMap(
+      String pFromKey, boolean pFromInclusive, String pToKey, boolean pToInclusive) {
+    checkNotNull(pFromKey);
+    checkNotNull(pToKey);
+    if (descending) {
+      return ascendingSubMap(pToKey, pToInclusive, pFromKey, pFromInclusive);
+    }
+    return ascendingSubMap(pFromKey, pFromInclusive, pToKey, pToInclusive);
+  }
+
+  private PatriciaTrieMap<V> ascendingSubMap(
+      String pFromKey, boolean pFromInclusive, String pToKey, boolean pToInclusive) {
+    checkArgument(pFromKey.compareTo(pToKey) <= 0, "fromKey > toKey");
+    checkArgument(isValidBound(pFromKey, pFromInclusive), "fromKey out of range");
+    checkArgument(isValidBound(pToKey, pToInclusive), "toKey out of range");
+    return new PatriciaTrieMap<>(
+        trie, pFromKey, pFromInclusive, pToKey, pToInclusive, prefix, descending);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> headMap(String pToKey, boolean pInclusive) {
+    checkArgument(isValidBound(checkNotNull(pToKey), pInclusive), "toKey out of range");
+    if (descending) {
+      return new PatriciaTrieMap<>(
+          trie, pToKey, pInclusive, toKey, toInclusive, prefix, /* pDescending= */ true);
+    }
+    return new PatriciaTrieMap<>(
+        trie, fromKey, fromInclusive, pToKey, pInclusive, prefix, /* pDescending= */ false);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> tailMap(String pFromKey, boolean pInclusive) {
+    checkArgument(isValidBound(checkNotNull(pFromKey), pInclusive), "fromKey out of range");
+    if (descending) {
+      return new PatriciaTrieMap<>(
+          trie, fromKey, fromInclusive, pFromKey, pInclusive, prefix, /* pDescending= */ true);
+    }
+    return new PatriciaTrieMap<>(
+        trie, pFromKey, pInclusive, toKey, toInclusive, prefix, /* pDescending= */ false);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> subMap(String pFromKey, String pToKey) {
+    return subMap(pFromKey, /* pFromInclusive= */ true, pToKey, /* pToInclusive= */ false);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> headMap(String pToKey) {
+    return headMap(pToKey, /* pInclusive= */ false);
+  }
+
+  @Override
+  public PatriciaTrieMap<V> tailMap(String pFromKey) {
+    return tailMap(pFromKey, /* pInclusive= */ true);
+  }
+
+  @Override
+  public Iterator<Entry<String, V>> entryIterator() {
+    return new EntryIterator();
+  }
+
+  @Override
+  public Iterator<Entry<String, V>> descendingEntryIterator() {
+    return descendingMap().entryIterator();
+  }
+
+  /**
+   * Iterator over the entries in the range of this view. Each step looks up the next key in the
+   * trie, so it is O(length of key). This makes it robust against the restructuring of the trie by
+   * {@link #remove()}.
+   */
+  private final class EntryIterator implements Iterator<Entry<String, V>> {
+
+    private @Nullable TrieEntry<V> nextEntry = findFirstEntry();
+    private @Nullable TrieEntry<V> lastReturned = null;
+    private int expectedModCount = trie.modCount;
+
+    @Override
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    @Override
+    public Entry<String, V> next() {
+      checkForConcurrentModification();
+      TrieEntry<V> current = nextEntry;
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      nextEntry = findHigherEntry(current.getKey(), /* inclusive= */ false);
+      lastReturned = current;
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      checkState(lastReturned != null, "no element to remove");
+      checkForConcurrentModification();
+      trie.remove(lastReturned.getKey());
+      lastReturned = null;
+      expectedModCount = trie.modCount;
+    }
+
+    private void checkForConcurrentModification() {
+      if (trie.modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
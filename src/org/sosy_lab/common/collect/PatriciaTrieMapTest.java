@@ -0,0 +1,200 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.errorprone.annotations.Var;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PatriciaTrieMapTest {
+
+  public static junit.framework.Test suite() {
+    TestSuite suite =
+        NavigableMapTestSuiteBuilder.using(
+                new TestStringSortedMapGenerator() {
+                  @Override
+                  protected SortedMap<String, String> create(Map.Entry<String, String>[] pEntries) {
+                    PatriciaTrieMap<String> map = PatriciaTrieMap.create();
+                    for (Map.Entry<String, String> e : pEntries) {
+                      map.put(e.getKey(), e.getValue());
+                    }
+                    return map;
+                  }
+                })
+            .named("PatriciaTrieMap")
+            .withFeatures(
+                CollectionSize.ANY,
+                CollectionFeature.KNOWN_ORDER,
+                CollectionFeature.SERIALIZABLE,
+                CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                MapFeature.GENERAL_PURPOSE,
+                MapFeature.ALLOWS_NULL_VALUES)
+            .createTestSuite();
+
+    suite.addTest(new JUnit4TestAdapter(PatriciaTrieMapTest.class));
+
+    return suite;
+  }
+
+  private static final ImmutableMap<String, Integer> OPTIONS =
+      ImmutableMap.<String, Integer>builder()
+          .put("cpa", 0)
+          .put("cpa.predicate.abstraction", 1)
+          .put("cpa.predicate.blk", 2)
+          .put("cpa.predicate.blk.threshold", 3)
+          .put("cpa.value.merge", 4)
+          .put("cpa2", 5)
+          .put("analysis.traversal", 6)
+          .buildOrThrow();
+
+  /** A random key over a small alphabet, such that keys often share prefixes. */
+  private static String randomKey(Random rnd) {
+    StringBuilder key = new StringBuilder();
+    int length = rnd.nextInt(6);
+    for (int i = 0; i < length; i++) {
+      key.append((char) ('a' + rnd.nextInt(3)));
+    }
+    return key.toString();
+  }
+
+  private static void checkEqualTo(
+      NavigableMap<String, Integer> comparison, NavigableMap<String, Integer> map) {
+    assertThat(map).containsExactlyEntriesIn(comparison).inOrder();
+    assertThat(map.size()).isEqualTo(comparison.size());
+    assertThat(map.descendingMap()).containsExactlyEntriesIn(comparison.descendingMap()).inOrder();
+  }
+
+  @Test
+  public void testPrefixMap() {
+    PatriciaTrieMap<Integer> map = PatriciaTrieMap.copyOf(OPTIONS);
+    map.checkAssertions();
+
+    assertThat(map.prefixMap("cpa.predicate.").keySet())
+        .containsExactly(
+            "cpa.predicate.abstraction", "cpa.predicate.blk", "cpa.predicate.blk.threshold")
+        .inOrder();
+    assertThat(map.prefixMap("cpa.predicate.blk").descendingMap().keySet())
+        .containsExactly("cpa.predicate.blk.threshold", "cpa.predicate.blk")
+        .inOrder();
+    assertThat(map.prefixMap("cpa").size()).isEqualTo(6);
+    assertThat(map.prefixMap("cpa.v").firstKey()).isEqualTo("cpa.value.merge");
+    assertThat(map.prefixMap("cpa.x")).isEmpty();
+    assertThat(map.prefixMap("")).isEqualTo(map);
+    assertThat(map.prefixMap("cpa.").prefixMap("cpa.value")).containsExactly("cpa.value.merge", 4);
+    assertThat(map.prefixMap("cpa.predicate").headMap("cpa.predicate.blk"))
+        .containsExactly("cpa.predicate.abstraction", 1);
+  }
+
+  @Test
+  public void testPrefixMapIsView() {
+    PatriciaTrieMap<Integer> map = PatriciaTrieMap.copyOf(OPTIONS);
+    NavigableMap<String, Integer> view = Collections3.subMapWithPrefix(map, "cpa.predicate.");
+    assertThat(view).isInstanceOf(PatriciaTrieMap.class);
+
+    view.put("cpa.predicate.refinement", 7);
+    assertThat(map).containsEntry("cpa.predicate.refinement", 7);
+    map.remove("cpa.predicate.blk");
+    assertThat(view).hasSize(3);
+    view.clear();
+    assertThat(map).hasSize(OPTIONS.size() - 3);
+    map.checkAssertions();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPrefixMap_putOutOfRange() {
+    PatriciaTrieMap<Integer> map = PatriciaTrieMap.copyOf(OPTIONS);
+    map.prefixMap("cpa.predicate.").put("cpa.value.threshold", 7);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPrefixMap_disjointPrefix() {
+    PatriciaTrieMap<Integer> map = PatriciaTrieMap.copyOf(OPTIONS);
+    map.prefixMap("cpa.predicate.").prefixMap("cpa.value");
+  }
+
+  @Test
+  public void testRandom() {
+    Random rnd = new Random(7365920368712L); // static seed for reproducibility
+    PatriciaTrieMap<Integer> map = PatriciaTrieMap.create();
+    NavigableMap<String, Integer> comparison = new TreeMap<>();
+
+    for (int i = 0; i < 3000; i++) {
+      String key = randomKey(rnd);
+      @Var String low = randomKey(rnd);
+      @Var String high = randomKey(rnd);
+      if (low.compareTo(high) > 0) {
+        String tmp = low;
+        low = high;
+        high = tmp;
+      }
+      boolean lowInclusive = rnd.nextBoolean();
+      boolean highInclusive = rnd.nextBoolean();
+
+      switch (rnd.nextInt(4)) {
+        case 0:
+          assertThat(map.remove(key)).isEqualTo(comparison.remove(key));
+          break;
+        case 1:
+          // remove some entries of a sub map with its iterator
+          Iterator<String> it =
+              map.subMap(low, lowInclusive, high, highInclusive).descendingKeySet().iterator();
+          Iterator<String> comparisonIt =
+              comparison
+                  .subMap(low, lowInclusive, high, highInclusive)
+                  .descendingKeySet()
+                  .iterator();
+          while (it.hasNext()) {
+            assertThat(it.next()).isEqualTo(comparisonIt.next());
+            if (rnd.nextInt(4) == 0) {
+              it.remove();
+              comparisonIt.remove();
+            }
+          }
+          assertThat(comparisonIt.hasNext()).isFalse();
+          break;
+        default:
+          assertThat(map.put(key, i)).isEqualTo(comparison.put(key, i));
+          break;
+      }
+      map.checkAssertions();
+
+      if (i % 20 == 0) {
+        checkEqualTo(comparison, map);
+        checkEqualTo(
+            comparison.subMap(low, lowInclusive, high, highInclusive),
+            map.subMap(low, lowInclusive, high, highInclusive));
+        checkEqualTo(
+            comparison.descendingMap().headMap(low, lowInclusive),
+            map.descendingMap().headMap(low, lowInclusive));
+        if (!key.isEmpty()) {
+          checkEqualTo(Collections3.subMapWithPrefix(comparison, key), map.prefixMap(key));
+        }
+        assertThat(map.ceilingKey(key)).isEqualTo(comparison.ceilingKey(key));
+        assertThat(map.floorKey(key)).isEqualTo(comparison.floorKey(key));
+        assertThat(map.higherKey(key)).isEqualTo(comparison.higherKey(key));
+        assertThat(map.lowerKey(key)).isEqualTo(comparison.lowerKey(key));
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.common.collect.ForwardingNavigableSet;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.NavigableSet;
+
+/**
+ * A {@link NavigableSet} of {@link String}s that is based on the mutable radix trie of {@link
+ * PatriciaTrieMap}. It stores its elements as keys of such a map, and all operations have the same
+ * complexity as the respective operations of the map. In particular, {@link #prefixSet(String)}
+ * (which is also used by {@link Collections3#subSetWithPrefix} for instances of this class) returns
+ * a view of all elements with a given prefix.
+ *
+ * @see PatriciaTrieMap
+ */
+public final class PatriciaTrieSet extends ForwardingNavigableSet<String>
+    implements Serializable {
+
+  private static final long serialVersionUID = 3362209181542370583L;
+
+  /** The backing map, whose values are irrelevant. */
+  private final PatriciaTrieMap<Boolean> map;
+
+  /** The key set of the backing map, which supports everything except adding elements. */
+  @SuppressWarnings("serial") // the key set of PatriciaTrieMap is serializable
+  private final NavigableSet<String> delegate;
+
+  private PatriciaTrieSet(PatriciaTrieMap<Boolean> pMap) {
+    map = pMap;
+    delegate = pMap.navigableKeySet();
+  }
+
+  /** Creates a new empty set. */
+  public static PatriciaTrieSet create() {
+    return new PatriciaTrieSet(PatriciaTrieMap.create());
+  }
+
+  /** Creates a new set containing the same elements as the given Iterable. */
+  public static PatriciaTrieSet copyOf(Iterable<String> pElements) {
+    PatriciaTrieSet result = create();
+    for (String element : pElements) {
+      result.add(element);
+    }
+    return result;
+  }
+
+  @Override
+  protected NavigableSet<String> delegate() {
+    return delegate;
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public boolean add(String pElement) {
+    return map.put(pElement, Boolean.TRUE) == null;
+  }
+
+  @Override
+  @CanIgnoreReturnValue
+  public boolean addAll(Collection<? extends String> pCollection) {
+    return standardAddAll(pCollection);
+  }
+
+  /**
+   * Return a view of all elements of this set that start with the given prefix, like {@link
+   * PatriciaTrieMap#prefixMap(String)}.
+   */
+  public PatriciaTrieSet prefixSet(String pPrefix) {
+    return new PatriciaTrieSet(map.prefixMap(pPrefix));
+  }
+
+  @Override
+  public PatriciaTrieSet descendingSet() {
+    return new PatriciaTrieSet(map.descendingMap());
+  }
+
+  @Override
+  public PatriciaTrieSet subSet(
+      String fromElement, boolean fromInclusive, String toElement, boolean toInclusive) {
+    return new PatriciaTrieSet(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+  }
+
+  @Override
+  public PatriciaTrieSet headSet(String toElement, boolean inclusive) {
+    return new PatriciaTrieSet(map.headMap(toElement, inclusive));
+  }
+
+  @Override
+  public PatriciaTrieSet tailSet(String fromElement, boolean inclusive) {
+    return new PatriciaTrieSet(map.tailMap(fromElement, inclusive));
+  }
+
+  @Override
+  public PatriciaTrieSet headSet(String toElement) {
+    return headSet(toElement, /* inclusive= */ false);
+  }
+
+  @Override
+  public PatriciaTrieSet subSet(String fromElement, String toElement) {
+    return subSet(fromElement, /* fromInclusive= */ true, toElement, /* toInclusive= */ false);
+  }
+
+  @Override
+  public PatriciaTrieSet tailSet(String fromElement) {
+    return tailSet(fromElement, /* inclusive= */ true);
+  }
+}
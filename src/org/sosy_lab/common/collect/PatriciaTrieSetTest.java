@@ -0,0 +1,71 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.testing.NavigableSetTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringSortedSetGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.SetFeature;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public final class PatriciaTrieSetTest {
+
+  public static junit.framework.Test suite() {
+    TestSuite suite =
+        NavigableSetTestSuiteBuilder.using(
+                new TestStringSortedSetGenerator() {
+                  @Override
+                  protected SortedSet<String> create(String[] pElements) {
+                    return PatriciaTrieSet.copyOf(Arrays.asList(pElements));
+                  }
+                })
+            .named("PatriciaTrieSet")
+            .withFeatures(
+                CollectionSize.ANY,
+                SetFeature.GENERAL_PURPOSE,
+                CollectionFeature.KNOWN_ORDER,
+                CollectionFeature.SERIALIZABLE_INCLUDING_VIEWS)
+            .createTestSuite();
+
+    suite.addTest(new JUnit4TestAdapter(PatriciaTrieSetTest.class));
+
+    return suite;
+  }
+
+  @Test
+  public void testSubSetWithPrefix() {
+    PatriciaTrieSet set =
+        PatriciaTrieSet.copyOf(
+            ImmutableList.of("cpa.predicate.abstraction", "cpa.predicate.blk", "cpa.value", "cpa"));
+
+    NavigableSet<String> subset = Collections3.subSetWithPrefix(set, "cpa.predicate.");
+    assertThat(subset).isInstanceOf(PatriciaTrieSet.class);
+    assertThat(subset).containsExactly("cpa.predicate.abstraction", "cpa.predicate.blk").inOrder();
+
+    subset.add("cpa.predicate.refinement");
+    assertThat(set).contains("cpa.predicate.refinement");
+    assertThat(set.prefixSet("cpa").descendingSet())
+        .containsExactly(
+            "cpa.value",
+            "cpa.predicate.refinement",
+            "cpa.predicate.blk",
+            "cpa.predicate.abstraction",
+            "cpa")
+        .inOrder();
+  }
+}
@@ -0,0 +1,1334 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sosy_lab.common.collect.PathCopyingPersistentTreeMap.exceedsLowerBound;
+import static org.sosy_lab.common.collect.PathCopyingPersistentTreeMap.exceedsUpperBound;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import com.google.errorprone.annotations.concurrent.LazyInit;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * This is an implementation of {@link PersistentSortedMap} that is based on B+-trees and path
+ * copying. All mappings are stored in the leaves of the tree, each of which has an array of keys
+ * and an array of values. Inner nodes have an array of children and an array of separator keys.
+ * All leaves have the same depth, and each node except the root has between half the fanout and
+ * the fanout many mappings or children.
+ *
+ * <p>The operations insert, lookup, and remove are guaranteed to run in O(log n) time. Compared to
+ * the binary tree of {@link PathCopyingPersistentTreeMap}, a lookup visits only log_b(n) nodes for
+ * fanout b instead of about log_2(n) nodes (e.g., 4 instead of 20 nodes for a million mappings and
+ * fanout 32), and the keys that it compares are adjacent in memory. This reduces the number of
+ * cache misses for lookups in large maps. Insert and remove copy the log_b(n) nodes on the path to
+ * the modified leaf, i.e., they allocate fewer objects than {@link PathCopyingPersistentTreeMap},
+ * but each of them is larger. Fanouts between 16 and 64 are a good compromise, the default is
+ * {@value #DEFAULT_FANOUT}. Per mapping, this map needs memory for about two to three array slots.
+ *
+ * <p>Iteration allocates an entry object for each mapping, because the mappings are not stored as
+ * entries, whereas {@link #forEach(BiConsumer)} does not allocate per mapping.
+ *
+ * <p>This implementation does not support <code>null</code> keys (but <code>null</code> values) and
+ * always compares according to the natural ordering. All methods may throw {@link
+ * ClassCastException} if key objects are passed that do not implement {@link Comparable}. The
+ * natural ordering of the keys needs to be consistent with equals.
+ *
+ * <p>As for all {@link PersistentMap}s, all collection views and all iterators are immutable. They
+ * do not reflect changes made to the map and all their modifying operations throw {@link
+ * UnsupportedOperationException}. The maps returned by {@link #subMap}, {@link #headMap}, {@link
+ * #tailMap}, and {@link #descendingMap()} are such views as well.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <K> The type of keys.
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = {"K", "V"})
+public final class PersistentBTreeMap<K extends Comparable<? super K>, V extends @Nullable Object>
+    extends AbstractImmutableSortedMap<K, V> implements PersistentSortedMap<K, V>, Serializable {
+
+  private static final long serialVersionUID = 2715428390113627841L;
+
+  /** The fanout that is used if none is given explicitly. */
+  public static final int DEFAULT_FANOUT = 32;
+
+  private static final int MIN_FANOUT = 4;
+  private static final int MAX_FANOUT = 1024;
+
+  /**
+   * A node of the tree. The arrays of a node are never modified after its creation.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  @SuppressWarnings("Immutable") // arrays are not modified after construction
+  @Immutable(containerOf = {"K", "V"})
+  private abstract static class Node<K, V extends @Nullable Object> {
+
+    /** The keys of a leaf, or the separator keys of an inner node, in ascending order. */
+    final Object[] keys;
+
+    Node(Object[] pKeys) {
+      keys = pKeys;
+    }
+
+    @SuppressWarnings("unchecked")
+    final K key(int index) {
+      return (K) keys[index];
+    }
+
+    /** The number of mappings of a leaf or the number of children of an inner node. */
+    abstract int width();
+  }
+
+  /**
+   * A leaf of the tree, which stores mappings.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  @SuppressWarnings("Immutable") // arrays are not modified after construction
+  @Immutable(containerOf = {"K", "V"})
+  private static final class Leaf<K, V extends @Nullable Object> extends Node<K, V> {
+
+    /** The values that belong to the keys with the same index. */
+    final @Nullable Object[] values;
+
+    Leaf(Object[] pKeys, @Nullable Object[] pValues) {
+      super(pKeys);
+      assert pKeys.length == pValues.length;
+      values = pValues;
+    }
+
+    @SuppressWarnings("unchecked")
+    V value(int index) {
+      return (V) values[index];
+    }
+
+    Map.Entry<K, V> entry(int index) {
+      return new SimpleImmutableEntry<>(key(index), value(index));
+    }
+
+    @Override
+    int width() {
+      return keys.length;
+    }
+  }
+
+  /**
+   * An inner node of the tree. The separator key at index i is larger than all keys in the child at
+   * index i, and at most as large as all keys in the child at index i+1.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  @SuppressWarnings("Immutable") // arrays are not modified after construction
+  @Immutable(containerOf = {"K", "V"})
+  private static final class Inner<K, V extends @Nullable Object> extends Node<K, V> {
+
+    final Node<K, V>[] children;
+
+    Inner(Object[] pKeys, Node<K, V>[] pChildren) {
+      super(pKeys);
+      assert pKeys.length == pChildren.length - 1;
+      children = pChildren;
+    }
+
+    @Override
+    int width() {
+      return children.length;
+    }
+  }
+
+  @SuppressWarnings("unchecked") // generic array creation
+  private static <K, V extends @Nullable Object> Node<K, V>[] newNodeArray(int length) {
+    return (Node<K, V>[]) new Node<?, ?>[length];
+  }
+
+  // static creation methods
+
+  private static final PersistentBTreeMap<?, ?> EMPTY_MAP =
+      new PersistentBTreeMap<String, Object>(null, 0, 0, DEFAULT_FANOUT);
+
+  /** Return an empty map with the default fanout. */
+  @SuppressWarnings("unchecked")
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentBTreeMap<K, V> of() {
+    return (PersistentBTreeMap<K, V>) EMPTY_MAP;
+  }
+
+  /**
+   * Return an empty map with the given fanout, i.e., the maximal number of mappings in a leaf and
+   * of children of an inner node. All maps derived from the returned map use the same fanout.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentBTreeMap<K, V> of(int fanout) {
+    checkArgument(
+        fanout >= MIN_FANOUT && fanout <= MAX_FANOUT,
+        "fanout %s not in range [%s, %s]",
+        fanout,
+        MIN_FANOUT,
+        MAX_FANOUT);
+    return fanout == DEFAULT_FANOUT ? of() : new PersistentBTreeMap<>(null, 0, 0, fanout);
+  }
+
+  /**
+   * Return a map with the same mappings as the given map and the default fanout (or the fanout of
+   * the given map, if it is an instance of this class). This takes linear time if the given map is
+   * a {@link SortedMap} with natural ordering, otherwise the entries need to be sorted first.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentBTreeMap<K, V> copyOf(Map<K, V> map) {
+    checkNotNull(map);
+    if (map instanceof PersistentBTreeMap<K, V> bTreeMap) {
+      return bTreeMap;
+    }
+    return copyOf(map, DEFAULT_FANOUT);
+  }
+
+  /**
+   * Return a map with the same mappings as the given map and the given fanout. This takes linear
+   * time if the given map is a {@link SortedMap} with natural ordering, otherwise the entries need
+   * to be sorted first.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentBTreeMap<K, V> copyOf(Map<K, V> map, int fanout) {
+    checkNotNull(map);
+    PersistentBTreeMap<K, V> empty = of(fanout);
+    if (map instanceof PersistentBTreeMap<K, V> bTreeMap && bTreeMap.fanout == fanout) {
+      return bTreeMap;
+    }
+
+    List<Map.Entry<K, V>> entries;
+    if (map instanceof SortedMap<?, ?> sortedMap
+        && Collections3.guaranteedSameOrder(sortedMap.comparator(), null)) {
+      entries = new ArrayList<>(map.entrySet());
+    } else {
+      // TreeMap sorts the entries and rejects null keys
+      entries = new ArrayList<>(new TreeMap<>(map).entrySet());
+    }
+    return empty.fromSortedEntries(entries);
+  }
+
+  /**
+   * Build a map with the fanout of this map from the given entries, which need to have strictly
+   * increasing keys. This takes O(n) time. All nodes are filled as evenly as possible.
+   */
+  private PersistentBTreeMap<K, V> fromSortedEntries(List<? extends Map.Entry<K, V>> entries) {
+    int count = entries.size();
+    if (count == 0) {
+      return empty();
+    }
+
+    // smallest key in the subtree of each node of the current level, for the separator keys
+    @Var List<Object> firstKeys = new ArrayList<>(count / (fanout / 2) + 1);
+    @Var List<Node<K, V>> nodes = new ArrayList<>(count / (fanout / 2) + 1);
+    int leafCount = (count + fanout - 1) / fanout;
+    @Var int start = 0;
+    for (int i = 1; i <= leafCount; i++) {
+      int end = (int) ((long) count * i / leafCount);
+      Object[] keys = new Object[end - start];
+      @Nullable Object[] values = new Object[end - start];
+      for (int j = start; j < end; j++) {
+        Map.Entry<K, V> entry = entries.get(j);
+        keys[j - start] = checkNotNull(entry.getKey());
+        values[j - start] = entry.getValue();
+      }
+      nodes.add(new Leaf<>(keys, values));
+      firstKeys.add(keys[0]);
+      start = end;
+    }
+
+    @Var int height = 0;
+    while (nodes.size() > 1) {
+      int nodeCount = nodes.size();
+      int parentCount = (nodeCount + fanout - 1) / fanout;
+      List<Object> parentFirstKeys = new ArrayList<>(parentCount);
+      List<Node<K, V>> parents = new ArrayList<>(parentCount);
+      start = 0;
+      for (int i = 1; i <= parentCount; i++) {
+        int end = (int) ((long) nodeCount * i / parentCount);
+        Node<K, V>[] children = nodes.subList(start, end).toArray(newNodeArray(0));
+        Object[] keys = firstKeys.subList(start + 1, end).toArray();
+        parents.add(new Inner<>(keys, children));
+        parentFirstKeys.add(firstKeys.get(start));
+        start = end;
+      }
+      nodes = parents;
+      firstKeys = parentFirstKeys;
+      height++;
+    }
+    return new PersistentBTreeMap<>(nodes.get(0), height, count, fanout);
+  }
+
+  // state and constructor
+
+  private final transient @Nullable Node<K, V> root;
+
+  /** The number of levels of inner nodes, i.e., the distance between the root and each leaf. */
+  private final transient int height;
+
+  private final transient int size;
+
+  private final transient int fanout;
+
+  @SuppressWarnings("Immutable")
+  @LazyInit
+  private transient @Nullable NavigableSet<Entry<K, V>> entrySet;
+
+  private PersistentBTreeMap(@Nullable Node<K, V> pRoot, int pHeight, int pSize, int pFanout) {
+    root = pRoot;
+    height = pHeight;
+    size = pSize;
+    fanout = pFanout;
+  }
+
+  /** The minimal number of mappings of a leaf and of children of an inner node except the root. */
+  private int minWidth() {
+    return fanout / 2;
+  }
+
+  @VisibleForTesting
+  int fanout() {
+    return fanout;
+  }
+
+  @VisibleForTesting
+  void checkAssertions() {
+    if (root == null) {
+      checkArgument(size == 0 && height == 0);
+    } else {
+      checkArgument(checkAssertions(root, height, null, null, true) == size);
+    }
+  }
+
+  /**
+   * Check the invariants of the given subtree, whose keys need to be at least as large as the given
+   * lower bound and smaller than the given upper bound, and return its number of mappings.
+   */
+  private int checkAssertions(
+      Node<K, V> node,
+      int pHeight,
+      @Nullable K lowerBound,
+      @Nullable K upperBound,
+      boolean isRoot) {
+    int width = node.width();
+    checkArgument(width <= fanout, "node with %s entries", width);
+    checkArgument(isRoot || width >= minWidth(), "node with %s entries", width);
+    for (int i = 0; i < node.keys.length; i++) {
+      K key = node.key(i);
+      checkArgument(i == 0 || node.key(i - 1).compareTo(key) < 0, "unsorted keys");
+      checkArgument(lowerBound == null || lowerBound.compareTo(key) <= 0, "key below range");
+      checkArgument(upperBound == null || key.compareTo(upperBound) < 0, "key above range");
+    }
+
+    if (node instanceof Inner<K, V> inner) {
+      checkArgument(pHeight > 0, "inner node at level of leaves");
+      checkArgument(width >= 2, "inner node with single child");
+      @Var int result = 0;
+      for (int i = 0; i < width; i++) {
+        result +=
+            checkAssertions(
+                inner.children[i],
+                pHeight - 1,
+                i == 0 ? lowerBound : inner.key(i - 1),
+                i == width - 1 ? upperBound : inner.key(i),
+                false);
+      }
+      return result;
+    } else {
+      checkArgument(pHeight == 0, "leaf at level of inner nodes");
+      checkArgument(width > 0, "empty leaf");
+      return width;
+    }
+  }
+
+  // search and navigation
+
+  /** Return the index of the given key in the given array, or (-(insertion point) - 1). */
+  private static <K extends Comparable<? super K>> int binarySearch(Object[] keys, K key) {
+    @Var int low = 0;
+    @Var int high = keys.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      @SuppressWarnings("unchecked")
+      K midKey = (K) keys[mid];
+      int comp = key.compareTo(midKey);
+      if (comp > 0) {
+        low = mid + 1;
+      } else if (comp < 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /** Return the index of the child of the given inner node that may contain the given key. */
+  private static <K extends Comparable<? super K>> int childIndex(Inner<K, ?> node, K key) {
+    int index = binarySearch(node.keys, key);
+    return index >= 0 ? index + 1 : -(index + 1);
+  }
+
+  /** Return the leaf of the given tree that may contain the given key. */
+  private static <K extends Comparable<? super K>, V extends @Nullable Object> Leaf<K, V> findLeaf(
+      Node<K, V> root, K key) {
+    @Var Node<K, V> current = root;
+    while (current instanceof Inner<K, V> inner) {
+      current = inner.children[childIndex(inner, key)];
+    }
+    return (Leaf<K, V>) current;
+  }
+
+  private static <K extends Comparable<? super K>, V extends @Nullable Object>
+      Map.@Nullable Entry<K, V> findEntry(@Nullable Node<K, V> root, Object pKey) {
+    if (root == null) {
+      return null;
+    }
+    @SuppressWarnings("unchecked")
+    K key = (K) checkNotNull(pKey);
+    Leaf<K, V> leaf = findLeaf(root, key);
+    int index = binarySearch(leaf.keys, key);
+    return index >= 0 ? leaf.entry(index) : null;
+  }
+
+  private static <K, V extends @Nullable Object> Map.@Nullable Entry<K, V> findFirstEntry(
+      @Nullable Node<K, V> root) {
+    if (root == null) {
+      return null;
+    }
+    @Var Node<K, V> current = root;
+    while (current instanceof Inner<K, V> inner) {
+      current = inner.children[0];
+    }
+    return ((Leaf<K, V>) current).entry(0);
+  }
+
+  private static <K, V extends @Nullable Object> Map.@Nullable Entry<K, V> findLastEntry(
+      @Nullable Node<K, V> root) {
+    if (root == null) {
+      return null;
+    }
+    @Var Node<K, V> current = root;
+    while (current instanceof Inner<K, V> inner) {
+      current = inner.children[inner.children.length - 1];
+    }
+    Leaf<K, V> leaf = (Leaf<K, V>) current;
+    return leaf.entry(leaf.keys.length - 1);
+  }
+
+  /**
+   * Return the entry with the smallest key that is greater than (or equal to, if inclusive) the
+   * given key. While descending, the subtree right of the path is remembered, which contains the
+   * result if the reached leaf does not.
+   */
+  private static <K extends Comparable<? super K>, V extends @Nullable Object>
+      Map.@Nullable Entry<K, V> findNextGreaterEntry(
+          @Nullable Node<K, V> root, K key, boolean inclusive) {
+    if (root == null) {
+      return null;
+    }
+    @Var Node<K, V> current = root;
+    @Var Node<K, V> fallback = null;
+    while (current instanceof Inner<K, V> inner) {
+      int index = childIndex(inner, key);
+      if (index < inner.children.length - 1) {
+        fallback = inner.children[index + 1];
+      }
+      current = inner.children[index];
+    }
+    Leaf<K, V> leaf = (Leaf<K, V>) current;
+    int found = binarySearch(leaf.keys, key);
+    int index = found >= 0 ? (inclusive ? found : found + 1) : -(found + 1);
+    if (index < leaf.keys.length) {
+      return leaf.entry(index);
+    }
+    return findFirstEntry(fallback);
+  }
+
+  /**
+   * Return the entry with the largest key that is smaller than (or equal to, if inclusive) the
+   * given key, like {@link #findNextGreaterEntry}.
+   */
+  private static <K extends Comparable<? super K>, V extends @Nullable Object>
+      Map.@Nullable Entry<K, V> findNextSmallerEntry(
+          @Nullable Node<K, V> root, K key, boolean inclusive) {
+    if (root == null) {
+      return null;
+    }
+    @Var Node<K, V> current = root;
+    @Var Node<K, V> fallback = null;
+    while (current instanceof Inner<K, V> inner) {
+      int index = childIndex(inner, key);
+      if (index > 0) {
+        fallback = inner.children[index - 1];
+      }
+      current = inner.children[index];
+    }
+    Leaf<K, V> leaf = (Leaf<K, V>) current;
+    int found = binarySearch(leaf.keys, key);
+    int index = found >= 0 ? (inclusive ? found : found - 1) : -(found + 1) - 1;
+    if (index >= 0) {
+      return leaf.entry(index);
+    }
+    return findLastEntry(fallback);
+  }
+
+  // modifying operations
+
+  private static <T extends @Nullable Object> T[] insertAt(T[] array, int index, T element) {
+    T[] result = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, index, result, index + 1, array.length - index);
+    result[index] = element;
+    return result;
+  }
+
+  private static <T extends @Nullable Object> T[] removeAt(T[] array, int index) {
+    T[] result = Arrays.copyOf(array, array.length - 1);
+    System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+    return result;
+  }
+
+  private static <T extends @Nullable Object> T[] replaceAt(T[] array, int index, T element) {
+    T[] result = array.clone();
+    result[index] = element;
+    return result;
+  }
+
+  private static <T extends @Nullable Object> T[] concat(T[] first, T[] second) {
+    T[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  @Override
+  public PersistentBTreeMap<K, V> putAndCopy(K key, V value) {
+    checkNotNull(key);
+    if (root == null) {
+      Node<K, V> leaf = new Leaf<>(new Object[] {key}, new @Nullable Object[] {value});
+      return new PersistentBTreeMap<>(leaf, 0, 1, fanout);
+    }
+
+    // Find the path to the leaf, and afterwards copy it bottom-up.
+    // Nodes that get too wide are split, and the new node is inserted into the parent.
+    @SuppressWarnings("unchecked") // generic array creation
+    Inner<K, V>[] path = (Inner<K, V>[]) new Inner<?, ?>[height];
+    int[] indices = new int[height];
+    @Var Node<K, V> current = root;
+    for (int level = 0; level < height; level++) {
+      Inner<K, V> inner = (Inner<K, V>) current;
+      path[level] = inner;
+      indices[level] = childIndex(inner, key);
+      current = inner.children[indices[level]];
+    }
+    Leaf<K, V> leaf = (Leaf<K, V>) current;
+
+    @Var Node<K, V> newNode;
+    @Var @Nullable Node<K, V> newSibling = null; // right neighbor of newNode after a split
+    @Var @Nullable Object separator = null; // smallest key in newSibling
+    int newSize;
+    int found = binarySearch(leaf.keys, key);
+    if (found >= 0) {
+      if (leaf.values[found] == value) {
+        return this;
+      }
+      newNode = new Leaf<>(leaf.keys, replaceAt(leaf.values, found, value));
+      newSize = size;
+
+    } else {
+      int index = -(found + 1);
+      Object[] keys = insertAt(leaf.keys, index, key);
+      @Nullable Object[] values = insertAt(leaf.values, index, value);
+      newSize = size + 1;
+      if (keys.length <= fanout) {
+        newNode = new Leaf<>(keys, values);
+      } else {
+        int mid = keys.length / 2;
+        newNode =
+            new Leaf<>(Arrays.copyOfRange(keys, 0, mid), Arrays.copyOfRange(values, 0, mid));
+        newSibling =
+            new Leaf<>(
+                Arrays.copyOfRange(keys, mid, keys.length),
+                Arrays.copyOfRange(values, mid, values.length));
+        separator = keys[mid];
+      }
+    }
+
+    for (int level = height - 1; level >= 0; level--) {
+      Inner<K, V> parent = path[level];
+      int index = indices[level];
+      if (newSibling == null) {
+        newNode = new Inner<>(parent.keys, replaceAt(parent.children, index, newNode));
+        continue;
+      }
+
+      Object[] keys = insertAt(parent.keys, index, separator);
+      Node<K, V>[] children =
+          insertAt(replaceAt(parent.children, index, newNode), index + 1, newSibling);
+      if (children.length <= fanout) {
+        newNode = new Inner<>(keys, children);
+        newSibling = null;
+        separator = null;
+      } else {
+        int mid = children.length / 2;
+        newNode =
+            new Inner<>(Arrays.copyOfRange(keys, 0, mid - 1), Arrays.copyOfRange(children, 0, mid));
+        newSibling =
+            new Inner<>(
+                Arrays.copyOfRange(keys, mid, keys.length),
+                Arrays.copyOfRange(children, mid, children.length));
+        separator = keys[mid - 1];
+      }
+    }
+
+    if (newSibling != null) {
+      Node<K, V>[] children = newNodeArray(2);
+      children[0] = newNode;
+      children[1] = newSibling;
+      return new PersistentBTreeMap<>(
+          new Inner<>(new Object[] {separator}, children), height + 1, newSize, fanout);
+    }
+    return new PersistentBTreeMap<>(newNode, height, newSize, fanout);
+  }
+
+  @Override
+  public PersistentBTreeMap<K, V> removeAndCopy(Object pKey) {
+    if (root == null) {
+      return this;
+    }
+    @SuppressWarnings("unchecked")
+    K key = (K) checkNotNull(pKey);
+
+    // Find the path to the leaf, and afterwards copy it bottom-up.
+    // Nodes that get too narrow are merged with a neighbor.
+    @SuppressWarnings("unchecked") // generic array creation
+    Inner<K, V>[] path = (Inner<K, V>[]) new Inner<?, ?>[height];
+    int[] indices = new int[height];
+    @Var Node<K, V> current = root;
+    for (int level = 0; level < height; level++) {
+      Inner<K, V> inner = (Inner<K, V>) current;
+      path[level] = inner;
+      indices[level] = childIndex(inner, key);
+      current = inner.children[indices[level]];
+    }
+    Leaf<K, V> leaf = (Leaf<K, V>) current;
+
+    int found = binarySearch(leaf.keys, key);
+    if (found < 0) {
+      return this;
+    }
+    if (size == 1) {
+      return empty();
+    }
+
+    @Var Node<K, V> newNode = new Leaf<>(removeAt(leaf.keys, found), removeAt(leaf.values, found));
+    for (int level = height - 1; level >= 0; level--) {
+      Inner<K, V> parent = path[level];
+      int index = indices[level];
+      if (newNode.width() >= minWidth()) {
+        newNode = new Inner<>(parent.keys, replaceAt(parent.children, index, newNode));
+      } else {
+        newNode = mergeWithNeighbor(parent, index, newNode);
+      }
+    }
+
+    @Var int newHeight = height;
+    if (newNode instanceof Inner<K, V> inner && inner.children.length == 1) {
+      newNode = inner.children[0];
+      newHeight--;
+    }
+    return new PersistentBTreeMap<>(newNode, newHeight, size - 1, fanout);
+  }
+
+  /**
+   * Return a copy of the given parent where the child at the given index is replaced by the given
+   * node, which has too few mappings or children. The node is merged with its right neighbor (or
+   * the left neighbor, for the last child). If the merged node would be too wide, the mappings or
+   * children are instead distributed evenly over two nodes.
+   */
+  private Inner<K, V> mergeWithNeighbor(Inner<K, V> parent, int index, Node<K, V> node) {
+    int leftIndex = index < parent.children.length - 1 ? index : index - 1;
+    Node<K, V> left = leftIndex == index ? node : parent.children[leftIndex];
+    Node<K, V> right = leftIndex == index ? parent.children[index + 1] : node;
+
+    Object[] keys;
+    @Var Object[] values = null;
+    Node<K, V>[] children;
+    int width;
+    if (left instanceof Leaf<K, V> leftLeaf) {
+      Leaf<K, V> rightLeaf = (Leaf<K, V>) right;
+      keys = concat(leftLeaf.keys, rightLeaf.keys);
+      values = concat(leftLeaf.values, rightLeaf.values);
+      children = null;
+      width = keys.length;
+    } else {
+      Inner<K, V> leftInner = (Inner<K, V>) left;
+      Inner<K, V> rightInner = (Inner<K, V>) right;
+      Object[] leftKeys = insertAt(leftInner.keys, leftInner.keys.length, parent.keys[leftIndex]);
+      keys = concat(leftKeys, rightInner.keys);
+      children = concat(leftInner.children, rightInner.children);
+      width = children.length;
+    }
+
+    if (width <= fanout) {
+      Node<K, V> merged = children == null ? new Leaf<>(keys, values) : new Inner<>(keys, children);
+      return new Inner<>(
+          removeAt(parent.keys, leftIndex),
+          removeAt(replaceAt(parent.children, leftIndex, merged), leftIndex + 1));
+    }
+
+    int mid = width / 2;
+    Node<K, V> newLeft;
+    Node<K, V> newRight;
+    Object separator;
+    if (children == null) {
+      newLeft = new Leaf<>(Arrays.copyOfRange(keys, 0, mid), Arrays.copyOfRange(values, 0, mid));
+      newRight =
+          new Leaf<>(
+              Arrays.copyOfRange(keys, mid, keys.length),
+              Arrays.copyOfRange(values, mid, values.length));
+      separator = keys[mid];
+    } else {
+      newLeft =
+          new Inner<>(Arrays.copyOfRange(keys, 0, mid - 1), Arrays.copyOfRange(children, 0, mid));
+      newRight =
+          new Inner<>(
+              Arrays.copyOfRange(keys, mid, keys.length),
+              Arrays.copyOfRange(children, mid, children.length));
+      separator = keys[mid - 1];
+    }
+    Node<K, V>[] newChildren = parent.children.clone();
+    newChildren[leftIndex] = newLeft;
+    newChildren[leftIndex + 1] = newRight;
+    return new Inner<>(replaceAt(parent.keys, leftIndex, separator), newChildren);
+  }
+
+  @Override
+  public PersistentBTreeMap<K, V> empty() {
+    return fanout == DEFAULT_FANOUT ? of() : new PersistentBTreeMap<>(null, 0, 0, fanout);
+  }
+
+  // read operations
+
+  @Override
+  public boolean containsKey(Object pKey) {
+    return findEntry(root, pKey) != null;
+  }
+
+  @Override
+  public @Nullable V get(Object pKey) {
+    if (root == null) {
+      return null;
+    }
+    @SuppressWarnings("unchecked")
+    K key = (K) checkNotNull(pKey);
+    Leaf<K, V> leaf = findLeaf(root, key);
+    int index = binarySearch(leaf.keys, key);
+    return index >= 0 ? leaf.value(index) : null;
+  }
+
+  @Override
+  public @Nullable Entry<K, V> getEntry(Object pKey) {
+    return findEntry(root, pKey);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> entryIterator() {
+    if (root == null) {
+      return Collections.emptyIterator();
+    }
+    return new EntryIterator<>(root, height, null, false, null, false, /* pDescending= */ false);
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> descendingEntryIterator() {
+    if (root == null) {
+      return Collections.emptyIterator();
+    }
+    return new EntryIterator<>(root, height, null, false, null, false, /* pDescending= */ true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This traverses the tree directly and does not allocate any objects per mapping.
+   */
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> pAction) {
+    checkNotNull(pAction);
+    if (root != null) {
+      forEach(root, pAction);
+    }
+  }
+
+  private static <K, V extends @Nullable Object> void forEach(
+      Node<K, V> node, BiConsumer<? super K, ? super V> action) {
+    if (node instanceof Inner<K, V> inner) {
+      for (Node<K, V> child : inner.children) {
+        forEach(child, action);
+      }
+    } else {
+      Leaf<K, V> leaf = (Leaf<K, V>) node;
+      for (int i = 0; i < leaf.keys.length; i++) {
+        action.accept(leaf.key(i), leaf.value(i));
+      }
+    }
+  }
+
+  @Override
+  public @Nullable Entry<K, V> firstEntry() {
+    return findFirstEntry(root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lastEntry() {
+    return findLastEntry(root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> ceilingEntry(K pKey) {
+    return findNextGreaterEntry(root, checkNotNull(pKey), /* inclusive= */ true);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> floorEntry(K pKey) {
+    return findNextSmallerEntry(root, checkNotNull(pKey), /* inclusive= */ true);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> higherEntry(K pKey) {
+    return findNextGreaterEntry(root, checkNotNull(pKey), /* inclusive= */ false);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lowerEntry(K pKey) {
+    return findNextSmallerEntry(root, checkNotNull(pKey), /* inclusive= */ false);
+  }
+
+  @Override
+  public @Nullable Comparator<? super K> comparator() {
+    return null;
+  }
+
+  @Override
+  public OurSortedMap<K, V> descendingMap() {
+    return new DescendingSortedMap<>(this);
+  }
+
+  @Override
+  public NavigableSet<Entry<K, V>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new SortedMapEntrySet<>(this);
+    }
+    return entrySet;
+  }
+
+  @Override
+  public OurSortedMap<K, V> subMap(
+      K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+    checkNotNull(pFromKey);
+    checkNotNull(pToKey);
+
+    return PartialSortedMap.create(this, pFromKey, pFromInclusive, pToKey, pToInclusive);
+  }
+
+  @Override
+  public OurSortedMap<K, V> headMap(K pToKey, boolean pToInclusive) {
+    checkNotNull(pToKey);
+
+    return PartialSortedMap.create(
+        this, null, /* pFromInclusive= */ true, pToKey, /* pToInclusive= */ pToInclusive);
+  }
+
+  @Override
+  public OurSortedMap<K, V> tailMap(K pFromKey, boolean pFromInclusive) {
+    checkNotNull(pFromKey);
+
+    return PartialSortedMap.create(
+        this, pFromKey, /* pFromInclusive= */ pFromInclusive, null, /* pToInclusive= */ false);
+  }
+
+  /**
+   * Iterator over the entries of a tree in ascending or descending order, optionally starting and
+   * stopping at a given key. It stores the path from the root to the current leaf and the index of
+   * the current mapping in the leaf, so moving to the next mapping needs amortized O(1) time.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  private static final class EntryIterator<
+          K extends Comparable<? super K>, V extends @Nullable Object>
+      extends UnmodifiableIterator<Map.Entry<K, V>> {
+
+    private final Inner<K, V>[] path;
+    private final int[] indices;
+
+    // The leaf of the next entry, null if iteration has finished.
+    private @Nullable Leaf<K, V> leaf;
+    private int index;
+
+    private final boolean descending;
+
+    // If not null, iteration stops at this key.
+    private final @Nullable K endKey;
+    private final boolean endInclusive; // only relevant if endKey != null
+
+    /**
+     * Create an iterator that starts at the given key (or the first or last key, if null) and stops
+     * at the given end key (or the end of the tree, if null).
+     */
+    @SuppressWarnings("unchecked") // generic array creation
+    EntryIterator(
+        Node<K, V> root,
+        int height,
+        @Nullable K pStartKey,
+        boolean pStartInclusive,
+        @Nullable K pEndKey,
+        boolean pEndInclusive,
+        boolean pDescending) {
+      path = (Inner<K, V>[]) new Inner<?, ?>[height];
+      indices = new int[height];
+      descending = pDescending;
+      endKey = pEndKey;
+      endInclusive = pEndInclusive;
+
+      @Var Node<K, V> current = root;
+      for (int level = 0; level < height; level++) {
+        Inner<K, V> inner = (Inner<K, V>) current;
+        path[level] = inner;
+        if (pStartKey != null) {
+          indices[level] = childIndex(inner, pStartKey);
+        } else {
+          indices[level] = descending ? inner.children.length - 1 : 0;
+        }
+        current = inner.children[indices[level]];
+      }
+      Leaf<K, V> startLeaf = (Leaf<K, V>) current;
+      leaf = startLeaf;
+
+      if (pStartKey == null) {
+        index = descending ? startLeaf.keys.length - 1 : 0;
+      } else {
+        int found = binarySearch(startLeaf.keys, pStartKey);
+        if (descending) {
+          index = found >= 0 ? (pStartInclusive ? found : found - 1) : -(found + 1) - 1;
+        } else {
+          index = found >= 0 ? (pStartInclusive ? found : found + 1) : -(found + 1);
+        }
+        if (index < 0 || index >= startLeaf.keys.length) {
+          moveToNextLeaf();
+        }
+      }
+      stopIfOutOfRange();
+    }
+
+    /** Move to the first (or last, if descending) entry of the next leaf in iteration order. */
+    private void moveToNextLeaf() {
+      @Var int level = path.length - 1;
+      while (level >= 0
+          && indices[level] == (descending ? 0 : path[level].children.length - 1)) {
+        level--;
+      }
+      if (level < 0) {
+        leaf = null;
+        return;
+      }
+
+      indices[level] += descending ? -1 : 1;
+      @Var Node<K, V> current = path[level].children[indices[level]];
+      for (level++; level < path.length; level++) {
+        Inner<K, V> inner = (Inner<K, V>) current;
+        path[level] = inner;
+        indices[level] = descending ? inner.children.length - 1 : 0;
+        current = inner.children[indices[level]];
+      }
+      Leaf<K, V> nextLeaf = (Leaf<K, V>) current;
+      leaf = nextLeaf;
+      index = descending ? nextLeaf.keys.length - 1 : 0;
+    }
+
+    private void stopIfOutOfRange() {
+      Leaf<K, V> current = leaf;
+      if (current != null && endKey != null) {
+        K key = current.key(index);
+        if (descending
+            ? exceedsLowerBound(key, endKey, endInclusive)
+            : exceedsUpperBound(key, endKey, endInclusive)) {
+          leaf = null;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return leaf != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      Leaf<K, V> current = leaf;
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K, V> result = current.entry(index);
+
+      index += descending ? -1 : 1;
+      if (index < 0 || index >= current.keys.length) {
+        moveToNextLeaf();
+      }
+      stopIfOutOfRange();
+      return result;
+    }
+  }
+
+  /**
+   * Partial map implementation for {@link SortedMap#subMap(Object, Object)} etc. At least one bound
+   * (upper/lower) needs to be present. The range needs to contain at least one mapping.
+   *
+   * @param <K> The type of keys.
+   * @param <V> The type of values.
+   */
+  @Immutable(containerOf = {"K", "V"})
+  static final class PartialSortedMap<K extends Comparable<? super K>, V extends @Nullable Object>
+      extends AbstractImmutableSortedMap<K, V> implements OurSortedMap<K, V>, Serializable {
+
+    static <K extends Comparable<? super K>, V extends @Nullable Object> OurSortedMap<K, V> create(
+        PersistentBTreeMap<K, V> pMap,
+        @Nullable K pFromKey,
+        boolean pFromInclusive,
+        @Nullable K pToKey,
+        boolean pToInclusive) {
+      checkArgument(pFromKey != null || pToKey != null);
+
+      if (pFromKey != null && pToKey != null) {
+        int comp = pFromKey.compareTo(pToKey);
+        if (comp == 0 && (!pFromInclusive || !pToInclusive)) {
+          return EmptyImmutableOurSortedMap.<K, V>of();
+        }
+        checkArgument(comp <= 0, "fromKey > toKey");
+      }
+
+      Entry<K, V> lowestEntry =
+          pFromKey == null
+              ? findFirstEntry(pMap.root)
+              : findNextGreaterEntry(pMap.root, pFromKey, pFromInclusive);
+      if (lowestEntry == null
+          || (pToKey != null && exceedsUpperBound(lowestEntry.getKey(), pToKey, pToInclusive))) {
+        // no mappings in range
+        return EmptyImmutableOurSortedMap.<K, V>of();
+      }
+
+      return new PartialSortedMap<>(pMap, pFromKey, pFromInclusive, pToKey, pToInclusive);
+    }
+
+    private static final long serialVersionUID = -1826396306658411519L;
+
+    // Invariant: This map is never empty.
+
+    private final PersistentBTreeMap<K, V> map;
+
+    // null if there is no according bound, in this case the "inclusive" boolean is irrelevant
+    @SuppressWarnings("serial") // This class only needs to be serializable if keys are.
+    private final @Nullable K fromKey;
+
+    private final boolean fromInclusive;
+
+    @SuppressWarnings("serial") // This class only needs to be serializable if keys are.
+    private final @Nullable K toKey;
+
+    private final boolean toInclusive;
+
+    @LazyInit private transient int size;
+
+    @SuppressWarnings("Immutable")
+    @LazyInit
+    private transient @Nullable NavigableSet<Entry<K, V>> entrySet;
+
+    private PartialSortedMap(
+        PersistentBTreeMap<K, V> pMap,
+        @Nullable K pFromKey,
+        boolean pFromInclusive,
+        @Nullable K pToKey,
+        boolean pToInclusive) {
+      map = checkNotNull(pMap);
+      fromKey = pFromKey;
+      fromInclusive = pFromInclusive;
+      toKey = pToKey;
+      toInclusive = pToInclusive;
+    }
+
+    private boolean inRange(K key, boolean treatBoundsAsInclusive) {
+      return !tooLow(key, treatBoundsAsInclusive) && !tooHigh(key, treatBoundsAsInclusive);
+    }
+
+    private boolean tooLow(K key, boolean treatBoundAsInclusive) {
+      return fromKey != null
+          && exceedsLowerBound(key, fromKey, treatBoundAsInclusive || fromInclusive);
+    }
+
+    private boolean tooHigh(K key, boolean treatBoundAsInclusive) {
+      return toKey != null && exceedsUpperBound(key, toKey, treatBoundAsInclusive || toInclusive);
+    }
+
+    private @Nullable Entry<K, V> nullIfOutOfRange(@Nullable Entry<K, V> entry) {
+      if (entry == null || !inRange(entry.getKey(), /* treatBoundsAsInclusive= */ false)) {
+        return null;
+      }
+      return entry;
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+      return new EntryIterator<>(
+          checkNotNull(map.root),
+          map.height,
+          fromKey,
+          fromInclusive,
+          toKey,
+          toInclusive,
+          /* pDescending= */ false);
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> descendingEntryIterator() {
+      return new EntryIterator<>(
+          checkNotNull(map.root),
+          map.height,
+          toKey,
+          toInclusive,
+          fromKey,
+          fromInclusive,
+          /* pDescending= */ true);
+    }
+
+    @Override
+    public boolean containsKey(Object pKey) {
+      return getEntry(pKey) != null;
+    }
+
+    @Override
+    public @Nullable Entry<K, V> getEntry(Object pKey) {
+      @SuppressWarnings("unchecked")
+      K key = (K) checkNotNull(pKey);
+      if (!inRange(key, /* treatBoundsAsInclusive= */ false)) {
+        return null;
+      }
+      return findEntry(map.root, key);
+    }
+
+    @Override
+    public @Nullable V get(Object pKey) {
+      Entry<K, V> entry = getEntry(pKey);
+      return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return false;
+    }
+
+    @Override
+    public int size() {
+      if (size == 0) {
+        size = Iterators.size(entryIterator());
+      }
+      return size;
+    }
+
+    @Override
+    public @Nullable Entry<K, V> firstEntry() {
+      if (fromKey == null) {
+        return findFirstEntry(map.root);
+      } else {
+        return findNextGreaterEntry(map.root, fromKey, fromInclusive);
+      }
+    }
+
+    @Override
+    public @Nullable Entry<K, V> lastEntry() {
+      if (toKey == null) {
+        return findLastEntry(map.root);
+      } else {
+        return findNextSmallerEntry(map.root, toKey, toInclusive);
+      }
+    }
+
+    @Override
+    public @Nullable Entry<K, V> ceilingEntry(K pKey) {
+      if (tooLow(pKey, /* treatBoundAsInclusive= */ false)) {
+        return firstEntry();
+      }
+      return nullIfOutOfRange(findNextGreaterEntry(map.root, pKey, /* inclusive= */ true));
+    }
+
+    @Override
+    public @Nullable Entry<K, V> floorEntry(K pKey) {
+      if (tooHigh(pKey, /* treatBoundAsInclusive= */ false)) {
+        return lastEntry();
+      }
+      return nullIfOutOfRange(findNextSmallerEntry(map.root, pKey, /* inclusive= */ true));
+    }
+
+    @Override
+    public @Nullable Entry<K, V> higherEntry(K pKey) {
+      if (tooLow(pKey, /* treatBoundAsInclusive= */ false)) {
+        return firstEntry();
+      }
+      return nullIfOutOfRange(findNextGreaterEntry(map.root, pKey, /* inclusive= */ false));
+    }
+
+    @Override
+    public @Nullable Entry<K, V> lowerEntry(K pKey) {
+      if (tooHigh(pKey, /* treatBoundAsInclusive= */ false)) {
+        return lastEntry();
+      }
+      return nullIfOutOfRange(findNextSmallerEntry(map.root, pKey, /* inclusive= */ false));
+    }
+
+    @Override
+    public @Nullable Comparator<? super K> comparator() {
+      return null;
+    }
+
+    @Override
+    public OurSortedMap<K, V> descendingMap() {
+      return new DescendingSortedMap<>(this);
+    }
+
+    @Override
+    public NavigableSet<Entry<K, V>> entrySet() {
+      if (entrySet == null) {
+        entrySet = new SortedMapEntrySet<>(this);
+      }
+      return entrySet;
+    }
+
+    @Override
+    public OurSortedMap<K, V> subMap(
+        K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+      checkNotNull(pFromKey);
+      checkNotNull(pToKey);
+      // Like for PathCopyingPersistentTreeMap, the new range must not exceed the old range.
+      checkArgument(inRange(pFromKey, !pFromInclusive));
+      checkArgument(inRange(pToKey, !pToInclusive));
+
+      return PartialSortedMap.create(map, pFromKey, pFromInclusive, pToKey, pToInclusive);
+    }
+
+    @Override
+    public OurSortedMap<K, V> headMap(K pToKey, boolean pInclusive) {
+      checkNotNull(pToKey);
+      checkArgument(inRange(pToKey, /* treatBoundsAsInclusive= */ !pInclusive));
+
+      return PartialSortedMap.create(
+          map,
+          fromKey,
+          /* pFromInclusive= */ fromInclusive,
+          pToKey,
+          /* pToInclusive= */ pInclusive);
+    }
+
+    @Override
+    public OurSortedMap<K, V> tailMap(K pFromKey, boolean pInclusive) {
+      checkNotNull(pFromKey);
+      checkArgument(inRange(pFromKey, /* treatBoundsAsInclusive= */ !pInclusive));
+
+      return PartialSortedMap.create(
+          map, pFromKey, /* pFromInclusive= */ pInclusive, toKey, /* pToInclusive= */ toInclusive);
+    }
+  }
+
+  // serialization
+
+  private Object writeReplace() {
+    return new SerializedForm<>(this, fanout);
+  }
+
+  private void readObject(@SuppressWarnings("unused") ObjectInputStream in)
+      throws InvalidObjectException {
+    throw new InvalidObjectException("Needs to be deserialized from SerializedForm");
+  }
+
+  /**
+   * Serialized form of the map, which stores the fanout and the sorted entries as written by {@link
+   * PersistentCollectionCodec} instead of the tree. The tree is rebuilt in O(n) when reading.
+   */
+  private static final class SerializedForm<
+          K extends Comparable<? super K>, V extends @Nullable Object>
+      implements Serializable {
+
+    private static final long serialVersionUID = 3391716412097046112L;
+
+    private final int fanout;
+
+    private transient PersistentBTreeMap<K, V> map;
+
+    SerializedForm(PersistentBTreeMap<K, V> pMap, int pFanout) {
+      map = pMap;
+      fanout = pFanout;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      PersistentCollectionCodec.writeSortedMap(out, map);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      if (fanout < MIN_FANOUT || fanout > MAX_FANOUT) {
+        throw new InvalidObjectException("Invalid fanout " + fanout);
+      }
+      map =
+          PersistentBTreeMap.<K, V>of(fanout)
+              .fromSortedEntries(
+                  List.copyOf(PersistentCollectionCodec.<K, V>readSortedMap(in).entrySet()));
+    }
+
+    private Object readResolve() {
+      return map;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.common.testing.SerializableTester;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentBTreeMapTest {
+
+  /** A small fanout such that the tests cover trees with several levels. */
+  private static final int SMALL_FANOUT = 4;
+
+  private static TestStringSortedMapGenerator mapGenerator(int fanout) {
+    return new TestStringSortedMapGenerator() {
+
+      @Override
+      protected SortedMap<String, String> create(Map.Entry<String, String>[] pEntries) {
+        @Var PersistentSortedMap<String, String> result = PersistentBTreeMap.of(fanout);
+        for (Map.Entry<String, String> entry : pEntries) {
+          result = result.putAndCopy(entry.getKey(), entry.getValue());
+        }
+        return result;
+      }
+    };
+  }
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentBTreeMapTest.class));
+
+    for (int fanout : ImmutableList.of(SMALL_FANOUT, PersistentBTreeMap.DEFAULT_FANOUT)) {
+      suite.addTest(
+          NavigableMapTestSuiteBuilder.using(mapGenerator(fanout))
+              .named("PersistentBTreeMap with fanout " + fanout)
+              .withFeatures(
+                  MapFeature.ALLOWS_NULL_VALUES,
+                  CollectionFeature.KNOWN_ORDER,
+                  CollectionFeature.SERIALIZABLE_INCLUDING_VIEWS,
+                  CollectionSize.ANY)
+              .createTestSuite());
+    }
+
+    return suite;
+  }
+
+  @Test
+  public void testEmpty() {
+    assertThat(PersistentBTreeMap.of()).isEmpty();
+    assertThat(PersistentBTreeMap.of(PersistentBTreeMap.DEFAULT_FANOUT))
+        .isSameInstanceAs(PersistentBTreeMap.of());
+    assertThat(PersistentBTreeMap.<String, String>of().putAndCopy("a", "1").removeAndCopy("a"))
+        .isSameInstanceAs(PersistentBTreeMap.of());
+  }
+
+  @Test
+  public void testInvalidFanout() {
+    assertThrows(IllegalArgumentException.class, () -> PersistentBTreeMap.of(2));
+    assertThrows(IllegalArgumentException.class, () -> PersistentBTreeMap.of(100_000));
+  }
+
+  @Test
+  public void testPutSameValue() {
+    PersistentBTreeMap<String, String> map =
+        PersistentBTreeMap.<String, String>of().putAndCopy("a", "1");
+    assertThat(map.putAndCopy("a", map.get("a"))).isSameInstanceAs(map);
+    assertThat(map.removeAndCopy("b")).isSameInstanceAs(map);
+  }
+
+  @Test
+  public void testRandom() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int fanout : ImmutableList.of(4, 5, 7, 16)) {
+      @Var PersistentBTreeMap<Integer, Integer> map = PersistentBTreeMap.of(fanout);
+      NavigableMap<Integer, Integer> comparison = new TreeMap<>();
+      List<PersistentBTreeMap<Integer, Integer>> oldMaps = new ArrayList<>();
+      List<Map<Integer, Integer>> oldComparisons = new ArrayList<>();
+
+      for (int i = 0; i < 3000; i++) {
+        int key = rnd.nextInt(500);
+        if (i < 200 || rnd.nextInt(3) > 0) {
+          map = map.putAndCopy(key, i);
+          comparison.put(key, i);
+        } else {
+          map = map.removeAndCopy(key);
+          comparison.remove(key);
+        }
+
+        if (i % 50 == 0) {
+          map.checkAssertions();
+          checkEqualTo(comparison, map);
+          checkNavigation(comparison, map, rnd);
+          oldMaps.add(map);
+          oldComparisons.add(new TreeMap<>(comparison));
+        }
+      }
+
+      // clear map
+      while (!map.isEmpty()) {
+        Integer key = rnd.nextBoolean() ? map.firstKey() : map.lastKey();
+        map = map.removeAndCopy(key);
+        comparison.remove(key);
+        map.checkAssertions();
+        assertThat(map).isEqualTo(comparison);
+      }
+
+      // previous versions need to be unaffected
+      for (int i = 0; i < oldMaps.size(); i++) {
+        oldMaps.get(i).checkAssertions();
+        assertThat(oldMaps.get(i)).containsExactlyEntriesIn(oldComparisons.get(i)).inOrder();
+      }
+    }
+  }
+
+  private static void checkEqualTo(
+      NavigableMap<Integer, Integer> comparison, NavigableMap<Integer, Integer> testMap) {
+    assertThat(testMap).isEqualTo(comparison);
+    assertThat(testMap.hashCode()).isEqualTo(comparison.hashCode());
+    assertThat(testMap).hasSize(comparison.size());
+    assertThat(testMap).containsExactlyEntriesIn(comparison).inOrder();
+    assertThat(testMap.descendingMap().entrySet())
+        .containsExactlyElementsIn(comparison.descendingMap().entrySet())
+        .inOrder();
+
+    List<Integer> keys = new ArrayList<>();
+    testMap.forEach((key, value) -> keys.add(key));
+    assertThat(keys).containsExactlyElementsIn(comparison.keySet()).inOrder();
+  }
+
+  private static void checkNavigation(
+      NavigableMap<Integer, Integer> comparison,
+      NavigableMap<Integer, Integer> testMap,
+      Random rnd) {
+    for (int i = 0; i < 10; i++) {
+      int key1 = rnd.nextInt(520) - 10;
+      int key2 = rnd.nextInt(520) - 10;
+      assertThat(testMap.get(key1)).isEqualTo(comparison.get(key1));
+      assertThat(testMap.ceilingEntry(key1)).isEqualTo(comparison.ceilingEntry(key1));
+      assertThat(testMap.floorEntry(key1)).isEqualTo(comparison.floorEntry(key1));
+      assertThat(testMap.higherEntry(key1)).isEqualTo(comparison.higherEntry(key1));
+      assertThat(testMap.lowerEntry(key1)).isEqualTo(comparison.lowerEntry(key1));
+
+      int lowKey = Math.min(key1, key2);
+      int highKey = Math.max(key1, key2);
+      boolean fromInclusive = rnd.nextBoolean();
+      boolean toInclusive = rnd.nextBoolean();
+      checkEqualTo(
+          comparison.subMap(lowKey, fromInclusive, highKey, toInclusive),
+          testMap.subMap(lowKey, fromInclusive, highKey, toInclusive));
+      checkEqualTo(comparison.headMap(key1, fromInclusive), testMap.headMap(key1, fromInclusive));
+      checkEqualTo(comparison.tailMap(key1, toInclusive), testMap.tailMap(key1, toInclusive));
+    }
+  }
+
+  @Test
+  public void testCopyOf() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size = 0; size < 3000; size += (size < 100 ? 1 : 137)) {
+      Map<Integer, Integer> content = new LinkedHashMap<>();
+      for (int i = 0; i < size; i++) {
+        content.put(rnd.nextInt(), i);
+      }
+      TreeMap<Integer, Integer> comparison = new TreeMap<>(content);
+
+      for (Map<Integer, Integer> input : ImmutableList.of(content, comparison)) {
+        for (int fanout : ImmutableList.of(SMALL_FANOUT, PersistentBTreeMap.DEFAULT_FANOUT)) {
+          PersistentBTreeMap<Integer, Integer> copy = PersistentBTreeMap.copyOf(input, fanout);
+          copy.checkAssertions();
+          assertThat(copy).containsExactlyEntriesIn(comparison).inOrder();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSubmapSubmap() {
+    PersistentBTreeMap<String, String> map =
+        PersistentBTreeMap.<String, String>of(SMALL_FANOUT)
+            .putAndCopy("a", "a")
+            .putAndCopy("b", "b")
+            .putAndCopy("c", "c");
+
+    NavigableMap<String, String> submap = map.subMap("aa", "c");
+    assertThat(submap).containsExactly("b", "b");
+
+    NavigableMap<String, String> subsubmap =
+        submap.subMap("aaa", /* fromInclusive= */ true, "bb", /* toInclusive= */ false);
+    assertThat(subsubmap).containsExactly("b", "b");
+
+    assertThrows(IllegalArgumentException.class, () -> submap.subMap("a", "c"));
+    assertThrows(IllegalArgumentException.class, () -> submap.subMap("aa", "d"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> map.subMapAndCopy("c", /* fromInclusive= */ true, "a", /* toInclusive= */ true));
+  }
+
+  @Test
+  public void testSerialization_keepsFanout() {
+    @Var PersistentBTreeMap<Integer, Integer> map = PersistentBTreeMap.of(SMALL_FANOUT);
+    for (int i = 0; i < 10_000; i++) {
+      map = map.putAndCopy(i, -i);
+    }
+
+    @Var PersistentBTreeMap<Integer, Integer> copy = SerializableTester.reserializeAndAssert(map);
+    assertThat(copy.fanout()).isEqualTo(SMALL_FANOUT);
+    copy.checkAssertions();
+
+    for (int i = 0; i < 1000; i++) {
+      copy = copy.putAndCopy(-i, i);
+    }
+    copy.checkAssertions();
+  }
+}
@@ -0,0 +1,226 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.Maps;
+import com.google.errorprone.annotations.Var;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Compact binary encoding of persistent sorted maps and persistent lists, which is also used as the
+ * serialized form of {@link PathCopyingPersistentTreeMap} and {@link PersistentLinkedList}.
+ *
+ * <p>A collection is encoded as the number of its elements, followed by the elements in iteration
+ * order. For maps, keys and values alternate, and the keys are in ascending order. This allows to
+ * rebuild the tree of a map in O(n) time when reading. In contrast to default Java serialization of
+ * linked nodes, neither writing nor reading needs a stack frame per node, such that arbitrarily
+ * large collections can be handled.
+ *
+ * <p>The keys, values, and list elements are encoded by the given {@link ElementWriter}s and
+ * decoded by the given {@link ElementReader}s, e.g., {@code DataOutput::writeUTF} and {@code
+ * DataInput::readUTF} for strings. This avoids the overhead of Java serialization for the
+ * elements. The variants of the methods without such arguments use {@link
+ * ObjectOutput#writeObject(Object)} and {@link ObjectInput#readObject()}.
+ */
+public final class PersistentCollectionCodec {
+
+  private PersistentCollectionCodec() {}
+
+  /** Encoder for a single key, value, or element of a collection. */
+  @FunctionalInterface
+  public interface ElementWriter<T extends @Nullable Object> {
+    void write(DataOutput out, T element) throws IOException;
+  }
+
+  /** Decoder for a single key, value, or element of a collection. */
+  @FunctionalInterface
+  public interface ElementReader<T extends @Nullable Object> {
+    T read(DataInput in) throws IOException;
+  }
+
+  static <T extends @Nullable Object> ElementWriter<T> objectWriter(ObjectOutput out) {
+    return (pOut, element) -> out.writeObject(element);
+  }
+
+  static <T extends @Nullable Object> ElementReader<T> objectReader(ObjectInput in) {
+    return pIn -> {
+      try {
+        @SuppressWarnings("unchecked") // the caller is responsible for the type of the stream
+        T element = (T) in.readObject();
+        return element;
+      } catch (ClassNotFoundException e) {
+        InvalidClassException wrapped = new InvalidClassException(e.getMessage());
+        wrapped.initCause(e);
+        throw wrapped;
+      }
+    };
+  }
+
+  private static int readSize(DataInput in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new StreamCorruptedException("Negative size " + size);
+    }
+    return size;
+  }
+
+  /**
+   * Write the given map, whose keys need to be in natural order, to the given stream.
+   *
+   * @see #readSortedMap(DataInput, ElementReader, ElementReader)
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> void writeSortedMap(
+      DataOutput out,
+      SortedMap<K, V> map,
+      ElementWriter<? super K> keyWriter,
+      ElementWriter<? super V> valueWriter)
+      throws IOException {
+    checkNotNull(out);
+    checkArgument(
+        Collections3.guaranteedSameOrder(map.comparator(), null), "map not in natural order");
+    checkNotNull(keyWriter);
+    checkNotNull(valueWriter);
+
+    out.writeInt(map.size());
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      keyWriter.write(out, entry.getKey());
+      valueWriter.write(out, entry.getValue());
+    }
+  }
+
+  /**
+   * Write the given map, whose keys need to be in natural order, to the given stream, using Java
+   * serialization for keys and values.
+   *
+   * @see #readSortedMap(ObjectInput)
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> void writeSortedMap(
+      ObjectOutput out, SortedMap<K, V> map) throws IOException {
+    writeSortedMap(out, map, objectWriter(out), objectWriter(out));
+  }
+
+  /**
+   * Read a map that was written by {@link #writeSortedMap(DataOutput, SortedMap, ElementWriter,
+   * ElementWriter)}. This needs O(n) time and creates a balanced tree.
+   *
+   * @throws StreamCorruptedException if the stream does not contain a valid map, e.g., if the keys
+   *     are not strictly ascending
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentSortedMap<K, V> readSortedMap(
+          DataInput in,
+          ElementReader<? extends K> keyReader,
+          ElementReader<? extends V> valueReader)
+          throws IOException {
+    checkNotNull(in);
+    checkNotNull(keyReader);
+    checkNotNull(valueReader);
+
+    int size = readSize(in);
+    List<Map.Entry<K, V>> entries = new ArrayList<>(Math.min(size, 1 << 16));
+    @Var K previousKey = null;
+    for (int i = 0; i < size; i++) {
+      K key = keyReader.read(in);
+      if (key == null) {
+        throw new StreamCorruptedException("Null key");
+      }
+      if (previousKey != null && previousKey.compareTo(key) >= 0) {
+        throw new StreamCorruptedException("Key " + key + " not greater than " + previousKey);
+      }
+      entries.add(Maps.immutableEntry(key, valueReader.read(in)));
+      previousKey = key;
+    }
+    return PathCopyingPersistentTreeMap.fromSortedEntries(entries);
+  }
+
+  /**
+   * Read a map that was written by {@link #writeSortedMap(ObjectOutput, SortedMap)}.
+   *
+   * @throws StreamCorruptedException if the stream does not contain a valid map, e.g., if the keys
+   *     are not strictly ascending
+   * @throws ClassCastException if the keys are not mutually comparable
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentSortedMap<K, V> readSortedMap(ObjectInput in) throws IOException {
+    return readSortedMap(in, objectReader(in), objectReader(in));
+  }
+
+  /**
+   * Write the given list to the given stream.
+   *
+   * @see #readList(DataInput, ElementReader)
+   */
+  public static <T> void writeList(
+      DataOutput out, List<T> list, ElementWriter<? super T> elementWriter) throws IOException {
+    checkNotNull(out);
+    checkNotNull(elementWriter);
+
+    out.writeInt(list.size());
+    for (T element : list) {
+      elementWriter.write(out, element);
+    }
+  }
+
+  /**
+   * Write the given list to the given stream, using Java serialization for the elements.
+   *
+   * @see #readList(ObjectInput)
+   */
+  public static <T> void writeList(ObjectOutput out, List<T> list) throws IOException {
+    writeList(out, list, objectWriter(out));
+  }
+
+  /**
+   * Read a list that was written by {@link #writeList(DataOutput, List, ElementWriter)}. This needs
+   * O(n) time.
+   *
+   * @throws StreamCorruptedException if the stream does not contain a valid list, e.g., if it
+   *     contains <code>null</code>
+   */
+  public static <T> PersistentLinkedList<T> readList(
+      DataInput in, ElementReader<? extends T> elementReader) throws IOException {
+    checkNotNull(in);
+    checkNotNull(elementReader);
+
+    int size = readSize(in);
+    List<T> elements = new ArrayList<>(Math.min(size, 1 << 16));
+    for (int i = 0; i < size; i++) {
+      T element = elementReader.read(in);
+      if (element == null) {
+        throw new StreamCorruptedException("Null element");
+      }
+      elements.add(element);
+    }
+    return PersistentLinkedList.copyOf(elements);
+  }
+
+  /**
+   * Read a list that was written by {@link #writeList(ObjectOutput, List)}.
+   *
+   * @throws StreamCorruptedException if the stream does not contain a valid list, e.g., if it
+   *     contains <code>null</code>
+   */
+  public static <T> PersistentLinkedList<T> readList(ObjectInput in) throws IOException {
+    return readList(in, objectReader(in));
+  }
+}
@@ -0,0 +1,137 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.testing.SerializableTester;
+import com.google.errorprone.annotations.Var;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class PersistentCollectionCodecTest {
+
+  private static byte[] writeStringMap(SortedMap<String, Integer> map) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PersistentCollectionCodec.writeSortedMap(
+          out, map, DataOutput::writeUTF, DataOutput::writeInt);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static PersistentSortedMap<String, Integer> readStringMap(byte[] bytes)
+      throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      return PersistentCollectionCodec.readSortedMap(in, DataInput::readUTF, DataInput::readInt);
+    }
+  }
+
+  @Test
+  public void testSortedMapRoundTrip() throws IOException {
+    TreeMap<String, Integer> expected = new TreeMap<>();
+    for (int i = 0; i < 1000; i++) {
+      expected.put("key" + i, i);
+    }
+
+    PersistentSortedMap<String, Integer> map = readStringMap(writeStringMap(expected));
+    assertThat(map).containsExactlyEntriesIn(expected).inOrder();
+    ((PathCopyingPersistentTreeMap<String, Integer>) map).checkAssertions();
+  }
+
+  @Test
+  public void testSortedMapRoundTrip_empty() throws IOException {
+    assertThat(readStringMap(writeStringMap(PathCopyingPersistentTreeMap.of())))
+        .isSameInstanceAs(PathCopyingPersistentTreeMap.of());
+  }
+
+  @Test
+  public void testSortedMap_notNaturalOrder() {
+    SortedMap<String, Integer> map =
+        ImmutableSortedMap.<String, Integer>reverseOrder().put("a", 1).put("b", 2).buildOrThrow();
+    assertThrows(IllegalArgumentException.class, () -> writeStringMap(map));
+  }
+
+  @Test
+  public void testSortedMap_unsortedKeys() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(2);
+      out.writeUTF("b");
+      out.writeInt(1);
+      out.writeUTF("a");
+      out.writeInt(2);
+    }
+    assertThrows(StreamCorruptedException.class, () -> readStringMap(bytes.toByteArray()));
+  }
+
+  @Test
+  public void testSortedMap_negativeSize() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(-1);
+    }
+    assertThrows(StreamCorruptedException.class, () -> readStringMap(bytes.toByteArray()));
+  }
+
+  @Test
+  public void testListRoundTrip() throws IOException {
+    ImmutableList<String> expected = ImmutableList.of("a", "b", "a", "c");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PersistentCollectionCodec.writeList(out, expected, DataOutput::writeUTF);
+    }
+    List<String> list;
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      list = PersistentCollectionCodec.readList(in, DataInput::readUTF);
+    }
+    assertThat(list).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void testSerialization_largeMap() {
+    @Var PersistentSortedMap<Integer, Integer> map = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < 100_000; i++) {
+      map = map.putAndCopy(i, -i);
+    }
+
+    PersistentSortedMap<Integer, Integer> copy = SerializableTester.reserializeAndAssert(map);
+    ((PathCopyingPersistentTreeMap<Integer, Integer>) copy).checkAssertions();
+  }
+
+  @Test
+  public void testSerialization_longList() {
+    // Default serialization of the linked nodes would overflow the stack for such a list.
+    PersistentLinkedList<Integer> list =
+        PersistentLinkedList.copyOf(IntStream.range(0, 1_000_000).boxed().toList());
+
+    assertThat(SerializableTester.reserializeAndAssert(list)).hasSize(1_000_000);
+  }
+
+  @Test
+  public void testSerialization_emptyList() {
+    assertThat(SerializableTester.reserialize(PersistentLinkedList.<String>of()))
+        .isSameInstanceAs(PersistentLinkedList.of());
+  }
+}
@@ -0,0 +1,749 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collector;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An implementation of {@link PersistentList} that supports efficient modifications at both ends
+ * and efficient concatenation. It is based on a 2-3 finger tree annotated with sizes (Hinze and
+ * Paterson: "Finger trees: a simple general-purpose data structure"). Null values are not
+ * supported (similarly to {@link com.google.common.collect.ImmutableList}).
+ *
+ * <p>Adding and removing elements at the front ({@link #withFirst(Object)}, {@link #tail()}) and at
+ * the back ({@link #with(Object)}, {@link #withoutLast()}) needs amortized O(1) time, and {@link
+ * #head()} and {@link #last()} need O(1) time. Concatenating two lists with {@link
+ * #concat(PersistentDeque)} needs O(log(min(n1, n2))) time, i.e., appending a short list to a long
+ * one is as cheap as appending a few single elements. Indexed access ({@link #get(int)}) needs
+ * O(log(min(i, n - i))) time. This makes this class suitable for building long sequences
+ * incrementally from both ends or from pieces, which is quadratic with {@link
+ * PersistentLinkedList}.
+ *
+ * <p>All modifications share most of the internal structure with the original list. Removing
+ * arbitrary elements with {@link #without(Object)} and {@link #reversed()} need O(n) time.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <T> The type of values.
+ */
+@Immutable(containerOf = "T")
+@SuppressWarnings({
+  "deprecation", // javac complains about deprecated methods from PersistentList
+  "Immutable", // elements are stored as Object, AbstractList.modCount is unused
+})
+public final class PersistentDeque<T> extends AbstractList<T> implements PersistentList<T> {
+
+  private static final PersistentDeque<?> EMPTY = new PersistentDeque<>(Empty.INSTANCE);
+
+  /**
+   * The finger tree with the elements. On the top level, the items of the tree are the elements of
+   * the list. On each lower level, the items are {@link Node}s that contain 2 or 3 items of the
+   * level above. The "depth" that is passed to the helper methods is the number of levels above the
+   * current one, and an item with depth 0 is an element.
+   */
+  private final FingerTree tree;
+
+  private PersistentDeque(FingerTree pTree) {
+    tree = pTree;
+  }
+
+  /** Returns the empty list. */
+  @SuppressWarnings("unchecked")
+  public static <T> PersistentDeque<T> of() {
+    return (PersistentDeque<T>) EMPTY;
+  }
+
+  /** Returns a list containing the specified values. */
+  @SafeVarargs
+  @SuppressWarnings("varargs") // the array is only read
+  public static <T> PersistentDeque<T> of(T... values) {
+    return copyOf(Arrays.asList(values));
+  }
+
+  /** Returns a list with the values from the given {@link Iterable}, in the same order. */
+  public static <T> PersistentDeque<T> copyOf(Iterable<? extends T> values) {
+    if (values instanceof PersistentDeque<?>) {
+      @SuppressWarnings("unchecked") // immutable, so covariant
+      PersistentDeque<T> result = (PersistentDeque<T>) values;
+      return result;
+    }
+    @Var FingerTree result = Empty.INSTANCE;
+    for (T value : values) {
+      result = pushBack(result, checkNotNull(value), 0);
+    }
+    return wrap(result);
+  }
+
+  /**
+   * Return a {@link Collector} that creates PersistentDeques and can be used in {@link
+   * java.util.stream.Stream#collect(Collector)}. Partial results of parallel streams are
+   * concatenated efficiently.
+   */
+  public static <T> Collector<T, ?, PersistentDeque<T>> toPersistentDeque() {
+    return Collector.<T, Builder<T>, PersistentDeque<T>>of(
+        Builder::new,
+        Builder::add,
+        (builder1, builder2) -> {
+          builder1.tree = concat(builder1.tree, new Object[0], builder2.tree, 0);
+          return builder1;
+        },
+        builder -> wrap(builder.tree));
+  }
+
+  private static final class Builder<T> {
+    private FingerTree tree = Empty.INSTANCE;
+
+    private void add(T value) {
+      tree = pushBack(tree, checkNotNull(value), 0);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> PersistentDeque<T> wrap(FingerTree pTree) {
+    return pTree == Empty.INSTANCE ? (PersistentDeque<T>) EMPTY : new PersistentDeque<>(pTree);
+  }
+
+  // read operations
+
+  @Override
+  public int size() {
+    return tree.size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return tree == Empty.INSTANCE;
+  }
+
+  /**
+   * Returns the first element of the list in O(1) time.
+   *
+   * @throws NoSuchElementException if the list is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public T head() {
+    if (tree instanceof Single) {
+      return (T) ((Single) tree).item;
+    } else if (tree instanceof Deep) {
+      return (T) firstElement(((Deep) tree).prefix[0]);
+    } else {
+      throw new NoSuchElementException();
+    }
+  }
+
+  /**
+   * Returns the last element of the list in O(1) time.
+   *
+   * @throws NoSuchElementException if the list is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public T last() {
+    if (tree instanceof Single) {
+      return (T) ((Single) tree).item;
+    } else if (tree instanceof Deep) {
+      Object[] suffix = ((Deep) tree).suffix;
+      return (T) lastElement(suffix[suffix.length - 1]);
+    } else {
+      throw new NoSuchElementException();
+    }
+  }
+
+  /**
+   * Returns the element at the given position in O(log(min(index, size - index))) time.
+   *
+   * @throws IndexOutOfBoundsException if the index is not smaller than the size of the list.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    checkElementIndex(index, tree.size);
+    return (T) getInTree(tree, index, 0);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iter<>(tree);
+  }
+
+  // modifying operations
+
+  /**
+   * Returns a new list with the given value appended at the end. This needs amortized O(1) time.
+   */
+  @Override
+  public PersistentDeque<T> with(T value) {
+    return new PersistentDeque<>(pushBack(tree, checkNotNull(value), 0));
+  }
+
+  /**
+   * Returns a new list with the given value added at the front. This needs amortized O(1) time.
+   */
+  public PersistentDeque<T> withFirst(T value) {
+    return new PersistentDeque<>(pushFront(tree, checkNotNull(value), 0));
+  }
+
+  /**
+   * Returns a new list with the given values appended at the end, in the order in which they are
+   * in the given list. If the given list is a {@link PersistentDeque}, this is the same as {@link
+   * #concat(PersistentDeque)}.
+   */
+  @Override
+  public PersistentDeque<T> withAll(List<T> values) {
+    if (values instanceof PersistentDeque<?>) {
+      return concat((PersistentDeque<T>) values);
+    }
+    @Var FingerTree result = tree;
+    for (T value : values) {
+      result = pushBack(result, checkNotNull(value), 0);
+    }
+    return wrap(result);
+  }
+
+  /**
+   * Returns the concatenation of this list and the given list. This needs O(log(min(n1, n2)))
+   * time, where n1 and n2 are the sizes of the two lists.
+   */
+  public PersistentDeque<T> concat(PersistentDeque<? extends T> other) {
+    if (other.isEmpty()) {
+      return this;
+    } else if (isEmpty()) {
+      @SuppressWarnings("unchecked") // immutable, so covariant
+      PersistentDeque<T> result = (PersistentDeque<T>) other;
+      return result;
+    }
+    return new PersistentDeque<>(concat(tree, new Object[0], other.tree, 0));
+  }
+
+  /**
+   * Returns a new list without the first element. This needs amortized O(1) time.
+   *
+   * @throws NoSuchElementException if the list is empty.
+   */
+  public PersistentDeque<T> tail() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return wrap(popFront(tree, 0));
+  }
+
+  /**
+   * Returns a new list without the last element. This needs amortized O(1) time.
+   *
+   * @throws NoSuchElementException if the list is empty.
+   */
+  public PersistentDeque<T> withoutLast() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return wrap(popBack(tree, 0));
+  }
+
+  /**
+   * Returns a new list omitting the first occurrence of the given value. This needs O(n) time.
+   */
+  @Override
+  public PersistentDeque<T> without(@Nullable T value) {
+    int index = indexOf(value);
+    if (index < 0) {
+      return this;
+    }
+    @Var FingerTree result = Empty.INSTANCE;
+    @Var int i = 0;
+    for (T element : this) {
+      if (i++ != index) {
+        result = pushBack(result, element, 0);
+      }
+    }
+    return wrap(result);
+  }
+
+  @Override
+  public PersistentDeque<T> empty() {
+    return of();
+  }
+
+  /** Returns a new list with the elements in the reverse order. This needs O(n) time. */
+  @Override
+  public PersistentDeque<T> reversed() {
+    @Var FingerTree result = Empty.INSTANCE;
+    for (T element : this) {
+      result = pushFront(result, element, 0);
+    }
+    return wrap(result);
+  }
+
+  // finger tree
+
+  /** A 2-3 finger tree with a cached size (number of elements). */
+  @Immutable
+  private abstract static class FingerTree {
+    final int size;
+
+    FingerTree(int pSize) {
+      size = pSize;
+    }
+  }
+
+  @Immutable
+  private static final class Empty extends FingerTree {
+    private static final Empty INSTANCE = new Empty();
+
+    private Empty() {
+      super(0);
+    }
+  }
+
+  @Immutable
+  private static final class Single extends FingerTree {
+    final Object item;
+
+    Single(Object pItem, int depth) {
+      super(sizeOf(pItem, depth));
+      item = pItem;
+    }
+  }
+
+  @Immutable
+  @SuppressWarnings("Immutable") // arrays are never modified after construction
+  private static final class Deep extends FingerTree {
+
+    /** 1 to 4 items at the front. */
+    final Object[] prefix;
+
+    /** Tree with the {@link Node}s of the next lower level. */
+    final FingerTree middle;
+
+    /** 1 to 4 items at the back. */
+    final Object[] suffix;
+
+    Deep(Object[] pPrefix, FingerTree pMiddle, Object[] pSuffix, int depth) {
+      super(sizeOf(pPrefix, depth) + pMiddle.size + sizeOf(pSuffix, depth));
+      prefix = pPrefix;
+      middle = pMiddle;
+      suffix = pSuffix;
+    }
+  }
+
+  /** An inner node with 2 or 3 items and a cached size (number of elements). */
+  @Immutable
+  @SuppressWarnings("Immutable") // array is never modified after construction
+  private static final class Node {
+    final int size;
+    final Object[] items;
+
+    Node(int depth, Object... pItems) {
+      size = sizeOf(pItems, depth);
+      items = pItems;
+    }
+  }
+
+  private static int sizeOf(Object item, int depth) {
+    return depth == 0 ? 1 : ((Node) item).size;
+  }
+
+  private static int sizeOf(Object[] items, int depth) {
+    if (depth == 0) {
+      return items.length;
+    }
+    @Var int result = 0;
+    for (Object item : items) {
+      result += ((Node) item).size;
+    }
+    return result;
+  }
+
+  private static Object firstElement(@Var Object item) {
+    while (item instanceof Node) {
+      item = ((Node) item).items[0];
+    }
+    return item;
+  }
+
+  private static Object lastElement(@Var Object item) {
+    while (item instanceof Node) {
+      Object[] items = ((Node) item).items;
+      item = items[items.length - 1];
+    }
+    return item;
+  }
+
+  private static Object[] prepend(Object item, Object[] items) {
+    Object[] result = new Object[items.length + 1];
+    result[0] = item;
+    System.arraycopy(items, 0, result, 1, items.length);
+    return result;
+  }
+
+  private static Object[] append(Object[] items, Object item) {
+    Object[] result = Arrays.copyOf(items, items.length + 1);
+    result[items.length] = item;
+    return result;
+  }
+
+  /** Create a tree from a digit with 1 to 4 items. */
+  private static FingerTree fromDigit(Object[] items, int depth) {
+    @Var FingerTree result = Empty.INSTANCE;
+    for (Object item : items) {
+      result = pushBack(result, item, depth);
+    }
+    return result;
+  }
+
+  private static FingerTree pushFront(FingerTree tree, Object item, int depth) {
+    if (tree instanceof Empty) {
+      return new Single(item, depth);
+    } else if (tree instanceof Single) {
+      Object[] suffix = {((Single) tree).item};
+      return new Deep(new Object[] {item}, Empty.INSTANCE, suffix, depth);
+    }
+    Deep deep = (Deep) tree;
+    Object[] prefix = deep.prefix;
+    if (prefix.length < 4) {
+      return new Deep(prepend(item, prefix), deep.middle, deep.suffix, depth);
+    }
+    Node node = new Node(depth, prefix[1], prefix[2], prefix[3]);
+    return new Deep(
+        new Object[] {item, prefix[0]},
+        pushFront(deep.middle, node, depth + 1),
+        deep.suffix,
+        depth);
+  }
+
+  private static FingerTree pushBack(FingerTree tree, Object item, int depth) {
+    if (tree instanceof Empty) {
+      return new Single(item, depth);
+    } else if (tree instanceof Single) {
+      Object[] prefix = {((Single) tree).item};
+      return new Deep(prefix, Empty.INSTANCE, new Object[] {item}, depth);
+    }
+    Deep deep = (Deep) tree;
+    Object[] suffix = deep.suffix;
+    if (suffix.length < 4) {
+      return new Deep(deep.prefix, deep.middle, append(suffix, item), depth);
+    }
+    Node node = new Node(depth, suffix[0], suffix[1], suffix[2]);
+    return new Deep(
+        deep.prefix,
+        pushBack(deep.middle, node, depth + 1),
+        new Object[] {suffix[3], item},
+        depth);
+  }
+
+  /** Remove the first item of a non-empty tree. */
+  private static FingerTree popFront(FingerTree tree, int depth) {
+    if (tree instanceof Single) {
+      return Empty.INSTANCE;
+    }
+    Deep deep = (Deep) tree;
+    if (deep.prefix.length > 1) {
+      return new Deep(
+          Arrays.copyOfRange(deep.prefix, 1, deep.prefix.length), deep.middle, deep.suffix, depth);
+    }
+    if (deep.middle instanceof Empty) {
+      return fromDigit(deep.suffix, depth);
+    }
+    Node first = (Node) firstItem(deep.middle);
+    return new Deep(first.items, popFront(deep.middle, depth + 1), deep.suffix, depth);
+  }
+
+  /** Remove the last item of a non-empty tree. */
+  private static FingerTree popBack(FingerTree tree, int depth) {
+    if (tree instanceof Single) {
+      return Empty.INSTANCE;
+    }
+    Deep deep = (Deep) tree;
+    int suffixLength = deep.suffix.length;
+    if (suffixLength > 1) {
+      return new Deep(
+          deep.prefix, deep.middle, Arrays.copyOf(deep.suffix, suffixLength - 1), depth);
+    }
+    if (deep.middle instanceof Empty) {
+      return fromDigit(deep.prefix, depth);
+    }
+    Node last = (Node) lastItem(deep.middle);
+    return new Deep(deep.prefix, popBack(deep.middle, depth + 1), last.items, depth);
+  }
+
+  private static Object firstItem(FingerTree tree) {
+    return tree instanceof Single ? ((Single) tree).item : ((Deep) tree).prefix[0];
+  }
+
+  private static Object lastItem(FingerTree tree) {
+    if (tree instanceof Single) {
+      return ((Single) tree).item;
+    }
+    Object[] suffix = ((Deep) tree).suffix;
+    return suffix[suffix.length - 1];
+  }
+
+  /** Concatenate two trees with the given items in between. */
+  private static FingerTree concat(FingerTree left, Object[] middle, FingerTree right, int depth) {
+    if (left instanceof Empty) {
+      @Var FingerTree result = right;
+      for (int i = middle.length - 1; i >= 0; i--) {
+        result = pushFront(result, middle[i], depth);
+      }
+      return result;
+    } else if (right instanceof Empty) {
+      @Var FingerTree result = left;
+      for (Object item : middle) {
+        result = pushBack(result, item, depth);
+      }
+      return result;
+    } else if (left instanceof Single) {
+      return pushFront(
+          concat(Empty.INSTANCE, middle, right, depth), ((Single) left).item, depth);
+    } else if (right instanceof Single) {
+      return pushBack(concat(left, middle, Empty.INSTANCE, depth), ((Single) right).item, depth);
+    }
+    Deep leftDeep = (Deep) left;
+    Deep rightDeep = (Deep) right;
+    Object[] nodes = toNodes(leftDeep.suffix, middle, rightDeep.prefix, depth);
+    return new Deep(
+        leftDeep.prefix,
+        concat(leftDeep.middle, nodes, rightDeep.middle, depth + 1),
+        rightDeep.suffix,
+        depth);
+  }
+
+  /** Group the given 2 to 12 items into nodes with 2 or 3 items, preferring 3 items. */
+  private static Object[] toNodes(Object[] items1, Object[] items2, Object[] items3, int depth) {
+    Object[] items = new Object[items1.length + items2.length + items3.length];
+    System.arraycopy(items1, 0, items, 0, items1.length);
+    System.arraycopy(items2, 0, items, items1.length, items2.length);
+    System.arraycopy(items3, 0, items, items1.length + items2.length, items3.length);
+
+    Object[] result = new Object[(items.length + 2) / 3];
+    @Var int pos = 0;
+    for (int i = 0; i < result.length; i++) {
+      int remaining = items.length - pos;
+      int nodeSize = (remaining == 2 || remaining == 4) ? 2 : 3;
+      result[i] = new Node(depth, Arrays.copyOfRange(items, pos, pos + nodeSize));
+      pos += nodeSize;
+    }
+    return result;
+  }
+
+  /** Return the element with the given index relative to the start of the given tree. */
+  private static Object getInTree(FingerTree tree, @Var int index, int depth) {
+    if (tree instanceof Single) {
+      return getInItem(((Single) tree).item, index, depth);
+    }
+    Deep deep = (Deep) tree;
+    if (index < tree.size / 2) {
+      for (Object item : deep.prefix) {
+        int itemSize = sizeOf(item, depth);
+        if (index < itemSize) {
+          return getInItem(item, index, depth);
+        }
+        index -= itemSize;
+      }
+      if (index < deep.middle.size) {
+        return getInTree(deep.middle, index, depth + 1);
+      }
+      index -= deep.middle.size;
+      return getInItems(deep.suffix, index, depth);
+
+    } else {
+      // search from the back
+      @Var int indexFromBack = tree.size - index;
+      Object[] suffix = deep.suffix;
+      for (int i = suffix.length - 1; i >= 0; i--) {
+        int itemSize = sizeOf(suffix[i], depth);
+        if (indexFromBack <= itemSize) {
+          return getInItem(suffix[i], itemSize - indexFromBack, depth);
+        }
+        indexFromBack -= itemSize;
+      }
+      if (indexFromBack <= deep.middle.size) {
+        return getInTree(deep.middle, deep.middle.size - indexFromBack, depth + 1);
+      }
+      indexFromBack -= deep.middle.size;
+      return getInItems(deep.prefix, sizeOf(deep.prefix, depth) - indexFromBack, depth);
+    }
+  }
+
+  private static Object getInItems(Object[] items, @Var int index, int depth) {
+    for (Object item : items) {
+      int itemSize = sizeOf(item, depth);
+      if (index < itemSize) {
+        return getInItem(item, index, depth);
+      }
+      index -= itemSize;
+    }
+    throw new AssertionError("index out of range");
+  }
+
+  private static Object getInItem(Object item, int index, int depth) {
+    return depth == 0 ? item : getInItems(((Node) item).items, index, depth - 1);
+  }
+
+  /** Iterator that traverses the tree with an explicit stack. */
+  private static final class Iter<T> extends UnmodifiableIterator<T> {
+
+    /** Trees and items that still need to be visited, with their depth on the other stack. */
+    private final Deque<Object> stack = new ArrayDeque<>();
+
+    private final Deque<Integer> depths = new ArrayDeque<>();
+
+    Iter(FingerTree pTree) {
+      if (!(pTree instanceof Empty)) {
+        push(pTree, 0);
+      }
+    }
+
+    private void push(Object treeOrItem, int depth) {
+      stack.push(treeOrItem);
+      depths.push(depth);
+    }
+
+    private void pushAll(Object[] items, int depth) {
+      for (int i = items.length - 1; i >= 0; i--) {
+        push(items[i], depth);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+      if (stack.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      while (true) {
+        Object current = stack.pop();
+        int depth = depths.pop();
+        if (current instanceof Deep) {
+          Deep deep = (Deep) current;
+          pushAll(deep.suffix, depth);
+          if (!(deep.middle instanceof Empty)) {
+            push(deep.middle, depth + 1);
+          }
+          pushAll(deep.prefix, depth);
+        } else if (current instanceof Single) {
+          push(((Single) current).item, depth);
+        } else if (depth > 0) {
+          pushAll(((Node) current).items, depth - 1);
+        } else {
+          return (T) current;
+        }
+      }
+    }
+  }
+
+  // unsupported operations
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean add(T pE) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void add(int pIndex, T pElement) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean addAll(Collection<? extends T> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean addAll(int pIndex, Collection<? extends T> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void clear() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public T remove(int pIndex) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean remove(@Nullable Object pO) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean removeAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void replaceAll(UnaryOperator<T> pOperator) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean retainAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public T set(int pIndex, T pElement) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void sort(@Nullable Comparator<? super T> pC) {
+    throw new UnsupportedOperationException();
+  }
+}
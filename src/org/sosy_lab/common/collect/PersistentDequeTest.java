@@ -0,0 +1,187 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.testing.ListTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringListGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.IntStream;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentDequeTest {
+
+  private static final TestStringListGenerator listGenerator =
+      new TestStringListGenerator() {
+
+        @Override
+        protected List<String> create(String[] pElements) {
+          // build from both ends to test trees of different shape
+          @Var PersistentDeque<String> result = PersistentDeque.of();
+          int middle = pElements.length / 2;
+          for (int i = middle; i < pElements.length; i++) {
+            result = result.with(pElements[i]);
+          }
+          for (int i = middle - 1; i >= 0; i--) {
+            result = result.withFirst(pElements[i]);
+          }
+          return result;
+        }
+      };
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentDequeTest.class));
+
+    suite.addTest(
+        ListTestSuiteBuilder.using(listGenerator)
+            .named("PersistentDeque")
+            .withFeatures(CollectionFeature.KNOWN_ORDER, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    return IntStream.range(from, to).boxed().collect(toList());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random rnd = new Random(0);
+    @Var PersistentDeque<Integer> deque = PersistentDeque.of();
+    Deque<Integer> expected = new ArrayDeque<>();
+    for (int i = 0; i < 20000; i++) {
+      int op = rnd.nextInt(6);
+      if (op < 2 || expected.isEmpty()) {
+        deque = deque.with(i);
+        expected.addLast(i);
+      } else if (op < 4) {
+        deque = deque.withFirst(i);
+        expected.addFirst(i);
+      } else if (op == 4) {
+        deque = deque.tail();
+        expected.removeFirst();
+      } else {
+        deque = deque.withoutLast();
+        expected.removeLast();
+      }
+      assertThat(deque.size()).isEqualTo(expected.size());
+      if (!expected.isEmpty()) {
+        assertThat(deque.head()).isEqualTo(expected.getFirst());
+        assertThat(deque.last()).isEqualTo(expected.getLast());
+      }
+      if (i % 1000 == 0) {
+        assertThat(deque).containsExactlyElementsIn(expected).inOrder();
+      }
+    }
+    assertThat(deque).containsExactlyElementsIn(expected).inOrder();
+    List<Integer> expectedList = new ArrayList<>(expected);
+    for (int i = 0; i < expectedList.size(); i++) {
+      assertThat(deque.get(i)).isEqualTo(expectedList.get(i));
+    }
+  }
+
+  @Test
+  public void testConcat() {
+    Random rnd = new Random(0);
+    for (int i = 0; i < 200; i++) {
+      int size1 = rnd.nextInt(i + 1);
+      int size2 = rnd.nextInt(200);
+      PersistentDeque<Integer> deque1 = PersistentDeque.copyOf(range(0, size1));
+      PersistentDeque<Integer> deque2 = PersistentDeque.copyOf(range(size1, size1 + size2));
+      PersistentDeque<Integer> result = deque1.concat(deque2);
+      assertThat(result.size()).isEqualTo(size1 + size2);
+      assertThat(result).containsExactlyElementsIn(range(0, size1 + size2)).inOrder();
+      for (int j = 0; j < result.size(); j++) {
+        assertThat(result.get(j)).isEqualTo(j);
+      }
+      assertThat(deque1).containsExactlyElementsIn(range(0, size1)).inOrder();
+      assertThat(deque2).containsExactlyElementsIn(range(size1, size1 + size2)).inOrder();
+    }
+  }
+
+  @Test
+  public void testRepeatedConcat() {
+    @Var PersistentDeque<Integer> deque = PersistentDeque.of();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      List<Integer> piece = range(i * 10, i * 10 + i % 13);
+      if (i % 2 == 0) {
+        deque = deque.concat(PersistentDeque.copyOf(piece));
+        expected.addAll(piece);
+      } else {
+        deque = PersistentDeque.copyOf(piece).concat(deque);
+        expected.addAll(0, piece);
+      }
+    }
+    assertThat(deque).containsExactlyElementsIn(expected).inOrder();
+    for (int j = 0; j < expected.size(); j += 7) {
+      assertThat(deque.get(j)).isEqualTo(expected.get(j));
+    }
+  }
+
+  @Test
+  public void testWithAll() {
+    PersistentDeque<Integer> deque = PersistentDeque.copyOf(range(0, 100));
+    assertThat(deque.withAll(range(100, 200)))
+        .containsExactlyElementsIn(range(0, 200))
+        .inOrder();
+    assertThat(deque.withAll(PersistentDeque.copyOf(range(100, 200))))
+        .containsExactlyElementsIn(range(0, 200))
+        .inOrder();
+  }
+
+  @Test
+  public void testCollector() {
+    assertThat(range(0, 5000).parallelStream().collect(PersistentDeque.toPersistentDeque()))
+        .containsExactlyElementsIn(range(0, 5000))
+        .inOrder();
+  }
+
+  @Test
+  public void testWithout() {
+    PersistentDeque<String> deque = PersistentDeque.of("a", "b", "c", "b");
+    assertThat(deque.without("b")).containsExactly("a", "c", "b").inOrder();
+    assertThat(deque.without("d")).isSameInstanceAs(deque);
+  }
+
+  @Test
+  public void testReversed() {
+    List<Integer> expected = range(0, 1000);
+    PersistentDeque<Integer> deque = PersistentDeque.copyOf(expected);
+    Collections.reverse(expected);
+    assertThat(deque.reversed()).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void testEmpty() {
+    PersistentDeque<String> empty = PersistentDeque.of();
+    assertThrows(NoSuchElementException.class, () -> empty.head());
+    assertThrows(NoSuchElementException.class, () -> empty.last());
+    assertThrows(NoSuchElementException.class, () -> empty.tail());
+    assertThrows(NoSuchElementException.class, () -> empty.withoutLast());
+    assertThat(PersistentDeque.of("a").tail()).isSameInstanceAs(empty);
+    assertThrows(NullPointerException.class, () -> empty.withFirst(null));
+  }
+}
@@ -0,0 +1,910 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * This is an implementation of {@link PersistentMap} that is based on hash array mapped tries
+ * (HAMT) and path copying. Keys need to implement {@link Object#hashCode()} and {@link
+ * Object#equals(Object)}, but no ordering.
+ *
+ * <p>Each node of the trie has up to 32 slots, which are selected by 5 bits of the hash code of the
+ * keys, and each slot contains either an entry or a child node. Only non-empty slots take memory,
+ * because each node has bitmaps that tell which slots are used. Entries whose keys have the same
+ * hash code are stored in special collision nodes. This implementation uses the canonical form of
+ * the trie that is described by Steindorfer and Vinju in "Optimizing Hash-Array Mapped Tries for
+ * Fast and Lean Immutable JVM Collections" (OOPSLA 2015): entries are stored as high in the trie as
+ * possible, and removals compact the trie accordingly. So the shape of the trie depends only on its
+ * content, except for collision nodes, which keep their entries in insertion order.
+ *
+ * <p>The operations lookup, insert, and remove need O(log32 n) time, which is at most 7 levels for
+ * keys with distinct hash codes. Insert and remove copy only the nodes on the path to the modified
+ * entry and share all other nodes with the original map.
+ *
+ * <p>This implementation does not support <code>null</code> keys (but <code>null</code> values).
+ * The iteration order is unspecified.
+ *
+ * <p>As for all {@link PersistentMap}s, all collection views and all iterators are immutable. They
+ * do not reflect changes made to the map and all their modifying operations throw {@link
+ * UnsupportedOperationException}.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads. Two concurrent accesses to a modifying operation on the same instance will create
+ * two new maps, each reflecting exactly the operation executed by the current thread, and not
+ * reflecting the operation executed by the other thread.
+ *
+ * @param <K> The type of keys.
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = {"K", "V"})
+public final class PersistentHashMap<K, V extends @Nullable Object>
+    extends AbstractImmutableMap<K, V> implements PersistentMap<K, V>, Serializable {
+
+  private static final long serialVersionUID = -3261749825619460234L;
+
+  /** The number of bits of the hash code that select the slot on each level of the trie. */
+  private static final int BITS_PER_LEVEL = 5;
+
+  private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+  /** Result of lookups for missing keys (null cannot be used because it is a legal value). */
+  private static final Object NOT_FOUND = new Object();
+
+  /**
+   * Node of the trie. There are two kinds of nodes: {@link BitmapNode} for the regular levels and
+   * {@link CollisionNode} for entries whose keys have the same hash code.
+   */
+  @Immutable(containerOf = {"K", "V"})
+  private abstract static sealed class Node<K, V extends @Nullable Object>
+      permits BitmapNode, CollisionNode {
+
+    /**
+     * Return the value for the given key in this subtrie or {@link #NOT_FOUND}.
+     *
+     * @param shift The number of bits of the hash that were already used on the levels above.
+     */
+    abstract @Nullable Object find(Object key, int hash, int shift);
+
+    /**
+     * Return a subtrie with the given mapping and all mappings of this subtrie except for the given
+     * key, or this instance if the mapping is already present.
+     */
+    abstract Node<K, V> put(K key, V value, int hash, int shift, SizeChange sizeChange);
+
+    /** Return a subtrie without the given key, or this instance if the key is not present. */
+    abstract Node<K, V> remove(Object key, int hash, int shift, SizeChange sizeChange);
+
+    /** Return the number of entries that are stored directly in this node. */
+    abstract int entryCount();
+
+    /** Return the number of children of this node. */
+    abstract int nodeCount();
+
+    abstract K keyAt(int index);
+
+    abstract V valueAt(int index);
+
+    abstract Node<K, V> nodeAt(int index);
+  }
+
+  /** Mutable flag that tells whether the last operation on a trie has changed its size. */
+  private static final class SizeChange {
+    private boolean changed = false;
+  }
+
+  /**
+   * Regular node of the trie with 32 slots. The used slots are marked in two bitmaps, one for slots
+   * with entries and one for slots with child nodes. The content array stores only the used slots:
+   * first keys and values of all entries (alternating), and then all child nodes, each in the order
+   * of the slots.
+   */
+  @Immutable(containerOf = {"K", "V"})
+  @SuppressWarnings("Immutable") // content is never modified after construction
+  private static final class BitmapNode<K, V extends @Nullable Object> extends Node<K, V> {
+
+    private static final BitmapNode<?, ?> EMPTY = new BitmapNode<>(0, 0, new Object[0]);
+
+    private final int entryMap;
+    private final int nodeMap;
+    private final @Nullable Object[] content;
+
+    BitmapNode(int pEntryMap, int pNodeMap, @Nullable Object[] pContent) {
+      entryMap = pEntryMap;
+      nodeMap = pNodeMap;
+      content = pContent;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V extends @Nullable Object> BitmapNode<K, V> empty() {
+      return (BitmapNode<K, V>) EMPTY;
+    }
+
+    /** Create a node with a single entry that is valid as the root of a trie. */
+    static <K, V extends @Nullable Object> BitmapNode<K, V> singleEntry(K key, V value, int hash) {
+      return new BitmapNode<>(bit(hash, 0), 0, new @Nullable Object[] {key, value});
+    }
+
+    private int entryIndex(int bit) {
+      return Integer.bitCount(entryMap & (bit - 1));
+    }
+
+    private int nodeIndex(int bit) {
+      return Integer.bitCount(nodeMap & (bit - 1));
+    }
+
+    @Override
+    int entryCount() {
+      return Integer.bitCount(entryMap);
+    }
+
+    @Override
+    int nodeCount() {
+      return Integer.bitCount(nodeMap);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    K keyAt(int index) {
+      return (K) content[2 * index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+      return (V) content[2 * index + 1];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Node<K, V> nodeAt(int index) {
+      return (Node<K, V>) content[2 * entryCount() + index];
+    }
+
+    @Override
+    @Nullable Object find(Object key, int hash, int shift) {
+      int bit = bit(hash, shift);
+      if ((entryMap & bit) != 0) {
+        int index = entryIndex(bit);
+        return key.equals(keyAt(index)) ? valueAt(index) : NOT_FOUND;
+      } else if ((nodeMap & bit) != 0) {
+        return nodeAt(nodeIndex(bit)).find(key, hash, shift + BITS_PER_LEVEL);
+      }
+      return NOT_FOUND;
+    }
+
+    @Override
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether node is the same
+    Node<K, V> put(K key, V value, int hash, int shift, SizeChange sizeChange) {
+      int bit = bit(hash, shift);
+      if ((entryMap & bit) != 0) {
+        int index = entryIndex(bit);
+        K currentKey = keyAt(index);
+        if (key.equals(currentKey)) {
+          if (valueAt(index) == value) {
+            return this;
+          }
+          @Nullable Object[] newContent = content.clone();
+          newContent[2 * index + 1] = value;
+          return new BitmapNode<>(entryMap, nodeMap, newContent);
+        }
+
+        // Both entries need to be moved into a new child node.
+        sizeChange.changed = true;
+        Node<K, V> newNode =
+            mergeEntries(
+                currentKey,
+                valueAt(index),
+                currentKey.hashCode(),
+                key,
+                value,
+                hash,
+                shift + BITS_PER_LEVEL);
+        return copyAndMoveEntryToNode(bit, index, newNode);
+
+      } else if ((nodeMap & bit) != 0) {
+        int index = nodeIndex(bit);
+        Node<K, V> node = nodeAt(index);
+        Node<K, V> newNode = node.put(key, value, hash, shift + BITS_PER_LEVEL, sizeChange);
+        return newNode == node ? this : copyAndSetNode(index, newNode);
+
+      } else {
+        sizeChange.changed = true;
+        return copyAndInsertEntry(bit, key, value);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether node is the same
+    Node<K, V> remove(Object key, int hash, int shift, SizeChange sizeChange) {
+      int bit = bit(hash, shift);
+      if ((entryMap & bit) != 0) {
+        int index = entryIndex(bit);
+        if (!key.equals(keyAt(index))) {
+          return this;
+        }
+        sizeChange.changed = true;
+        if (shift > 0 && entryCount() == 2 && nodeCount() == 0) {
+          // Only one entry remains, which the parent will store directly.
+          // We create a node that would also be valid as the root of the trie.
+          int otherIndex = 1 - index;
+          K otherKey = keyAt(otherIndex);
+          return singleEntry(otherKey, valueAt(otherIndex), otherKey.hashCode());
+        }
+        return copyAndRemoveEntry(bit, index);
+
+      } else if ((nodeMap & bit) != 0) {
+        int index = nodeIndex(bit);
+        Node<K, V> node = nodeAt(index);
+        Node<K, V> newNode = node.remove(key, hash, shift + BITS_PER_LEVEL, sizeChange);
+        if (newNode == node) {
+          return this;
+        }
+        if (newNode.entryCount() == 1 && newNode.nodeCount() == 0) {
+          // Child node with a single entry is not allowed, the entry needs to be stored here.
+          if (entryCount() == 0 && nodeCount() == 1) {
+            // This node would have a single entry as well, let the parent handle it.
+            return newNode;
+          }
+          return copyAndMoveNodeToEntry(bit, index, newNode.keyAt(0), newNode.valueAt(0));
+        }
+        return copyAndSetNode(index, newNode);
+      }
+      return this;
+    }
+
+    private BitmapNode<K, V> copyAndSetNode(int index, Node<K, V> newNode) {
+      @Nullable Object[] newContent = content.clone();
+      newContent[2 * entryCount() + index] = newNode;
+      return new BitmapNode<>(entryMap, nodeMap, newContent);
+    }
+
+    private BitmapNode<K, V> copyAndInsertEntry(int bit, K key, V value) {
+      int offset = 2 * entryIndex(bit);
+      @Nullable Object[] newContent = new Object[content.length + 2];
+      System.arraycopy(content, 0, newContent, 0, offset);
+      newContent[offset] = key;
+      newContent[offset + 1] = value;
+      System.arraycopy(content, offset, newContent, offset + 2, content.length - offset);
+      return new BitmapNode<>(entryMap | bit, nodeMap, newContent);
+    }
+
+    private BitmapNode<K, V> copyAndRemoveEntry(int bit, int index) {
+      int offset = 2 * index;
+      @Nullable Object[] newContent = new Object[content.length - 2];
+      System.arraycopy(content, 0, newContent, 0, offset);
+      System.arraycopy(content, offset + 2, newContent, offset, content.length - offset - 2);
+      return new BitmapNode<>(entryMap ^ bit, nodeMap, newContent);
+    }
+
+    private BitmapNode<K, V> copyAndMoveEntryToNode(int bit, int entryIndex, Node<K, V> node) {
+      int entryOffset = 2 * entryIndex;
+      int oldNodesOffset = 2 * entryCount();
+      int newNodesOffset = oldNodesOffset - 2;
+      int nodeIndex = nodeIndex(bit);
+
+      @Nullable Object[] newContent = new Object[content.length - 1];
+      System.arraycopy(content, 0, newContent, 0, entryOffset);
+      System.arraycopy(
+          content, entryOffset + 2, newContent, entryOffset, oldNodesOffset - entryOffset - 2);
+      System.arraycopy(content, oldNodesOffset, newContent, newNodesOffset, nodeIndex);
+      newContent[newNodesOffset + nodeIndex] = node;
+      System.arraycopy(
+          content,
+          oldNodesOffset + nodeIndex,
+          newContent,
+          newNodesOffset + nodeIndex + 1,
+          content.length - oldNodesOffset - nodeIndex);
+      return new BitmapNode<>(entryMap ^ bit, nodeMap ^ bit, newContent);
+    }
+
+    private BitmapNode<K, V> copyAndMoveNodeToEntry(int bit, int nodeIndex, K key, V value) {
+      int entryOffset = 2 * entryIndex(bit);
+      int oldNodesOffset = 2 * entryCount();
+      int newNodesOffset = oldNodesOffset + 2;
+
+      @Nullable Object[] newContent = new Object[content.length + 1];
+      System.arraycopy(content, 0, newContent, 0, entryOffset);
+      newContent[entryOffset] = key;
+      newContent[entryOffset + 1] = value;
+      System.arraycopy(
+          content, entryOffset, newContent, entryOffset + 2, oldNodesOffset - entryOffset);
+      System.arraycopy(content, oldNodesOffset, newContent, newNodesOffset, nodeIndex);
+      System.arraycopy(
+          content,
+          oldNodesOffset + nodeIndex + 1,
+          newContent,
+          newNodesOffset + nodeIndex,
+          content.length - oldNodesOffset - nodeIndex - 1);
+      return new BitmapNode<>(entryMap ^ bit, nodeMap ^ bit, newContent);
+    }
+  }
+
+  /**
+   * Node for entries whose keys have the same hash code, which can only be distinguished by
+   * equals(). Such nodes only exist below the last regular level of the trie, when all bits of the
+   * hash code are used up, and contain at least two entries.
+   */
+  @Immutable(containerOf = {"K", "V"})
+  @SuppressWarnings("Immutable") // content is never modified after construction
+  private static final class CollisionNode<K, V extends @Nullable Object> extends Node<K, V> {
+
+    private final int hash;
+
+    /** Keys and values of the entries (alternating). */
+    private final @Nullable Object[] content;
+
+    CollisionNode(int pHash, @Nullable Object[] pContent) {
+      hash = pHash;
+      content = pContent;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < content.length; i += 2) {
+        if (key.equals(content[i])) {
+          return i / 2;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    int entryCount() {
+      return content.length / 2;
+    }
+
+    @Override
+    int nodeCount() {
+      return 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    K keyAt(int index) {
+      return (K) content[2 * index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+      return (V) content[2 * index + 1];
+    }
+
+    @Override
+    Node<K, V> nodeAt(int index) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    @Nullable Object find(Object key, int pHash, int shift) {
+      int index = indexOf(key);
+      return index < 0 ? NOT_FOUND : valueAt(index);
+    }
+
+    @Override
+    @SuppressWarnings("ReferenceEquality") // identical values need no new node
+    Node<K, V> put(K key, V value, int pHash, int shift, SizeChange sizeChange) {
+      int index = indexOf(key);
+      @Nullable Object[] newContent;
+      if (index < 0) {
+        sizeChange.changed = true;
+        newContent = new Object[content.length + 2];
+        System.arraycopy(content, 0, newContent, 0, content.length);
+        newContent[content.length] = key;
+        newContent[content.length + 1] = value;
+      } else if (valueAt(index) == value) {
+        return this;
+      } else {
+        newContent = content.clone();
+        newContent[2 * index + 1] = value;
+      }
+      return new CollisionNode<>(hash, newContent);
+    }
+
+    @Override
+    Node<K, V> remove(Object key, int pHash, int shift, SizeChange sizeChange) {
+      int index = indexOf(key);
+      if (index < 0) {
+        return this;
+      }
+      sizeChange.changed = true;
+      if (entryCount() == 2) {
+        // Only one entry remains, which the parent will store directly.
+        int otherIndex = 1 - index;
+        return BitmapNode.singleEntry(keyAt(otherIndex), valueAt(otherIndex), hash);
+      }
+      int offset = 2 * index;
+      @Nullable Object[] newContent = new Object[content.length - 2];
+      System.arraycopy(content, 0, newContent, 0, offset);
+      System.arraycopy(content, offset + 2, newContent, offset, content.length - offset - 2);
+      return new CollisionNode<>(hash, newContent);
+    }
+  }
+
+  /** Return the bit that represents the slot for the given hash on the level of the given shift. */
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & LEVEL_MASK);
+  }
+
+  /** Create a subtrie with two entries whose keys are different. */
+  private static <K, V extends @Nullable Object> Node<K, V> mergeEntries(
+      K key1, V value1, int hash1, K key2, V value2, int hash2, int shift) {
+    if (shift >= Integer.SIZE) {
+      // all bits of the hash are used, so the hashes are equal
+      return new CollisionNode<>(hash1, new @Nullable Object[] {key1, value1, key2, value2});
+    }
+
+    int bit1 = bit(hash1, shift);
+    int bit2 = bit(hash2, shift);
+    if (bit1 == bit2) {
+      Node<K, V> node =
+          mergeEntries(key1, value1, hash1, key2, value2, hash2, shift + BITS_PER_LEVEL);
+      return new BitmapNode<>(0, bit1, new @Nullable Object[] {node});
+    }
+    // Entries are stored in the order of their slots.
+    @Nullable Object[] content =
+        Integer.compareUnsigned(bit1, bit2) < 0
+            ? new @Nullable Object[] {key1, value1, key2, value2}
+            : new @Nullable Object[] {key2, value2, key1, value1};
+    return new BitmapNode<>(bit1 | bit2, 0, content);
+  }
+
+  // static creation methods
+
+  private static final PersistentHashMap<?, ?> EMPTY_MAP =
+      new PersistentHashMap<>(BitmapNode.empty(), 0);
+
+  @SuppressWarnings("unchecked")
+  public static <K, V extends @Nullable Object> PersistentHashMap<K, V> of() {
+    return (PersistentHashMap<K, V>) EMPTY_MAP;
+  }
+
+  /** Return a map with the same mappings as the given map. */
+  @SuppressWarnings("unchecked")
+  public static <K, V extends @Nullable Object> PersistentHashMap<K, V> copyOf(
+      Map<? extends K, ? extends V> map) {
+    checkNotNull(map);
+
+    if (map instanceof PersistentHashMap<?, ?>) {
+      return (PersistentHashMap<K, V>) map;
+    }
+
+    @Var PersistentHashMap<K, V> result = of();
+    for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+      result = result.putAndCopy(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Return a {@link Collector} that accumulates elements into a {@link PersistentHashMap}. Keys and
+   * values are the result of the respective functions. If duplicate keys appear, the collector
+   * throws an {@link IllegalArgumentException}.
+   */
+  public static <T, K, V extends @Nullable Object>
+      Collector<T, ?, PersistentHashMap<K, V>> toPersistentHashMap(
+          Function<? super T, ? extends K> keyFunction,
+          Function<? super T, ? extends V> valueFunction) {
+    return toPersistentHashMap(
+        keyFunction,
+        valueFunction,
+        (k, v) -> {
+          throw new IllegalArgumentException("Duplicate key " + k);
+        });
+  }
+
+  /**
+   * Return a {@link Collector} that accumulates elements into a {@link PersistentHashMap}. Keys and
+   * values are the result of the respective functions. Duplicate keys are resolved using the given
+   * merge function.
+   */
+  public static <T, K, V extends @Nullable Object>
+      Collector<T, ?, PersistentHashMap<K, V>> toPersistentHashMap(
+          Function<? super T, ? extends K> keyFunction,
+          Function<? super T, ? extends V> valueFunction,
+          BinaryOperator<V> mergeFunction) {
+    checkNotNull(keyFunction);
+    checkNotNull(valueFunction);
+    checkNotNull(mergeFunction);
+    return Collector.<T, MapAccumulator<K, V>, PersistentHashMap<K, V>>of(
+        () -> new MapAccumulator<>(mergeFunction),
+        (accumulator, element) ->
+            accumulator.add(
+                checkNotNull(keyFunction.apply(element)),
+                // null values are forbidden like for Collectors.toMap()
+                checkNotNull(valueFunction.apply(element))),
+        MapAccumulator::combine,
+        accumulator -> accumulator.map);
+  }
+
+  private static final class MapAccumulator<K, V extends @Nullable Object> {
+
+    private final BinaryOperator<V> mergeFunction;
+    private PersistentHashMap<K, V> map = of();
+
+    MapAccumulator(BinaryOperator<V> pMergeFunction) {
+      mergeFunction = pMergeFunction;
+    }
+
+    @SuppressWarnings("unchecked")
+    void add(K key, V value) {
+      Object oldValue = map.root.find(key, key.hashCode(), 0);
+      map =
+          map.putAndCopy(
+              key, oldValue == NOT_FOUND ? value : mergeFunction.apply((V) oldValue, value));
+    }
+
+    @CanIgnoreReturnValue
+    MapAccumulator<K, V> combine(MapAccumulator<K, V> other) {
+      other.map.forEach(this::add);
+      return this;
+    }
+  }
+
+  @SuppressWarnings("serial") // serialized via SerializedForm
+  private final Node<K, V> root;
+
+  private final int size;
+
+  private PersistentHashMap(Node<K, V> pRoot, int pSize) {
+    root = pRoot;
+    size = pSize;
+  }
+
+  // modifying methods
+
+  @Override
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether trie is the same
+  public PersistentHashMap<K, V> putAndCopy(K key, V value) {
+    checkNotNull(key);
+    SizeChange sizeChange = new SizeChange();
+    Node<K, V> newRoot = root.put(key, value, key.hashCode(), 0, sizeChange);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PersistentHashMap<>(newRoot, sizeChange.changed ? size + 1 : size);
+  }
+
+  @Override
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether trie is the same
+  public PersistentHashMap<K, V> removeAndCopy(Object key) {
+    SizeChange sizeChange = new SizeChange();
+    Node<K, V> newRoot = root.remove(key, key.hashCode(), 0, sizeChange);
+    if (newRoot == root) {
+      return this;
+    } else if (size == 1) {
+      return of();
+    }
+    return new PersistentHashMap<>(newRoot, size - 1);
+  }
+
+  @Override
+  public PersistentHashMap<K, V> empty() {
+    return of();
+  }
+
+  // read operations
+
+  @Override
+  public boolean containsKey(Object pKey) {
+    return root.find(pKey, pKey.hashCode(), 0) != NOT_FOUND;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public @Nullable V get(Object pKey) {
+    Object value = root.find(pKey, pKey.hashCode(), 0);
+    return value == NOT_FOUND ? null : (V) value;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V getOrDefault(Object pKey, V pDefaultValue) {
+    Object value = root.find(pKey, pKey.hashCode(), 0);
+    return value == NOT_FOUND ? pDefaultValue : (V) value;
+  }
+
+  @Override
+  public boolean containsValue(@Nullable Object pValue) {
+    return containsValue(root, pValue);
+  }
+
+  private static boolean containsValue(Node<?, ?> node, @Nullable Object value) {
+    for (int i = 0; i < node.entryCount(); i++) {
+      if (Objects.equals(node.valueAt(i), value)) {
+        return true;
+      }
+    }
+    for (int i = 0; i < node.nodeCount(); i++) {
+      if (containsValue(node.nodeAt(i), value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> pAction) {
+    checkNotNull(pAction);
+    forEach(root, pAction);
+  }
+
+  private static <K, V extends @Nullable Object> void forEach(
+      Node<K, V> node, BiConsumer<? super K, ? super V> action) {
+    for (int i = 0; i < node.entryCount(); i++) {
+      action.accept(node.keyAt(i), node.valueAt(i));
+    }
+    for (int i = 0; i < node.nodeCount(); i++) {
+      forEach(node.nodeAt(i), action);
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return new KeySet();
+  }
+
+  @Override
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether trie is the same
+  public boolean equals(@Nullable Object pObj) {
+    if (this == pObj) {
+      return true;
+    } else if (pObj instanceof PersistentHashMap<?, ?> other && other.root == root) {
+      return true;
+    }
+    return pObj instanceof Map<?, ?> other
+        && size == other.size()
+        && entrySet().equals(other.entrySet());
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode(root);
+  }
+
+  private static int hashCode(Node<?, ?> node) {
+    // as defined by Map.hashCode()
+    @Var int result = 0;
+    for (int i = 0; i < node.entryCount(); i++) {
+      result += Objects.hashCode(node.keyAt(i)) ^ Objects.hashCode(node.valueAt(i));
+    }
+    for (int i = 0; i < node.nodeCount(); i++) {
+      result += hashCode(node.nodeAt(i));
+    }
+    return result;
+  }
+
+  /**
+   * Check the map for violation of its invariants.
+   *
+   * @throws IllegalStateException If any invariant is violated.
+   */
+  @VisibleForTesting
+  void checkAssertions() {
+    int count = checkAssertions(root, 0, 0, /* isRoot= */ true);
+    checkState(count == size, "Map has %s entries but size is %s", count, size);
+  }
+
+  private static int checkAssertions(Node<?, ?> node, int hashPrefix, int shift, boolean isRoot) {
+    @Var int count = node.entryCount();
+    if (node instanceof BitmapNode<?, ?> bitmapNode) {
+      checkState((bitmapNode.entryMap & bitmapNode.nodeMap) == 0, "Slot is used twice");
+      checkState(
+          bitmapNode.content.length == 2 * node.entryCount() + node.nodeCount(),
+          "Content does not match bitmaps");
+      checkState(
+          isRoot || node.nodeCount() > 0 || node.entryCount() > 1,
+          "Child node has less than two entries");
+      int prefixMask = shift == 0 ? 0 : -1 >>> (Integer.SIZE - shift);
+      for (int i = 0; i < node.entryCount(); i++) {
+        int hash = node.keyAt(i).hashCode();
+        checkState((hash & prefixMask) == hashPrefix, "Entry is in wrong subtrie");
+        int bit = bit(hash, shift);
+        checkState(
+            (bitmapNode.entryMap & bit) != 0 && bitmapNode.entryIndex(bit) == i,
+            "Entry is in wrong slot");
+      }
+      for (int slot = 0, i = 0; slot < Integer.SIZE; slot++) {
+        if ((bitmapNode.nodeMap & (1 << slot)) != 0) {
+          count +=
+              checkAssertions(
+                  node.nodeAt(i++),
+                  hashPrefix | (slot << shift),
+                  shift + BITS_PER_LEVEL,
+                  /* isRoot= */ false);
+        }
+      }
+    } else {
+      CollisionNode<?, ?> collisionNode = (CollisionNode<?, ?>) node;
+      checkState(shift >= Integer.SIZE, "Collision node is not on the last level");
+      checkState(collisionNode.hash == hashPrefix, "Collision node is in wrong subtrie");
+      checkState(node.entryCount() > 1, "Collision node has less than two entries");
+      for (int i = 0; i < node.entryCount(); i++) {
+        checkState(node.keyAt(i).hashCode() == collisionNode.hash, "Entry has wrong hash");
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Iterator over the trie that visits the entries of each node and afterwards the nodes below. It
+   * stores the pending nodes in a stack, i.e., it uses O(log n) memory.
+   */
+  private abstract static class TrieIterator<K, V extends @Nullable Object, T>
+      extends UnmodifiableIterator<T> {
+
+    private final Deque<Node<K, V>> pendingNodes = new ArrayDeque<>();
+    private Node<K, V> currentNode;
+    private int nextIndex = 0;
+
+    TrieIterator(Node<K, V> pRoot) {
+      currentNode = pRoot;
+    }
+
+    @Override
+    public final boolean hasNext() {
+      while (nextIndex >= currentNode.entryCount()) {
+        for (int i = 0; i < currentNode.nodeCount(); i++) {
+          pendingNodes.push(currentNode.nodeAt(i));
+        }
+        Node<K, V> next = pendingNodes.poll();
+        if (next == null) {
+          currentNode = BitmapNode.empty();
+          nextIndex = 0;
+          return false;
+        }
+        currentNode = next;
+        nextIndex = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public final T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return get(currentNode, nextIndex++);
+    }
+
+    abstract T get(Node<K, V> node, int index);
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new TrieIterator<K, V, Map.Entry<K, V>>(root) {
+        @Override
+        Map.Entry<K, V> get(Node<K, V> node, int index) {
+          return new SimpleImmutableEntry<>(node.keyAt(index), node.valueAt(index));
+        }
+      };
+    }
+
+    @Override
+    public boolean contains(@Nullable Object pObj) {
+      if (!(pObj instanceof Map.Entry<?, ?> entry) || entry.getKey() == null) {
+        return false;
+      }
+      Object key = entry.getKey();
+      Object value = root.find(key, key.hashCode(), 0);
+      return value != NOT_FOUND && Objects.equals(value, entry.getValue());
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  private final class KeySet extends AbstractSet<K> {
+
+    @Override
+    public Iterator<K> iterator() {
+      return new TrieIterator<K, V, K>(root) {
+        @Override
+        K get(Node<K, V> node, int index) {
+          return node.keyAt(index);
+        }
+      };
+    }
+
+    @Override
+    public boolean contains(@Nullable Object pObj) {
+      return pObj != null && containsKey(pObj);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  // serialization
+
+  private Object writeReplace() {
+    return new SerializedForm<>(this);
+  }
+
+  private void readObject(@SuppressWarnings("unused") ObjectInputStream in)
+      throws InvalidObjectException {
+    throw new InvalidObjectException("Needs to be deserialized from SerializedForm");
+  }
+
+  /**
+   * Serialized form of the map, which stores only the entries, because the trie depends on hash
+   * codes, which may be different after deserialization.
+   */
+  private static final class SerializedForm<K, V extends @Nullable Object> implements Serializable {
+
+    private static final long serialVersionUID = 4173640851394209713L;
+
+    @SuppressWarnings("serial") // This class only needs to be serializable if content is.
+    private final @Nullable Object[] keysAndValues;
+
+    SerializedForm(PersistentHashMap<K, V> map) {
+      keysAndValues = new Object[2 * map.size()];
+      @Var int index = 0;
+      for (Map.Entry<K, V> entry : map.entrySet()) {
+        keysAndValues[index++] = entry.getKey();
+        keysAndValues[index++] = entry.getValue();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object readResolve() {
+      @Var PersistentHashMap<K, V> result = of();
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        result = result.putAndCopy((K) keysAndValues[i], (V) keysAndValues[i + 1]);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.testing.MapTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.errorprone.annotations.Var;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+  private static final TestStringMapGenerator mapGenerator =
+      new TestStringMapGenerator() {
+
+        @Override
+        protected Map<String, String> create(Map.Entry<String, String>[] pEntries) {
+          @Var PersistentHashMap<String, String> result = PersistentHashMap.of();
+          for (Map.Entry<String, String> entry : pEntries) {
+            result = result.putAndCopy(entry.getKey(), entry.getValue());
+          }
+          return result;
+        }
+      };
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentHashMapTest.class));
+
+    suite.addTest(
+        MapTestSuiteBuilder.using(mapGenerator)
+            .named("PersistentHashMap")
+            .withFeatures(
+                MapFeature.ALLOWS_NULL_VALUES, CollectionFeature.SERIALIZABLE, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  /** Key with a configurable hash code for provoking collisions. */
+  private record Key(int id, int hash) {
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static void checkEqualTo(
+      Map<Key, Integer> comparison, PersistentHashMap<Key, Integer> map) {
+    map.checkAssertions();
+    assertThat(map).containsExactlyEntriesIn(comparison);
+    assertThat(map.hashCode()).isEqualTo(comparison.hashCode());
+    // EqualsTester would be slow for large maps because it creates messages eagerly
+    assertThat(map.equals(comparison)).isTrue();
+    assertThat(comparison.equals(map)).isTrue();
+    assertThat(map.equals(PersistentHashMap.copyOf(comparison))).isTrue();
+  }
+
+  private static void checkRandomOperations(int keyCount, int hashRange) {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    ImmutableList.Builder<Key> keys = ImmutableList.builder();
+    for (int i = 0; i < keyCount; i++) {
+      keys.add(new Key(i, rnd.nextInt(hashRange) * 0x9E3779B9));
+    }
+    ImmutableList<Key> allKeys = keys.build();
+
+    Map<Key, Integer> comparison = new HashMap<>();
+    @Var PersistentHashMap<Key, Integer> map = PersistentHashMap.of();
+    for (int i = 0; i < 10 * keyCount; i++) {
+      Key key = allKeys.get(rnd.nextInt(keyCount));
+      PersistentHashMap<Key, Integer> oldMap = map;
+      Map<Key, Integer> oldComparison = new HashMap<>(comparison);
+
+      if (rnd.nextInt(3) > 0) {
+        int value = rnd.nextInt(5);
+        map = map.putAndCopy(key, value);
+        comparison.put(key, value);
+      } else {
+        map = map.removeAndCopy(key);
+        comparison.remove(key);
+      }
+
+      checkEqualTo(comparison, map);
+      // old map is unchanged
+      assertThat(oldMap).containsExactlyEntriesIn(oldComparison);
+    }
+
+    for (Key key : allKeys) {
+      map = map.removeAndCopy(key);
+      comparison.remove(key);
+      checkEqualTo(comparison, map);
+    }
+    assertThat(map).isSameInstanceAs(PersistentHashMap.of());
+  }
+
+  @Test
+  public void testRandom() {
+    checkRandomOperations(1000, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void testRandom_collisions() {
+    checkRandomOperations(200, 20);
+  }
+
+  @Test
+  public void testRandom_allCollisions() {
+    checkRandomOperations(20, 1);
+  }
+
+  @Test
+  public void testPutAndCopy_sameValue() {
+    PersistentHashMap<String, String> map =
+        PersistentHashMap.<String, String>of().putAndCopy("a", "b");
+    assertThat(map.putAndCopy("a", "b")).isSameInstanceAs(map);
+    assertThat(map.removeAndCopy("c")).isSameInstanceAs(map);
+  }
+
+  @Test
+  public void testCanonicalShape() {
+    // Without hash collisions, the trie has the same shape independently of the order of
+    // operations, so iteration order is the same.
+    @Var PersistentHashMap<Integer, Integer> map1 = PersistentHashMap.of();
+    @Var PersistentHashMap<Integer, Integer> map2 = PersistentHashMap.of();
+    for (int i = 0; i < 1000; i++) {
+      map1 = map1.putAndCopy(i * 1024, i);
+      map2 = map2.putAndCopy((999 - i) * 1024, 999 - i);
+    }
+    for (int i = 0; i < 1000; i += 3) {
+      map2 = map2.putAndCopy(100_000 + i, i).removeAndCopy(100_000 + i);
+    }
+    assertThat(map2.entrySet()).containsExactlyElementsIn(map1.entrySet()).inOrder();
+  }
+
+  @Test
+  public void testCollector() {
+    PersistentHashMap<Integer, String> result =
+        IntStream.range(0, 1000)
+            .parallel()
+            .boxed()
+            .collect(
+                PersistentHashMap.toPersistentHashMap(
+                    i -> i % 100, String::valueOf, (v1, v2) -> v1 + "," + v2));
+    result.checkAssertions();
+
+    assertThat(result).hasSize(100);
+    assertThat(result.get(42)).isEqualTo("42,142,242,342,442,542,642,742,842,942");
+  }
+
+  @Test
+  public void testCollectorDuplicate() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            Stream.of("a", "b", "a")
+                .collect(PersistentHashMap.toPersistentHashMap(s -> s, String::length)));
+  }
+}
@@ -0,0 +1,215 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * This is an implementation of {@link PersistentSet} that is based on hash array mapped tries
+ * (HAMT) like {@link PersistentHashMap}, with the same performance characteristics. Null elements
+ * are not supported.
+ *
+ * <p>The iteration order is unspecified.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <E> The type of elements.
+ */
+@Immutable(containerOf = "E")
+@SuppressWarnings("deprecation") // javac complains about deprecated methods from PersistentSet
+public final class PersistentHashSet<E> extends AbstractSet<E>
+    implements PersistentSet<E>, Serializable {
+
+  private static final long serialVersionUID = 6512938474562108317L;
+
+  private static final PersistentHashSet<?> EMPTY_SET =
+      new PersistentHashSet<>(PersistentHashMap.of());
+
+  /** The elements of this set as keys, all mapped to {@link Boolean#TRUE}. */
+  private final PersistentHashMap<E, Boolean> map;
+
+  private PersistentHashSet(PersistentHashMap<E, Boolean> pMap) {
+    map = pMap;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentHashSet<E> of() {
+    return (PersistentHashSet<E>) EMPTY_SET;
+  }
+
+  /** Return a set containing the given elements. */
+  @SafeVarargs
+  @SuppressWarnings("varargs") // the array is only read
+  public static <E> PersistentHashSet<E> of(E... elements) {
+    return copyOf(Arrays.asList(elements));
+  }
+
+  /** Return a set containing the given elements. */
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentHashSet<E> copyOf(Collection<? extends E> elements) {
+    if (elements instanceof PersistentHashSet<?>) {
+      return (PersistentHashSet<E>) elements;
+    }
+    @Var PersistentHashSet<E> result = of();
+    for (E element : elements) {
+      result = result.addAndCopy(element);
+    }
+    return result;
+  }
+
+  /**
+   * Return a {@link Collector} that accumulates elements into a {@link PersistentHashSet}.
+   * Duplicate elements are ignored.
+   */
+  public static <E> Collector<E, ?, PersistentHashSet<E>> toPersistentHashSet() {
+    return Collector.<E, SetAccumulator<E>, PersistentHashSet<E>>of(
+        SetAccumulator::new,
+        SetAccumulator::add,
+        SetAccumulator::combine,
+        accumulator -> accumulator.set);
+  }
+
+  private static final class SetAccumulator<E> {
+
+    private PersistentHashSet<E> set = of();
+
+    void add(E element) {
+      set = set.addAndCopy(element);
+    }
+
+    @CanIgnoreReturnValue
+    SetAccumulator<E> combine(SetAccumulator<E> other) {
+      other.set.forEach(this::add);
+      return this;
+    }
+  }
+
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether map is the same
+  private PersistentHashSet<E> setFromMap(PersistentHashMap<E, Boolean> newMap) {
+    if (newMap == map) {
+      return this;
+    } else if (newMap.isEmpty()) {
+      return of();
+    }
+    return new PersistentHashSet<>(newMap);
+  }
+
+  @Override
+  public PersistentHashSet<E> addAndCopy(E element) {
+    return setFromMap(map.putAndCopy(checkNotNull(element), Boolean.TRUE));
+  }
+
+  @Override
+  public PersistentHashSet<E> removeAndCopy(Object element) {
+    return setFromMap(map.removeAndCopy(checkNotNull(element)));
+  }
+
+  @Override
+  public PersistentHashSet<E> empty() {
+    return of();
+  }
+
+  @Override
+  public boolean contains(@Nullable Object pObj) {
+    return pObj != null && map.containsKey(pObj);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return map.keySet().iterator();
+  }
+
+  @Override
+  public boolean equals(@Nullable Object pObj) {
+    if (pObj instanceof PersistentHashSet<?> other) {
+      return map.equals(other.map);
+    }
+    return super.equals(pObj);
+  }
+
+  @Override
+  @SuppressWarnings("RedundantOverride") // to document that using super.hashCode is intended
+  public int hashCode() {
+    return super.hashCode();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean add(E pE) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean addAll(Collection<? extends E> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void clear() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean remove(Object pO) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean removeAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean removeIf(Predicate<? super E> pFilter) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean retainAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,68 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.testing.SetTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringSetGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import java.util.Set;
+import java.util.stream.IntStream;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentHashSetTest {
+
+  private static final TestStringSetGenerator setGenerator =
+      new TestStringSetGenerator() {
+
+        @Override
+        protected Set<String> create(String[] pElements) {
+          return PersistentHashSet.of(pElements);
+        }
+      };
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentHashSetTest.class));
+
+    suite.addTest(
+        SetTestSuiteBuilder.using(setGenerator)
+            .named("PersistentHashSet")
+            .withFeatures(CollectionFeature.SERIALIZABLE, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  @Test
+  public void testAddAndRemove() {
+    PersistentHashSet<String> set = PersistentHashSet.of("a", "b");
+    assertThat(set.addAndCopy("c")).containsExactly("a", "b", "c");
+    assertThat(set.addAndCopy("a")).isSameInstanceAs(set);
+    assertThat(set.removeAndCopy("a")).containsExactly("b");
+    assertThat(set.removeAndCopy("c")).isSameInstanceAs(set);
+    assertThat(set.removeAndCopy("a").removeAndCopy("b")).isSameInstanceAs(PersistentHashSet.of());
+    assertThat(set).containsExactly("a", "b");
+  }
+
+  @Test
+  public void testCollector() {
+    assertThat(
+            IntStream.range(0, 1000)
+                .parallel()
+                .map(i -> i % 100)
+                .boxed()
+                .collect(PersistentHashSet.toPersistentHashSet()))
+        .containsExactlyElementsIn(IntStream.range(0, 100).boxed().toList());
+  }
+}
@@ -0,0 +1,282 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentLongSortedMap.Node;
+
+/**
+ * A persistent sorted map with keys of the primitive type <code>int</code>. Keys are stored
+ * unboxed and compared without calls to {@link Comparable#compareTo}, so lookups and modifications
+ * neither allocate {@link Integer} instances nor dispatch to a comparator. This map shares its
+ * implementation with {@link PersistentLongSortedMap} (keys are stored widened to <code>long
+ * </code>), and all operations that take a key need O(log n) time.
+ *
+ * <p>The methods that return entries (e.g., {@link #ceilingEntry(int)}) return internal nodes of
+ * the tree typed as {@link IntEntry}, which does not allocate. For compatibility with code that
+ * expects a {@link PersistentSortedMap}, {@link #asSortedMap()} returns a view of this map with
+ * boxed keys in O(1) time. Keys are ordered by their signed numeric value. Values may be <code>
+ * null</code>.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = "V")
+public final class PersistentIntSortedMap<V extends @Nullable Object>
+    implements Iterable<PersistentIntSortedMap.IntEntry<V>> {
+
+  /**
+   * A mapping from an <code>int</code> key to a value. Entries are immutable and do not override
+   * {@link Object#equals(Object)}.
+   *
+   * @param <V> The type of values.
+   */
+  public interface IntEntry<V extends @Nullable Object> {
+
+    int getIntKey();
+
+    V getValue();
+  }
+
+  private static final PersistentIntSortedMap<?> EMPTY_MAP =
+      new PersistentIntSortedMap<>(PersistentLongSortedMap.of());
+
+  @SuppressWarnings("unchecked")
+  public static <V extends @Nullable Object> PersistentIntSortedMap<V> of() {
+    return (PersistentIntSortedMap<V>) EMPTY_MAP;
+  }
+
+  /**
+   * Return a map with the same mappings as the given map. This takes linear time if the given map
+   * is a {@link SortedMap} with natural ordering, otherwise the entries need to be sorted first.
+   */
+  public static <V extends @Nullable Object> PersistentIntSortedMap<V> copyOf(
+      Map<Integer, ? extends V> map) {
+    if (map instanceof PrimitiveKeySortedMapView<?, ?> view && view.hasIntKeys()) {
+      @SuppressWarnings("unchecked") // immutable, so covariant
+      PersistentLongSortedMap<V> delegate = (PersistentLongSortedMap<V>) view.getDelegate();
+      return wrap(delegate);
+    }
+    List<Map.Entry<Integer, ? extends V>> entries;
+    if (map instanceof SortedMap<?, ?> sortedMap
+        && Collections3.guaranteedSameOrder(sortedMap.comparator(), null)) {
+      entries = new ArrayList<>(map.entrySet());
+    } else {
+      // TreeMap sorts the entries and rejects null keys
+      entries = new ArrayList<>(new TreeMap<>(map).entrySet());
+    }
+    return wrap(PersistentLongSortedMap.fromSortedEntries(entries));
+  }
+
+  /** Return an int map for a long map that contains only keys in the range of int. */
+  @SuppressWarnings("unchecked") // immutable, so covariant
+  static <V extends @Nullable Object> PersistentIntSortedMap<V> wrap(
+      PersistentLongSortedMap<? extends V> map) {
+    return map.isEmpty() ? of() : new PersistentIntSortedMap<>((PersistentLongSortedMap<V>) map);
+  }
+
+  /** The map with the same keys (widened to long) and values. */
+  private final PersistentLongSortedMap<V> delegate;
+
+  private PersistentIntSortedMap(PersistentLongSortedMap<V> pDelegate) {
+    delegate = checkNotNull(pDelegate);
+  }
+
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether map is the same
+  private PersistentIntSortedMap<V> mapFromDelegate(PersistentLongSortedMap<V> newDelegate) {
+    return newDelegate == delegate ? this : wrap(newDelegate);
+  }
+
+  @VisibleForTesting
+  void checkAssertions() {
+    delegate.checkAssertions();
+  }
+
+  // modifying methods
+
+  /**
+   * Return a map with the given mapping added (or replacing the existing mapping for the key).
+   */
+  @CheckReturnValue
+  public PersistentIntSortedMap<V> putAndCopy(int key, V value) {
+    return mapFromDelegate(delegate.putAndCopy(key, value));
+  }
+
+  /** Return a map without the mapping for the given key, or this map if there is none. */
+  @CheckReturnValue
+  public PersistentIntSortedMap<V> removeAndCopy(int key) {
+    return mapFromDelegate(delegate.removeAndCopy(key));
+  }
+
+  /** Return the empty map. */
+  @CheckReturnValue
+  public PersistentIntSortedMap<V> empty() {
+    return of();
+  }
+
+  /**
+   * Return a map with all mappings of this map whose keys are less than (or equal to, if inclusive
+   * is true) the given key. This splits the tree in O(log n) time.
+   */
+  @CheckReturnValue
+  public PersistentIntSortedMap<V> headMapAndCopy(int toKey, boolean inclusive) {
+    return mapFromDelegate(delegate.headMapAndCopy(toKey, inclusive));
+  }
+
+  /**
+   * Return a map with all mappings of this map whose keys are greater than (or equal to, if
+   * inclusive is true) the given key. This splits the tree in O(log n) time.
+   */
+  @CheckReturnValue
+  public PersistentIntSortedMap<V> tailMapAndCopy(int fromKey, boolean inclusive) {
+    return mapFromDelegate(delegate.tailMapAndCopy(fromKey, inclusive));
+  }
+
+  // read operations
+
+  public int size() {
+    return delegate.size();
+  }
+
+  public boolean isEmpty() {
+    return delegate.isEmpty();
+  }
+
+  public boolean containsKey(int key) {
+    return delegate.containsKey(key);
+  }
+
+  /** Return the value for the given key, or null if there is no mapping for it. */
+  public @Nullable V get(int key) {
+    return delegate.get(key);
+  }
+
+  /** Return the value for the given key, or the given default value if there is no mapping. */
+  public V getOrDefault(int key, V defaultValue) {
+    return delegate.getOrDefault(key, defaultValue);
+  }
+
+  private static <V extends @Nullable Object> @Nullable IntEntry<V> asIntEntry(
+      PersistentLongSortedMap.@Nullable LongEntry<V> entry) {
+    // All entries are instances of Node, which implements both interfaces.
+    return (Node<V>) entry;
+  }
+
+  public @Nullable IntEntry<V> getEntry(int key) {
+    return asIntEntry(delegate.getEntry(key));
+  }
+
+  public @Nullable IntEntry<V> firstEntry() {
+    return asIntEntry(delegate.firstEntry());
+  }
+
+  public @Nullable IntEntry<V> lastEntry() {
+    return asIntEntry(delegate.lastEntry());
+  }
+
+  /**
+   * Return the smallest key in this map.
+   *
+   * @throws NoSuchElementException if this map is empty.
+   */
+  public int firstKey() {
+    return (int) delegate.firstKey();
+  }
+
+  /**
+   * Return the largest key in this map.
+   *
+   * @throws NoSuchElementException if this map is empty.
+   */
+  public int lastKey() {
+    return (int) delegate.lastKey();
+  }
+
+  /** Return the entry with the smallest key greater than or equal to the given key, or null. */
+  public @Nullable IntEntry<V> ceilingEntry(int key) {
+    return asIntEntry(delegate.ceilingEntry(key));
+  }
+
+  /** Return the entry with the largest key less than or equal to the given key, or null. */
+  public @Nullable IntEntry<V> floorEntry(int key) {
+    return asIntEntry(delegate.floorEntry(key));
+  }
+
+  /** Return the entry with the smallest key strictly greater than the given key, or null. */
+  public @Nullable IntEntry<V> higherEntry(int key) {
+    return asIntEntry(delegate.higherEntry(key));
+  }
+
+  /** Return the entry with the largest key strictly less than the given key, or null. */
+  public @Nullable IntEntry<V> lowerEntry(int key) {
+    return asIntEntry(delegate.lowerEntry(key));
+  }
+
+  /** Iterate over the entries in ascending order of their keys. */
+  @Override
+  public Iterator<IntEntry<V>> iterator() {
+    return Iterators.unmodifiableIterator(delegate.nodeIterator(true));
+  }
+
+  /** Iterate over the entries in descending order of their keys. */
+  public Iterator<IntEntry<V>> descendingIterator() {
+    return Iterators.unmodifiableIterator(delegate.nodeIterator(false));
+  }
+
+  /**
+   * Return a view of this map as a {@link PersistentSortedMap} with boxed keys. The view is
+   * created in O(1) time and its modifying operations return views of modified maps. Sub maps of
+   * the view are created by splitting the tree in O(log n) time.
+   */
+  public PersistentSortedMap<Integer, V> asSortedMap() {
+    return PrimitiveKeySortedMapView.ofIntKeys(delegate);
+  }
+
+  /**
+   * Two maps are equal if they contain equal values for the same keys. This is consistent with
+   * {@link #asSortedMap()}, i.e., maps are equal if and only if their views are equal.
+   */
+  @Override
+  public boolean equals(@Nullable Object pObj) {
+    return pObj instanceof PersistentIntSortedMap<?> other && delegate.equals(other.delegate);
+  }
+
+  /** Return the same hash code as {@link Map#hashCode()} of {@link #asSortedMap()}. */
+  @Override
+  public int hashCode() {
+    @Var int result = 0;
+    for (IntEntry<V> entry : this) {
+      result += entry.getIntKey() ^ Objects.hashCode(entry.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+}
@@ -0,0 +1,128 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.errorprone.annotations.Var;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+import org.sosy_lab.common.collect.PersistentIntSortedMap.IntEntry;
+import org.sosy_lab.common.collect.PersistentLongSortedMapTest.NumberKeyedMapGenerator;
+
+public class PersistentIntSortedMapTest {
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentIntSortedMapTest.class));
+
+    suite.addTest(
+        NavigableMapTestSuiteBuilder.using(
+                new NumberKeyedMapGenerator<Integer>(
+                    key -> (int) key,
+                    entries -> {
+                      @Var PersistentIntSortedMap<String> result = PersistentIntSortedMap.of();
+                      for (Map.Entry<Integer, String> entry : entries) {
+                        result = result.putAndCopy(entry.getKey(), entry.getValue());
+                      }
+                      return result.asSortedMap();
+                    }))
+            .named("PersistentIntSortedMap.asSortedMap")
+            .withFeatures(
+                MapFeature.ALLOWS_NULL_VALUES, CollectionFeature.KNOWN_ORDER, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  private static void checkEqualTo(
+      NavigableMap<Integer, Integer> expected, PersistentIntSortedMap<Integer> map) {
+    map.checkAssertions();
+    assertThat(map.size()).isEqualTo(expected.size());
+    assertThat(map.asSortedMap()).containsExactlyEntriesIn(expected).inOrder();
+    assertThat(map.hashCode()).isEqualTo(expected.hashCode());
+    assertThat(map.asSortedMap().hashCode()).isEqualTo(expected.hashCode());
+    assertThat(map).isEqualTo(PersistentIntSortedMap.copyOf(expected));
+    Iterator<IntEntry<Integer>> it = map.descendingIterator();
+    for (Map.Entry<Integer, Integer> entry : expected.descendingMap().entrySet()) {
+      IntEntry<Integer> actual = it.next();
+      assertThat(actual.getIntKey()).isEqualTo(entry.getKey());
+      assertThat(actual.getValue()).isEqualTo(entry.getValue());
+    }
+    assertThat(it.hasNext()).isFalse();
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random rnd = new Random(0);
+    NavigableMap<Integer, Integer> expected = new TreeMap<>();
+    @Var PersistentIntSortedMap<Integer> map = PersistentIntSortedMap.of();
+    for (int i = 0; i < 5000; i++) {
+      int key = rnd.nextInt(10) == 0 ? rnd.nextInt() : rnd.nextInt(1000) - 500;
+      if (rnd.nextInt(3) == 0) {
+        map = map.removeAndCopy(key);
+        expected.remove(key);
+      } else {
+        map = map.putAndCopy(key, i);
+        expected.put(key, i);
+      }
+      assertThat(map.get(key)).isEqualTo(expected.get(key));
+      int probe = rnd.nextInt(1000) - 500;
+      IntEntry<Integer> ceiling = map.ceilingEntry(probe);
+      Map.Entry<Integer, Integer> expectedCeiling = expected.ceilingEntry(probe);
+      if (expectedCeiling == null) {
+        assertThat(ceiling).isNull();
+      } else {
+        assertThat(ceiling.getIntKey()).isEqualTo(expectedCeiling.getKey());
+      }
+      IntEntry<Integer> lower = map.lowerEntry(probe);
+      Map.Entry<Integer, Integer> expectedLower = expected.lowerEntry(probe);
+      if (expectedLower == null) {
+        assertThat(lower).isNull();
+      } else {
+        assertThat(lower.getIntKey()).isEqualTo(expectedLower.getKey());
+      }
+      if (i % 500 == 0) {
+        checkEqualTo(expected, map);
+      }
+    }
+    checkEqualTo(expected, map);
+    assertThat(map.firstKey()).isEqualTo(expected.firstKey());
+    assertThat(map.lastKey()).isEqualTo(expected.lastKey());
+  }
+
+  @Test
+  public void testSplit() {
+    @Var PersistentIntSortedMap<String> map = PersistentIntSortedMap.of();
+    for (int i = -100; i < 100; i++) {
+      map = map.putAndCopy(i, Integer.toString(i));
+    }
+    PersistentIntSortedMap<String> head = map.headMapAndCopy(0, true);
+    PersistentIntSortedMap<String> tail = map.tailMapAndCopy(0, false);
+    head.checkAssertions();
+    tail.checkAssertions();
+    assertThat(head.size()).isEqualTo(101);
+    assertThat(head.lastKey()).isEqualTo(0);
+    assertThat(tail.size()).isEqualTo(99);
+    assertThat(tail.firstKey()).isEqualTo(1);
+    assertThat(map.asSortedMap().subMap(-5, 5).keySet())
+        .containsExactly(-5, -4, -3, -2, -1, 0, 1, 2, 3, 4)
+        .inOrder();
+  }
+}
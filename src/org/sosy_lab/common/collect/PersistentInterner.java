@@ -0,0 +1,101 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Equivalence;
+
+/**
+ * Hash consing for persistent data structures. Interning a persistent map or list returns a
+ * canonical instance that is equal to the given one, such that interned instances are equal if and
+ * only if they are identical and can be compared by reference.
+ *
+ * <p>For {@link PathCopyingPersistentTreeMap} and {@link PersistentLinkedList}, the interner
+ * additionally shares structurally equal parts of the internal representation among all interned
+ * instances, even if they are not equal as a whole. For example, maps that differ only in a few
+ * entries share most of their subtrees, and lists share their common suffixes. This saves memory if
+ * many similar instances are created independently of each other. For other implementations of
+ * {@link PersistentSortedMap}, only the whole instance is canonicalized.
+ *
+ * <p>Interning a map of size n takes O(n) time for computing its hash code and comparing it with an
+ * equal canonical instance. Canonicalizing the subtrees of a map that was derived from a canonical
+ * map by a few modifications costs only O(log n) per modification, because unmodified subtrees are
+ * recognized as canonical without looking at them. Keys and values are compared with {@link
+ * Object#equals(Object)}, so interning may replace them by equal objects from other maps. Keys and
+ * values are not interned themselves, this needs to be done before interning the map.
+ *
+ * <p>Canonical instances are referenced only weakly and can be garbage collected as soon as they
+ * are no longer used elsewhere. Each canonical instance or subtree costs about 80 bytes of memory
+ * in the interner as long as it is alive. All instances of this class are thread safe.
+ *
+ * <p>The interner counts how often an equal instance or subtree was already present ("hit") and how
+ * often a new one was added ("miss"), which shows how much deduplication happens.
+ */
+public final class PersistentInterner {
+
+  private final PathCopyingPersistentTreeMap.TreeInterner trees =
+      new PathCopyingPersistentTreeMap.TreeInterner();
+  private final PersistentLinkedList.ListInterner lists = new PersistentLinkedList.ListInterner();
+  private final WeakInterner<PersistentSortedMap<?, ?>> otherSortedMaps =
+      new WeakInterner<>(Equivalence.equals());
+
+  private PersistentInterner() {}
+
+  /** Create a new interner without any canonical instances. */
+  public static PersistentInterner create() {
+    return new PersistentInterner();
+  }
+
+  /**
+   * Return the canonical instance of the given map, which is equal to the given map. If there is
+   * none yet, a map that is equal to the given one becomes the canonical instance.
+   */
+  public <K, V> PersistentSortedMap<K, V> intern(PersistentSortedMap<K, V> map) {
+    checkNotNull(map);
+    if (map instanceof PathCopyingPersistentTreeMap<?, ?>) {
+      @SuppressWarnings({"unchecked", "rawtypes"}) // K is Comparable for this class
+      PersistentSortedMap<K, V> result = trees.intern((PathCopyingPersistentTreeMap) map);
+      return result;
+    }
+    @SuppressWarnings("unchecked") // canonical map is equal to the given map
+    PersistentSortedMap<K, V> result = (PersistentSortedMap<K, V>) otherSortedMaps.intern(map);
+    return result;
+  }
+
+  /**
+   * Return the canonical instance of the given list, which is equal to the given list. If there is
+   * none yet, a list that is equal to the given one becomes the canonical instance.
+   */
+  public <T> PersistentLinkedList<T> intern(PersistentLinkedList<T> list) {
+    return lists.intern(list);
+  }
+
+  /**
+   * Return how often an instance or (for some types) a part of an instance was interned that was
+   * equal to an already existing canonical one.
+   */
+  public long getHitCount() {
+    return trees.getHitCount() + lists.getHitCount() + otherSortedMaps.getHitCount();
+  }
+
+  /**
+   * Return how often an instance or (for some types) a part of an instance was interned that became
+   * a new canonical one.
+   */
+  public long getMissCount() {
+    return trees.getMissCount() + lists.getMissCount() + otherSortedMaps.getMissCount();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "PersistentInterner with %d hits and %d misses", getHitCount(), getMissCount());
+  }
+}
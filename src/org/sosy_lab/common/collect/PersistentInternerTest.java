@@ -0,0 +1,152 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.GcFinalization;
+import com.google.errorprone.annotations.Var;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class PersistentInternerTest {
+
+  private final PersistentInterner interner = PersistentInterner.create();
+
+  private static PersistentSortedMap<Integer, Integer> buildMap(List<Integer> keys) {
+    @Var PersistentSortedMap<Integer, Integer> result = PathCopyingPersistentTreeMap.of();
+    for (Integer key : keys) {
+      result = result.putAndCopy(key, key % 7);
+    }
+    return result;
+  }
+
+  private static List<Integer> shuffledKeys(int size, long seed) {
+    List<Integer> keys = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      keys.add(i * 2);
+    }
+    Collections.shuffle(keys, new Random(seed));
+    return keys;
+  }
+
+  @Test
+  public void testEmpty() {
+    PersistentSortedMap<String, String> map = PathCopyingPersistentTreeMap.of();
+    assertThat(interner.intern(map)).isSameInstanceAs(map);
+    PersistentLinkedList<String> list = PersistentLinkedList.of();
+    assertThat(interner.intern(list)).isSameInstanceAs(list);
+  }
+
+  @Test
+  public void testEqualMapsAreIdentical() {
+    PersistentSortedMap<Integer, Integer> map1 = buildMap(shuffledKeys(1000, 1));
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(shuffledKeys(1000, 2));
+    assertThat(map2).isEqualTo(map1);
+
+    PersistentSortedMap<Integer, Integer> interned1 = interner.intern(map1);
+    PersistentSortedMap<Integer, Integer> interned2 = interner.intern(map2);
+    assertThat(interned1).isSameInstanceAs(map1);
+    assertThat(interned2).isSameInstanceAs(interned1);
+    assertThat(interner.intern(map1.putAndCopy(1, 1))).isNotSameInstanceAs(interned1);
+    ((PathCopyingPersistentTreeMap<?, ?>) interned1).checkAssertions();
+  }
+
+  @Test
+  @SuppressWarnings("ReferenceEquality") // checking whether entries are shared
+  public void testSubtreesAreShared() {
+    List<Integer> keys = shuffledKeys(1000, 1);
+    PersistentSortedMap<Integer, Integer> interned1 = interner.intern(buildMap(keys));
+    assertThat(interner.getHitCount()).isEqualTo(0);
+    assertThat(interner.getMissCount()).isEqualTo(1001); // all nodes and the map
+
+    // An independently created map with the same structure except for one modification
+    PersistentSortedMap<Integer, Integer> map2 = buildMap(keys).putAndCopy(1001, 1001);
+    PersistentSortedMap<Integer, Integer> interned2 = interner.intern(map2);
+    assertThat(interned2).isEqualTo(map2);
+    ((PathCopyingPersistentTreeMap<?, ?>) interned2).checkAssertions();
+    long misses = interner.getMissCount() - 1001;
+    assertThat(misses).isAtMost(50); // only the nodes on the modified path
+    assertThat(interner.getHitCount()).isGreaterThan(0);
+
+    @Var int sharedEntries = 0;
+    for (Map.Entry<Integer, Integer> entry : interned2.entrySet()) {
+      if (interned1.ceilingEntry(entry.getKey()) == entry) {
+        sharedEntries++;
+      }
+    }
+    assertThat(sharedEntries).isAtLeast(1000 - 50);
+
+    // Interning a map derived from a canonical one does not look at unmodified subtrees.
+    long hits = interner.getHitCount();
+    PersistentSortedMap<Integer, Integer> interned3 =
+        interner.intern(interned1.removeAndCopy(keys.get(0)));
+    ((PathCopyingPersistentTreeMap<?, ?>) interned3).checkAssertions();
+    assertThat(interner.getHitCount() + interner.getMissCount() - hits - 1001 - misses)
+        .isAtMost(50);
+  }
+
+  @Test
+  public void testOtherMaps() {
+    PersistentSortedMap<String, Integer> map1 =
+        PersistentOrderStatisticTreeMap.<String, Integer>of().putAndCopy("a", 1).putAndCopy("b", 2);
+    PersistentSortedMap<String, Integer> map2 =
+        PersistentOrderStatisticTreeMap.<String, Integer>of().putAndCopy("b", 2).putAndCopy("a", 1);
+    assertThat(interner.intern(map1)).isSameInstanceAs(map1);
+    assertThat(interner.intern(map2)).isSameInstanceAs(map1);
+    assertThat(interner.getHitCount()).isEqualTo(1);
+    assertThat(interner.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLists() {
+    PersistentLinkedList<Integer> list1 = PersistentLinkedList.copyOf(1, 2, 3, 4);
+    PersistentLinkedList<Integer> list2 = PersistentLinkedList.copyOf(0, 2, 3, 4);
+    PersistentLinkedList<Integer> interned1 = interner.intern(list1);
+    PersistentLinkedList<Integer> interned2 = interner.intern(list2);
+    assertThat(interned1).isSameInstanceAs(list1);
+    assertThat(interned2).containsExactly(0, 2, 3, 4).inOrder();
+    assertThat(interned2.tail()).isSameInstanceAs(list1.tail());
+    assertThat(interner.intern(PersistentLinkedList.copyOf(1, 2, 3, 4))).isSameInstanceAs(list1);
+    assertThat(interner.getMissCount()).isEqualTo(5); // 4 nodes of list1 and 1 of list2
+    assertThat(interner.getHitCount()).isEqualTo(7); // 3 nodes of list2 and 4 of the last list
+  }
+
+  private WeakReference<PersistentLinkedList<Integer>> internTemporaryList() {
+    return new WeakReference<>(interner.intern(PersistentLinkedList.copyOf(1, 2, 3)));
+  }
+
+  @Test
+  public void testCanonicalInstancesAreWeak() {
+    GcFinalization.awaitClear(internTemporaryList());
+    PersistentLinkedList<Integer> list = PersistentLinkedList.copyOf(1, 2, 3);
+    assertThat(interner.intern(list)).isSameInstanceAs(list);
+  }
+
+  @Test
+  public void testConcurrentInterning() {
+    ImmutableList<PersistentSortedMap<Integer, Integer>> interned =
+        IntStream.range(0, 16)
+            .parallel()
+            .mapToObj(i -> interner.intern(buildMap(shuffledKeys(1000, i))))
+            .collect(toImmutableList());
+    for (PersistentSortedMap<Integer, Integer> map : interned) {
+      assertThat(map).isSameInstanceAs(interned.get(0));
+    }
+    assertThat(interner.getHitCount() + interner.getMissCount()).isAtLeast(16);
+  }
+}
@@ -11,6 +11,7 @@ package org.sosy_lab.common.collect;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.common.base.Equivalence;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -19,7 +20,13 @@ import com.google.errorprone.annotations.DoNotCall;
 import com.google.errorprone.annotations.Immutable;
 import com.google.errorprone.annotations.InlineMe;
 import com.google.errorprone.annotations.Var;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.AbstractSequentialList;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.EnumSet;
@@ -59,8 +66,11 @@ import org.checkerframework.checker.nullness.qual.Nullable;
   "Immutable", // AbstractList.modCount is mutable but safe
 })
 public final class PersistentLinkedList<T> extends AbstractSequentialList<T>
-    implements PersistentList<T> {
+    implements PersistentList<T>, Serializable {
 
+  private static final long serialVersionUID = 6934163262826489406L;
+
+  @SuppressWarnings("serial") // This class only needs to be serializable if elements are.
   private final @Nullable T head; // only null for the empty list
   private final @Nullable PersistentLinkedList<T> tail; // only null for the empty list
 
@@ -420,4 +430,100 @@ public final class PersistentLinkedList<T> extends AbstractSequentialList<T>
   public void sort(Comparator<? super T> pC) {
     throw new UnsupportedOperationException();
   }
+
+  // serialization
+
+  private Object writeReplace() {
+    return new SerializedForm<>(this);
+  }
+
+  private void readObject(@SuppressWarnings("unused") ObjectInputStream in)
+      throws InvalidObjectException {
+    throw new InvalidObjectException("Needs to be deserialized from SerializedForm");
+  }
+
+  /**
+   * Serialized form of the list, which stores the elements as written by {@link
+   * PersistentCollectionCodec} instead of the linked nodes. This does not recurse along the list,
+   * which could overflow the stack for long lists.
+   */
+  private static final class SerializedForm<T> implements Serializable {
+
+    private static final long serialVersionUID = -2468360383337017451L;
+
+    private transient PersistentLinkedList<T> list;
+
+    SerializedForm(PersistentLinkedList<T> pList) {
+      list = pList;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      PersistentCollectionCodec.writeList(out, list);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      list = PersistentCollectionCodec.readList(in);
+    }
+
+    private Object readResolve() {
+      return list;
+    }
+  }
+
+  /**
+   * Hash consing for lists of this class, see {@link PersistentInterner}. Lists are canonicalized
+   * from the end, such that equal suffixes of unrelated lists are shared.
+   */
+  static final class ListInterner {
+
+    /**
+     * Equivalence of list nodes that compares the tails by identity. For lists with canonical
+     * tails, this is the same as equals().
+     */
+    private static final Equivalence<PersistentLinkedList<?>> NODE_STRUCTURE =
+        new Equivalence<>() {
+          @Override
+          @SuppressWarnings("ReferenceEquality") // tails are canonical
+          protected boolean doEquivalent(PersistentLinkedList<?> a, PersistentLinkedList<?> b) {
+            return a.tail == b.tail && Objects.equals(a.head, b.head);
+          }
+
+          @Override
+          protected int doHash(PersistentLinkedList<?> list) {
+            return 31 * Objects.hashCode(list.head) + System.identityHashCode(list.tail);
+          }
+        };
+
+    private final WeakInterner<PersistentLinkedList<?>> nodes = new WeakInterner<>(NODE_STRUCTURE);
+
+    @SuppressWarnings({
+      "unchecked", // canonical nodes are equal to the interned ones, so they have the same type
+      "ReferenceEquality", // checking whether a node is canonical
+    })
+    <T> PersistentLinkedList<T> intern(PersistentLinkedList<T> list) {
+      // Collect the prefix of the list that is not canonical yet, and intern it back to front.
+      List<PersistentLinkedList<T>> prefix = new ArrayList<>();
+      @Var PersistentLinkedList<T> current = checkNotNull(list);
+      while (!current.isEmpty() && nodes.getIfPresent(current) != current) {
+        prefix.add(current);
+        current = current.tail;
+      }
+      for (PersistentLinkedList<T> node : Lists.reverse(prefix)) {
+        PersistentLinkedList<T> candidate =
+            node.tail == current ? node : new PersistentLinkedList<>(node.head, current);
+        current = (PersistentLinkedList<T>) nodes.intern(candidate);
+      }
+      return current;
+    }
+
+    long getHitCount() {
+      return nodes.getHitCount();
+    }
+
+    long getMissCount() {
+      return nodes.getMissCount();
+    }
+  }
 }
@@ -41,7 +41,8 @@ public class PersistentLinkedListTest {
     suite.addTest(
         ListTestSuiteBuilder.using(listGenerator)
             .named("PersistentLinkedList")
-            .withFeatures(CollectionFeature.KNOWN_ORDER, CollectionSize.ANY)
+            .withFeatures(
+                CollectionFeature.KNOWN_ORDER, CollectionFeature.SERIALIZABLE, CollectionSize.ANY)
             .suppressing(
                 // These tests all rely on a fully implemented ListIterator.
                 ListLastIndexOfTester.class.getMethod("testFind_wrongType"),
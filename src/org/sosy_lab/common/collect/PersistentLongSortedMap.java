@@ -0,0 +1,744 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkState;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.areBalanced;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.isBalanced;
+import static org.sosy_lab.common.collect.PersistentOrderStatisticTreeMap.isSingleRotation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A persistent sorted map with keys of the primitive type <code>long</code>. Keys are stored
+ * unboxed in the nodes of the tree and compared without calls to {@link Comparable#compareTo}, so
+ * lookups and modifications neither allocate {@link Long} instances nor dispatch to a comparator.
+ * The map is a weight-balanced tree with path copying like {@link PersistentOrderStatisticTreeMap},
+ * and all operations that take a key need O(log n) time.
+ *
+ * <p>The methods that return entries (e.g., {@link #ceilingEntry(long)}) return internal nodes of
+ * the tree typed as {@link LongEntry}, which does not allocate. For compatibility with code that
+ * expects a {@link PersistentSortedMap}, {@link #asSortedMap()} returns a view of this map with
+ * boxed keys in O(1) time. Keys are ordered by their signed numeric value, like for {@link
+ * Long#compareTo(Long)}. Values may be <code>null</code>.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = "V")
+public final class PersistentLongSortedMap<V extends @Nullable Object>
+    implements Iterable<PersistentLongSortedMap.LongEntry<V>> {
+
+  /**
+   * A mapping from a <code>long</code> key to a value. Entries are immutable and do not override
+   * {@link Object#equals(Object)}.
+   *
+   * @param <V> The type of values.
+   */
+  public interface LongEntry<V extends @Nullable Object> {
+
+    long getLongKey();
+
+    V getValue();
+  }
+
+  @Immutable(containerOf = "V")
+  static final class Node<V extends @Nullable Object>
+      implements LongEntry<V>, PersistentIntSortedMap.IntEntry<V> {
+
+    private final long key;
+    private final V value;
+    private final @Nullable Node<V> left;
+    private final @Nullable Node<V> right;
+    private final int size;
+
+    Node(long pKey, V pValue, @Nullable Node<V> pLeft, @Nullable Node<V> pRight) {
+      key = pKey;
+      value = pValue;
+      left = pLeft;
+      right = pRight;
+      size = size(pLeft) + 1 + size(pRight);
+    }
+
+    static int size(@Nullable Node<?> n) {
+      return n == null ? 0 : n.size;
+    }
+
+    /** The weight of a tree, like for {@link PersistentOrderStatisticTreeMap}. */
+    static int weight(@Nullable Node<?> n) {
+      return size(n) + 1;
+    }
+
+    @Override
+    public long getLongKey() {
+      return key;
+    }
+
+    @Override
+    public int getIntKey() {
+      return (int) key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    /** Create a node with the key and value of this node and the given children. */
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    Node<V> withChildren(@Nullable Node<V> newLeft, @Nullable Node<V> newRight) {
+      if (newLeft == left && newRight == right) {
+        return this;
+      }
+      return new Node<>(key, value, newLeft, newRight);
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  // static creation methods
+
+  private static final PersistentLongSortedMap<?> EMPTY_MAP = new PersistentLongSortedMap<>(null);
+
+  @SuppressWarnings("unchecked")
+  public static <V extends @Nullable Object> PersistentLongSortedMap<V> of() {
+    return (PersistentLongSortedMap<V>) EMPTY_MAP;
+  }
+
+  /**
+   * Return a map with the same mappings as the given map. This takes linear time if the given map
+   * is a {@link SortedMap} with natural ordering, otherwise the entries need to be sorted first.
+   */
+  public static <V extends @Nullable Object> PersistentLongSortedMap<V> copyOf(
+      Map<Long, ? extends V> map) {
+    if (map instanceof PrimitiveKeySortedMapView<?, ?> view && !view.hasIntKeys()) {
+      @SuppressWarnings("unchecked") // immutable, so covariant
+      PersistentLongSortedMap<V> result = (PersistentLongSortedMap<V>) view.getDelegate();
+      return result;
+    }
+    List<Map.Entry<Long, ? extends V>> entries;
+    if (map instanceof SortedMap<?, ?> sortedMap
+        && Collections3.guaranteedSameOrder(sortedMap.comparator(), null)) {
+      entries = new ArrayList<>(map.entrySet());
+    } else {
+      // TreeMap sorts the entries and rejects null keys
+      entries = new ArrayList<>(new TreeMap<>(map).entrySet());
+    }
+    return fromSortedEntries(entries);
+  }
+
+  /** Create a map from a list of entries with strictly increasing keys. */
+  static <V extends @Nullable Object> PersistentLongSortedMap<V> fromSortedEntries(
+      List<? extends Map.Entry<? extends Number, ? extends V>> entries) {
+    if (entries.isEmpty()) {
+      return of();
+    }
+    return new PersistentLongSortedMap<>(buildTree(entries, 0, entries.size()));
+  }
+
+  /**
+   * Build a perfectly balanced tree for the entries in the given range of a list with strictly
+   * increasing keys.
+   */
+  private static <V extends @Nullable Object> @Nullable Node<V> buildTree(
+      List<? extends Map.Entry<? extends Number, ? extends V>> entries, int from, int to) {
+    if (from == to) {
+      return null;
+    }
+    int middle = (from + to) >>> 1;
+    Map.Entry<? extends Number, ? extends V> entry = entries.get(middle);
+    return new Node<>(
+        entry.getKey().longValue(),
+        entry.getValue(),
+        buildTree(entries, from, middle),
+        buildTree(entries, middle + 1, to));
+  }
+
+  // state and constructor
+
+  private final @Nullable Node<V> root;
+
+  private PersistentLongSortedMap(@Nullable Node<V> pRoot) {
+    root = pRoot;
+  }
+
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+  private PersistentLongSortedMap<V> mapFromTree(@Nullable Node<V> newRoot) {
+    if (newRoot == root) {
+      return this;
+    } else if (newRoot == null) {
+      return of();
+    } else {
+      return new PersistentLongSortedMap<>(newRoot);
+    }
+  }
+
+  // tree operations
+
+  private static <V> @Nullable Node<V> findNode(long key, @Nullable Node<V> root) {
+    @Var Node<V> current = root;
+    while (current != null) {
+      if (key < current.key) {
+        current = current.left;
+      } else if (key > current.key) {
+        current = current.right;
+      } else {
+        return current;
+      }
+    }
+    return null;
+  }
+
+  private static <V> @Nullable Node<V> findSmallestNode(@Nullable Node<V> root) {
+    @Var Node<V> current = root;
+    while (current != null && current.left != null) {
+      current = current.left;
+    }
+    return current;
+  }
+
+  private static <V> @Nullable Node<V> findLargestNode(@Nullable Node<V> root) {
+    @Var Node<V> current = root;
+    while (current != null && current.right != null) {
+      current = current.right;
+    }
+    return current;
+  }
+
+  /** Find the node with the smallest key that is greater than (or equal to) the given key. */
+  private static <V> @Nullable Node<V> findNextNode(
+      long key, boolean inclusive, @Nullable Node<V> root) {
+    @Var Node<V> result = null;
+    @Var Node<V> current = root;
+    while (current != null) {
+      if (key < current.key || (key == current.key && inclusive)) {
+        result = current;
+        current = current.left;
+      } else {
+        current = current.right;
+      }
+    }
+    return result;
+  }
+
+  /** Find the node with the largest key that is less than (or equal to) the given key. */
+  private static <V> @Nullable Node<V> findPreviousNode(
+      long key, boolean inclusive, @Nullable Node<V> root) {
+    @Var Node<V> result = null;
+    @Var Node<V> current = root;
+    while (current != null) {
+      if (key > current.key || (key == current.key && inclusive)) {
+        result = current;
+        current = current.right;
+      } else {
+        current = current.left;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Create a tree with the key and value of the given node and the given subtrees, restoring the
+   * balance if necessary. This handles only the case where the subtrees were balanced before a
+   * single entry was inserted into or removed from one of them.
+   */
+  private static <V> Node<V> balance(
+      Node<V> node, @Nullable Node<V> left, @Nullable Node<V> right) {
+    int leftWeight = Node.weight(left);
+    int rightWeight = Node.weight(right);
+    if (areBalanced(leftWeight, rightWeight)) {
+      return node.withChildren(left, right);
+    } else if (leftWeight > rightWeight) {
+      return rotateClockwise(node, left, right);
+    } else {
+      return rotateCounterclockwise(node, left, right);
+    }
+  }
+
+  /** Create a tree from the given node and subtrees, where the left subtree is too heavy. */
+  private static <V> Node<V> rotateClockwise(
+      Node<V> node, Node<V> left, @Nullable Node<V> right) {
+    if (isSingleRotation(Node.weight(left.right), Node.weight(left.left))) {
+      return left.withChildren(left.left, node.withChildren(left.right, right));
+    } else {
+      Node<V> newRoot = left.right;
+      return newRoot.withChildren(
+          left.withChildren(left.left, newRoot.left), node.withChildren(newRoot.right, right));
+    }
+  }
+
+  /** Create a tree from the given node and subtrees, where the right subtree is too heavy. */
+  private static <V> Node<V> rotateCounterclockwise(
+      Node<V> node, @Nullable Node<V> left, Node<V> right) {
+    if (isSingleRotation(Node.weight(right.left), Node.weight(right.right))) {
+      return right.withChildren(node.withChildren(left, right.left), right.right);
+    } else {
+      Node<V> newRoot = right.left;
+      return newRoot.withChildren(
+          node.withChildren(left, newRoot.left), right.withChildren(newRoot.right, right.right));
+    }
+  }
+
+  private static <V> Node<V> putAndCopy0(long key, V value, @Nullable Node<V> current) {
+    if (current == null) {
+      return new Node<>(key, value, null, null);
+    }
+    if (key < current.key) {
+      return balance(current, putAndCopy0(key, value, current.left), current.right);
+    } else if (key > current.key) {
+      return balance(current, current.left, putAndCopy0(key, value, current.right));
+    } else if (value == current.value) {
+      return current;
+    } else {
+      return new Node<>(key, value, current.left, current.right);
+    }
+  }
+
+  private static <V> @Nullable Node<V> removeAndCopy0(long key, @Nullable Node<V> current) {
+    if (current == null) {
+      return null;
+    }
+    if (key < current.key) {
+      return balance(current, removeAndCopy0(key, current.left), current.right);
+    } else if (key > current.key) {
+      return balance(current, current.left, removeAndCopy0(key, current.right));
+    } else {
+      return concatenate(current.left, current.right);
+    }
+  }
+
+  /**
+   * Create a tree from two balanced siblings, all keys in the left tree need to be smaller. The
+   * new root is taken from the heavier subtree.
+   */
+  private static <V> @Nullable Node<V> concatenate(
+      @Nullable Node<V> left, @Nullable Node<V> right) {
+    if (left == null) {
+      return right;
+    } else if (right == null) {
+      return left;
+    } else if (left.size > right.size) {
+      Node<V> largest = findLargestNode(left);
+      return balance(largest, removeLargestNode(left), right);
+    } else {
+      Node<V> smallest = findSmallestNode(right);
+      return balance(smallest, left, removeSmallestNode(right));
+    }
+  }
+
+  private static <V> @Nullable Node<V> removeSmallestNode(Node<V> current) {
+    if (current.left == null) {
+      return current.right;
+    }
+    return balance(current, removeSmallestNode(current.left), current.right);
+  }
+
+  private static <V> @Nullable Node<V> removeLargestNode(Node<V> current) {
+    if (current.right == null) {
+      return current.left;
+    }
+    return balance(current, current.left, removeLargestNode(current.right));
+  }
+
+  /**
+   * Create a tree with all nodes of two trees and the key and value of a given middle node, like
+   * the join operation of {@link PersistentOrderStatisticTreeMap}.
+   */
+  private static <V> Node<V> join(
+      @Nullable Node<V> left, Node<V> middle, @Nullable Node<V> right) {
+    int leftWeight = Node.weight(left);
+    int rightWeight = Node.weight(right);
+    if (!isBalanced(rightWeight, leftWeight)) {
+      return joinRight(left, middle, right);
+    } else if (!isBalanced(leftWeight, rightWeight)) {
+      return joinLeft(left, middle, right);
+    } else {
+      return middle.withChildren(left, right);
+    }
+  }
+
+  /** Join by descending along the right spine of the heavier left tree. */
+  private static <V> Node<V> joinRight(
+      Node<V> left, Node<V> middle, @Nullable Node<V> right) {
+    if (areBalanced(Node.weight(left), Node.weight(right))) {
+      return middle.withChildren(left, right);
+    }
+    Node<V> newRight = joinRight(left.right, middle, right);
+    int outerWeight = Node.weight(left.left);
+    if (areBalanced(outerWeight, Node.weight(newRight))) {
+      return left.withChildren(left.left, newRight);
+    } else if (areBalanced(outerWeight, Node.weight(newRight.left))
+        && areBalanced(outerWeight + Node.weight(newRight.left), Node.weight(newRight.right))) {
+      return newRight.withChildren(left.withChildren(left.left, newRight.left), newRight.right);
+    } else {
+      Node<V> newRoot = newRight.left;
+      return newRoot.withChildren(
+          left.withChildren(left.left, newRoot.left),
+          newRight.withChildren(newRoot.right, newRight.right));
+    }
+  }
+
+  /** Join by descending along the left spine of the heavier right tree. */
+  private static <V> Node<V> joinLeft(
+      @Nullable Node<V> left, Node<V> middle, Node<V> right) {
+    if (areBalanced(Node.weight(left), Node.weight(right))) {
+      return middle.withChildren(left, right);
+    }
+    Node<V> newLeft = joinLeft(left, middle, right.left);
+    int outerWeight = Node.weight(right.right);
+    if (areBalanced(Node.weight(newLeft), outerWeight)) {
+      return right.withChildren(newLeft, right.right);
+    } else if (areBalanced(Node.weight(newLeft.right), outerWeight)
+        && areBalanced(Node.weight(newLeft.left), Node.weight(newLeft.right) + outerWeight)) {
+      return newLeft.withChildren(newLeft.left, right.withChildren(newLeft.right, right.right));
+    } else {
+      Node<V> newRoot = newLeft.right;
+      return newRoot.withChildren(
+          newLeft.withChildren(newLeft.left, newRoot.left),
+          right.withChildren(newRoot.right, right.right));
+    }
+  }
+
+  /** Return a tree with all nodes whose key is less than (or equal to) the given key. */
+  private static <V> @Nullable Node<V> headTree(
+      long toKey, boolean inclusive, @Nullable Node<V> current) {
+    if (current == null) {
+      return null;
+    }
+    if (toKey < current.key || (toKey == current.key && !inclusive)) {
+      return headTree(toKey, inclusive, current.left);
+    } else if (toKey == current.key) {
+      return join(current.left, current, null);
+    } else {
+      return join(current.left, current, headTree(toKey, inclusive, current.right));
+    }
+  }
+
+  /** Return a tree with all nodes whose key is greater than (or equal to) the given key. */
+  private static <V> @Nullable Node<V> tailTree(
+      long fromKey, boolean inclusive, @Nullable Node<V> current) {
+    if (current == null) {
+      return null;
+    }
+    if (fromKey > current.key || (fromKey == current.key && !inclusive)) {
+      return tailTree(fromKey, inclusive, current.right);
+    } else if (fromKey == current.key) {
+      return join(null, current, current.right);
+    } else {
+      return join(tailTree(fromKey, inclusive, current.left), current, current.right);
+    }
+  }
+
+  /**
+   * Check the tree for violation of its invariants.
+   *
+   * @return The size of the tree.
+   * @throws IllegalStateException If any invariant is violated.
+   */
+  private static int checkAssertions(@Nullable Node<?> current) {
+    if (current == null) {
+      return 0;
+    }
+    if (current.left != null) {
+      checkState(current.key > current.left.key, "Tree is not sorted at node %s", current);
+    }
+    if (current.right != null) {
+      checkState(current.key < current.right.key, "Tree is not sorted at node %s", current);
+    }
+    int size = checkAssertions(current.left) + 1 + checkAssertions(current.right);
+    checkState(size == current.size, "Wrong size %s at node %s", current.size, current);
+    checkState(
+        areBalanced(Node.weight(current.left), Node.weight(current.right)),
+        "Tree is not balanced at node %s",
+        current);
+    return size;
+  }
+
+  /**
+   * Check the map for violation of its invariants.
+   *
+   * @throws IllegalStateException If any invariant is violated.
+   */
+  @VisibleForTesting
+  @SuppressWarnings("CheckReturnValue")
+  void checkAssertions() {
+    checkAssertions(root);
+  }
+
+  // modifying methods
+
+  /**
+   * Return a map with the given mapping added (or replacing the existing mapping for the key).
+   */
+  @CheckReturnValue
+  public PersistentLongSortedMap<V> putAndCopy(long key, V value) {
+    return mapFromTree(putAndCopy0(key, value, root));
+  }
+
+  /** Return a map without the mapping for the given key, or this map if there is none. */
+  @CheckReturnValue
+  public PersistentLongSortedMap<V> removeAndCopy(long key) {
+    return mapFromTree(removeAndCopy0(key, root));
+  }
+
+  /** Return the empty map. */
+  @CheckReturnValue
+  public PersistentLongSortedMap<V> empty() {
+    return of();
+  }
+
+  /**
+   * Return a map with all mappings of this map whose keys are less than (or equal to, if inclusive
+   * is true) the given key. This splits the tree in O(log n) time.
+   */
+  @CheckReturnValue
+  public PersistentLongSortedMap<V> headMapAndCopy(long toKey, boolean inclusive) {
+    return mapFromTree(headTree(toKey, inclusive, root));
+  }
+
+  /**
+   * Return a map with all mappings of this map whose keys are greater than (or equal to, if
+   * inclusive is true) the given key. This splits the tree in O(log n) time.
+   */
+  @CheckReturnValue
+  public PersistentLongSortedMap<V> tailMapAndCopy(long fromKey, boolean inclusive) {
+    return mapFromTree(tailTree(fromKey, inclusive, root));
+  }
+
+  // read operations
+
+  public int size() {
+    return Node.size(root);
+  }
+
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  public boolean containsKey(long key) {
+    return findNode(key, root) != null;
+  }
+
+  /** Return the value for the given key, or null if there is no mapping for it. */
+  public @Nullable V get(long key) {
+    Node<V> node = findNode(key, root);
+    return node == null ? null : node.value;
+  }
+
+  /** Return the value for the given key, or the given default value if there is no mapping. */
+  public V getOrDefault(long key, V defaultValue) {
+    Node<V> node = findNode(key, root);
+    return node == null ? defaultValue : node.value;
+  }
+
+  public @Nullable LongEntry<V> getEntry(long key) {
+    return findNode(key, root);
+  }
+
+  public @Nullable LongEntry<V> firstEntry() {
+    return findSmallestNode(root);
+  }
+
+  public @Nullable LongEntry<V> lastEntry() {
+    return findLargestNode(root);
+  }
+
+  /**
+   * Return the smallest key in this map.
+   *
+   * @throws NoSuchElementException if this map is empty.
+   */
+  public long firstKey() {
+    if (root == null) {
+      throw new NoSuchElementException();
+    }
+    return findSmallestNode(root).key;
+  }
+
+  /**
+   * Return the largest key in this map.
+   *
+   * @throws NoSuchElementException if this map is empty.
+   */
+  public long lastKey() {
+    if (root == null) {
+      throw new NoSuchElementException();
+    }
+    return findLargestNode(root).key;
+  }
+
+  /** Return the entry with the smallest key greater than or equal to the given key, or null. */
+  public @Nullable LongEntry<V> ceilingEntry(long key) {
+    return findNextNode(key, true, root);
+  }
+
+  /** Return the entry with the largest key less than or equal to the given key, or null. */
+  public @Nullable LongEntry<V> floorEntry(long key) {
+    return findPreviousNode(key, true, root);
+  }
+
+  /** Return the entry with the smallest key strictly greater than the given key, or null. */
+  public @Nullable LongEntry<V> higherEntry(long key) {
+    return findNextNode(key, false, root);
+  }
+
+  /** Return the entry with the largest key strictly less than the given key, or null. */
+  public @Nullable LongEntry<V> lowerEntry(long key) {
+    return findPreviousNode(key, false, root);
+  }
+
+  /**
+   * Like {@link #ceilingEntry(long)} etc., but with explicit direction and inclusiveness. For use
+   * by the views.
+   */
+  @Nullable Node<V> findNode(long key, boolean next, boolean inclusive) {
+    return next ? findNextNode(key, inclusive, root) : findPreviousNode(key, inclusive, root);
+  }
+
+  @Nullable Node<V> findExtremeNode(boolean smallest) {
+    return smallest ? findSmallestNode(root) : findLargestNode(root);
+  }
+
+  /** Iterate over the entries in ascending order of their keys. */
+  @Override
+  public Iterator<LongEntry<V>> iterator() {
+    return new EntryIterator<>(root, true);
+  }
+
+  /** Iterate over the entries in descending order of their keys. */
+  public Iterator<LongEntry<V>> descendingIterator() {
+    return new EntryIterator<>(root, false);
+  }
+
+  Iterator<Node<V>> nodeIterator(boolean ascending) {
+    return new EntryIterator<>(root, ascending);
+  }
+
+  /**
+   * Return a view of this map as a {@link PersistentSortedMap} with boxed keys. The view is
+   * created in O(1) time and its modifying operations return views of modified maps. Sub maps of
+   * the view are created by splitting the tree in O(log n) time.
+   */
+  public PersistentSortedMap<Long, V> asSortedMap() {
+    return PrimitiveKeySortedMapView.ofLongKeys(this);
+  }
+
+  /**
+   * Two maps are equal if they contain equal values for the same keys. This is consistent with
+   * {@link #asSortedMap()}, i.e., maps are equal if and only if their views are equal.
+   */
+  @Override
+  @SuppressWarnings("ReferenceEquality") // comparing nodes with equals would not suffice
+  public boolean equals(@Nullable Object pObj) {
+    if (this == pObj) {
+      return true;
+    }
+    if (!(pObj instanceof PersistentLongSortedMap<?> other)) {
+      return false;
+    }
+    if (root == other.root) {
+      return true;
+    }
+    if (size() != other.size()) {
+      return false;
+    }
+    Iterator<Node<V>> it1 = nodeIterator(true);
+    Iterator<? extends Node<?>> it2 = other.nodeIterator(true);
+    while (it1.hasNext()) {
+      Node<V> node1 = it1.next();
+      Node<?> node2 = it2.next();
+      if (node1.key != node2.key || !Objects.equals(node1.value, node2.value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Return the same hash code as {@link Map#hashCode()} of {@link #asSortedMap()}. */
+  @Override
+  public int hashCode() {
+    @Var int result = 0;
+    for (LongEntry<V> entry : this) {
+      result += Long.hashCode(entry.getLongKey()) ^ Objects.hashCode(entry.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    @Var boolean first = true;
+    for (LongEntry<V> entry : this) {
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      sb.append(entry);
+    }
+    return sb.append('}').toString();
+  }
+
+  /** In-order iterator over the nodes of a tree, using a stack of the nodes still to visit. */
+  private static final class EntryIterator<V extends @Nullable Object, E extends LongEntry<V>>
+      extends UnmodifiableIterator<E> {
+
+    private final Deque<Node<V>> stack = new ArrayDeque<>();
+    private final boolean ascending;
+
+    EntryIterator(@Nullable Node<V> root, boolean pAscending) {
+      ascending = pAscending;
+      pushFirstNodes(root);
+    }
+
+    /** Push the given node and all nodes on the path to the first node of its subtree. */
+    private void pushFirstNodes(@Var @Nullable Node<V> current) {
+      while (current != null) {
+        stack.push(current);
+        current = ascending ? current.left : current.right;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // E is either Node<V> or a supertype of it
+    public E next() {
+      Node<V> current = stack.poll();
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      pushFirstNodes(ascending ? current.right : current.left);
+      return (E) current;
+    }
+  }
+}
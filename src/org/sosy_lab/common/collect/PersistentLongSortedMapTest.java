@@ -0,0 +1,231 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.TestSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.errorprone.annotations.Var;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+import org.sosy_lab.common.collect.PersistentLongSortedMap.LongEntry;
+
+public class PersistentLongSortedMapTest {
+
+  /** Generator for maps with numeric keys, where the sample keys fit into an int. */
+  static final class NumberKeyedMapGenerator<K extends Comparable<? super K>>
+      implements TestSortedMapGenerator<K, String> {
+
+    private final LongFunction<K> toKey;
+    private final Function<Map.Entry<K, String>[], SortedMap<K, String>> factory;
+
+    NumberKeyedMapGenerator(
+        LongFunction<K> pToKey,
+        Function<Map.Entry<K, String>[], SortedMap<K, String>> pFactory) {
+      toKey = pToKey;
+      factory = pFactory;
+    }
+
+    private Map.Entry<K, String> entry(long key, String value) {
+      return Maps.immutableEntry(toKey.apply(key), value);
+    }
+
+    @Override
+    public SampleElements<Map.Entry<K, String>> samples() {
+      return new SampleElements<>(
+          entry(-20, "a"), entry(-10, "b"), entry(0, "c"), entry(10, "d"), entry(20, "e"));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SortedMap<K, String> create(Object... pEntries) {
+      Map.Entry<K, String>[] entries = new Map.Entry[pEntries.length];
+      for (int i = 0; i < pEntries.length; i++) {
+        entries[i] = (Map.Entry<K, String>) pEntries[i];
+      }
+      return factory.apply(entries);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, String>[] createArray(int pLength) {
+      return new Map.Entry[pLength];
+    }
+
+    @Override
+    public Iterable<Map.Entry<K, String>> order(List<Map.Entry<K, String>> pInsertionOrder) {
+      return Ordering.natural()
+          .onResultOf((Map.Entry<K, String> entry) -> entry.getKey())
+          .sortedCopy(pInsertionOrder);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K[] createKeyArray(int pLength) {
+      return (K[]) new Comparable<?>[pLength];
+    }
+
+    @Override
+    public String[] createValueArray(int pLength) {
+      return new String[pLength];
+    }
+
+    @Override
+    public Map.Entry<K, String> belowSamplesLesser() {
+      return entry(-40, "below1");
+    }
+
+    @Override
+    public Map.Entry<K, String> belowSamplesGreater() {
+      return entry(-30, "below2");
+    }
+
+    @Override
+    public Map.Entry<K, String> aboveSamplesLesser() {
+      return entry(30, "above1");
+    }
+
+    @Override
+    public Map.Entry<K, String> aboveSamplesGreater() {
+      return entry(40, "above2");
+    }
+  }
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentLongSortedMapTest.class));
+
+    suite.addTest(
+        NavigableMapTestSuiteBuilder.using(
+                new NumberKeyedMapGenerator<Long>(
+                    Long::valueOf,
+                    entries -> {
+                      @Var PersistentLongSortedMap<String> result = PersistentLongSortedMap.of();
+                      for (Map.Entry<Long, String> entry : entries) {
+                        result = result.putAndCopy(entry.getKey(), entry.getValue());
+                      }
+                      return result.asSortedMap();
+                    }))
+            .named("PersistentLongSortedMap.asSortedMap")
+            .withFeatures(
+                MapFeature.ALLOWS_NULL_VALUES, CollectionFeature.KNOWN_ORDER, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  private static void checkEqualTo(
+      NavigableMap<Long, Integer> expected, PersistentLongSortedMap<Integer> map) {
+    map.checkAssertions();
+    assertThat(map.size()).isEqualTo(expected.size());
+    assertThat(map.asSortedMap()).containsExactlyEntriesIn(expected).inOrder();
+    assertThat(map.asSortedMap().descendingMap())
+        .containsExactlyEntriesIn(expected.descendingMap())
+        .inOrder();
+    assertThat(map.hashCode()).isEqualTo(expected.hashCode());
+    assertThat(map.asSortedMap().hashCode()).isEqualTo(expected.hashCode());
+    assertThat(map).isEqualTo(PersistentLongSortedMap.copyOf(expected));
+    Iterator<LongEntry<Integer>> it = map.iterator();
+    for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+      LongEntry<Integer> actual = it.next();
+      assertThat(actual.getLongKey()).isEqualTo(entry.getKey());
+      assertThat(actual.getValue()).isEqualTo(entry.getValue());
+    }
+    assertThat(it.hasNext()).isFalse();
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random rnd = new Random(0);
+    NavigableMap<Long, Integer> expected = new TreeMap<>();
+    @Var PersistentLongSortedMap<Integer> map = PersistentLongSortedMap.of();
+    for (int i = 0; i < 5000; i++) {
+      // use a few large keys to check that keys are not truncated
+      long key = rnd.nextInt(10) == 0 ? rnd.nextLong() : rnd.nextInt(1000) - 500;
+      if (rnd.nextInt(3) == 0) {
+        map = map.removeAndCopy(key);
+        expected.remove(key);
+      } else {
+        map = map.putAndCopy(key, i);
+        expected.put(key, i);
+      }
+      assertThat(map.get(key)).isEqualTo(expected.get(key));
+      assertThat(map.containsKey(key)).isEqualTo(expected.containsKey(key));
+      if (i % 500 == 0) {
+        checkEqualTo(expected, map);
+      }
+    }
+    checkEqualTo(expected, map);
+  }
+
+  @Test
+  public void testNavigation() {
+    PersistentLongSortedMap<String> map =
+        PersistentLongSortedMap.<String>of()
+            .putAndCopy(10, "a")
+            .putAndCopy(20, "b")
+            .putAndCopy(Long.MIN_VALUE, "min")
+            .putAndCopy(Long.MAX_VALUE, "max");
+    assertThat(map.firstKey()).isEqualTo(Long.MIN_VALUE);
+    assertThat(map.lastKey()).isEqualTo(Long.MAX_VALUE);
+    assertThat(map.ceilingEntry(10).getValue()).isEqualTo("a");
+    assertThat(map.ceilingEntry(11).getValue()).isEqualTo("b");
+    assertThat(map.higherEntry(10).getValue()).isEqualTo("b");
+    assertThat(map.floorEntry(19).getValue()).isEqualTo("a");
+    assertThat(map.lowerEntry(10).getValue()).isEqualTo("min");
+    assertThat(map.higherEntry(Long.MAX_VALUE)).isNull();
+    assertThat(map.lowerEntry(Long.MIN_VALUE)).isNull();
+    assertThat(map.getOrDefault(15, "default")).isEqualTo("default");
+    assertThat(map.headMapAndCopy(20, false).asSortedMap().keySet())
+        .containsExactly(Long.MIN_VALUE, 10L)
+        .inOrder();
+    assertThat(map.tailMapAndCopy(20, true).asSortedMap().keySet())
+        .containsExactly(20L, Long.MAX_VALUE)
+        .inOrder();
+    assertThat(map.toString())
+        .isEqualTo("{" + Long.MIN_VALUE + "=min, 10=a, 20=b, " + Long.MAX_VALUE + "=max}");
+
+    PersistentLongSortedMap<String> empty = PersistentLongSortedMap.of();
+    assertThrows(NoSuchElementException.class, () -> empty.firstKey());
+    assertThat(empty.firstEntry()).isNull();
+  }
+
+  @Test
+  public void testSortedMapView() {
+    PersistentLongSortedMap<String> map = PersistentLongSortedMap.<String>of().putAndCopy(1, "a");
+    PersistentSortedMap<Long, String> view = map.asSortedMap().putAndCopy(2L, "b");
+    assertThat(view).containsExactly(1L, "a", 2L, "b").inOrder();
+    assertThat(map.asSortedMap()).containsExactly(1L, "a");
+    assertThat(PersistentLongSortedMap.copyOf(view)).isEqualTo(map.putAndCopy(2, "b"));
+    assertThat(view.descendingMap().headMap(1L)).containsExactly(2L, "b");
+    // like TreeMap, the view does not accept keys of other types
+    assertThrows(ClassCastException.class, () -> view.get(1));
+    assertThat(ImmutableList.copyOf(view.descendingKeySet())).containsExactly(2L, 1L).inOrder();
+  }
+}
@@ -12,6 +12,8 @@ import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.errorprone.annotations.CompatibleWith;
 import com.google.errorprone.annotations.DoNotCall;
 import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.Collection;
 import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -43,6 +45,33 @@ public interface PersistentMap<K, V extends @Nullable Object> extends Map<K, V>
   @CheckReturnValue
   PersistentMap<K, V> removeAndCopy(@CompatibleWith("K") Object key);
 
+  /**
+   * Replacement for {{@link #putAll(Map)} that returns a fresh instance. Implementations may apply
+   * all changes at once more efficiently than repeated calls to {@link #putAndCopy(Object,
+   * Object)}.
+   */
+  @CheckReturnValue
+  default PersistentMap<K, V> putAllAndCopy(Map<? extends K, ? extends V> map) {
+    @Var PersistentMap<K, V> result = this;
+    for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+      result = result.putAndCopy(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Return a map without the given keys. Implementations may apply all changes at once more
+   * efficiently than repeated calls to {@link #removeAndCopy(Object)}.
+   */
+  @CheckReturnValue
+  default PersistentMap<K, V> removeAllAndCopy(Collection<?> keys) {
+    @Var PersistentMap<K, V> result = this;
+    for (Object key : keys) {
+      result = result.removeAndCopy(key);
+    }
+    return result;
+  }
+
   /** Replacement for {{@link #clear()} that returns an empty instance. */
   @CheckReturnValue
   PersistentMap<K, V> empty();
@@ -0,0 +1,1087 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * This is an implementation of {@link PersistentSortedMap} that additionally implements {@link
+ * OrderStatisticMap}, i.e., it provides access to entries by their rank and the rank of keys. It is
+ * based on weight-balanced trees (also called trees of bounded balance) and path copying. Each node
+ * stores the size of its subtree, and the sizes of the two subtrees of a node differ at most by a
+ * constant factor. The balancing parameters are those from Hirai and Yamamoto: "Balancing
+ * weight-balanced trees", JFP 21(3), 2011.
+ *
+ * <p>The operations insert, lookup, remove, {@link #getEntryByRank(int)}, and {@link
+ * #rankOf(Comparable)} are guaranteed to run in O(log n) time. Insert and remove allocate at most
+ * O(log n) memory. Per entry, this map needs memory for one object with 4 reference fields and 1
+ * int, because the subtree sizes also serve as balancing information. This is the same as for
+ * {@link PathCopyingPersistentTreeMap}.
+ *
+ * <p>The maps returned by {@link #subMap}, {@link #headMap}, {@link #tailMap}, and {@link
+ * #descendingMap()} are instances of this class as well. Because this map is immutable, they do not
+ * need to be views: sub maps are created by splitting the tree in O(log n) time and with O(log n)
+ * memory, and the descending map shares the tree of this map. Thus {@link #size()} is O(1) and all
+ * rank operations are O(log n) on them as well, and they also support all operations of {@link
+ * PersistentSortedMap}. A descending map keeps its order for all maps derived from it.
+ *
+ * <p>This implementation does not support <code>null</code> keys (but <code>null</code> values) and
+ * always compares according to the natural ordering (or its reverse, for descending maps). The
+ * natural ordering of the keys needs to be consistent with equals.
+ *
+ * <p>As for all {@link PersistentMap}s, all collection views and all iterators are immutable, and
+ * all modifying operations inherited from {@link Map} and {@link OrderStatisticMap} throw {@link
+ * UnsupportedOperationException}. Use {@link #removeByRankAndCopy(int)} instead of {@link
+ * #removeByRank(int)}.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <K> The type of keys.
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = {"K", "V"})
+@SuppressFBWarnings(value = "SING_SINGLETON_IMPLEMENTS_SERIALIZABLE", justification = "false alarm")
+public final class PersistentOrderStatisticTreeMap<
+        K extends Comparable<? super K>, V extends @Nullable Object>
+    extends AbstractImmutableMap<K, V>
+    implements PersistentSortedMap<K, V>,
+        OrderStatisticMap<K, V>,
+        OurSortedMap<K, V>,
+        Serializable {
+
+  private static final long serialVersionUID = -3906372867093128251L;
+
+  @SuppressFBWarnings(
+      value = "EQ_DOESNT_OVERRIDE_EQUALS",
+      justification = "Inherits equals() according to specification.")
+  @Immutable(containerOf = {"K", "V"})
+  private static final class Node<K, V extends @Nullable Object>
+      extends SimpleImmutableEntry<K, V> {
+
+    private static final long serialVersionUID = 4563420497357893467L;
+
+    private final @Nullable Node<K, V> left;
+    private final @Nullable Node<K, V> right;
+    private final int size;
+
+    Node(K pKey, V pValue, @Nullable Node<K, V> pLeft, @Nullable Node<K, V> pRight) {
+      super(pKey, pValue);
+      left = pLeft;
+      right = pRight;
+      size = size(pLeft) + 1 + size(pRight);
+    }
+
+    static int size(@Nullable Node<?, ?> n) {
+      return n == null ? 0 : n.size;
+    }
+
+    /**
+     * The weight of a tree, which is used for the balancing criterion. Using the size plus one
+     * (instead of the size) makes the criterion work for empty trees.
+     */
+    static int weight(@Nullable Node<?, ?> n) {
+      return size(n) + 1;
+    }
+
+    /** Create a node with the key and value of this node and the given children. */
+    @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+    Node<K, V> withChildren(@Nullable Node<K, V> newLeft, @Nullable Node<K, V> newRight) {
+      if (newLeft == left && newRight == right) {
+        return this;
+      }
+      return new Node<>(getKey(), getValue(), newLeft, newRight);
+    }
+  }
+
+  // static creation methods
+
+  private static final PersistentOrderStatisticTreeMap<?, ?> EMPTY_MAP =
+      new PersistentOrderStatisticTreeMap<String, Object>(null, /* pDescending= */ false);
+
+  @SuppressWarnings("unchecked")
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentOrderStatisticTreeMap<K, V> of() {
+    return (PersistentOrderStatisticTreeMap<K, V>) EMPTY_MAP;
+  }
+
+  /**
+   * Return a map with the same mappings as the given map. This takes linear time if the given map
+   * is a {@link SortedMap} with natural ordering, otherwise the entries need to be sorted first.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object>
+      PersistentOrderStatisticTreeMap<K, V> copyOf(Map<K, V> map) {
+    checkNotNull(map);
+
+    if (map instanceof PersistentOrderStatisticTreeMap<K, V> treeMap) {
+      return treeMap.descending ? treeMap.descendingMap() : treeMap;
+    }
+
+    List<Map.Entry<K, V>> entries;
+    if (map instanceof SortedMap<?, ?> sortedMap
+        && Collections3.guaranteedSameOrder(sortedMap.comparator(), null)) {
+      entries = new ArrayList<>(map.entrySet());
+    } else {
+      // TreeMap sorts the entries and rejects null keys
+      entries = new ArrayList<>(new TreeMap<>(map).entrySet());
+    }
+    if (entries.isEmpty()) {
+      return of();
+    }
+    return new PersistentOrderStatisticTreeMap<>(
+        buildTree(entries, 0, entries.size()), /* pDescending= */ false);
+  }
+
+  /**
+   * Build a perfectly balanced tree for the entries in the given range of a list with strictly
+   * increasing keys.
+   */
+  private static <K, V extends @Nullable Object> @Nullable Node<K, V> buildTree(
+      List<Map.Entry<K, V>> entries, int from, int to) {
+    if (from == to) {
+      return null;
+    }
+    int middle = (from + to) >>> 1;
+    Map.Entry<K, V> entry = entries.get(middle);
+    return new Node<>(
+        checkNotNull(entry.getKey()),
+        entry.getValue(),
+        buildTree(entries, from, middle),
+        buildTree(entries, middle + 1, to));
+  }
+
+  // state and constructor
+
+  private final @Nullable Node<K, V> root;
+
+  /** Whether this map iterates in the reverse of the natural order of the keys. */
+  private final boolean descending;
+
+  private PersistentOrderStatisticTreeMap(@Nullable Node<K, V> pRoot, boolean pDescending) {
+    root = pRoot;
+    descending = pDescending;
+  }
+
+  /**
+   * Create a map instance with a given root node and the same order as this map.
+   *
+   * @param newRoot A node or null (meaning the empty tree).
+   * @return A map instance with the given tree.
+   */
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether tree is the same
+  private PersistentOrderStatisticTreeMap<K, V> mapFromTree(@Nullable Node<K, V> newRoot) {
+    if (newRoot == root) {
+      return this;
+    } else if (newRoot == null && !descending) {
+      return of();
+    } else {
+      return new PersistentOrderStatisticTreeMap<>(newRoot, descending);
+    }
+  }
+
+  // tree operations (these work in the natural order of keys)
+
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> findNode(
+      K key, @Nullable Node<K, V> root) {
+    @Var Node<K, V> current = root;
+    while (current != null) {
+      int comp = key.compareTo(current.getKey());
+      if (comp < 0) {
+        current = current.left;
+      } else if (comp > 0) {
+        current = current.right;
+      } else {
+        return current;
+      }
+    }
+    return null;
+  }
+
+  private static <K, V> @Nullable Node<K, V> findSmallestNode(@Nullable Node<K, V> root) {
+    @Var Node<K, V> current = root;
+    while (current != null && current.left != null) {
+      current = current.left;
+    }
+    return current;
+  }
+
+  private static <K, V> @Nullable Node<K, V> findLargestNode(@Nullable Node<K, V> root) {
+    @Var Node<K, V> current = root;
+    while (current != null && current.right != null) {
+      current = current.right;
+    }
+    return current;
+  }
+
+  /** Find the node with the smallest key that is greater than (or equal to) the given key. */
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> findNextNode(
+      K key, boolean inclusive, @Nullable Node<K, V> root) {
+    @Var Node<K, V> result = null;
+    @Var Node<K, V> current = root;
+    while (current != null) {
+      int comp = key.compareTo(current.getKey());
+      if (comp < 0 || (comp == 0 && inclusive)) {
+        result = current;
+        current = current.left;
+      } else {
+        current = current.right;
+      }
+    }
+    return result;
+  }
+
+  /** Find the node with the largest key that is less than (or equal to) the given key. */
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> findPreviousNode(
+      K key, boolean inclusive, @Nullable Node<K, V> root) {
+    @Var Node<K, V> result = null;
+    @Var Node<K, V> current = root;
+    while (current != null) {
+      int comp = key.compareTo(current.getKey());
+      if (comp > 0 || (comp == 0 && inclusive)) {
+        result = current;
+        current = current.right;
+      } else {
+        current = current.left;
+      }
+    }
+    return result;
+  }
+
+  /** Find the node with the given index (which needs to be valid) in the tree. */
+  private static <K, V> Node<K, V> findNodeByRank(@Var int index, Node<K, V> root) {
+    @Var Node<K, V> current = root;
+    while (true) {
+      int leftSize = Node.size(current.left);
+      if (index < leftSize) {
+        current = current.left;
+      } else if (index > leftSize) {
+        index -= leftSize + 1;
+        current = current.right;
+      } else {
+        return current;
+      }
+    }
+  }
+
+  /** Return the index of the given key in the tree, or -1. */
+  private static <K extends Comparable<? super K>, V> int findRank(
+      K key, @Nullable Node<K, V> root) {
+    @Var int rank = 0;
+    @Var Node<K, V> current = root;
+    while (current != null) {
+      int comp = key.compareTo(current.getKey());
+      if (comp < 0) {
+        current = current.left;
+      } else {
+        int leftSize = Node.size(current.left);
+        if (comp == 0) {
+          return rank + leftSize;
+        }
+        rank += leftSize + 1;
+        current = current.right;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check whether a tree with the first weight is heavy enough compared to a sibling with the
+   * second weight.
+   */
+  static boolean isBalanced(int weight, int siblingWeight) {
+    // parameter Delta of Hirai and Yamamoto, long to avoid overflow
+    return 3L * weight >= siblingWeight;
+  }
+
+  /** Check whether two trees with the given weights may be siblings. */
+  static boolean areBalanced(int weight1, int weight2) {
+    return isBalanced(weight1, weight2) && isBalanced(weight2, weight1);
+  }
+
+  /**
+   * Check whether a rotation that makes a heavy subtree the new root can be a single rotation. The
+   * parameters are the weights of the inner and the outer child of the heavy subtree.
+   */
+  static boolean isSingleRotation(int innerWeight, int outerWeight) {
+    // parameter Gamma of Hirai and Yamamoto
+    return innerWeight < 2 * outerWeight;
+  }
+
+  /**
+   * Create a tree with the key and value of the given node and the given subtrees, restoring the
+   * balance if necessary. This handles only the case where the subtrees were balanced before a
+   * single entry was inserted into or removed from one of them.
+   */
+  private static <K, V> Node<K, V> balance(
+      Node<K, V> node, @Nullable Node<K, V> left, @Nullable Node<K, V> right) {
+    int leftWeight = Node.weight(left);
+    int rightWeight = Node.weight(right);
+    if (areBalanced(leftWeight, rightWeight)) {
+      return node.withChildren(left, right);
+    } else if (leftWeight > rightWeight) {
+      return rotateClockwise(node, left, right);
+    } else {
+      return rotateCounterclockwise(node, left, right);
+    }
+  }
+
+  /** Create a tree from the given node and subtrees, where the left subtree is too heavy. */
+  private static <K, V> Node<K, V> rotateClockwise(
+      Node<K, V> node, Node<K, V> left, @Nullable Node<K, V> right) {
+    if (isSingleRotation(Node.weight(left.right), Node.weight(left.left))) {
+      return left.withChildren(left.left, node.withChildren(left.right, right));
+    } else {
+      Node<K, V> newRoot = left.right;
+      return newRoot.withChildren(
+          left.withChildren(left.left, newRoot.left), node.withChildren(newRoot.right, right));
+    }
+  }
+
+  /** Create a tree from the given node and subtrees, where the right subtree is too heavy. */
+  private static <K, V> Node<K, V> rotateCounterclockwise(
+      Node<K, V> node, @Nullable Node<K, V> left, Node<K, V> right) {
+    if (isSingleRotation(Node.weight(right.left), Node.weight(right.right))) {
+      return right.withChildren(node.withChildren(left, right.left), right.right);
+    } else {
+      Node<K, V> newRoot = right.left;
+      return newRoot.withChildren(
+          node.withChildren(left, newRoot.left), right.withChildren(newRoot.right, right.right));
+    }
+  }
+
+  private static <K extends Comparable<? super K>, V> Node<K, V> putAndCopy0(
+      K key, V value, @Nullable Node<K, V> current) {
+    if (current == null) {
+      return new Node<>(key, value, null, null);
+    }
+    int comp = key.compareTo(current.getKey());
+    if (comp < 0) {
+      return balance(current, putAndCopy0(key, value, current.left), current.right);
+    } else if (comp > 0) {
+      return balance(current, current.left, putAndCopy0(key, value, current.right));
+    } else if (value == current.getValue()) {
+      return current;
+    } else {
+      return new Node<>(key, value, current.left, current.right);
+    }
+  }
+
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> removeAndCopy0(
+      K key, @Nullable Node<K, V> current) {
+    if (current == null) {
+      return null;
+    }
+    int comp = key.compareTo(current.getKey());
+    if (comp < 0) {
+      return balance(current, removeAndCopy0(key, current.left), current.right);
+    } else if (comp > 0) {
+      return balance(current, current.left, removeAndCopy0(key, current.right));
+    } else {
+      return concatenate(current.left, current.right);
+    }
+  }
+
+  /**
+   * Create a tree from two balanced siblings, all keys in the left tree need to be smaller. The new
+   * root is taken from the heavier subtree.
+   */
+  private static <K, V> @Nullable Node<K, V> concatenate(
+      @Nullable Node<K, V> left, @Nullable Node<K, V> right) {
+    if (left == null) {
+      return right;
+    } else if (right == null) {
+      return left;
+    } else if (left.size > right.size) {
+      Node<K, V> largest = findLargestNode(left);
+      return balance(largest, removeLargestNode(left), right);
+    } else {
+      Node<K, V> smallest = findSmallestNode(right);
+      return balance(smallest, left, removeSmallestNode(right));
+    }
+  }
+
+  private static <K, V> @Nullable Node<K, V> removeSmallestNode(Node<K, V> current) {
+    if (current.left == null) {
+      return current.right;
+    }
+    return balance(current, removeSmallestNode(current.left), current.right);
+  }
+
+  private static <K, V> @Nullable Node<K, V> removeLargestNode(Node<K, V> current) {
+    if (current.right == null) {
+      return current.left;
+    }
+    return balance(current, current.left, removeLargestNode(current.right));
+  }
+
+  /**
+   * Create a tree with all nodes of two trees and the key and value of a given middle node. All
+   * keys in the left tree need to be smaller than the middle key, and all keys in the right tree
+   * need to be larger. The trees may differ arbitrarily in size. This is the join algorithm from
+   * Blelloch et al.: "Just Join for Parallel Ordered Sets", SPAA 2016, and takes O(log(n/m)) time
+   * for trees of sizes m and n with m &le; n.
+   */
+  private static <K, V> Node<K, V> join(
+      @Nullable Node<K, V> left, Node<K, V> middle, @Nullable Node<K, V> right) {
+    int leftWeight = Node.weight(left);
+    int rightWeight = Node.weight(right);
+    if (!isBalanced(rightWeight, leftWeight)) {
+      return joinRight(left, middle, right);
+    } else if (!isBalanced(leftWeight, rightWeight)) {
+      return joinLeft(left, middle, right);
+    } else {
+      return middle.withChildren(left, right);
+    }
+  }
+
+  /** Join by descending along the right spine of the heavier left tree. */
+  private static <K, V> Node<K, V> joinRight(
+      Node<K, V> left, Node<K, V> middle, @Nullable Node<K, V> right) {
+    if (areBalanced(Node.weight(left), Node.weight(right))) {
+      return middle.withChildren(left, right);
+    }
+    Node<K, V> newRight = joinRight(left.right, middle, right);
+    int outerWeight = Node.weight(left.left);
+    if (areBalanced(outerWeight, Node.weight(newRight))) {
+      return left.withChildren(left.left, newRight);
+    } else if (areBalanced(outerWeight, Node.weight(newRight.left))
+        && areBalanced(outerWeight + Node.weight(newRight.left), Node.weight(newRight.right))) {
+      return newRight.withChildren(left.withChildren(left.left, newRight.left), newRight.right);
+    } else {
+      Node<K, V> newRoot = newRight.left;
+      return newRoot.withChildren(
+          left.withChildren(left.left, newRoot.left),
+          newRight.withChildren(newRoot.right, newRight.right));
+    }
+  }
+
+  /** Join by descending along the left spine of the heavier right tree. */
+  private static <K, V> Node<K, V> joinLeft(
+      @Nullable Node<K, V> left, Node<K, V> middle, Node<K, V> right) {
+    if (areBalanced(Node.weight(left), Node.weight(right))) {
+      return middle.withChildren(left, right);
+    }
+    Node<K, V> newLeft = joinLeft(left, middle, right.left);
+    int outerWeight = Node.weight(right.right);
+    if (areBalanced(Node.weight(newLeft), outerWeight)) {
+      return right.withChildren(newLeft, right.right);
+    } else if (areBalanced(Node.weight(newLeft.right), outerWeight)
+        && areBalanced(Node.weight(newLeft.left), Node.weight(newLeft.right) + outerWeight)) {
+      return newLeft.withChildren(newLeft.left, right.withChildren(newLeft.right, right.right));
+    } else {
+      Node<K, V> newRoot = newLeft.right;
+      return newRoot.withChildren(
+          newLeft.withChildren(newLeft.left, newRoot.left),
+          right.withChildren(newRoot.right, right.right));
+    }
+  }
+
+  /** Return a tree with all nodes whose key is less than (or equal to) the given key. */
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> headTree(
+      K toKey, boolean inclusive, @Nullable Node<K, V> current) {
+    if (current == null) {
+      return null;
+    }
+    int comp = toKey.compareTo(current.getKey());
+    if (comp < 0 || (comp == 0 && !inclusive)) {
+      return headTree(toKey, inclusive, current.left);
+    } else if (comp == 0) {
+      return join(current.left, current, null);
+    } else {
+      return join(current.left, current, headTree(toKey, inclusive, current.right));
+    }
+  }
+
+  /** Return a tree with all nodes whose key is greater than (or equal to) the given key. */
+  private static <K extends Comparable<? super K>, V> @Nullable Node<K, V> tailTree(
+      K fromKey, boolean inclusive, @Nullable Node<K, V> current) {
+    if (current == null) {
+      return null;
+    }
+    int comp = fromKey.compareTo(current.getKey());
+    if (comp > 0 || (comp == 0 && !inclusive)) {
+      return tailTree(fromKey, inclusive, current.right);
+    } else if (comp == 0) {
+      return join(null, current, current.right);
+    } else {
+      return join(tailTree(fromKey, inclusive, current.left), current, current.right);
+    }
+  }
+
+  /**
+   * Check the tree for violation of its invariants.
+   *
+   * @return The size of the tree.
+   * @throws IllegalStateException If any invariant is violated.
+   */
+  private static <K extends Comparable<? super K>, V> int checkAssertions(
+      @Nullable Node<K, V> current) {
+    if (current == null) {
+      return 0;
+    }
+    if (current.left != null) {
+      checkState(
+          current.getKey().compareTo(current.left.getKey()) > 0,
+          "Tree is not sorted at node %s",
+          current);
+    }
+    if (current.right != null) {
+      checkState(
+          current.getKey().compareTo(current.right.getKey()) < 0,
+          "Tree is not sorted at node %s",
+          current);
+    }
+    int size = checkAssertions(current.left) + 1 + checkAssertions(current.right);
+    checkState(size == current.size, "Wrong size %s at node %s", current.size, current);
+    checkState(
+        areBalanced(Node.weight(current.left), Node.weight(current.right)),
+        "Tree is not balanced at node %s",
+        current);
+    return size;
+  }
+
+  /**
+   * Check the map for violation of its invariants.
+   *
+   * @throws IllegalStateException If any invariant is violated.
+   */
+  @VisibleForTesting
+  @SuppressWarnings("CheckReturnValue")
+  void checkAssertions() {
+    checkAssertions(root);
+  }
+
+  // modifying methods
+
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> putAndCopy(K key, V value) {
+    return mapFromTree(putAndCopy0(checkNotNull(key), value, root));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> removeAndCopy(Object key) {
+    return mapFromTree(removeAndCopy0((K) checkNotNull(key), root));
+  }
+
+  /**
+   * Replacement for {@link #removeByRank(int)} that returns a fresh instance.
+   *
+   * @throws IndexOutOfBoundsException if the given rank is out of the range of this map
+   */
+  @CheckReturnValue
+  public PersistentOrderStatisticTreeMap<K, V> removeByRankAndCopy(int pIndex) {
+    return removeAndCopy(getKeyByRank(pIndex));
+  }
+
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> empty() {
+    return mapFromTree(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given keys and needs O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> subMapAndCopy(
+      K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    return subMap(fromKey, fromInclusive, toKey, toInclusive);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given key and needs O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> headMapAndCopy(K toKey, boolean inclusive) {
+    return headMap(toKey, inclusive);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation splits the tree at the given key and needs O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> tailMapAndCopy(K fromKey, boolean inclusive) {
+    return tailMap(fromKey, inclusive);
+  }
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation, use {@link #removeByRankAndCopy(int)}.
+   */
+  @Deprecated
+  @Override
+  @DoNotCall
+  public K removeByRank(int pIndex) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Deprecated
+  @Override
+  @DoNotCall
+  public Entry<K, V> pollFirstEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Deprecated
+  @Override
+  @DoNotCall
+  public Entry<K, V> pollLastEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  // read operations
+
+  @Override
+  @SuppressWarnings("ReferenceEquality") // comparing nodes with equals would not suffice
+  public boolean equals(@Nullable Object pObj) {
+    if (pObj instanceof PersistentOrderStatisticTreeMap<?, ?>
+        && ((PersistentOrderStatisticTreeMap<?, ?>) pObj).root == root) {
+      return true;
+    }
+    return Collections3.sortedMapEquals(this, pObj);
+  }
+
+  @Override
+  public int hashCode() {
+    return entrySet().hashCode();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public @Nullable Entry<K, V> getEntry(Object pKey) {
+    return findNode((K) checkNotNull(pKey), root);
+  }
+
+  @Override
+  public boolean containsKey(Object pKey) {
+    return getEntry(pKey) != null;
+  }
+
+  @Override
+  public boolean containsValue(@Nullable Object pValue) {
+    return values().contains(pValue);
+  }
+
+  @Override
+  public @Nullable V get(Object pKey) {
+    Entry<K, V> entry = getEntry(pKey);
+    return entry == null ? null : entry.getValue();
+  }
+
+  @Override
+  public V getOrDefault(Object pKey, V pDefaultValue) {
+    Entry<K, V> entry = getEntry(pKey);
+    return entry == null ? pDefaultValue : entry.getValue();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  @Override
+  public int size() {
+    return Node.size(root);
+  }
+
+  @Override
+  public Entry<K, V> getEntryByRank(int pIndex) {
+    int size = size();
+    checkElementIndex(pIndex, size);
+    return findNodeByRank(descending ? size - 1 - pIndex : pIndex, root);
+  }
+
+  @Override
+  public int rankOf(K pObj) {
+    int rank = findRank(checkNotNull(pObj), root);
+    return (rank < 0 || !descending) ? rank : size() - 1 - rank;
+  }
+
+  @Override
+  public @Nullable Entry<K, V> firstEntry() {
+    return descending ? findLargestNode(root) : findSmallestNode(root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lastEntry() {
+    return descending ? findSmallestNode(root) : findLargestNode(root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> ceilingEntry(K pKey) {
+    checkNotNull(pKey);
+    return descending
+        ? findPreviousNode(pKey, /* inclusive= */ true, root)
+        : findNextNode(pKey, /* inclusive= */ true, root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> floorEntry(K pKey) {
+    checkNotNull(pKey);
+    return descending
+        ? findNextNode(pKey, /* inclusive= */ true, root)
+        : findPreviousNode(pKey, /* inclusive= */ true, root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> higherEntry(K pKey) {
+    checkNotNull(pKey);
+    return descending
+        ? findPreviousNode(pKey, /* inclusive= */ false, root)
+        : findNextNode(pKey, /* inclusive= */ false, root);
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lowerEntry(K pKey) {
+    checkNotNull(pKey);
+    return descending
+        ? findNextNode(pKey, /* inclusive= */ false, root)
+        : findPreviousNode(pKey, /* inclusive= */ false, root);
+  }
+
+  private static <K> @Nullable K keyOrNull(@Nullable Entry<K, ?> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  private static <K> K keyOrNoSuchElement(@Nullable Entry<K, ?> entry) {
+    if (entry == null) {
+      throw new NoSuchElementException();
+    }
+    return entry.getKey();
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrNoSuchElement(firstEntry());
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrNoSuchElement(lastEntry());
+  }
+
+  @Override
+  public @Nullable K ceilingKey(K pKey) {
+    return keyOrNull(ceilingEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K floorKey(K pKey) {
+    return keyOrNull(floorEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K higherKey(K pKey) {
+    return keyOrNull(higherEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K lowerKey(K pKey) {
+    return keyOrNull(lowerEntry(pKey));
+  }
+
+  @Override
+  public @Nullable Comparator<? super K> comparator() {
+    return descending ? Collections.reverseOrder() : null;
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> entryIterator() {
+    return new EntryIterator<>(root, !descending);
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> descendingEntryIterator() {
+    return new EntryIterator<>(root, descending);
+  }
+
+  @Override
+  public Spliterator<Entry<K, V>> entrySpliterator() {
+    return new EntrySpliterator<>(root, !descending, entrySet().comparator());
+  }
+
+  @Override
+  public NavigableSet<Entry<K, V>> entrySet() {
+    return new SortedMapEntrySet<>(this);
+  }
+
+  @Override
+  public OrderStatisticSet<K> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public OrderStatisticSet<K> navigableKeySet() {
+    return new OrderStatisticMapKeySet<>(this);
+  }
+
+  @Override
+  public OrderStatisticSet<K> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map shares the tree of this map and is created in O(1) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> descendingMap() {
+    if (root == null && descending) {
+      return of();
+    }
+    return new PersistentOrderStatisticTreeMap<>(root, !descending);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> subMap(
+      K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+    checkNotNull(pFromKey);
+    checkNotNull(pToKey);
+    if (descending) {
+      checkArgument(pFromKey.compareTo(pToKey) >= 0, "fromKey < toKey in descending map");
+      return mapFromTree(tailTree(pToKey, pToInclusive, headTree(pFromKey, pFromInclusive, root)));
+    } else {
+      checkArgument(pFromKey.compareTo(pToKey) <= 0, "fromKey > toKey");
+      return mapFromTree(tailTree(pFromKey, pFromInclusive, headTree(pToKey, pToInclusive, root)));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> headMap(K pToKey, boolean pInclusive) {
+    checkNotNull(pToKey);
+    return mapFromTree(
+        descending ? tailTree(pToKey, pInclusive, root) : headTree(pToKey, pInclusive, root));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> tailMap(K pFromKey, boolean pInclusive) {
+    checkNotNull(pFromKey);
+    return mapFromTree(
+        descending ? headTree(pFromKey, pInclusive, root) : tailTree(pFromKey, pInclusive, root));
+  }
+
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> subMap(K pFromKey, K pToKey) {
+    return subMap(pFromKey, /* pFromInclusive= */ true, pToKey, /* pToInclusive= */ false);
+  }
+
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> headMap(K pToKey) {
+    return headMap(pToKey, /* pInclusive= */ false);
+  }
+
+  @Override
+  public PersistentOrderStatisticTreeMap<K, V> tailMap(K pFromKey) {
+    return tailMap(pFromKey, /* pInclusive= */ true);
+  }
+
+  /** In-order iterator over the nodes of a tree, using a stack of the nodes still to visit. */
+  private static final class EntryIterator<K, V extends @Nullable Object>
+      extends UnmodifiableIterator<Entry<K, V>> {
+
+    private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+    private final boolean ascending;
+
+    EntryIterator(@Nullable Node<K, V> root, boolean pAscending) {
+      ascending = pAscending;
+      pushFirstNodes(root);
+    }
+
+    /** Push the given node and all nodes on the path to the first node of its subtree. */
+    private void pushFirstNodes(@Var @Nullable Node<K, V> current) {
+      while (current != null) {
+        stack.push(current);
+        current = ascending ? current.left : current.right;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      Node<K, V> current = stack.poll();
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      pushFirstNodes(ascending ? current.right : current.left);
+      return current;
+    }
+  }
+
+  /**
+   * Spliterator over the entries of a tree that splits at subtree boundaries. The remaining entries
+   * are always {@link #firstNode} (if not null) and the entries of {@link #subtree}. Splitting off
+   * a prefix means handing over the first node and the first child of the subtree to a new
+   * spliterator, and continuing with the root and the other child of the subtree. Because nodes
+   * store the size of their subtree, the sizes of all spliterators are known exactly. Once the
+   * traversal of the subtree has begun, a stack like for {@link EntryIterator} is used and the
+   * spliterator does not split anymore.
+   */
+  private static final class EntrySpliterator<K, V extends @Nullable Object>
+      implements Spliterator<Entry<K, V>> {
+
+    private @Nullable Node<K, V> firstNode = null;
+    private @Nullable Node<K, V> subtree;
+    private @Nullable Deque<Node<K, V>> stack = null;
+    private long size;
+    private final boolean ascending;
+    private final Comparator<? super Entry<K, V>> comparator;
+
+    private EntrySpliterator(
+        @Nullable Node<K, V> pSubtree,
+        boolean pAscending,
+        Comparator<? super Entry<K, V>> pComparator) {
+      subtree = pSubtree;
+      size = Node.size(pSubtree);
+      ascending = pAscending;
+      comparator = pComparator;
+    }
+
+    @Override
+    public @Nullable Spliterator<Entry<K, V>> trySplit() {
+      Node<K, V> current = subtree;
+      if (stack != null || current == null) {
+        return null;
+      }
+      EntrySpliterator<K, V> prefix =
+          new EntrySpliterator<>(ascending ? current.left : current.right, ascending, comparator);
+      if (firstNode != null) {
+        prefix.firstNode = firstNode;
+        prefix.size++;
+      }
+      firstNode = current;
+      subtree = ascending ? current.right : current.left;
+      if (prefix.size == 0) {
+        // now firstNode is set and the next attempt produces a non-empty prefix
+        return trySplit();
+      }
+      size -= prefix.size;
+      return prefix;
+    }
+
+    /** Push the given node and all nodes on the path to the first node of its subtree. */
+    private void pushFirstNodes(Deque<Node<K, V>> pStack, @Var @Nullable Node<K, V> current) {
+      while (current != null) {
+        pStack.push(current);
+        current = ascending ? current.left : current.right;
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Entry<K, V>> pAction) {
+      checkNotNull(pAction);
+      @Var Node<K, V> current = firstNode;
+      if (current != null) {
+        firstNode = null;
+      } else {
+        @Var Deque<Node<K, V>> currentStack = stack;
+        if (currentStack == null) {
+          currentStack = new ArrayDeque<>();
+          pushFirstNodes(currentStack, subtree);
+          subtree = null;
+          stack = currentStack;
+        }
+        current = currentStack.poll();
+        if (current == null) {
+          return false;
+        }
+        pushFirstNodes(currentStack, ascending ? current.right : current.left);
+      }
+      size--;
+      pAction.accept(current);
+      return true;
+    }
+
+    @Override
+    public long estimateSize() {
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT
+          | Spliterator.IMMUTABLE
+          | Spliterator.NONNULL
+          | Spliterator.ORDERED
+          | Spliterator.SIZED
+          | Spliterator.SORTED
+          | Spliterator.SUBSIZED;
+    }
+
+    @Override
+    public Comparator<? super Entry<K, V>> getComparator() {
+      return comparator;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.testing.NavigableMapTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentOrderStatisticTreeMapTest {
+
+  private static final TestStringSortedMapGenerator mapGenerator =
+      new TestStringSortedMapGenerator() {
+
+        @Override
+        protected SortedMap<String, String> create(Map.Entry<String, String>[] pEntries) {
+          @Var PersistentSortedMap<String, String> result = PersistentOrderStatisticTreeMap.of();
+          for (Map.Entry<String, String> entry : pEntries) {
+            result = result.putAndCopy(entry.getKey(), entry.getValue());
+          }
+          return result;
+        }
+      };
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentOrderStatisticTreeMapTest.class));
+
+    suite.addTest(
+        NavigableMapTestSuiteBuilder.using(mapGenerator)
+            .named("PersistentOrderStatisticTreeMap")
+            .withFeatures(
+                MapFeature.ALLOWS_NULL_VALUES,
+                CollectionFeature.KNOWN_ORDER,
+                CollectionFeature.SERIALIZABLE_INCLUDING_VIEWS,
+                CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  /** Check content, invariants, and rank operations of a map and its descending map. */
+  private static void checkEqualTo(
+      NavigableMap<Integer, Integer> comparison,
+      PersistentOrderStatisticTreeMap<Integer, Integer> map) {
+    map.checkAssertions();
+    assertThat(map).containsExactlyEntriesIn(comparison).inOrder();
+    assertThat(map.size()).isEqualTo(comparison.size());
+
+    ImmutableList<Integer> keys = ImmutableList.copyOf(comparison.keySet());
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(map.getKeyByRank(i)).isEqualTo(keys.get(i));
+      assertThat(map.rankOf(keys.get(i))).isEqualTo(i);
+      assertThat(map.navigableKeySet().getByRank(i)).isEqualTo(keys.get(i));
+      assertThat(map.descendingMap().getKeyByRank(keys.size() - 1 - i)).isEqualTo(keys.get(i));
+      assertThat(map.descendingMap().rankOf(keys.get(i))).isEqualTo(keys.size() - 1 - i);
+    }
+    assertThrows(IndexOutOfBoundsException.class, () -> map.getEntryByRank(-1));
+    assertThrows(IndexOutOfBoundsException.class, () -> map.getEntryByRank(keys.size()));
+  }
+
+  private static void checkSubMaps(
+      NavigableMap<Integer, Integer> comparison,
+      PersistentOrderStatisticTreeMap<Integer, Integer> map,
+      int keyRange,
+      Random rnd) {
+    int key1 = rnd.nextInt(keyRange + 2) - 1;
+    int key2 = rnd.nextInt(keyRange + 2) - 1;
+    int low = Math.min(key1, key2);
+    int high = Math.max(key1, key2);
+    boolean inclusive1 = rnd.nextBoolean();
+    boolean inclusive2 = rnd.nextBoolean();
+
+    checkEqualTo(comparison.headMap(key1, inclusive1), map.headMap(key1, inclusive1));
+    checkEqualTo(comparison.tailMap(key1, inclusive1), map.tailMap(key1, inclusive1));
+    checkEqualTo(
+        comparison.subMap(low, inclusive1, high, inclusive2),
+        map.subMap(low, inclusive1, high, inclusive2));
+    checkEqualTo(
+        comparison.descendingMap().subMap(high, inclusive1, low, inclusive2),
+        map.descendingMap().subMap(high, inclusive1, low, inclusive2));
+  }
+
+  @Test
+  public void testRandom() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    int keyRange = 500;
+    @Var
+    PersistentOrderStatisticTreeMap<Integer, Integer> map = PersistentOrderStatisticTreeMap.of();
+    NavigableMap<Integer, Integer> comparison = new TreeMap<>();
+
+    for (int i = 0; i < 2000; i++) {
+      Integer key = rnd.nextInt(keyRange);
+      if (rnd.nextInt(3) == 0) {
+        map = map.removeAndCopy(key);
+        comparison.remove(key);
+      } else {
+        map = map.putAndCopy(key, i);
+        comparison.put(key, i);
+      }
+      if (i % 10 == 0) {
+        checkEqualTo(comparison, map);
+        checkSubMaps(comparison, map, keyRange, rnd);
+      } else {
+        map.checkAssertions();
+      }
+    }
+
+    while (!map.isEmpty()) {
+      int rank = rnd.nextInt(map.size());
+      comparison.remove(map.getKeyByRank(rank));
+      map = map.removeByRankAndCopy(rank);
+      map.checkAssertions();
+    }
+    assertThat(comparison).isEmpty();
+  }
+
+  @Test
+  public void testSortedInsertion() {
+    @Var
+    PersistentOrderStatisticTreeMap<Integer, Integer> map = PersistentOrderStatisticTreeMap.of();
+    for (int i = 0; i < 5000; i++) {
+      map = map.putAndCopy(i, i);
+    }
+    map.checkAssertions();
+    for (int i = 0; i < 5000; i += 2) {
+      map = map.removeAndCopy(i);
+    }
+    map.checkAssertions();
+    assertThat(map.size()).isEqualTo(2500);
+    assertThat(map.getKeyByRank(1000)).isEqualTo(2001);
+    assertThat(map.rankOf(2001)).isEqualTo(1000);
+    assertThat(map.rankOf(2000)).isEqualTo(-1);
+  }
+
+  @Test
+  public void testSubMapsOfDifferentSizes() {
+    Random rnd = new Random(3987432434L); // static seed for reproducibility
+    for (int size : new int[] {0, 1, 2, 3, 10, 100, 1000}) {
+      NavigableMap<Integer, Integer> comparison = new TreeMap<>();
+      for (int i = 0; i < size; i++) {
+        comparison.put(2 * i, i);
+      }
+      PersistentOrderStatisticTreeMap<Integer, Integer> map =
+          PersistentOrderStatisticTreeMap.copyOf(comparison);
+      checkEqualTo(comparison, map);
+      for (int i = 0; i < 20; i++) {
+        checkSubMaps(comparison, map, 2 * size, rnd);
+      }
+    }
+  }
+
+  @Test
+  public void testCopyOf() {
+    ImmutableMap<String, Integer> content = ImmutableMap.of("b", 2, "c", 3, "a", 1);
+    PersistentOrderStatisticTreeMap<String, Integer> map =
+        PersistentOrderStatisticTreeMap.copyOf(new HashMap<>(content));
+    assertThat(map).containsExactly("a", 1, "b", 2, "c", 3).inOrder();
+    assertThat(PersistentOrderStatisticTreeMap.copyOf(map)).isSameInstanceAs(map);
+    assertThat(PersistentOrderStatisticTreeMap.copyOf(map.descendingMap()))
+        .containsExactly("a", 1, "b", 2, "c", 3)
+        .inOrder();
+    assertThat(PersistentOrderStatisticTreeMap.copyOf(new TreeMap<>(content)))
+        .containsExactly("a", 1, "b", 2, "c", 3)
+        .inOrder();
+  }
+
+  @Test
+  public void testDescendingMap() {
+    PersistentOrderStatisticTreeMap<String, Integer> map =
+        PersistentOrderStatisticTreeMap.<String, Integer>of()
+            .descendingMap()
+            .putAndCopy("a", 1)
+            .putAndCopy("c", 3)
+            .putAndCopy("b", 2);
+    assertThat(map).containsExactly("c", 3, "b", 2, "a", 1).inOrder();
+    assertThat(map.getKeyByRank(0)).isEqualTo("c");
+    assertThat(map.rankOf("a")).isEqualTo(2);
+    assertThat(map.headMap("b")).containsExactly("c", 3);
+    assertThat(map.tailMap("b")).containsExactly("b", 2, "a", 1).inOrder();
+    assertThat(map.descendingMap()).containsExactly("a", 1, "b", 2, "c", 3).inOrder();
+    assertThat(map.descendingMap()).isEqualTo(map);
+    assertThat(map.removeAndCopy("c").firstKey()).isEqualTo("b");
+  }
+
+  @Test
+  public void testRemoveByRank() {
+    PersistentOrderStatisticTreeMap<String, Integer> map =
+        PersistentOrderStatisticTreeMap.<String, Integer>of().putAndCopy("a", 1).putAndCopy("b", 2);
+    assertThat(map.removeByRankAndCopy(1)).containsExactly("a", 1);
+    assertThrows(IndexOutOfBoundsException.class, () -> map.removeByRankAndCopy(2));
+    checkRemoveByRankUnsupported(map);
+    checkRemoveByRankUnsupported(map.descendingMap());
+  }
+
+  /** Check the mutating method of the interface, which the persistent map forbids calling. */
+  private static void checkRemoveByRankUnsupported(OrderStatisticMap<?, ?> map) {
+    assertThrows(UnsupportedOperationException.class, () -> map.removeByRank(0));
+    assertThrows(UnsupportedOperationException.class, () -> map.navigableKeySet().removeByRank(0));
+  }
+
+  /** Split the spliterator recursively and check that all sizes are exact. */
+  private static void checkSpliterator(
+      Spliterator<Map.Entry<Integer, Integer>> spliterator,
+      List<Map.Entry<Integer, Integer>> expected) {
+    assertThat(spliterator.getExactSizeIfKnown()).isEqualTo(expected.size());
+    Spliterator<Map.Entry<Integer, Integer>> prefix = spliterator.trySplit();
+    if (prefix == null) {
+      List<Map.Entry<Integer, Integer>> actual = new ArrayList<>();
+      spliterator.forEachRemaining(actual::add);
+      assertThat(actual).containsExactlyElementsIn(expected).inOrder();
+    } else {
+      int prefixSize = Math.toIntExact(prefix.getExactSizeIfKnown());
+      assertThat(prefixSize).isGreaterThan(0);
+      checkSpliterator(prefix, expected.subList(0, prefixSize));
+      checkSpliterator(spliterator, expected.subList(prefixSize, expected.size()));
+    }
+  }
+
+  @Test
+  public void testSpliterator() {
+    NavigableMap<Integer, Integer> comparison = new TreeMap<>();
+    for (int i = 0; i < 1000; i++) {
+      comparison.put(i, i);
+    }
+    PersistentOrderStatisticTreeMap<Integer, Integer> map =
+        PersistentOrderStatisticTreeMap.copyOf(comparison).removeAndCopy(500);
+    comparison.remove(500);
+
+    Spliterator<Map.Entry<Integer, Integer>> spliterator = map.entrySet().spliterator();
+    assertThat(spliterator.hasCharacteristics(Spliterator.SUBSIZED | Spliterator.SORTED)).isTrue();
+    checkSpliterator(spliterator, ImmutableList.copyOf(comparison.entrySet()));
+    checkSpliterator(
+        map.descendingMap().entrySet().spliterator(),
+        ImmutableList.copyOf(comparison.descendingMap().entrySet()));
+    checkSpliterator(
+        map.subMap(100, 700).entrySet().spliterator(),
+        ImmutableList.copyOf(comparison.subMap(100, 700).entrySet()));
+  }
+}
@@ -0,0 +1,110 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.CompatibleWith;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Interface for persistent sets. A persistent data structure is immutable, but provides cheap
+ * copy-and-write operations. Thus all write operations ({{@link #addAndCopy(Object)}, {{@link
+ * #removeAndCopy(Object)}}) will not modify the current instance, but return a new instance
+ * instead.
+ *
+ * <p>All modifying operations inherited from {@link Set} are not supported and will always throw
+ * {@link UnsupportedOperationException}. All collections returned by methods of this interface are
+ * also immutable.
+ *
+ * <p>Instances of this interface are thread-safe as long as published safely.
+ *
+ * @param <E> The type of elements.
+ */
+@Immutable(containerOf = "E")
+public interface PersistentSet<E> extends Set<E> {
+
+  /** Replacement for {{@link #add(Object)} that returns a fresh instance. */
+  @CheckReturnValue
+  PersistentSet<E> addAndCopy(@CompatibleWith("E") E element);
+
+  /** Replacement for {{@link #remove(Object)} that returns a fresh instance. */
+  @CheckReturnValue
+  PersistentSet<E> removeAndCopy(@CompatibleWith("E") Object element);
+
+  /** Replacement for {{@link #clear()} that returns an empty instance. */
+  @CheckReturnValue
+  PersistentSet<E> empty();
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean add(E pE);
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean addAll(Collection<? extends E> pC);
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  void clear();
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean remove(Object pO);
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean removeAll(Collection<?> pC);
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean removeIf(Predicate<? super E> pFilter);
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Override
+  @Deprecated
+  @DoNotCall
+  boolean retainAll(Collection<?> pC);
+}
@@ -8,12 +8,23 @@
 
 package org.sosy_lab.common.collect;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.errorprone.annotations.DoNotCall;
 import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentSortedMaps.MergeConflictHandler;
 
 /**
  * Sub-interface of {@link PersistentMap} analog to {@link NavigableMap}.
@@ -33,10 +44,160 @@ public interface PersistentSortedMap<K, V extends @Nullable Object>
   @CheckReturnValue
   PersistentSortedMap<K, V> removeAndCopy(Object pKey);
 
+  @Override
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> putAllAndCopy(Map<? extends K, ? extends V> map) {
+    @Var PersistentSortedMap<K, V> result = this;
+    for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+      result = result.putAndCopy(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> removeAllAndCopy(Collection<?> keys) {
+    @Var PersistentSortedMap<K, V> result = this;
+    for (Object key : keys) {
+      result = result.removeAndCopy(key);
+    }
+    return result;
+  }
+
   @Override
   @CheckReturnValue
   PersistentSortedMap<K, V> empty();
 
+  /**
+   * Return a map with all mappings of this map and the given map. For keys with differing values
+   * (according to {@link Object#equals(Object)}), the given handler is called with the value from
+   * this map as first and the value from the given map as second value.
+   *
+   * <p>Compared to {@link PersistentSortedMaps#merge(PersistentSortedMap, PersistentSortedMap,
+   * MergeConflictHandler)}, this method lets implementations choose the most efficient algorithm,
+   * e.g., by not iterating over all entries of both maps.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> unionAndCopy(
+      PersistentSortedMap<K, V> other, MergeConflictHandler<? super K, V> conflictHandler) {
+    checkNotNull(conflictHandler);
+    @Var PersistentSortedMap<K, V> result = this;
+    for (Entry<K, V> entry : other.entrySet()) {
+      K key = entry.getKey();
+      V value = entry.getValue();
+      if (!containsKey(key)) {
+        result = result.putAndCopy(key, value);
+      } else {
+        V ownValue = get(key);
+        if (!Objects.equals(ownValue, value)) {
+          result = result.putAndCopy(key, conflictHandler.resolveConflict(key, ownValue, value));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return a map with those mappings of this map whose key is also present in the given map. The
+   * values of the given map are ignored.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> intersectionAndCopy(PersistentSortedMap<K, ?> other) {
+    checkNotNull(other);
+    @Var PersistentSortedMap<K, V> result = this;
+    for (K key : keySet()) {
+      if (!other.containsKey(key)) {
+        result = result.removeAndCopy(key);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return a map with those mappings of this map whose key is not present in the given map. The
+   * values of the given map are ignored.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> differenceAndCopy(PersistentSortedMap<K, ?> other) {
+    @Var PersistentSortedMap<K, V> result = this;
+    for (K key : other.keySet()) {
+      result = result.removeAndCopy(key);
+    }
+    return result;
+  }
+
+  /**
+   * Return a map with those mappings of this map whose key is in the given range. This is like
+   * {@link #subMap(Object, boolean, Object, boolean)}, but returns a persistent map and not a view.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> subMapAndCopy(
+      K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    @SuppressWarnings("unchecked")
+    Comparator<? super K> comp =
+        (Comparator<? super K>) Objects.requireNonNullElse(comparator(), Comparator.naturalOrder());
+    checkArgument(comp.compare(fromKey, toKey) <= 0, "fromKey > toKey");
+    return headMapAndCopy(toKey, toInclusive).tailMapAndCopy(fromKey, fromInclusive);
+  }
+
+  /**
+   * Return a map with those mappings of this map whose key is less than (or equal to, if {@code
+   * inclusive} is true) the given key. This is like {@link #headMap(Object, boolean)}, but returns
+   * a persistent map and not a view.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> headMapAndCopy(K toKey, boolean inclusive) {
+    @Var PersistentSortedMap<K, V> result = this;
+    for (K key : tailMap(toKey, !inclusive).keySet()) {
+      result = result.removeAndCopy(key);
+    }
+    return result;
+  }
+
+  /**
+   * Return a map with those mappings of this map whose key is greater than (or equal to, if {@code
+   * inclusive} is true) the given key. This is like {@link #tailMap(Object, boolean)}, but returns
+   * a persistent map and not a view.
+   */
+  @CheckReturnValue
+  default PersistentSortedMap<K, V> tailMapAndCopy(K fromKey, boolean inclusive) {
+    @Var PersistentSortedMap<K, V> result = this;
+    for (K key : headMap(fromKey, !inclusive).keySet()) {
+      result = result.removeAndCopy(key);
+    }
+    return result;
+  }
+
+  /**
+   * Perform the given action for each mapping of this map whose key is in the given range, in
+   * ascending order of keys. This is like calling {@link #forEach} on {@link #subMap(Object,
+   * boolean, Object, boolean)}, but implementations may avoid creating the view and checking the
+   * bounds for each entry.
+   */
+  default void forEachInRange(
+      K fromKey,
+      boolean fromInclusive,
+      K toKey,
+      boolean toInclusive,
+      BiConsumer<? super K, ? super V> action) {
+    subMap(fromKey, fromInclusive, toKey, toInclusive).forEach(action);
+  }
+
+  /**
+   * Combine all mappings of this map into a single result by applying the given function to the
+   * intermediate result and each entry in ascending order of keys, starting with the given initial
+   * value. Implementations may avoid allocating an iterator or any other object per entry.
+   */
+  default <R extends @Nullable Object> R foldLeft(
+      R initial, BiFunction<? super R, ? super Entry<K, V>, ? extends R> function) {
+    checkNotNull(function);
+    @Var R result = initial;
+    for (Entry<K, V> entry : entrySet()) {
+      result = function.apply(result, entry);
+    }
+    return result;
+  }
+
   @Override
   NavigableSet<Entry<K, V>> entrySet();
 
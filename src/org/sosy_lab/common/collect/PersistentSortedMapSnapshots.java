@@ -0,0 +1,262 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.sosy_lab.common.collect.PersistentCollectionCodec.objectReader;
+import static org.sosy_lab.common.collect.PersistentCollectionCodec.objectWriter;
+
+import com.google.errorprone.annotations.Var;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentCollectionCodec.ElementReader;
+import org.sosy_lab.common.collect.PersistentCollectionCodec.ElementWriter;
+
+/**
+ * Compact encoding of sequences of {@link PersistentSortedMap}s where each map (snapshot) is
+ * derived from its predecessor by a few changes, e.g., the states along a program trace.
+ *
+ * <p>The {@link Writer} stores the first snapshot in full (in the format of {@link
+ * PersistentCollectionCodec}) and every later snapshot as the list of changes relative to its
+ * predecessor. These changes are computed with {@link
+ * PersistentSortedMaps#diff(PersistentSortedMap, PersistentSortedMap, MapsDifference.Visitor)},
+ * which skips shared subtrees of {@link PathCopyingPersistentTreeMap}s, such that writing a
+ * snapshot with d changes costs O(d log n) instead of O(n). If a snapshot has more changes than
+ * entries, it is stored in full.
+ *
+ * <p>The {@link Reader} applies the changes to the previously read snapshot, such that the
+ * snapshots it returns share all unchanged parts of their trees with each other, just like the
+ * snapshots that were written. Thus, a sequence of n snapshots with d changes each needs O(n d log
+ * n) space both in the stream and in memory after reading.
+ *
+ * <p>A sequence is terminated by {@link Writer#finish()}, and afterwards {@link Reader#read()}
+ * returns <code>null</code>. Other data can be written to the same stream before and after a
+ * sequence.
+ */
+public final class PersistentSortedMapSnapshots {
+
+  private PersistentSortedMapSnapshots() {}
+
+  private static final byte FULL_SNAPSHOT = 0;
+  private static final byte DELTA_SNAPSHOT = 1;
+  private static final byte END_OF_SEQUENCE = 2;
+
+  /**
+   * Create a writer for a sequence of snapshots.
+   *
+   * @see #reader(DataInput, ElementReader, ElementReader)
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> Writer<K, V> writer(
+      DataOutput out, ElementWriter<? super K> keyWriter, ElementWriter<? super V> valueWriter) {
+    return new Writer<K, V>(out, keyWriter, valueWriter);
+  }
+
+  /**
+   * Create a writer for a sequence of snapshots that uses Java serialization for keys and values.
+   *
+   * @see #reader(ObjectInput)
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> Writer<K, V> writer(
+      ObjectOutput out) {
+    return writer(out, objectWriter(out), objectWriter(out));
+  }
+
+  /**
+   * Create a reader for a sequence of snapshots that was written by a writer from {@link
+   * #writer(DataOutput, ElementWriter, ElementWriter)}.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> Reader<K, V> reader(
+      DataInput in, ElementReader<? extends K> keyReader, ElementReader<? extends V> valueReader) {
+    return new Reader<K, V>(in, keyReader, valueReader);
+  }
+
+  /**
+   * Create a reader for a sequence of snapshots that was written by a writer from {@link
+   * #writer(ObjectOutput)}.
+   */
+  public static <K extends Comparable<? super K>, V extends @Nullable Object> Reader<K, V> reader(
+      ObjectInput in) {
+    return reader(in, objectReader(in), objectReader(in));
+  }
+
+  /** Writer for a sequence of snapshots, see {@link PersistentSortedMapSnapshots}. */
+  public static final class Writer<K extends Comparable<? super K>, V extends @Nullable Object> {
+
+    private final DataOutput out;
+    private final ElementWriter<? super K> keyWriter;
+    private final ElementWriter<? super V> valueWriter;
+
+    private @Nullable PersistentSortedMap<K, V> previous = null;
+    private boolean finished = false;
+
+    private Writer(
+        DataOutput pOut,
+        ElementWriter<? super K> pKeyWriter,
+        ElementWriter<? super V> pValueWriter) {
+      out = checkNotNull(pOut);
+      keyWriter = checkNotNull(pKeyWriter);
+      valueWriter = checkNotNull(pValueWriter);
+    }
+
+    /**
+     * Append the given snapshot to the sequence. The keys of the map need to be in natural order.
+     */
+    public void write(PersistentSortedMap<K, V> snapshot) throws IOException {
+      checkNotNull(snapshot);
+      checkState(!finished, "sequence of snapshots already finished");
+      checkArgument(
+          Collections3.guaranteedSameOrder(snapshot.comparator(), null),
+          "map not in natural order");
+
+      if (previous != null) {
+        List<Change<K, V>> changes = new ArrayList<>();
+        PersistentSortedMaps.diff(
+            previous,
+            snapshot,
+            new MapsDifference.Visitor<K, V>() {
+              @Override
+              public void leftValueOnly(K key, V leftValue) {
+                changes.add(new Change<>(key, /* removed= */ true, null));
+              }
+
+              @Override
+              public void rightValueOnly(K key, V rightValue) {
+                changes.add(new Change<>(key, /* removed= */ false, rightValue));
+              }
+
+              @Override
+              public void differingValues(K key, V leftValue, V rightValue) {
+                changes.add(new Change<>(key, /* removed= */ false, rightValue));
+              }
+            });
+
+        if (changes.size() <= snapshot.size()) {
+          out.writeByte(DELTA_SNAPSHOT);
+          out.writeInt(changes.size());
+          for (Change<K, V> change : changes) {
+            out.writeBoolean(change.removed());
+            keyWriter.write(out, change.key());
+            if (!change.removed()) {
+              valueWriter.write(out, change.value());
+            }
+          }
+          previous = snapshot;
+          return;
+        }
+      }
+
+      out.writeByte(FULL_SNAPSHOT);
+      PersistentCollectionCodec.writeSortedMap(out, snapshot, keyWriter, valueWriter);
+      previous = snapshot;
+    }
+
+    /** Terminate the sequence. Afterwards, no further snapshots can be written. */
+    public void finish() throws IOException {
+      checkState(!finished, "sequence of snapshots already finished");
+      out.writeByte(END_OF_SEQUENCE);
+      finished = true;
+      previous = null;
+    }
+  }
+
+  /** A single change of a snapshot relative to its predecessor. */
+  private record Change<K, V>(K key, boolean removed, @Nullable V value) {}
+
+  /** Reader for a sequence of snapshots, see {@link PersistentSortedMapSnapshots}. */
+  public static final class Reader<K extends Comparable<? super K>, V extends @Nullable Object> {
+
+    private final DataInput in;
+    private final ElementReader<? extends K> keyReader;
+    private final ElementReader<? extends V> valueReader;
+
+    private @Nullable PersistentSortedMap<K, V> previous = null;
+    private boolean finished = false;
+
+    private Reader(
+        DataInput pIn,
+        ElementReader<? extends K> pKeyReader,
+        ElementReader<? extends V> pValueReader) {
+      in = checkNotNull(pIn);
+      keyReader = checkNotNull(pKeyReader);
+      valueReader = checkNotNull(pValueReader);
+    }
+
+    /**
+     * Read the next snapshot of the sequence. The returned map shares all entries that did not
+     * change with the previously returned map.
+     *
+     * @return The next snapshot, or <code>null</code> if the end of the sequence was reached.
+     * @throws StreamCorruptedException if the stream does not contain a valid sequence of
+     *     snapshots
+     */
+    public @Nullable PersistentSortedMap<K, V> read() throws IOException {
+      if (finished) {
+        return null;
+      }
+
+      byte tag = in.readByte();
+      switch (tag) {
+        case FULL_SNAPSHOT ->
+            previous = PersistentCollectionCodec.readSortedMap(in, keyReader, valueReader);
+        case DELTA_SNAPSHOT -> {
+          if (previous == null) {
+            throw new StreamCorruptedException("Delta without preceding snapshot");
+          }
+          previous = readDelta(previous);
+        }
+        case END_OF_SEQUENCE -> {
+          finished = true;
+          previous = null;
+        }
+        default -> throw new StreamCorruptedException("Invalid snapshot type " + tag);
+      }
+      return previous;
+    }
+
+    private PersistentSortedMap<K, V> readDelta(PersistentSortedMap<K, V> base)
+        throws IOException {
+      int size = in.readInt();
+      if (size < 0) {
+        throw new StreamCorruptedException("Negative size " + size);
+      }
+
+      @Var PersistentSortedMap<K, V> result = base;
+      @Var K previousKey = null;
+      for (int i = 0; i < size; i++) {
+        boolean removed = in.readBoolean();
+        K key = keyReader.read(in);
+        if (key == null) {
+          throw new StreamCorruptedException("Null key");
+        }
+        if (previousKey != null && previousKey.compareTo(key) >= 0) {
+          throw new StreamCorruptedException("Key " + key + " not greater than " + previousKey);
+        }
+        if (removed) {
+          if (!result.containsKey(key)) {
+            throw new StreamCorruptedException("Removal of missing key " + key);
+          }
+          result = result.removeAndCopy(key);
+        } else {
+          result = result.putAndCopy(key, valueReader.read(in));
+        }
+        previousKey = key;
+      }
+      return result;
+    }
+  }
+}
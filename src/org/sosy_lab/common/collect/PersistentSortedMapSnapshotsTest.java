@@ -0,0 +1,168 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.errorprone.annotations.Var;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class PersistentSortedMapSnapshotsTest {
+
+  private static List<PersistentSortedMap<Integer, String>> createSnapshots(
+      int size, int count, int changesPerSnapshot) {
+    Random random = new Random(0);
+    @Var PersistentSortedMap<Integer, String> map = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < size; i++) {
+      map = map.putAndCopy(i, "initial" + i);
+    }
+
+    List<PersistentSortedMap<Integer, String>> snapshots = new ArrayList<>();
+    snapshots.add(map);
+    for (int i = 0; i < count - 1; i++) {
+      for (int j = 0; j < changesPerSnapshot; j++) {
+        int key = random.nextInt(2 * size);
+        map = random.nextBoolean() ? map.removeAndCopy(key) : map.putAndCopy(key, "value" + i);
+      }
+      snapshots.add(map);
+    }
+    return snapshots;
+  }
+
+  private static byte[] write(List<PersistentSortedMap<Integer, String>> snapshots)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PersistentSortedMapSnapshots.Writer<Integer, String> writer =
+          PersistentSortedMapSnapshots.writer(out, DataOutput::writeInt, DataOutput::writeUTF);
+      for (PersistentSortedMap<Integer, String> snapshot : snapshots) {
+        writer.write(snapshot);
+      }
+      writer.finish();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<PersistentSortedMap<Integer, String>> read(byte[] bytes) throws IOException {
+    List<PersistentSortedMap<Integer, String>> snapshots = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      PersistentSortedMapSnapshots.Reader<Integer, String> reader =
+          PersistentSortedMapSnapshots.reader(in, DataInput::readInt, DataInput::readUTF);
+      @Var PersistentSortedMap<Integer, String> snapshot;
+      while ((snapshot = reader.read()) != null) {
+        snapshots.add(snapshot);
+      }
+      assertThat(reader.read()).isNull();
+    }
+    return snapshots;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    List<PersistentSortedMap<Integer, String>> snapshots = createSnapshots(1000, 100, 5);
+
+    List<PersistentSortedMap<Integer, String>> result = read(write(snapshots));
+    assertThat(result).containsExactlyElementsIn(snapshots).inOrder();
+    for (PersistentSortedMap<Integer, String> snapshot : result) {
+      ((PathCopyingPersistentTreeMap<Integer, String>) snapshot).checkAssertions();
+    }
+  }
+
+  @Test
+  public void testRoundTrip_unrelatedSnapshots() throws IOException {
+    List<PersistentSortedMap<Integer, String>> snapshots = new ArrayList<>();
+    snapshots.addAll(createSnapshots(100, 3, 5));
+    snapshots.add(PathCopyingPersistentTreeMap.of());
+    snapshots.add(PathCopyingPersistentTreeMap.<Integer, String>of().putAndCopy(-1, "a"));
+    snapshots.addAll(createSnapshots(50, 3, 5));
+
+    assertThat(read(write(snapshots))).containsExactlyElementsIn(snapshots).inOrder();
+  }
+
+  @Test
+  public void testRoundTrip_emptySequence() throws IOException {
+    assertThat(read(write(List.of()))).isEmpty();
+  }
+
+  @Test
+  public void testRoundTrip_objectStream() throws IOException {
+    List<PersistentSortedMap<Integer, String>> snapshots = createSnapshots(100, 10, 2);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      PersistentSortedMapSnapshots.Writer<Integer, String> writer =
+          PersistentSortedMapSnapshots.writer(out);
+      for (PersistentSortedMap<Integer, String> snapshot : snapshots) {
+        writer.write(snapshot);
+      }
+      writer.finish();
+    }
+
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      PersistentSortedMapSnapshots.Reader<Integer, String> reader =
+          PersistentSortedMapSnapshots.reader(in);
+      for (PersistentSortedMap<Integer, String> snapshot : snapshots) {
+        assertThat(reader.read()).isEqualTo(snapshot);
+      }
+      assertThat(reader.read()).isNull();
+    }
+  }
+
+  @Test
+  public void testDeltasAreSmall() throws IOException {
+    List<PersistentSortedMap<Integer, String>> snapshots = createSnapshots(1000, 100, 1);
+
+    byte[] first = write(snapshots.subList(0, 1));
+    byte[] all = write(snapshots);
+    assertThat(all.length).isLessThan(2 * first.length);
+  }
+
+  @Test
+  public void testWriteAfterFinish() throws IOException {
+    PersistentSortedMapSnapshots.Writer<Integer, String> writer =
+        PersistentSortedMapSnapshots.writer(
+            new DataOutputStream(new ByteArrayOutputStream()),
+            DataOutput::writeInt,
+            DataOutput::writeUTF);
+    writer.finish();
+    assertThrows(
+        IllegalStateException.class, () -> writer.write(PathCopyingPersistentTreeMap.of()));
+  }
+
+  @Test
+  public void testDeltaWithoutSnapshot() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(1); // delta
+      out.writeInt(0);
+    }
+
+    PersistentSortedMapSnapshots.Reader<Integer, String> reader =
+        PersistentSortedMapSnapshots.reader(
+            new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+            DataInput::readInt,
+            DataInput::readUTF);
+    assertThrows(StreamCorruptedException.class, reader::read);
+  }
+}
@@ -13,10 +13,16 @@ import static com.google.common.collect.Iterators.concat;
 import static com.google.common.collect.Iterators.singletonIterator;
 
 import com.google.common.base.Equivalence;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Streams;
 import com.google.errorprone.annotations.Var;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.stream.Stream;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Utility class for {@link PersistentSortedMap}s.
@@ -25,6 +31,8 @@ import java.util.Map;
  * a map whose keyset is the union of the keyset of both input maps. The values of the resulting map
  * are the corresponding values of the input maps as long as they are not differing. Differing
  * values for one key are resolved by passing them to a callback function.
+ *
+ * <p>Furthermore, this class can compute the differences between two maps without merging them.
  */
 public final class PersistentSortedMaps {
 
@@ -93,6 +101,10 @@ public final class PersistentSortedMaps {
    * of the map, those which are identical in both map, and for those keys that have a different
    * value in both maps a handler is called, and the result is put in the resulting map.
    *
+   * <p>If both maps are {@link PathCopyingPersistentTreeMap}s, subtrees that are shared by both
+   * maps are skipped like in {@link #merge(PersistentSortedMap, PersistentSortedMap, Equivalence,
+   * MergeConflictHandler, MapsDifference.Visitor)}.
+   *
    * @param map1 The first map.
    * @param map2 The second map.
    * @param conflictHandler The handler that is called for a key with two different values.
@@ -103,7 +115,12 @@ public final class PersistentSortedMaps {
       PersistentSortedMap<K, V> map2,
       MergeConflictHandler<K, V> conflictHandler) {
 
-    if (map1.size() >= map2.size()) {
+    if (map1 instanceof PathCopyingPersistentTreeMap<?, ?>
+        && map2 instanceof PathCopyingPersistentTreeMap<?, ?>) {
+      // The tree-based merge does not need the sizes, which may take linear time to compute.
+      return merge(
+          map1, map2, Equivalence.equals(), conflictHandler, MapsDifference.ignoreMapsDifference());
+    } else if (map1.size() >= map2.size()) {
       return merge(
           map1, map2, Equivalence.equals(), conflictHandler, MapsDifference.ignoreMapsDifference());
     } else {
@@ -116,6 +133,25 @@ public final class PersistentSortedMaps {
     }
   }
 
+  /**
+   * Merge two PersistentSortedMaps like {@link #merge(PersistentSortedMap, PersistentSortedMap,
+   * MergeConflictHandler)}, but return the result of a previous merge of the same instances from
+   * the given cache if present. This is useful if the same pairs of maps are merged repeatedly.
+   *
+   * @param map1 The first map.
+   * @param map2 The second map.
+   * @param conflictHandler The handler that is called for a key with two different values.
+   * @param cache The cache that stores the merge results.
+   * @return The merged map.
+   */
+  public static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> merge(
+      PersistentSortedMap<K, V> map1,
+      PersistentSortedMap<K, V> map2,
+      MergeConflictHandler<K, V> conflictHandler,
+      MergeCache cache) {
+    return checkNotNull(cache).merge(map1, map2, conflictHandler);
+  }
+
   /**
    * Merge two PersistentSortedMaps. The result has all key-value pairs where the key is only in one
    * of the map, those which are identical in both map, and for those keys that have a different
@@ -126,7 +162,11 @@ public final class PersistentSortedMaps {
    * key and both values, where missing values are replaced by null.
    *
    * <p>Implementation note: It may be faster to call this method with the bigger of the input maps
-   * as the first parameter.
+   * as the first parameter. If both maps are {@link PathCopyingPersistentTreeMap}s, this does not
+   * matter, because their trees are combined by splitting and joining like in {@link
+   * PersistentSortedMap#unionAndCopy}. Subtrees that are shared by both maps (e.g., because one map
+   * was created from the other one) are skipped, such that the cost depends mostly on the number of
+   * differences.
    *
    * @param map1 The first map.
    * @param map2 The second map.
@@ -157,6 +197,12 @@ public final class PersistentSortedMaps {
       return map1;
     }
 
+    if (map1 instanceof PathCopyingPersistentTreeMap<K, V> treeMap1
+        && map2 instanceof PathCopyingPersistentTreeMap<K, V> treeMap2) {
+      return PathCopyingPersistentTreeMap.merge(
+          treeMap1, treeMap2, valueEquals, conflictHandler, collectDifferences);
+    }
+
     // Assume map1 is the bigger one, so we use it as the base.
     @Var PersistentSortedMap<K, V> result = map1;
 
@@ -259,4 +305,183 @@ public final class PersistentSortedMaps {
 
     return result;
   }
+
+  /**
+   * Compute the differences between two PersistentSortedMaps, i.e., the keys which are present in
+   * only one of the maps or have different values (according to {@link Object#equals(Object)}),
+   * and pass them to a visitor in ascending order of keys.
+   *
+   * <p>If both maps are {@link PathCopyingPersistentTreeMap}s, subtrees that are shared by both
+   * maps are skipped, such that comparing a map with a map derived from it costs O(d log n) for d
+   * differences instead of O(n). Otherwise, both maps are iterated completely.
+   *
+   * @param map1 The first (left) map.
+   * @param map2 The second (right) map.
+   * @param visitor A visitor which receives keys with two different values or keys that are
+   *     present only in one of the maps.
+   */
+  public static <K extends Comparable<? super K>, V> void diff(
+      PersistentSortedMap<K, V> map1,
+      PersistentSortedMap<K, V> map2,
+      MapsDifference.Visitor<? super K, ? super V> visitor) {
+    diff(map1, map2, Equivalence.equals(), visitor);
+  }
+
+  /**
+   * Compute the differences between two PersistentSortedMaps like {@link
+   * #diff(PersistentSortedMap, PersistentSortedMap, MapsDifference.Visitor)}, but with a given
+   * {@link Equivalence} for values.
+   *
+   * @param map1 The first (left) map.
+   * @param map2 The second (right) map.
+   * @param valueEquals The {@link Equivalence} that will determine whether two values are
+   *     considered equal.
+   * @param visitor A visitor which receives keys with two different values or keys that are
+   *     present only in one of the maps.
+   */
+  public static <K extends Comparable<? super K>, V> void diff(
+      PersistentSortedMap<K, V> map1,
+      PersistentSortedMap<K, V> map2,
+      Equivalence<? super V> valueEquals,
+      MapsDifference.Visitor<? super K, ? super V> visitor) {
+    checkNotNull(valueEquals);
+    checkNotNull(visitor);
+    if (map1 == map2) {
+      return;
+    }
+
+    DifferenceCursor<K, V> differences = differenceCursor(map1, map2);
+    while (differences.advance()) {
+      Map.Entry<K, V> e1 = differences.leftEntry();
+      Map.Entry<K, V> e2 = differences.rightEntry();
+
+      if (e2 == null) {
+        visitor.leftValueOnly(e1.getKey(), e1.getValue());
+      } else if (e1 == null) {
+        visitor.rightValueOnly(e2.getKey(), e2.getValue());
+      } else if (!valueEquals.equivalent(e1.getValue(), e2.getValue())) {
+        visitor.differingValues(e1.getKey(), e1.getValue(), e2.getValue());
+      }
+    }
+  }
+
+  /**
+   * Return the differences between two PersistentSortedMaps as a lazy stream in ascending order of
+   * keys. This is like {@link #diff(PersistentSortedMap, PersistentSortedMap,
+   * MapsDifference.Visitor)}, but the differences are computed only as far as the stream is
+   * consumed, e.g., {@code differences(map1, map2).findFirst()} stops at the first difference.
+   * Because {@link MapsDifference.Entry} does not allow null values, the maps must not contain
+   * null values.
+   *
+   * @param map1 The first (left) map.
+   * @param map2 The second (right) map.
+   */
+  public static <K extends Comparable<? super K>, V> Stream<MapsDifference.Entry<K, V>> differences(
+      PersistentSortedMap<K, V> map1, PersistentSortedMap<K, V> map2) {
+    DifferenceCursor<K, V> differences = differenceCursor(map1, map2);
+    return Streams.stream(
+        new AbstractIterator<MapsDifference.Entry<K, V>>() {
+          @Override
+          protected MapsDifference.@Nullable Entry<K, V> computeNext() {
+            while (differences.advance()) {
+              Map.Entry<K, V> e1 = differences.leftEntry();
+              Map.Entry<K, V> e2 = differences.rightEntry();
+
+              if (e2 == null) {
+                return MapsDifference.Entry.forLeftValueOnly(e1.getKey(), e1.getValue());
+              } else if (e1 == null) {
+                return MapsDifference.Entry.forRightValueOnly(e2.getKey(), e2.getValue());
+              } else if (!e1.getValue().equals(e2.getValue())) {
+                return MapsDifference.Entry.forDifferingValues(
+                    e1.getKey(), e1.getValue(), e2.getValue());
+              }
+            }
+            return endOfData();
+          }
+        });
+  }
+
+  private static <K extends Comparable<? super K>, V> DifferenceCursor<K, V> differenceCursor(
+      PersistentSortedMap<K, V> map1, PersistentSortedMap<K, V> map2) {
+    checkNotNull(map1);
+    checkNotNull(map2);
+    if (map1 instanceof PathCopyingPersistentTreeMap<K, V> treeMap1
+        && map2 instanceof PathCopyingPersistentTreeMap<K, V> treeMap2) {
+      return PathCopyingPersistentTreeMap.differenceCursor(treeMap1, treeMap2);
+    }
+    return new IteratorDifferenceCursor<>(map1, map2);
+  }
+
+  /**
+   * A cursor that iterates simultaneously over the entries of two maps in key order. It visits at
+   * least all keys whose entries differ between the maps, but may also visit keys with equal
+   * entries.
+   *
+   * <p>After each call to {@link #advance()} that returned true, {@link #leftEntry()} and {@link
+   * #rightEntry()} return the entries of both maps for the current key (at least one of them is
+   * present).
+   */
+  interface DifferenceCursor<K, V> {
+
+    /**
+     * Move to the next key with potentially differing entries.
+     *
+     * @return Whether there is such a key.
+     */
+    boolean advance();
+
+    /** The entry for the current key in the first map, if present. */
+    Map.@Nullable Entry<K, V> leftEntry();
+
+    /** The entry for the current key in the second map, if present. */
+    Map.@Nullable Entry<K, V> rightEntry();
+  }
+
+  /** A {@link DifferenceCursor} for arbitrary maps, which visits all keys of both maps. */
+  private static final class IteratorDifferenceCursor<K extends Comparable<? super K>, V>
+      implements DifferenceCursor<K, V> {
+
+    private final PeekingIterator<Map.Entry<K, V>> it1;
+    private final PeekingIterator<Map.Entry<K, V>> it2;
+
+    private Map.@Nullable Entry<K, V> current1;
+    private Map.@Nullable Entry<K, V> current2;
+
+    private IteratorDifferenceCursor(
+        PersistentSortedMap<K, V> map1, PersistentSortedMap<K, V> map2) {
+      it1 = Iterators.peekingIterator(map1.entrySet().iterator());
+      it2 = Iterators.peekingIterator(map2.entrySet().iterator());
+    }
+
+    @Override
+    public boolean advance() {
+      current1 = null;
+      current2 = null;
+
+      if (!it1.hasNext() || !it2.hasNext()) {
+        current1 = it1.hasNext() ? it1.next() : null;
+        current2 = it2.hasNext() ? it2.next() : null;
+        return current1 != null || current2 != null;
+      }
+
+      int comp = it1.peek().getKey().compareTo(it2.peek().getKey());
+      if (comp <= 0) {
+        current1 = it1.next();
+      }
+      if (comp >= 0) {
+        current2 = it2.next();
+      }
+      return true;
+    }
+
+    @Override
+    public Map.@Nullable Entry<K, V> leftEntry() {
+      return current1;
+    }
+
+    @Override
+    public Map.@Nullable Entry<K, V> rightEntry() {
+      return current2;
+    }
+  }
 }
@@ -8,13 +8,20 @@
 
 package org.sosy_lab.common.collect;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
+import static org.sosy_lab.common.collect.PersistentSortedMaps.diff;
+import static org.sosy_lab.common.collect.PersistentSortedMaps.differences;
 import static org.sosy_lab.common.collect.PersistentSortedMaps.merge;
 
 import com.google.common.base.Equivalence;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.errorprone.annotations.Var;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 
 public class PersistentSortedMapsTest {
@@ -401,4 +408,185 @@ public class PersistentSortedMapsTest {
 
     assertThat(result).isEqualTo(FULL_MAP);
   }
+
+  @Test
+  public void testMerge_derivedMaps() {
+    Random rnd = new Random(0); // static seed for reproducibility
+    @Var PersistentSortedMap<Integer, Integer> base = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < 1000; i++) {
+      base = base.putAndCopy(rnd.nextInt(2000), i);
+    }
+
+    for (int changes = 0; changes < 50; changes++) {
+      @Var PersistentSortedMap<Integer, Integer> map1 = base;
+      @Var PersistentSortedMap<Integer, Integer> map2 = base;
+      for (int i = 0; i < changes; i++) {
+        map1 = modifyRandomly(map1, rnd);
+        map2 = modifyRandomly(map2, rnd);
+      }
+
+      List<MapsDifference.Entry<Integer, Integer>> differences = new ArrayList<>();
+      PersistentSortedMap<Integer, Integer> result =
+          merge(
+              map1,
+              map2,
+              Equivalence.equals(),
+              PersistentSortedMaps.<Integer, Integer>getMaximumMergeConflictHandler(),
+              MapsDifference.collectMapsDifferenceTo(differences));
+
+      // Compare with the result of merging copies that do not share anything and use iteration
+      List<MapsDifference.Entry<Integer, Integer>> expectedDifferences = new ArrayList<>();
+      PersistentSortedMap<Integer, Integer> expected =
+          merge(
+              PersistentOrderStatisticTreeMap.copyOf(map1),
+              PersistentOrderStatisticTreeMap.copyOf(map2),
+              Equivalence.equals(),
+              PersistentSortedMaps.<Integer, Integer>getMaximumMergeConflictHandler(),
+              MapsDifference.collectMapsDifferenceTo(expectedDifferences));
+      assertThat(result).containsExactlyEntriesIn(expected).inOrder();
+      assertThat(differences).containsExactlyElementsIn(expectedDifferences).inOrder();
+      ((PathCopyingPersistentTreeMap<?, ?>) result).checkAssertions();
+    }
+  }
+
+  private static PersistentSortedMap<Integer, Integer> modifyRandomly(
+      PersistentSortedMap<Integer, Integer> map, Random rnd) {
+    int key = rnd.nextInt(2000);
+    return rnd.nextBoolean() ? map.putAndCopy(key, rnd.nextInt()) : map.removeAndCopy(key);
+  }
+
+  @Test
+  public void testMerge_derivedMapsSkipsSharedSubtrees() {
+    @Var PersistentSortedMap<CountingKey, String> map = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < 10000; i++) {
+      map = map.putAndCopy(new CountingKey(i), "");
+    }
+    PersistentSortedMap<CountingKey, String> map1 = map.putAndCopy(new CountingKey(-1), "");
+    PersistentSortedMap<CountingKey, String> map2 = map.putAndCopy(new CountingKey(5000), "x");
+
+    CountingKey.comparisons.set(0);
+    PersistentSortedMap<CountingKey, String> result =
+        merge(map1, map2, (key, value1, value2) -> value1 + value2);
+    // Two merged insertions at depth < 30 need far less comparisons than there are entries.
+    assertThat(CountingKey.comparisons.get()).isLessThan(500);
+
+    // Both overloads use the same structural merge.
+    List<MapsDifference.Entry<CountingKey, String>> differences = new ArrayList<>();
+    CountingKey.comparisons.set(0);
+    PersistentSortedMap<CountingKey, String> resultWithDifferences =
+        merge(
+            map1,
+            map2,
+            Equivalence.equals(),
+            (key, value1, value2) -> value1 + value2,
+            MapsDifference.collectMapsDifferenceTo(differences));
+    assertThat(CountingKey.comparisons.get()).isLessThan(500);
+
+    assertThat(result).hasSize(10001);
+    assertThat(result.get(new CountingKey(5000))).isEqualTo("x");
+    assertThat(resultWithDifferences).containsExactlyEntriesIn(result).inOrder();
+    assertThat(differences)
+        .containsExactly(
+            MapsDifference.Entry.forLeftValueOnly(new CountingKey(-1), ""),
+            MapsDifference.Entry.forDifferingValues(new CountingKey(5000), "", "x"))
+        .inOrder();
+  }
+
+  @Test
+  public void testDiff() {
+    List<MapsDifference.Entry<String, String>> differences = new ArrayList<>();
+    diff(HALF1_MAP_INVERSE, FULL_MAP, MapsDifference.collectMapsDifferenceTo(differences));
+
+    ImmutableList<MapsDifference.Entry<String, String>> expected =
+        ImmutableList.of(
+            MapsDifference.Entry.forDifferingValues("a", "4", "1"),
+            MapsDifference.Entry.forRightValueOnly("b", "2"),
+            MapsDifference.Entry.forDifferingValues("c", "2", "3"),
+            MapsDifference.Entry.forRightValueOnly("d", "4"));
+    assertThat(differences).containsExactlyElementsIn(expected).inOrder();
+    assertThat(differences(HALF1_MAP_INVERSE, FULL_MAP).collect(toImmutableList()))
+        .containsExactlyElementsIn(expected)
+        .inOrder();
+  }
+
+  @Test
+  public void testDiff_equal() {
+    List<MapsDifference.Entry<String, String>> differences = new ArrayList<>();
+    diff(
+        FULL_MAP,
+        PathCopyingPersistentTreeMap.copyOf(FULL_MAP),
+        MapsDifference.collectMapsDifferenceTo(differences));
+
+    assertThat(differences).isEmpty();
+    assertThat(differences(FULL_MAP, FULL_MAP.putAndCopy("a", "1"))).isEmpty();
+  }
+
+  @Test
+  public void testDiff_derivedMaps() {
+    Random rnd = new Random(0); // static seed for reproducibility
+    @Var PersistentSortedMap<Integer, Integer> base = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < 1000; i++) {
+      base = base.putAndCopy(rnd.nextInt(2000), i);
+    }
+
+    for (int changes = 0; changes < 50; changes++) {
+      @Var PersistentSortedMap<Integer, Integer> map1 = base;
+      @Var PersistentSortedMap<Integer, Integer> map2 = base;
+      for (int i = 0; i < changes; i++) {
+        map1 = modifyRandomly(map1, rnd);
+        map2 = modifyRandomly(map2, rnd);
+      }
+
+      List<MapsDifference.Entry<Integer, Integer>> differences = new ArrayList<>();
+      diff(map1, map2, MapsDifference.collectMapsDifferenceTo(differences));
+
+      // Compare with the differences of copies that do not share anything and use iteration
+      List<MapsDifference.Entry<Integer, Integer>> expectedDifferences = new ArrayList<>();
+      diff(
+          PersistentOrderStatisticTreeMap.copyOf(map1),
+          PersistentOrderStatisticTreeMap.copyOf(map2),
+          MapsDifference.collectMapsDifferenceTo(expectedDifferences));
+      assertThat(differences).containsExactlyElementsIn(expectedDifferences).inOrder();
+      assertThat(differences(map1, map2).collect(toImmutableList()))
+          .containsExactlyElementsIn(expectedDifferences)
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void testDiff_derivedMapsSkipsSharedSubtrees() {
+    @Var PersistentSortedMap<CountingKey, String> map = PathCopyingPersistentTreeMap.of();
+    for (int i = 0; i < 10000; i++) {
+      map = map.putAndCopy(new CountingKey(i), "");
+    }
+    PersistentSortedMap<CountingKey, String> map1 = map.putAndCopy(new CountingKey(-1), "");
+    PersistentSortedMap<CountingKey, String> map2 = map.putAndCopy(new CountingKey(5000), "x");
+
+    CountingKey.comparisons.set(0);
+    List<MapsDifference.Entry<CountingKey, String>> differences = new ArrayList<>();
+    diff(map1, map2, MapsDifference.collectMapsDifferenceTo(differences));
+
+    assertThat(differences)
+        .containsExactly(
+            MapsDifference.Entry.forLeftValueOnly(new CountingKey(-1), ""),
+            MapsDifference.Entry.forDifferingValues(new CountingKey(5000), "", "x"))
+        .inOrder();
+    assertThat(CountingKey.comparisons.get()).isLessThan(500);
+
+    CountingKey.comparisons.set(0);
+    assertThat(differences(map1, map2).findFirst())
+        .hasValue(MapsDifference.Entry.forLeftValueOnly(new CountingKey(-1), ""));
+    assertThat(CountingKey.comparisons.get()).isLessThan(100);
+  }
+
+  private record CountingKey(int value) implements Comparable<CountingKey> {
+
+    private static final AtomicInteger comparisons = new AtomicInteger();
+
+    @Override
+    public int compareTo(CountingKey other) {
+      comparisons.incrementAndGet();
+      return Integer.compare(value, other.value);
+    }
+  }
 }
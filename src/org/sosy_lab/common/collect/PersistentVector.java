@@ -0,0 +1,612 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import com.google.errorprone.annotations.Var;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collector;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An implementation of {@link PersistentList} that is based on a bit-partitioned trie with
+ * branching factor 32, like the persistent vectors of Clojure and Scala. Null values are not
+ * supported (similarly to {@link com.google.common.collect.ImmutableList}).
+ *
+ * <p>The elements are stored in leaf arrays of 32 elements, and each inner node of the trie has up
+ * to 32 children, which are selected by 5 bits of the index on each level. The last up to 32
+ * elements are stored separately in a "tail" array. Indexed access ({@link #get(int)}) and
+ * replacing an element ({@link #setAndCopy(int, Object)}) need O(log32 n) time, which is at most 7
+ * levels and thus effectively constant. Appending an element ({@link #with(Object)}) needs
+ * amortized O(1) time, because it only copies the tail in most cases. All modifications copy only
+ * the arrays on the path to the modified element and share all other arrays with the original
+ * list. For many modifications at once, {@link #toTransient()} avoids copying the paths for each
+ * of them.
+ *
+ * <p>In contrast to {@link PersistentLinkedList}, {@link #with(Object)} and {@link #withAll(List)}
+ * add elements at the end of the list. Removing arbitrary elements with {@link #without(Object)}
+ * needs O(n) time.
+ *
+ * <p>All instances of this class are fully-thread safe. However, note that each modifying operation
+ * allocates a new instance whose reference needs to be published safely in order to be usable by
+ * other threads.
+ *
+ * @param <T> The type of values.
+ */
+@Immutable(containerOf = "T")
+@SuppressWarnings({
+  "deprecation", // javac complains about deprecated methods from PersistentList
+  "Immutable", // arrays are never modified after construction, AbstractList.modCount is unused
+})
+public final class PersistentVector<T> extends AbstractList<T>
+    implements PersistentList<T>, RandomAccess {
+
+  /** The number of bits of the index that select the child on each level of the trie. */
+  private static final int BITS_PER_LEVEL = 5;
+
+  private static final int WIDTH = 1 << BITS_PER_LEVEL;
+
+  private static final int LEVEL_MASK = WIDTH - 1;
+
+  private static final PersistentVector<?> EMPTY =
+      new PersistentVector<>(0, BITS_PER_LEVEL, new Object[WIDTH], new Object[0]);
+
+  private final int size;
+
+  /** The number of index bits that are used below the root, a multiple of BITS_PER_LEVEL. */
+  private final int shift;
+
+  /**
+   * The root of the trie. Inner nodes are arrays of child arrays, leaves are arrays of elements.
+   * All arrays in the trie have length {@link #WIDTH} and the unused slots are null.
+   */
+  private final @Nullable Object[] root;
+
+  /** The last elements, which are not part of the trie. Its length is exactly their number. */
+  private final Object[] tail;
+
+  private PersistentVector(int pSize, int pShift, @Nullable Object[] pRoot, Object[] pTail) {
+    size = pSize;
+    shift = pShift;
+    root = pRoot;
+    tail = pTail;
+  }
+
+  /** Returns the empty list. */
+  @SuppressWarnings("unchecked")
+  public static <T> PersistentVector<T> of() {
+    return (PersistentVector<T>) EMPTY;
+  }
+
+  /** Returns a list containing the specified values. */
+  @SafeVarargs
+  @SuppressWarnings("varargs") // the array is only read
+  public static <T> PersistentVector<T> of(T... values) {
+    return copyOf(Arrays.asList(values));
+  }
+
+  /** Returns a list with the values from the given {@link Iterable}, in the same order. */
+  public static <T> PersistentVector<T> copyOf(Iterable<? extends T> values) {
+    if (values instanceof PersistentVector<?>) {
+      @SuppressWarnings("unchecked") // immutable, so covariant
+      PersistentVector<T> result = (PersistentVector<T>) values;
+      return result;
+    }
+    return PersistentVector.<T>of().toTransient().addAll(values).persist();
+  }
+
+  /**
+   * Return a {@link Collector} that creates PersistentVectors and can be used in {@link
+   * java.util.stream.Stream#collect(Collector)}.
+   */
+  public static <T> Collector<T, ?, PersistentVector<T>> toPersistentVector() {
+    return Collector.<T, Transient<T>, PersistentVector<T>>of(
+        () -> PersistentVector.<T>of().toTransient(),
+        Transient::add,
+        (transient1, transient2) -> transient1.addAll(transient2.persist()),
+        Transient::persist);
+  }
+
+  // private utility methods
+
+  /** Return the index of the first element in the tail. */
+  private static int tailOffset(int size) {
+    return size < WIDTH ? 0 : ((size - 1) >>> BITS_PER_LEVEL) << BITS_PER_LEVEL;
+  }
+
+  /** Return the array (leaf or tail) that contains the element with the given index. */
+  private static Object[] arrayFor(
+      int index, int size, int shift, @Nullable Object[] root, Object[] tail) {
+    if (index >= tailOffset(size)) {
+      return tail;
+    }
+    @Var Object[] node = root;
+    for (@Var int level = shift; level > 0; level -= BITS_PER_LEVEL) {
+      node = (Object[]) node[(index >>> level) & LEVEL_MASK];
+    }
+    return node;
+  }
+
+  /** Create a path of new inner nodes down to the given leaf. */
+  private static Object[] newPath(int level, Object[] leaf) {
+    if (level == 0) {
+      return leaf;
+    }
+    Object[] node = new Object[WIDTH];
+    node[0] = newPath(level - BITS_PER_LEVEL, leaf);
+    return node;
+  }
+
+  /** Return whether the trie with the given size and shift cannot hold another leaf. */
+  private static boolean isRootFull(int size, int shift) {
+    return (size >>> BITS_PER_LEVEL) > (1 << shift);
+  }
+
+  // read operations
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the element at the given position in O(log32 n) time.
+   *
+   * @throws IndexOutOfBoundsException if the index is not smaller than the size of the list.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    checkElementIndex(index, size);
+    return (T) arrayFor(index, size, shift, root, tail)[index & LEVEL_MASK];
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iter<>(this);
+  }
+
+  /** Iterator that looks up each leaf only once. */
+  private static final class Iter<T> extends UnmodifiableIterator<T> {
+
+    private final PersistentVector<T> vector;
+    private int index = 0;
+    private Object[] array;
+
+    private Iter(PersistentVector<T> pVector) {
+      vector = pVector;
+      array = pVector.tail; // only used if index is in the tail
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < vector.size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+      if (index >= vector.size) {
+        throw new NoSuchElementException();
+      }
+      if ((index & LEVEL_MASK) == 0) {
+        array = arrayFor(index, vector.size, vector.shift, vector.root, vector.tail);
+      }
+      return (T) array[index++ & LEVEL_MASK];
+    }
+  }
+
+  // modifying operations
+
+  /**
+   * Returns a new list with the given value appended at the end. This needs amortized O(1) time.
+   */
+  @Override
+  public PersistentVector<T> with(T value) {
+    checkNotNull(value);
+    int tailSize = size - tailOffset(size);
+    if (tailSize < WIDTH) {
+      Object[] newTail = Arrays.copyOf(tail, tailSize + 1);
+      newTail[tailSize] = value;
+      return new PersistentVector<>(size + 1, shift, root, newTail);
+    }
+
+    // Full tail is moved into the trie.
+    @Var int newShift = shift;
+    Object[] newRoot;
+    if (isRootFull(size, shift)) {
+      newRoot = new Object[WIDTH];
+      newRoot[0] = root;
+      newRoot[1] = newPath(shift, tail);
+      newShift += BITS_PER_LEVEL;
+    } else {
+      newRoot = pushTail(size, shift, root, tail);
+    }
+    return new PersistentVector<>(size + 1, newShift, newRoot, new Object[] {value});
+  }
+
+  /** Return a copy of the given subtrie with the given full tail added as the rightmost leaf. */
+  private static Object[] pushTail(int size, int level, @Nullable Object[] node, Object[] tail) {
+    int childIndex = ((size - 1) >>> level) & LEVEL_MASK;
+    @Nullable Object[] result = node.clone();
+    if (level == BITS_PER_LEVEL) {
+      result[childIndex] = tail;
+    } else {
+      Object[] child = (Object[]) node[childIndex];
+      result[childIndex] =
+          child == null
+              ? newPath(level - BITS_PER_LEVEL, tail)
+              : pushTail(size, level - BITS_PER_LEVEL, child, tail);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a new list with the given values appended at the end, in the order in which they are
+   * in the given list.
+   */
+  @Override
+  public PersistentVector<T> withAll(List<T> values) {
+    if (values.isEmpty()) {
+      return this;
+    }
+    return toTransient().addAll(values).persist();
+  }
+
+  /**
+   * Returns a new list with the element at the given position replaced by the given value. This
+   * needs O(log32 n) time.
+   *
+   * @throws IndexOutOfBoundsException if the index is not smaller than the size of the list.
+   */
+  public PersistentVector<T> setAndCopy(int index, T value) {
+    checkElementIndex(index, size);
+    checkNotNull(value);
+    if (index >= tailOffset(size)) {
+      Object[] newTail = tail.clone();
+      newTail[index & LEVEL_MASK] = value;
+      return new PersistentVector<>(size, shift, root, newTail);
+    }
+    return new PersistentVector<>(size, shift, setInTrie(shift, root, index, value), tail);
+  }
+
+  private static Object[] setInTrie(int level, @Nullable Object[] node, int index, Object value) {
+    @Nullable Object[] result = node.clone();
+    if (level == 0) {
+      result[index & LEVEL_MASK] = value;
+    } else {
+      int childIndex = (index >>> level) & LEVEL_MASK;
+      result[childIndex] =
+          setInTrie(level - BITS_PER_LEVEL, (Object[]) node[childIndex], index, value);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a new list omitting the first occurrence of the given value. This needs O(n) time.
+   */
+  @Override
+  public PersistentVector<T> without(@Nullable T value) {
+    int index = indexOf(value);
+    if (index < 0) {
+      return this;
+    }
+    Transient<T> result = PersistentVector.<T>of().toTransient();
+    result.addAll(subList(0, index));
+    result.addAll(subList(index + 1, size));
+    return result.persist();
+  }
+
+  @Override
+  public PersistentVector<T> empty() {
+    return of();
+  }
+
+  /** Returns a new list with the elements in the reverse order. This needs O(n) time. */
+  @Override
+  public PersistentVector<T> reversed() {
+    Transient<T> result = PersistentVector.<T>of().toTransient();
+    for (int i = size - 1; i >= 0; i--) {
+      result.add(get(i));
+    }
+    return result.persist();
+  }
+
+  /**
+   * Return a {@link Transient} that initially has the same content as this list and allows
+   * efficient modifications in place.
+   */
+  public Transient<T> toTransient() {
+    return new Transient<>(this);
+  }
+
+  /**
+   * A mutable builder for {@link PersistentVector}s. In contrast to the persistent operations, it
+   * modifies the arrays that it created itself in place, such that appending n elements needs only
+   * O(n) time and memory in total. Arrays that are shared with the original list are copied before
+   * the first modification.
+   *
+   * <p>After all modifications are done, {@link #persist()} returns a persistent list with the
+   * content of the transient in O(1) time. The transient cannot be used anymore afterwards.
+   *
+   * <p>Instances of this class are not thread-safe.
+   *
+   * @param <T> The type of values.
+   */
+  public static final class Transient<T> {
+
+    private int size;
+    private int shift;
+    private @Nullable Object[] root;
+
+    /** The tail, which has always length {@link #WIDTH} and is always owned by the transient. */
+    private Object[] tail;
+
+    /** The arrays in the trie that were created by this transient and may be modified. */
+    private final Set<Object[]> ownedArrays = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private boolean persisted = false;
+
+    private Transient(PersistentVector<T> pOriginal) {
+      size = pOriginal.size;
+      shift = pOriginal.shift;
+      root = pOriginal.root;
+      tail = Arrays.copyOf(pOriginal.tail, WIDTH);
+    }
+
+    private void checkNotPersisted() {
+      checkState(!persisted, "Transient list cannot be used after persist()");
+    }
+
+    /** Return the given array or a copy of it that may be modified by this transient. */
+    private @Nullable Object[] ensureOwned(@Nullable Object[] array) {
+      if (ownedArrays.contains(array)) {
+        return array;
+      }
+      return newOwnedArray(array.clone());
+    }
+
+    private Object[] newOwnedArray(Object[] array) {
+      ownedArrays.add(array);
+      return array;
+    }
+
+    public int size() {
+      checkNotPersisted();
+      return size;
+    }
+
+    /**
+     * Returns the element at the given position.
+     *
+     * @throws IndexOutOfBoundsException if the index is not smaller than the size of the list.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+      checkNotPersisted();
+      checkElementIndex(index, size);
+      return (T) arrayFor(index, size, shift, root, tail)[index & LEVEL_MASK];
+    }
+
+    /** Append a value at the end of the list. */
+    @CanIgnoreReturnValue
+    public Transient<T> add(T value) {
+      checkNotNull(value);
+      checkNotPersisted();
+      int tailSize = size - tailOffset(size);
+      if (tailSize == WIDTH) {
+        // Full tail is moved into the trie, it was created by this transient and stays owned.
+        ownedArrays.add(tail);
+        if (isRootFull(size, shift)) {
+          Object[] newRoot = newOwnedArray(new Object[WIDTH]);
+          newRoot[0] = root;
+          newRoot[1] = newOwnedPath(shift, tail);
+          root = newRoot;
+          shift += BITS_PER_LEVEL;
+        } else {
+          root = pushTail(shift, root);
+        }
+        tail = new Object[WIDTH];
+        tail[0] = value;
+      } else {
+        tail[tailSize] = value;
+      }
+      size++;
+      return this;
+    }
+
+    private Object[] newOwnedPath(int level, Object[] leaf) {
+      if (level == 0) {
+        return leaf;
+      }
+      Object[] node = newOwnedArray(new Object[WIDTH]);
+      node[0] = newOwnedPath(level - BITS_PER_LEVEL, leaf);
+      return node;
+    }
+
+    private Object[] pushTail(int level, @Nullable Object[] node) {
+      @Nullable Object[] result = ensureOwned(node);
+      int childIndex = ((size - 1) >>> level) & LEVEL_MASK;
+      if (level == BITS_PER_LEVEL) {
+        result[childIndex] = tail;
+      } else {
+        Object[] child = (Object[]) result[childIndex];
+        result[childIndex] =
+            child == null
+                ? newOwnedPath(level - BITS_PER_LEVEL, tail)
+                : pushTail(level - BITS_PER_LEVEL, child);
+      }
+      return result;
+    }
+
+    /** Append the given values at the end of the list, in the iteration order of the iterable. */
+    @CanIgnoreReturnValue
+    public Transient<T> addAll(Iterable<? extends T> values) {
+      checkNotPersisted();
+      for (T value : values) {
+        add(value);
+      }
+      return this;
+    }
+
+    /**
+     * Replace the element at the given position.
+     *
+     * @throws IndexOutOfBoundsException if the index is not smaller than the size of the list.
+     */
+    @CanIgnoreReturnValue
+    public Transient<T> set(int index, T value) {
+      checkElementIndex(index, size);
+      checkNotNull(value);
+      checkNotPersisted();
+      if (index >= tailOffset(size)) {
+        tail[index & LEVEL_MASK] = value;
+      } else {
+        root = setInOwnedTrie(shift, root, index, value);
+      }
+      return this;
+    }
+
+    private Object[] setInOwnedTrie(int level, @Nullable Object[] node, int index, Object value) {
+      @Nullable Object[] result = ensureOwned(node);
+      if (level == 0) {
+        result[index & LEVEL_MASK] = value;
+      } else {
+        int childIndex = (index >>> level) & LEVEL_MASK;
+        result[childIndex] =
+            setInOwnedTrie(level - BITS_PER_LEVEL, (Object[]) result[childIndex], index, value);
+      }
+      return result;
+    }
+
+    /**
+     * Return a persistent list with the current content of this transient, which must not be used
+     * anymore afterwards.
+     */
+    public PersistentVector<T> persist() {
+      checkNotPersisted();
+      persisted = true;
+      ownedArrays.clear();
+      if (size == 0) {
+        return of();
+      }
+      return new PersistentVector<>(
+          size, shift, root, Arrays.copyOf(tail, size - tailOffset(size)));
+    }
+  }
+
+  // unsupported operations
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean add(T pE) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void add(int pIndex, T pElement) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean addAll(Collection<? extends T> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean addAll(int pIndex, Collection<? extends T> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void clear() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public T remove(int pIndex) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean remove(@Nullable Object pO) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean removeAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void replaceAll(UnaryOperator<T> pOperator) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public boolean retainAll(Collection<?> pC) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public T set(int pIndex, T pElement) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Deprecated
+  @Override
+  @DoNotCall
+  public void sort(@Nullable Comparator<? super T> pC) {
+    throw new UnsupportedOperationException();
+  }
+}
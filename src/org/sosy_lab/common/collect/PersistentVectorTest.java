@@ -0,0 +1,191 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.testing.ListTestSuiteBuilder;
+import com.google.common.collect.testing.TestStringListGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class PersistentVectorTest {
+
+  /** Sizes around the boundaries of the tail and of one, two, and three trie levels. */
+  private static final int[] SIZES = {0, 1, 31, 32, 33, 64, 65, 1056, 1057, 1088, 33824, 33825};
+
+  private static final TestStringListGenerator listGenerator =
+      new TestStringListGenerator() {
+
+        @Override
+        protected List<String> create(String[] pElements) {
+          return PersistentVector.of(pElements);
+        }
+      };
+
+  public static junit.framework.Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(PersistentVectorTest.class));
+
+    suite.addTest(
+        ListTestSuiteBuilder.using(listGenerator)
+            .named("PersistentVector")
+            .withFeatures(CollectionFeature.KNOWN_ORDER, CollectionSize.ANY)
+            .createTestSuite());
+
+    return suite;
+  }
+
+  private static List<Integer> range(int size) {
+    return IntStream.range(0, size).boxed().collect(toList());
+  }
+
+  @Test
+  public void testWith() {
+    for (int size : SIZES) {
+      @Var PersistentVector<Integer> vector = PersistentVector.of();
+      List<PersistentVector<Integer>> versions = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        versions.add(vector);
+        vector = vector.with(i);
+      }
+      assertThat(vector).containsExactlyElementsIn(range(size)).inOrder();
+      // older versions are unchanged
+      for (int i = 0; i < size; i += 97) {
+        assertThat(versions.get(i)).containsExactlyElementsIn(range(i)).inOrder();
+      }
+    }
+  }
+
+  @Test
+  public void testCopyOf() {
+    for (int size : SIZES) {
+      PersistentVector<Integer> vector = PersistentVector.copyOf(range(size));
+      assertThat(vector).containsExactlyElementsIn(range(size)).inOrder();
+      assertThat(vector.size()).isEqualTo(size);
+      for (int i = 0; i < size; i++) {
+        assertThat(vector.get(i)).isEqualTo(i);
+      }
+      assertThat(PersistentVector.copyOf(vector)).isSameInstanceAs(vector);
+    }
+  }
+
+  @Test
+  public void testCollector() {
+    assertThat(range(2000).parallelStream().collect(PersistentVector.toPersistentVector()))
+        .containsExactlyElementsIn(range(2000))
+        .inOrder();
+  }
+
+  @Test
+  public void testWithAll() {
+    PersistentVector<Integer> vector = PersistentVector.copyOf(range(1000));
+    PersistentVector<Integer> result = vector.withAll(range(2000).subList(1000, 2000));
+    assertThat(result).containsExactlyElementsIn(range(2000)).inOrder();
+    assertThat(vector).containsExactlyElementsIn(range(1000)).inOrder();
+  }
+
+  @Test
+  public void testSetAndCopy() {
+    Random rnd = new Random(0);
+    for (int size : SIZES) {
+      if (size == 0) {
+        continue;
+      }
+      @Var PersistentVector<Integer> vector = PersistentVector.copyOf(range(size));
+      List<Integer> expected = new ArrayList<>(range(size));
+      for (int i = 0; i < 200; i++) {
+        int index = rnd.nextInt(size);
+        int value = rnd.nextInt();
+        PersistentVector<Integer> previous = vector;
+        List<Integer> previousExpected = new ArrayList<>(expected);
+        vector = vector.setAndCopy(index, value);
+        expected.set(index, value);
+        assertThat(vector.get(index)).isEqualTo(value);
+        assertThat(previous).isEqualTo(previousExpected);
+      }
+      assertThat(vector).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void testSetAndCopy_outOfBounds() {
+    PersistentVector<String> vector = PersistentVector.of("a");
+    assertThrows(IndexOutOfBoundsException.class, () -> vector.setAndCopy(1, "b"));
+    assertThrows(IndexOutOfBoundsException.class, () -> vector.setAndCopy(-1, "b"));
+  }
+
+  @Test
+  public void testTransient() {
+    Random rnd = new Random(0);
+    for (int size : SIZES) {
+      PersistentVector<Integer> original = PersistentVector.copyOf(range(size));
+      PersistentVector.Transient<Integer> builder = original.toTransient();
+      List<Integer> expected = new ArrayList<>(range(size));
+      for (int i = 0; i < 3000; i++) {
+        if (expected.isEmpty() || rnd.nextBoolean()) {
+          int value = rnd.nextInt();
+          builder.add(value);
+          expected.add(value);
+        } else {
+          int index = rnd.nextInt(expected.size());
+          int value = rnd.nextInt();
+          builder.set(index, value);
+          expected.set(index, value);
+          assertThat(builder.get(index)).isEqualTo(value);
+        }
+      }
+      assertThat(builder.size()).isEqualTo(expected.size());
+      PersistentVector<Integer> result = builder.persist();
+      assertThat(result).containsExactlyElementsIn(expected).inOrder();
+      assertThat(original).containsExactlyElementsIn(range(size)).inOrder();
+      assertThrows(IllegalStateException.class, () -> builder.add(0));
+
+      // modifying the result does not affect the original
+      PersistentVector<Integer> modified = result.with(1).setAndCopy(0, -1);
+      assertThat(result).containsExactlyElementsIn(expected).inOrder();
+      assertThat(modified.get(0)).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void testWithout() {
+    PersistentVector<String> vector = PersistentVector.of("a", "b", "c", "b");
+    assertThat(vector.without("b")).containsExactly("a", "c", "b").inOrder();
+    assertThat(vector.without("d")).isSameInstanceAs(vector);
+    assertThat(vector).containsExactly("a", "b", "c", "b").inOrder();
+  }
+
+  @Test
+  public void testReversed() {
+    for (int size : SIZES) {
+      List<Integer> expected = new ArrayList<>(range(size));
+      Collections.reverse(expected);
+      assertThat(PersistentVector.copyOf(range(size)).reversed())
+          .containsExactlyElementsIn(expected)
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void testNull() {
+    assertThrows(NullPointerException.class, () -> PersistentVector.<String>of().with(null));
+  }
+}
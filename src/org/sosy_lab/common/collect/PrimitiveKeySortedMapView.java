@@ -0,0 +1,390 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.errorprone.annotations.DoNotCall;
+import com.google.errorprone.annotations.Immutable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.sosy_lab.common.collect.PersistentLongSortedMap.LongEntry;
+import org.sosy_lab.common.collect.PersistentLongSortedMap.Node;
+
+/**
+ * A {@link PersistentSortedMap} with boxed keys that is backed by a {@link PersistentLongSortedMap}
+ * and is used for {@link PersistentLongSortedMap#asSortedMap()} and {@link
+ * PersistentIntSortedMap#asSortedMap()}. Keys are boxed only when they are returned, and entries
+ * are created on demand. Like for {@link PersistentOrderStatisticTreeMap}, sub maps and descending
+ * maps are independent instances of this class, which is indistinguishable from views because all
+ * maps are immutable.
+ *
+ * @param <K> The type of keys, either {@link Integer} or {@link Long}.
+ * @param <V> The type of values.
+ */
+@Immutable(containerOf = {"K", "V"})
+final class PrimitiveKeySortedMapView<
+        K extends Number & Comparable<? super K>, V extends @Nullable Object>
+    extends AbstractImmutableMap<K, V> implements PersistentSortedMap<K, V>, OurSortedMap<K, V> {
+
+  private final PersistentLongSortedMap<V> delegate;
+
+  /** Whether the keys are {@link Integer}s (otherwise they are {@link Long}s). */
+  private final boolean intKeys;
+
+  /** Whether this map iterates in the reverse of the natural order of the keys. */
+  private final boolean descending;
+
+  private PrimitiveKeySortedMapView(
+      PersistentLongSortedMap<V> pDelegate, boolean pIntKeys, boolean pDescending) {
+    delegate = checkNotNull(pDelegate);
+    intKeys = pIntKeys;
+    descending = pDescending;
+  }
+
+  static <V extends @Nullable Object> PrimitiveKeySortedMapView<Long, V> ofLongKeys(
+      PersistentLongSortedMap<V> map) {
+    return new PrimitiveKeySortedMapView<>(map, false, false);
+  }
+
+  static <V extends @Nullable Object> PrimitiveKeySortedMapView<Integer, V> ofIntKeys(
+      PersistentLongSortedMap<V> map) {
+    return new PrimitiveKeySortedMapView<>(map, true, false);
+  }
+
+  boolean hasIntKeys() {
+    return intKeys;
+  }
+
+  /** Return the backing map, which contains the mappings of this map without any key range. */
+  PersistentLongSortedMap<V> getDelegate() {
+    return delegate;
+  }
+
+  @SuppressWarnings("ReferenceEquality") // cannot use equals() for check whether map is the same
+  private PrimitiveKeySortedMapView<K, V> mapFromDelegate(PersistentLongSortedMap<V> newDelegate) {
+    if (newDelegate == delegate) {
+      return this;
+    }
+    return new PrimitiveKeySortedMapView<>(newDelegate, intKeys, descending);
+  }
+
+  @SuppressWarnings("unchecked") // K is Integer or Long according to intKeys
+  private K box(long key) {
+    return (K) (intKeys ? (Object) Integer.valueOf((int) key) : (Object) Long.valueOf(key));
+  }
+
+  /**
+   * Return the primitive key for a key of type K.
+   *
+   * @throws ClassCastException if the key has a different type
+   */
+  private long unbox(Object key) {
+    checkNotNull(key);
+    return intKeys ? (Integer) key : (Long) key;
+  }
+
+  private @Nullable Entry<K, V> toEntry(@Nullable Node<V> node) {
+    return node == null ? null : Maps.immutableEntry(box(node.getLongKey()), node.getValue());
+  }
+
+  private static <K> @Nullable K keyOrNull(@Nullable Entry<K, ?> entry) {
+    return entry == null ? null : entry.getKey();
+  }
+
+  private static <K> K keyOrNoSuchElement(@Nullable Entry<K, ?> entry) {
+    if (entry == null) {
+      throw new NoSuchElementException();
+    }
+    return entry.getKey();
+  }
+
+  // modifying methods
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> putAndCopy(K key, V value) {
+    return mapFromDelegate(delegate.putAndCopy(unbox(key), value));
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> removeAndCopy(Object key) {
+    return mapFromDelegate(delegate.removeAndCopy(unbox(key)));
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> empty() {
+    return mapFromDelegate(PersistentLongSortedMap.of());
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> subMapAndCopy(
+      K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    return subMap(fromKey, fromInclusive, toKey, toInclusive);
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> headMapAndCopy(K toKey, boolean inclusive) {
+    return headMap(toKey, inclusive);
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> tailMapAndCopy(K fromKey, boolean inclusive) {
+    return tailMap(fromKey, inclusive);
+  }
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Deprecated
+  @Override
+  @DoNotCall
+  public Entry<K, V> pollFirstEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @throws UnsupportedOperationException Always.
+   * @deprecated Unsupported operation.
+   */
+  @Deprecated
+  @Override
+  @DoNotCall
+  public Entry<K, V> pollLastEntry() {
+    throw new UnsupportedOperationException();
+  }
+
+  // read operations
+
+  @Override
+  public boolean equals(@Nullable Object pObj) {
+    if (pObj instanceof PrimitiveKeySortedMapView<?, ?> other
+        && intKeys == other.intKeys
+        && delegate.equals(other.delegate)) {
+      return true;
+    }
+    return Collections3.sortedMapEquals(this, pObj);
+  }
+
+  @Override
+  public int hashCode() {
+    return entrySet().hashCode();
+  }
+
+  @Override
+  public @Nullable Entry<K, V> getEntry(Object pKey) {
+    long key = unbox(pKey);
+    LongEntry<V> entry = delegate.getEntry(key);
+    return entry == null ? null : Maps.immutableEntry(box(key), entry.getValue());
+  }
+
+  @Override
+  public boolean containsKey(Object pKey) {
+    return delegate.containsKey(unbox(pKey));
+  }
+
+  @Override
+  public @Nullable V get(Object pKey) {
+    return delegate.get(unbox(pKey));
+  }
+
+  @Override
+  public V getOrDefault(Object pKey, V pDefaultValue) {
+    return delegate.getOrDefault(unbox(pKey), pDefaultValue);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return delegate.isEmpty();
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  @Override
+  public @Nullable Entry<K, V> firstEntry() {
+    return toEntry(delegate.findExtremeNode(!descending));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lastEntry() {
+    return toEntry(delegate.findExtremeNode(descending));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> ceilingEntry(K pKey) {
+    return toEntry(delegate.findNode(unbox(pKey), !descending, true));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> floorEntry(K pKey) {
+    return toEntry(delegate.findNode(unbox(pKey), descending, true));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> higherEntry(K pKey) {
+    return toEntry(delegate.findNode(unbox(pKey), !descending, false));
+  }
+
+  @Override
+  public @Nullable Entry<K, V> lowerEntry(K pKey) {
+    return toEntry(delegate.findNode(unbox(pKey), descending, false));
+  }
+
+  @Override
+  public K firstKey() {
+    return keyOrNoSuchElement(firstEntry());
+  }
+
+  @Override
+  public K lastKey() {
+    return keyOrNoSuchElement(lastEntry());
+  }
+
+  @Override
+  public @Nullable K ceilingKey(K pKey) {
+    return keyOrNull(ceilingEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K floorKey(K pKey) {
+    return keyOrNull(floorEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K higherKey(K pKey) {
+    return keyOrNull(higherEntry(pKey));
+  }
+
+  @Override
+  public @Nullable K lowerKey(K pKey) {
+    return keyOrNull(lowerEntry(pKey));
+  }
+
+  @Override
+  public @Nullable Comparator<? super K> comparator() {
+    return descending ? Collections.reverseOrder() : null;
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> entryIterator() {
+    return Iterators.transform(delegate.nodeIterator(!descending), this::toEntry);
+  }
+
+  @Override
+  public Iterator<Entry<K, V>> descendingEntryIterator() {
+    return Iterators.transform(delegate.nodeIterator(descending), this::toEntry);
+  }
+
+  @Override
+  public NavigableSet<Entry<K, V>> entrySet() {
+    return new SortedMapEntrySet<>(this);
+  }
+
+  @Override
+  public NavigableSet<K> keySet() {
+    return navigableKeySet();
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return new SortedMapKeySet<>(this);
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return descendingMap().navigableKeySet();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map shares the tree of this map and is created in O(1) time.
+   */
+  @Override
+  public PrimitiveKeySortedMapView<K, V> descendingMap() {
+    return new PrimitiveKeySortedMapView<>(delegate, intKeys, !descending);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PrimitiveKeySortedMapView<K, V> subMap(
+      K pFromKey, boolean pFromInclusive, K pToKey, boolean pToInclusive) {
+    long fromKey = unbox(pFromKey);
+    long toKey = unbox(pToKey);
+    if (descending) {
+      checkArgument(fromKey >= toKey, "fromKey < toKey in descending map");
+      return mapFromDelegate(
+          delegate.headMapAndCopy(fromKey, pFromInclusive).tailMapAndCopy(toKey, pToInclusive));
+    } else {
+      checkArgument(fromKey <= toKey, "fromKey > toKey");
+      return mapFromDelegate(
+          delegate.headMapAndCopy(toKey, pToInclusive).tailMapAndCopy(fromKey, pFromInclusive));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PrimitiveKeySortedMapView<K, V> headMap(K pToKey, boolean pInclusive) {
+    long toKey = unbox(pToKey);
+    return mapFromDelegate(
+        descending
+            ? delegate.tailMapAndCopy(toKey, pInclusive)
+            : delegate.headMapAndCopy(toKey, pInclusive));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned map is not a view but an independent instance (which is indistinguishable
+   * because both maps are immutable). It is created in O(log n) time.
+   */
+  @Override
+  public PrimitiveKeySortedMapView<K, V> tailMap(K pFromKey, boolean pInclusive) {
+    long fromKey = unbox(pFromKey);
+    return mapFromDelegate(
+        descending
+            ? delegate.headMapAndCopy(fromKey, pInclusive)
+            : delegate.tailMapAndCopy(fromKey, pInclusive));
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> subMap(K pFromKey, K pToKey) {
+    return subMap(pFromKey, /* pFromInclusive= */ true, pToKey, /* pToInclusive= */ false);
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> headMap(K pToKey) {
+    return headMap(pToKey, /* pInclusive= */ false);
+  }
+
+  @Override
+  public PrimitiveKeySortedMapView<K, V> tailMap(K pFromKey) {
+    return tailMap(pFromKey, /* pInclusive= */ true);
+  }
+}
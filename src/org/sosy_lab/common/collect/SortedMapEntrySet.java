@@ -21,6 +21,8 @@ import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -129,6 +131,17 @@ final class SortedMapEntrySet<K, V extends @Nullable Object> extends AbstractSet
     return map.entryIterator();
   }
 
+  @Override
+  public Spliterator<Entry<K, V>> spliterator() {
+    return map.entrySpliterator();
+  }
+
+  @Override
+  public void forEach(Consumer<? super Entry<K, V>> pAction) {
+    checkNotNull(pAction);
+    map.forEachEntry(pAction);
+  }
+
   @Override
   public Iterator<Entry<K, V>> descendingIterator() {
     return map.descendingMap().entryIterator();
@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.function.Consumer;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -47,6 +48,12 @@ final class SortedMapKeySet<K> extends AbstractSet<K> implements NavigableSet<K>
     return Iterators.transform(map.entryIterator(), Map.Entry::getKey);
   }
 
+  @Override
+  public void forEach(Consumer<? super K> pAction) {
+    checkNotNull(pAction);
+    map.forEachEntry(entry -> pAction.accept(entry.getKey()));
+  }
+
   @Override
   public boolean equals(@Nullable Object pO) {
     return Collections3.sortedSetEquals(this, pO);
@@ -0,0 +1,881 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ForwardingCollection;
+import com.google.common.collect.ForwardingNavigableMap;
+import com.google.common.collect.ForwardingNavigableSet;
+import com.google.common.collect.ImmutableList;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A copy-on-write map like {@link CopyOnWriteSortedMap} that scales to many concurrent writers. The
+ * key range of the map is partitioned into stripes, and each stripe is a separate {@link
+ * PersistentSortedMap} that is replaced atomically on modifications. Thus writers that modify keys
+ * in different stripes do not interfere with each other, whereas all writers of a {@link
+ * CopyOnWriteSortedMap} compete for a single reference.
+ *
+ * <p>Stripes are split automatically if they become large compared to the whole map, and
+ * neighboring stripes are joined if there would be too many of them. The partitioning is based
+ * only on the number of entries, not on the access pattern, so writers that modify neighboring keys
+ * will usually still contend with each other.
+ *
+ * <p>{@link #getSnapshot()} returns an immutable snapshot of the current state of the map. If the
+ * map was not modified since the last snapshot, this needs constant time. Otherwise, all stripes
+ * are frozen such that the snapshot is consistent, and joined to a single map, which needs time
+ * linear in the number of stripes and logarithmic in the size of the map (the number of stripes is
+ * bounded by a constant). Concurrent writers help to finish taking the snapshot instead of waiting,
+ * so this implementation is lock free like {@link CopyOnWriteSortedMap}.
+ *
+ * <p>The methods {@link #get(Object)}, {@link #containsKey(Object)}, and all modifying methods for
+ * single keys (like {@link #put(Object, Object)}, {@link #remove(Object)}, and {@link #compute})
+ * access only the stripe of the given key. Modifications that affect several stripes ({@link
+ * #putAll(Map)} for keys in several stripes, {@link #pollFirstEntry()}, {@link #pollLastEntry()},
+ * {@link #clear()}, and {@link #updateAll(Function)}) are atomic, but they freeze the whole map
+ * like a snapshot and are thus more expensive. All other methods, including the collection views,
+ * operate on a snapshot of the map. They are cheap if the map is read more often than written, but
+ * a thread that mixes many modifications with, e.g., calls to {@link #size()}, should use {@link
+ * CopyOnWriteSortedMap} instead.
+ *
+ * <p>Like for {@link CopyOnWriteSortedMap}, all collection views returned by methods of this map
+ * are live views that do not support modifying operations, and their iterators iterate over an
+ * immutable snapshot of the map taken at iterator creation time.
+ *
+ * @param <K> The type of keys.
+ * @param <V> The type of values.
+ */
+public final class StripedCopyOnWriteSortedMap<
+        K extends Comparable<? super K>, V extends @Nullable Object>
+    extends ForwardingNavigableMap<K, V> {
+
+  /** Maximal number of stripes, this limits the cost of taking snapshots. */
+  private static final int DEFAULT_MAX_STRIPES = 64;
+
+  /** Stripes are never split if they are smaller than this. */
+  private static final int DEFAULT_MIN_SPLIT_SIZE = 128;
+
+  /** Maximal exponent for the number of spins of the exponential backoff. */
+  private static final int MAX_BACKOFF_SHIFT = 10;
+
+  /**
+   * Marks a stripe that must not be modified anymore because its layout is currently being
+   * replaced, e.g., for taking a snapshot.
+   */
+  private static final class Frozen<K, V extends @Nullable Object> {
+    private final PersistentSortedMap<K, V> map;
+
+    private Frozen(PersistentSortedMap<K, V> pMap) {
+      map = pMap;
+    }
+  }
+
+  /**
+   * The replacement of a layout by a new one. It is started by setting {@link Layout#transition},
+   * then all stripes of the old layout are frozen, and finally the new layout is computed from the
+   * frozen stripes and published. Every thread that encounters a frozen stripe helps to finish the
+   * transition, and the first computed result is used by all of them.
+   */
+  private static final class Transition<
+      K extends Comparable<? super K>, V extends @Nullable Object> {
+
+    /** The function that computes the new content of the map, or null for no change. */
+    private final @Nullable Function<
+            ? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>>
+        function;
+
+    private final AtomicReference<@Nullable Outcome<K, V>> outcome = new AtomicReference<>();
+
+    private Transition(
+        @Nullable Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>>
+            pFunction) {
+      function = pFunction;
+    }
+  }
+
+  /** The result of a {@link Transition}. */
+  private static final class Outcome<
+      K extends Comparable<? super K>, V extends @Nullable Object> {
+
+    /** The content of the map before the transition. */
+    private final PersistentSortedMap<K, V> previous;
+
+    /** The content of the map after the transition. */
+    private final PersistentSortedMap<K, V> content;
+
+    private final Layout<K, V> next;
+
+    /**
+     * The exception thrown by the function of the transition, in which case the content is
+     * unchanged. Only the thread that started the transition rethrows it.
+     */
+    private final @Nullable RuntimeException failure;
+
+    private Outcome(
+        PersistentSortedMap<K, V> pPrevious,
+        PersistentSortedMap<K, V> pContent,
+        Layout<K, V> pNext,
+        @Nullable RuntimeException pFailure) {
+      previous = pPrevious;
+      content = pContent;
+      next = pNext;
+      failure = pFailure;
+    }
+  }
+
+  /**
+   * A partitioning of the map into stripes. The stripes are modified in place, but the partitioning
+   * itself is fixed: it is changed by creating a new layout with a {@link Transition}.
+   */
+  private static final class Layout<K extends Comparable<? super K>, V extends @Nullable Object> {
+
+    /** The (inclusive) lower bounds of all stripes except the first one, in ascending order. */
+    private final ImmutableList<K> bounds;
+
+    /** Each element is either a {@link PersistentSortedMap} or {@link Frozen}. */
+    private final AtomicReferenceArray<Object> stripes;
+
+    /** A stripe that becomes larger than this triggers a new partitioning. */
+    private final int splitThreshold;
+
+    /**
+     * The content of the whole map when this layout was created, or null if a stripe was modified
+     * since then. This allows to take repeated snapshots of an unmodified map in constant time. It
+     * is set to null before a stripe is modified such that there is no time in which a modification
+     * is visible but this field is still set.
+     */
+    private volatile @Nullable PersistentSortedMap<K, V> unmodifiedContent;
+
+    private final AtomicReference<@Nullable Transition<K, V>> transition =
+        new AtomicReference<>();
+
+    private Layout(
+        ImmutableList<K> pBounds,
+        List<PersistentSortedMap<K, V>> pStripes,
+        int pSplitThreshold,
+        PersistentSortedMap<K, V> pContent) {
+      bounds = pBounds;
+      stripes = new AtomicReferenceArray<>(pStripes.toArray());
+      splitThreshold = pSplitThreshold;
+      unmodifiedContent = pContent;
+    }
+
+    private int stripeIndex(Object pKey) {
+      if (bounds.isEmpty()) {
+        return 0; // avoid comparing keys
+      }
+      @SuppressWarnings("unchecked")
+      K key = (K) pKey;
+      int pos = Collections.binarySearch(bounds, key);
+      return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+  }
+
+  private final int maxStripes;
+  private final int minSplitSize;
+
+  private final AtomicReference<Layout<K, V>> layout;
+
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder contendedUpdates = new LongAdder();
+
+  private StripedCopyOnWriteSortedMap(
+      PersistentSortedMap<K, V> pMap, int pMaxStripes, int pMinSplitSize) {
+    checkArgument(pMaxStripes > 0);
+    checkArgument(pMinSplitSize > 0);
+    maxStripes = pMaxStripes;
+    minSplitSize = pMinSplitSize;
+    layout =
+        new AtomicReference<>(
+            createLayout(
+                checkNotNull(pMap), pMap.size(), ImmutableList.of(), ImmutableList.of(pMap)));
+  }
+
+  /**
+   * Create a new map instance with an initial content of the given map. To create an empty
+   * instance, get an empty instance of your favorite {@link PersistentSortedMap} implementation and
+   * pass it to this method. The stripes will be instances of the same implementation, so it should
+   * support efficient {@link PersistentSortedMap#headMapAndCopy(Object, boolean)}, {@link
+   * PersistentSortedMap#tailMapAndCopy(Object, boolean)}, and {@link
+   * PersistentSortedMap#unionAndCopy} like {@link PathCopyingPersistentTreeMap}.
+   */
+  public static <K extends Comparable<? super K>, V>
+      StripedCopyOnWriteSortedMap<K, V> copyOf(PersistentSortedMap<K, V> pMap) {
+    return new StripedCopyOnWriteSortedMap<>(pMap, DEFAULT_MAX_STRIPES, DEFAULT_MIN_SPLIT_SIZE);
+  }
+
+  /**
+   * Create a new map instance containing all entries of the given map. The snapshot of the given
+   * map is created atomically. Changes to the new map don't reflect in the given map and
+   * vice-versa.
+   */
+  public static <K extends Comparable<? super K>, V>
+      StripedCopyOnWriteSortedMap<K, V> copyOf(StripedCopyOnWriteSortedMap<K, V> pMap) {
+    return new StripedCopyOnWriteSortedMap<>(
+        pMap.getSnapshot(), pMap.maxStripes, pMap.minSplitSize);
+  }
+
+  /** Create a new map instance with the given parameters for the partitioning into stripes. */
+  @VisibleForTesting
+  static <K extends Comparable<? super K>, V> StripedCopyOnWriteSortedMap<K, V> copyOf(
+      PersistentSortedMap<K, V> pMap, int pMaxStripes, int pMinSplitSize) {
+    return new StripedCopyOnWriteSortedMap<>(pMap, pMaxStripes, pMinSplitSize);
+  }
+
+  @Override
+  protected NavigableMap<K, V> delegate() {
+    return getSnapshot();
+  }
+
+  /** Return a immutable snapshot of the current state of the map. */
+  public PersistentSortedMap<K, V> getSnapshot() {
+    Layout<K, V> current = layout.get();
+    PersistentSortedMap<K, V> content = current.unmodifiedContent;
+    if (content != null) {
+      return content;
+    }
+    return transition(current, null).content;
+  }
+
+  @VisibleForTesting
+  int getStripeCount() {
+    return layout.get().stripes.length();
+  }
+
+  /**
+   * Return how often an update of this map failed because of a concurrent modification and was
+   * retried. Together with {@link #getContendedUpdateCount()}, this shows whether the map is a
+   * contention hotspot.
+   */
+  public long getRetryCount() {
+    return retries.sum();
+  }
+
+  /** Return how many updates of this map needed at least one retry. */
+  public long getContendedUpdateCount() {
+    return contendedUpdates.sum();
+  }
+
+  // Stripes and layouts
+
+  @SuppressWarnings("unchecked")
+  private static <K, V extends @Nullable Object> PersistentSortedMap<K, V> stripeContent(
+      Object pStripe) {
+    return pStripe instanceof Frozen<?, ?> frozen
+        ? (PersistentSortedMap<K, V>) frozen.map
+        : (PersistentSortedMap<K, V>) pStripe;
+  }
+
+  /**
+   * Return the current content of the stripe for the given key. The result may be out of date as
+   * soon as it is returned, but it is guaranteed that it was current at some point in time.
+   */
+  private PersistentSortedMap<K, V> currentStripe(Object pKey) {
+    @Var Layout<K, V> current = layout.get();
+    while (true) {
+      Object stripe = current.stripes.get(current.stripeIndex(pKey));
+      if (!(stripe instanceof Frozen<?, ?>)) {
+        return stripeContent(stripe);
+      }
+      @Nullable Outcome<K, V> outcome = checkNotNull(current.transition.get()).outcome.get();
+      if (outcome == null) {
+        // The new layout is not yet published, so there were no modifications after freezing.
+        return stripeContent(stripe);
+      }
+      current = outcome.next;
+    }
+  }
+
+  /**
+   * Create a layout for the given content of the given size. The content is given as a list of maps
+   * for the partitioning defined by the given bounds, which is then adjusted such that no stripe
+   * exceeds the split threshold and there are at most {@link #maxStripes} stripes.
+   */
+  private Layout<K, V> createLayout(
+      PersistentSortedMap<K, V> content,
+      int size,
+      List<K> bounds,
+      List<? extends PersistentSortedMap<K, V>> stripes) {
+    int splitThreshold = (int) Math.max(minSplitSize, 2L * size / maxStripes);
+    int pieceSize = Math.max(1, splitThreshold / 2);
+
+    List<K> newBounds = new ArrayList<>(bounds.size());
+    List<PersistentSortedMap<K, V>> newStripes = new ArrayList<>(stripes.size());
+    for (int i = 0; i < stripes.size(); i++) {
+      if (i > 0) {
+        newBounds.add(bounds.get(i - 1));
+      }
+      PersistentSortedMap<K, V> stripe = stripes.get(i);
+      if (stripe.size() <= splitThreshold) {
+        newStripes.add(stripe);
+        continue;
+      }
+      @Var PersistentSortedMap<K, V> rest = stripe;
+      @Var int pos = 0;
+      for (K key : stripe.keySet()) {
+        if (pos > 0 && pos % pieceSize == 0) {
+          newStripes.add(rest.headMapAndCopy(key, false));
+          rest = rest.tailMapAndCopy(key, true);
+          newBounds.add(key);
+        }
+        pos++;
+      }
+      newStripes.add(rest);
+    }
+
+    // Join neighbors with the smallest combined size, which usually does not exceed the threshold.
+    while (newStripes.size() > maxStripes) {
+      @Var int best = 0;
+      for (int i = 1; i < newStripes.size() - 1; i++) {
+        if (newStripes.get(i).size() + newStripes.get(i + 1).size()
+            < newStripes.get(best).size() + newStripes.get(best + 1).size()) {
+          best = i;
+        }
+      }
+      newStripes.set(best, join(newStripes.subList(best, best + 2)));
+      newStripes.remove(best + 1);
+      newBounds.remove(best);
+    }
+
+    return new Layout<>(ImmutableList.copyOf(newBounds), newStripes, splitThreshold, content);
+  }
+
+  /** Split the given map into one map for each stripe defined by the given bounds. */
+  private static <K, V extends @Nullable Object> List<PersistentSortedMap<K, V>> split(
+      PersistentSortedMap<K, V> map, List<K> bounds) {
+    List<PersistentSortedMap<K, V>> result = new ArrayList<>(bounds.size() + 1);
+    @Var PersistentSortedMap<K, V> rest = map;
+    for (K bound : bounds) {
+      result.add(rest.headMapAndCopy(bound, false));
+      rest = rest.tailMapAndCopy(bound, true);
+    }
+    result.add(rest);
+    return result;
+  }
+
+  /**
+   * Return the total size of the given maps. This is cheap for stripes because map implementations
+   * like {@link PathCopyingPersistentTreeMap} keep track of their size when they are modified,
+   * whereas the result of {@link #join} may need to count its entries.
+   */
+  private static int totalSize(List<? extends PersistentSortedMap<?, ?>> maps) {
+    @Var int result = 0;
+    for (PersistentSortedMap<?, ?> map : maps) {
+      result += map.size();
+    }
+    return result;
+  }
+
+  /** Join the given non-empty list of maps with ascending disjoint key ranges into one map. */
+  private static <K, V extends @Nullable Object> PersistentSortedMap<K, V> join(
+      List<PersistentSortedMap<K, V>> maps) {
+    if (maps.size() == 1) {
+      return maps.get(0);
+    }
+    int mid = maps.size() / 2;
+    PersistentSortedMap<K, V> left = join(maps.subList(0, mid));
+    PersistentSortedMap<K, V> right = join(maps.subList(mid, maps.size()));
+    // There are no conflicts because the key ranges are disjoint.
+    return totalSize(maps.subList(0, mid)) >= totalSize(maps.subList(mid, maps.size()))
+        ? left.unionAndCopy(right, PersistentSortedMaps.getExceptionMergeConflictHandler())
+        : right.unionAndCopy(left, PersistentSortedMaps.getExceptionMergeConflictHandler());
+  }
+
+  /**
+   * Replace the given layout by a new one, with the content of the map changed by the given
+   * function (if not null). If another transition of the given layout was already started, this
+   * finishes that one instead, and the given function is not applied.
+   */
+  private Outcome<K, V> transition(
+      Layout<K, V> current,
+      @Nullable Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>>
+          pFunction) {
+    current.transition.compareAndSet(null, new Transition<>(pFunction));
+    return finishTransition(current);
+  }
+
+  /** Finish the already started transition of the given layout and publish the new layout. */
+  private Outcome<K, V> finishTransition(Layout<K, V> current) {
+    Transition<K, V> transition = checkNotNull(current.transition.get());
+    @Var Outcome<K, V> outcome = transition.outcome.get();
+    if (outcome == null) {
+      List<PersistentSortedMap<K, V>> stripes = new ArrayList<>(current.stripes.length());
+      for (int i = 0; i < current.stripes.length(); i++) {
+        stripes.add(freeze(current.stripes, i));
+      }
+      PersistentSortedMap<K, V> content = join(stripes);
+
+      var function = transition.function;
+      @Var PersistentSortedMap<K, V> newContent = content;
+      @Var @Nullable RuntimeException failure = null;
+      if (function != null) {
+        try {
+          newContent = checkNotNull(function.apply(content));
+        } catch (RuntimeException e) {
+          // The stripes are frozen already, so we need to publish an outcome with the old content
+          // to make the map usable again.
+          failure = e;
+        }
+      }
+      Layout<K, V> next =
+          newContent == content
+              ? createLayout(content, totalSize(stripes), current.bounds, stripes)
+              : createLayout(
+                  newContent, newContent.size(), current.bounds, split(newContent, current.bounds));
+      // If another thread was faster, its result is used.
+      transition.outcome.compareAndSet(null, new Outcome<>(content, newContent, next, failure));
+      outcome = checkNotNull(transition.outcome.get());
+    }
+    layout.compareAndSet(current, outcome.next);
+    return outcome;
+  }
+
+  private static <K, V extends @Nullable Object> PersistentSortedMap<K, V> freeze(
+      AtomicReferenceArray<Object> stripes, int index) {
+    while (true) {
+      Object stripe = stripes.get(index);
+      if (stripe instanceof Frozen<?, ?>
+          || stripes.compareAndSet(index, stripe, new Frozen<>(stripeContent(stripe)))) {
+        return stripeContent(stripe);
+      }
+    }
+  }
+
+  /**
+   * Atomically replace the stripe of the given key with the result of applying the given function
+   * to it, and return a result computed from the previous and the new stripe. The function must
+   * modify only the given key. If the stripe was modified concurrently, the function is applied
+   * again to the new current stripe after an exponential backoff. If the function returns the given
+   * map, the stripe is not modified.
+   */
+  private <R> R updateStripe(
+      Object pKey,
+      Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>> pFunction,
+      BiFunction<? super PersistentSortedMap<K, V>, ? super PersistentSortedMap<K, V>, R>
+          pResult) {
+    @Var int failures = 0;
+    while (true) {
+      Layout<K, V> current = layout.get();
+      int index = current.stripeIndex(pKey);
+      Object stripe = current.stripes.get(index);
+      if (stripe instanceof Frozen<?, ?>) {
+        finishTransition(current);
+        continue;
+      }
+      PersistentSortedMap<K, V> oldStripe = stripeContent(stripe);
+      PersistentSortedMap<K, V> newStripe = checkNotNull(pFunction.apply(oldStripe));
+      if (newStripe != oldStripe) {
+        if (current.unmodifiedContent != null) {
+          current.unmodifiedContent = null;
+        }
+        if (!current.stripes.compareAndSet(index, stripe, newStripe)) {
+          failures++;
+          retries.increment();
+          backoff(failures);
+          continue;
+        }
+        if (newStripe.size() > current.splitThreshold) {
+          transition(current, null);
+        }
+      }
+      if (failures > 0) {
+        contendedUpdates.increment();
+      }
+      return pResult.apply(oldStripe, newStripe);
+    }
+  }
+
+  /**
+   * Atomically replace the whole map with the result of applying the given function to it, and
+   * return a result computed from the previous and the new map. This works like {@link
+   * #updateStripe}, but freezes all stripes.
+   */
+  private <R> R updateAll(
+      Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>> pFunction,
+      BiFunction<? super PersistentSortedMap<K, V>, ? super PersistentSortedMap<K, V>, R>
+          pResult) {
+    @Var int failures = 0;
+    while (true) {
+      Layout<K, V> current = layout.get();
+      Transition<K, V> transition = new Transition<>(pFunction);
+      if (!current.transition.compareAndSet(null, transition)) {
+        finishTransition(current);
+        failures++;
+        retries.increment();
+        backoff(failures);
+        continue;
+      }
+      Outcome<K, V> outcome = finishTransition(current);
+      if (failures > 0) {
+        contendedUpdates.increment();
+      }
+      if (outcome.failure != null) {
+        throw outcome.failure;
+      }
+      return pResult.apply(outcome.previous, outcome.content);
+    }
+  }
+
+  /**
+   * Wait for a random time that grows exponentially with the number of failed attempts, such that
+   * contending threads are unlikely to collide again.
+   */
+  private static void backoff(int failures) {
+    int spins = ThreadLocalRandom.current().nextInt(1 << Math.min(failures, MAX_BACKOFF_SHIFT));
+    for (int i = 0; i < spins; i++) {
+      Thread.onSpinWait();
+    }
+    if (failures > MAX_BACKOFF_SHIFT) {
+      Thread.yield();
+    }
+  }
+
+  // Map operations
+
+  @Override
+  public @Nullable V get(Object pKey) {
+    return currentStripe(pKey).get(pKey);
+  }
+
+  @Override
+  public boolean containsKey(Object pKey) {
+    return currentStripe(pKey).containsKey(pKey);
+  }
+
+  /**
+   * This method is not starvation free, and thus not strictly guaranteed to terminate in presence
+   * of concurrent modifying operations.
+   *
+   * @see Map#put(Object, Object)
+   */
+  @Override
+  @CanIgnoreReturnValue
+  public @Nullable V put(K pKey, V pValue) {
+    checkNotNull(pKey);
+    return updateStripe(
+        pKey, m -> m.putAndCopy(pKey, pValue), (oldStripe, newStripe) -> oldStripe.get(pKey));
+  }
+
+  /**
+   * This method is not starvation free, and thus not strictly guaranteed to terminate in presence
+   * of concurrent modifying operations.
+   *
+   * @see Map#remove(Object)
+   */
+  @Override
+  @CanIgnoreReturnValue
+  public @Nullable V remove(Object pKey) {
+    checkNotNull(pKey);
+    return updateStripe(
+        pKey,
+        m -> m.containsKey(pKey) ? m.removeAndCopy(pKey) : m,
+        (oldStripe, newStripe) -> oldStripe.get(pKey));
+  }
+
+  /**
+   * This method freezes the whole map and is not starvation free, and thus not strictly guaranteed
+   * to terminate in presence of concurrent modifying operations.
+   *
+   * @see NavigableMap#pollFirstEntry()
+   */
+  @Override
+  @CanIgnoreReturnValue
+  public @Nullable Entry<K, V> pollFirstEntry() {
+    return updateAll(
+        m -> {
+          Entry<K, V> firstEntry = m.firstEntry();
+          return firstEntry == null ? m : m.removeAndCopy(firstEntry.getKey());
+        },
+        (oldMap, newMap) -> oldMap.firstEntry());
+  }
+
+  /**
+   * This method freezes the whole map and is not starvation free, and thus not strictly guaranteed
+   * to terminate in presence of concurrent modifying operations.
+   *
+   * @see NavigableMap#pollLastEntry()
+   */
+  @Override
+  @CanIgnoreReturnValue
+  public @Nullable Entry<K, V> pollLastEntry() {
+    return updateAll(
+        m -> {
+          Entry<K, V> lastEntry = m.lastEntry();
+          return lastEntry == null ? m : m.removeAndCopy(lastEntry.getKey());
+        },
+        (oldMap, newMap) -> oldMap.lastEntry());
+  }
+
+  /**
+   * This method is atomic: it inserts all entries at once and other threads see either none or all
+   * of them. If the keys belong to several stripes, this freezes the whole map.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#putAll(Map)
+   */
+  @Override
+  public void putAll(Map<? extends K, ? extends V> pMap) {
+    checkNotNull(pMap);
+    if (pMap.isEmpty()) {
+      return;
+    }
+    K someKey = pMap.keySet().iterator().next();
+    Layout<K, V> current = layout.get();
+    int index = current.stripeIndex(someKey);
+    if (pMap.keySet().stream().allMatch(key -> current.stripeIndex(key) == index)) {
+      // All keys belong to the same stripe, but only as long as the layout is not replaced.
+      // Otherwise the stripe is left unchanged and we fall back to updating the whole map.
+      boolean done =
+          updateStripe(
+              someKey,
+              m -> layout.get() == current ? m.putAllAndCopy(pMap) : m,
+              (oldStripe, newStripe) -> newStripe != oldStripe);
+      if (done) {
+        return;
+      }
+    }
+    updateAll(m -> m.putAllAndCopy(pMap), (oldMap, newMap) -> null);
+  }
+
+  /**
+   * Atomically replace the content of this map with the result of the given function, which is
+   * applied to a snapshot of the current content. The function may be applied several times if
+   * the map is modified concurrently, so it should be free of side effects and fast. This method
+   * freezes the whole map. If the function throws an exception, the map is not modified and the
+   * exception is rethrown.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @return The new content of the map.
+   */
+  @CanIgnoreReturnValue
+  public PersistentSortedMap<K, V> updateAll(
+      Function<? super PersistentSortedMap<K, V>, ? extends PersistentSortedMap<K, V>> pFunction) {
+    checkNotNull(pFunction);
+    return updateAll(pFunction, (oldMap, newMap) -> newMap);
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#compute(Object, BiFunction)
+   */
+  @Override
+  public @Nullable V compute(
+      K pKey, BiFunction<? super K, ? super @Nullable V, ? extends V> pRemappingFunction) {
+    checkNotNull(pKey);
+    checkNotNull(pRemappingFunction);
+    return updateStripe(
+        pKey,
+        m -> {
+          V oldValue = m.get(pKey);
+          V newValue = pRemappingFunction.apply(pKey, oldValue);
+          if (newValue != null) {
+            return m.putAndCopy(pKey, newValue);
+          } else if (oldValue != null || m.containsKey(pKey)) {
+            return m.removeAndCopy(pKey);
+          } else {
+            return m;
+          }
+        },
+        (oldStripe, newStripe) -> newStripe.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#computeIfAbsent(Object, Function)
+   */
+  @Override
+  public V computeIfAbsent(K pKey, Function<? super K, ? extends V> pMappingFunction) {
+    checkNotNull(pKey);
+    checkNotNull(pMappingFunction);
+    return updateStripe(
+        pKey,
+        m -> {
+          if (m.get(pKey) != null) {
+            return m;
+          }
+          V newValue = pMappingFunction.apply(pKey);
+          return newValue == null ? m : m.putAndCopy(pKey, newValue);
+        },
+        (oldStripe, newStripe) -> newStripe.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#computeIfPresent(Object, BiFunction)
+   */
+  @Override
+  public @Nullable V computeIfPresent(
+      K pKey, BiFunction<? super K, ? super V, ? extends @Nullable V> pRemappingFunction) {
+    checkNotNull(pKey);
+    checkNotNull(pRemappingFunction);
+    return updateStripe(
+        pKey,
+        m -> {
+          V oldValue = m.get(pKey);
+          if (oldValue == null) {
+            return m;
+          }
+          V newValue = pRemappingFunction.apply(pKey, oldValue);
+          return newValue == null ? m.removeAndCopy(pKey) : m.putAndCopy(pKey, newValue);
+        },
+        (oldStripe, newStripe) -> newStripe.get(pKey));
+  }
+
+  /**
+   * This method is atomic, but the function may be applied several times if the map is modified
+   * concurrently, so it should be free of side effects and fast.
+   *
+   * <p>This method is not starvation free, and thus not strictly guaranteed to terminate in
+   * presence of concurrent modifying operations.
+   *
+   * @see Map#merge(Object, Object, BiFunction)
+   */
+  @Override
+  public @Nullable V merge(
+      K pKey,
+      V pValue,
+      BiFunction<? super V, ? super V, ? extends @Nullable V> pRemappingFunction) {
+    checkNotNull(pKey);
+    checkNotNull(pValue);
+    checkNotNull(pRemappingFunction);
+    return updateStripe(
+        pKey,
+        m -> {
+          V oldValue = m.get(pKey);
+          V newValue = oldValue == null ? pValue : pRemappingFunction.apply(oldValue, pValue);
+          return newValue == null ? m.removeAndCopy(pKey) : m.putAndCopy(pKey, newValue);
+        },
+        (oldStripe, newStripe) -> newStripe.get(pKey));
+  }
+
+  /** See {@link Map#clear()}. This method freezes the whole map. */
+  @Override
+  public void clear() {
+    updateAll(PersistentSortedMap::empty, (oldMap, newMap) -> null);
+  }
+
+  // Override the collection view methods
+  // so that they return also live views and not immutable snapshots.
+
+  @Override
+  public NavigableSet<Map.Entry<K, V>> entrySet() {
+    return new ForwardingNavigableSet<>() {
+
+      @Override
+      protected NavigableSet<Map.Entry<K, V>> delegate() {
+        return getSnapshot().entrySet();
+      }
+
+      @Override
+      public Spliterator<Map.Entry<K, V>> spliterator() {
+        // not forwarded by ForwardingNavigableSet, but the snapshot has a splittable one
+        return delegate().spliterator();
+      }
+    };
+  }
+
+  @Override
+  public NavigableSet<K> keySet() {
+    return new ForwardingNavigableSet<>() {
+
+      @Override
+      protected NavigableSet<K> delegate() {
+        return getSnapshot().keySet();
+      }
+    };
+  }
+
+  @Override
+  public Collection<V> values() {
+    return new ForwardingCollection<>() {
+
+      @Override
+      protected Collection<V> delegate() {
+        return getSnapshot().values();
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("CheckReturnValue")
+  public NavigableMap<K, V> headMap(K pToKey) {
+    getSnapshot().headMap(pToKey); // for bounds check
+    return new ForwardingNavigableMap<>() {
+
+      @Override
+      protected NavigableMap<K, V> delegate() {
+        return getSnapshot().headMap(pToKey);
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("CheckReturnValue")
+  public NavigableMap<K, V> tailMap(K pFromKey) {
+    getSnapshot().tailMap(pFromKey); // for bounds check
+    return new ForwardingNavigableMap<>() {
+
+      @Override
+      protected NavigableMap<K, V> delegate() {
+        return getSnapshot().tailMap(pFromKey);
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("CheckReturnValue")
+  public NavigableMap<K, V> subMap(K pFromKey, K pToKey) {
+    getSnapshot().subMap(pFromKey, pToKey); // for bounds check
+    return new ForwardingNavigableMap<>() {
+
+      @Override
+      protected NavigableMap<K, V> delegate() {
+        return getSnapshot().subMap(pFromKey, pToKey);
+      }
+    };
+  }
+}
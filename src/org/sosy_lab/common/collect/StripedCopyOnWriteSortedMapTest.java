@@ -0,0 +1,307 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.testing.TestStringSortedMapGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.collect.testing.features.MapFeature;
+import com.google.common.collect.testing.testers.MapEntrySetTester;
+import com.google.common.collect.testing.testers.MapReplaceAllTester;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.TestSuite;
+import org.junit.Test;
+
+public class StripedCopyOnWriteSortedMapTest {
+
+  private static final int THREADS = 4;
+  private static final int UPDATES_PER_THREAD = 10_000;
+
+  /** Parameters for tests with many tiny stripes, such that all code paths are exercised. */
+  private static final int MAX_STRIPES = 4;
+
+  private static final int MIN_SPLIT_SIZE = 1;
+
+  private static TestStringSortedMapGenerator mapGenerator(int pMaxStripes, int pMinSplitSize) {
+    return new TestStringSortedMapGenerator() {
+
+      @Override
+      protected SortedMap<String, String> create(Map.Entry<String, String>[] pEntries) {
+        StripedCopyOnWriteSortedMap<String, String> result =
+            StripedCopyOnWriteSortedMap.copyOf(
+                PathCopyingPersistentTreeMap.<String, String>of(), pMaxStripes, pMinSplitSize);
+        Stream.of(pEntries).forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        return result;
+      }
+    };
+  }
+
+  private static junit.framework.Test createTestSuite(
+      String pName, TestStringSortedMapGenerator pGenerator) throws NoSuchMethodException {
+    // Our collection views are unmodifiable, so we need special TestSuiteBuilder
+    return new CopyOnWriteSortedMapTest.UnmodifiableViewSortedMapTestSuiteBuilder<String, String>()
+        .usingGenerator(pGenerator)
+        .named(pName)
+        .withFeatures(
+            MapFeature.GENERAL_PURPOSE,
+            MapFeature.ALLOWS_NULL_VALUES,
+            CollectionFeature.KNOWN_ORDER,
+            CollectionSize.ANY)
+
+        // We do not support Map.Entry.setValue()
+        .suppressing(MapEntrySetTester.class.getMethod("testSetValue"))
+        .suppressing(MapEntrySetTester.class.getMethod("testSetValueWithNullValuesPresent"))
+        .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllPreservesOrder"))
+        .suppressing(MapReplaceAllTester.class.getMethod("testReplaceAllRotate"))
+        .createTestSuite();
+  }
+
+  public static junit.framework.Test suite() throws NoSuchMethodException {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new JUnit4TestAdapter(StripedCopyOnWriteSortedMapTest.class));
+    suite.addTest(
+        createTestSuite(
+            "StripedCopyOnWriteSortedMap with single stripe",
+            mapGenerator(Integer.MAX_VALUE, Integer.MAX_VALUE)));
+    suite.addTest(
+        createTestSuite(
+            "StripedCopyOnWriteSortedMap with tiny stripes",
+            mapGenerator(MAX_STRIPES, MIN_SPLIT_SIZE)));
+    return suite;
+  }
+
+  private static StripedCopyOnWriteSortedMap<Integer, Integer> emptyMap() {
+    return StripedCopyOnWriteSortedMap.copyOf(
+        PathCopyingPersistentTreeMap.<Integer, Integer>of(), MAX_STRIPES, MIN_SPLIT_SIZE);
+  }
+
+  /** Run the given action concurrently in several threads and wait for all of them. */
+  private static void runConcurrently(IntFunction<Runnable> actionForThread) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures =
+          IntStream.range(0, THREADS)
+              .mapToObj(actionForThread)
+              .map(
+                  action ->
+                      executor.submit(
+                          () -> {
+                            start.await();
+                            action.run();
+                            return null;
+                          }))
+              .collect(toImmutableList());
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSplitsStripes() {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    for (int i = 0; i < 100; i++) {
+      map.put(i, i);
+      expected.put(i, i);
+    }
+
+    assertThat(map.getStripeCount()).isEqualTo(MAX_STRIPES);
+    assertThat(map).containsExactlyEntriesIn(expected).inOrder();
+    assertThat(map.getSnapshot()).containsExactlyEntriesIn(expected).inOrder();
+
+    map.headMap(50).keySet().forEach(map::remove);
+    expected.headMap(50).clear();
+    assertThat(map.getSnapshot()).containsExactlyEntriesIn(expected).inOrder();
+  }
+
+  @Test
+  public void testSnapshotOfUnmodifiedMap() {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    map.putAll(ImmutableMap.of(1, 1, 2, 2, 3, 3));
+
+    PersistentSortedMap<Integer, Integer> snapshot = map.getSnapshot();
+    assertThat(map.getSnapshot()).isSameInstanceAs(snapshot);
+    assertThat(map.get(2)).isEqualTo(2);
+    assertThat(map.getSnapshot()).isSameInstanceAs(snapshot);
+
+    map.put(2, 4);
+    assertThat(map.getSnapshot()).containsExactly(1, 1, 2, 4, 3, 3).inOrder();
+    assertThat(snapshot).containsExactly(1, 1, 2, 2, 3, 3).inOrder();
+  }
+
+  @Test
+  public void testSnapshotAfterWriteIsNotLinear() {
+    int size = 1 << 16;
+    TreeMap<CountingKey, Integer> content = new TreeMap<>();
+    for (int i = 0; i < size; i++) {
+      content.put(new CountingKey(2 * i), i);
+    }
+    StripedCopyOnWriteSortedMap<CountingKey, Integer> map =
+        StripedCopyOnWriteSortedMap.copyOf(PathCopyingPersistentTreeMap.copyOf(content));
+    // The first snapshot after creation splits the map into stripes.
+    map.put(new CountingKey(-1), 0);
+    assertThat(map.getSnapshot()).hasSize(size + 1);
+
+    Random rnd = new Random(0); // static seed for reproducibility
+    for (int i = 0; i < 100; i++) {
+      CountingKey.comparisons.set(0);
+      map.put(new CountingKey(2 * rnd.nextInt(size) + 1), i);
+      map.getSnapshot();
+      // Joining the stripes needs only a few comparisons per stripe, whereas merging them entry by
+      // entry would need at least one comparison per entry.
+      assertThat(CountingKey.comparisons.get()).isLessThan(2000);
+    }
+  }
+
+  @Test
+  public void testCopyIsIndependent() {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    map.putAll(ImmutableMap.of(1, 1, 2, 2, 3, 3));
+    StripedCopyOnWriteSortedMap<Integer, Integer> copy = StripedCopyOnWriteSortedMap.copyOf(map);
+
+    map.remove(1);
+    copy.put(4, 4);
+    assertThat(map).containsExactly(2, 2, 3, 3).inOrder();
+    assertThat(copy).containsExactly(1, 1, 2, 2, 3, 3, 4, 4).inOrder();
+  }
+
+  @Test
+  public void testDisjointWritersConcurrently() throws Exception {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    runConcurrently(
+        thread ->
+            () -> {
+              for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                map.merge(thread * 100 + (i % 100), 1, Integer::sum);
+              }
+            });
+
+    assertThat(map).hasSize(THREADS * 100);
+    assertThat(ImmutableSet.copyOf(map.values())).containsExactly(UPDATES_PER_THREAD / 100);
+    assertThat(map.getContendedUpdateCount()).isAtMost(map.getRetryCount());
+  }
+
+  @Test
+  public void testSnapshotsAreConsistent() throws Exception {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    for (int i = 0; i < 100; i++) {
+      map.put(i, 0);
+    }
+    runConcurrently(
+        thread ->
+            () -> {
+              for (int i = 0; i < UPDATES_PER_THREAD / 10; i++) {
+                if (thread == 0) {
+                  // Moves one unit between keys that are probably in different stripes.
+                  map.updateAll(m -> m.putAndCopy(0, m.get(0) + 1).putAndCopy(99, m.get(99) - 1));
+                } else {
+                  map.put(thread * 10 + i % 10, i);
+                  PersistentSortedMap<Integer, Integer> snapshot = map.getSnapshot();
+                  assertThat(snapshot.get(0) + snapshot.get(99)).isEqualTo(0);
+                  assertThat(snapshot).hasSize(100);
+                }
+              }
+            });
+
+    assertThat(map.get(0)).isEqualTo(UPDATES_PER_THREAD / 10);
+    assertThat(map.get(99)).isEqualTo(-UPDATES_PER_THREAD / 10);
+  }
+
+  @Test
+  public void testPutAllIsAtomic() throws Exception {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    for (int i = 0; i < 100; i++) {
+      map.put(i, 0);
+    }
+    runConcurrently(
+        thread ->
+            () -> {
+              for (int i = 0; i < UPDATES_PER_THREAD / 10; i++) {
+                map.putAll(ImmutableMap.of(0, i, 99, i));
+                PersistentSortedMap<Integer, Integer> snapshot = map.getSnapshot();
+                assertThat(snapshot.get(0)).isEqualTo(snapshot.get(99));
+              }
+            });
+
+    assertThat(map).hasSize(100);
+  }
+
+  @Test
+  public void testComputeRemovesOnNull() {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    map.put(1, 1);
+
+    assertThat(map.compute(1, (k, v) -> null)).isNull();
+    assertThat(map).isEmpty();
+    assertThat(map.computeIfAbsent(1, k -> null)).isNull();
+    assertThat(map).isEmpty();
+    assertThat(map.merge(1, 1, Integer::sum)).isEqualTo(1);
+    assertThat(map.merge(1, 1, (v1, v2) -> null)).isNull();
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testUpdateAllWithException() {
+    StripedCopyOnWriteSortedMap<Integer, Integer> map = emptyMap();
+    for (int i = 0; i < 10; i++) {
+      map.put(i, i);
+    }
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            map.updateAll(
+                m -> {
+                  throw new IllegalStateException();
+                }));
+
+    // The map is unchanged and still usable.
+    assertThat(map).hasSize(10);
+    map.put(5, 6);
+    assertThat(map.get(5)).isEqualTo(6);
+    map.updateAll(m -> m.removeAndCopy(0));
+    assertThat(map).hasSize(9);
+  }
+
+  private record CountingKey(int value) implements Comparable<CountingKey> {
+
+    private static final AtomicInteger comparisons = new AtomicInteger();
+
+    @Override
+    public int compareTo(CountingKey other) {
+      comparisons.incrementAndGet();
+      return Integer.compare(value, other.value);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+// This file is part of SoSy-Lab Common,
+// a library of useful utilities:
+// https://github.com/sosy-lab/java-common-lib
+//
+// SPDX-FileCopyrightText: 2007-2020 Dirk Beyer <https://www.sosy-lab.org>
+//
+// SPDX-License-Identifier: Apache-2.0
+
+package org.sosy_lab.common.collect;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Equivalence;
+import com.google.common.collect.Interners;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A thread-safe interner that references its canonical instances only weakly and compares instances
+ * according to a given {@link Equivalence}. This is similar to {@link Interners#newWeakInterner()},
+ * which supports only {@link Object#equals(Object)} as equivalence. The interner counts how often a
+ * canonical instance was already present ("hit") and how often a new one was added ("miss").
+ *
+ * @param <T> type of the interned instances
+ */
+final class WeakInterner<T> {
+
+  /** Key of the table, either an entry of the table or a temporary key for lookups. */
+  private interface Key<T> {
+    @Nullable T get();
+  }
+
+  private final class LookupKey implements Key<T> {
+    private final T instance;
+    private final int hash;
+
+    LookupKey(T pInstance, int pHash) {
+      instance = pInstance;
+      hash = pHash;
+    }
+
+    @Override
+    public T get() {
+      return instance;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object pObj) {
+      return keysEqual(this, hash, pObj);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final class WeakKey extends WeakReference<T> implements Key<T> {
+    private final int hash;
+
+    WeakKey(T pInstance, int pHash) {
+      super(pInstance, queue);
+      hash = pHash;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object pObj) {
+      return keysEqual(this, hash, pObj);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final Equivalence<? super T> equivalence;
+  private final ConcurrentMap<Key<T>, WeakKey> table = new ConcurrentHashMap<>();
+  private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  WeakInterner(Equivalence<? super T> pEquivalence) {
+    equivalence = checkNotNull(pEquivalence);
+  }
+
+  /**
+   * Compare two keys. Keys whose instance was already garbage collected are equal only to
+   * themselves, such that they can still be removed from the table.
+   */
+  private boolean keysEqual(Key<T> key, int hash, @Nullable Object pOther) {
+    if (key == pOther) {
+      return true;
+    }
+    if (!(pOther instanceof Key<?>)) {
+      return false;
+    }
+    @SuppressWarnings("unchecked") // all keys in the table have type Key<T>
+    Key<T> other = (Key<T>) pOther;
+    if (hash != other.hashCode()) {
+      return false;
+    }
+    @Nullable T instance = key.get();
+    @Nullable T otherInstance = other.get();
+    return instance != null
+        && otherInstance != null
+        && equivalence.equivalent(instance, otherInstance);
+  }
+
+  /**
+   * Return the canonical instance that is equivalent to the given instance. If there is none yet,
+   * the given instance becomes the canonical one and is returned.
+   */
+  @CanIgnoreReturnValue
+  T intern(T pInstance) {
+    checkNotNull(pInstance);
+    expungeStaleEntries();
+    int hash = equivalence.hash(pInstance);
+    LookupKey lookupKey = new LookupKey(pInstance, hash);
+    while (true) {
+      @Nullable WeakKey existing = table.get(lookupKey);
+      if (existing != null) {
+        @Nullable T canonical = existing.get();
+        if (canonical != null) {
+          hits.increment();
+          return canonical;
+        }
+      }
+      WeakKey newKey = new WeakKey(pInstance, hash);
+      if (table.putIfAbsent(newKey, newKey) == null) {
+        misses.increment();
+        return pInstance;
+      }
+      // An equivalent instance was added concurrently (or collected in the meantime), retry.
+    }
+  }
+
+  /**
+   * Return the canonical instance that is equivalent to the given instance, or null if there is
+   * none. This does not add the given instance and does not count as hit or miss.
+   */
+  @Nullable T getIfPresent(T pInstance) {
+    @Nullable WeakKey existing =
+        table.get(new LookupKey(checkNotNull(pInstance), equivalence.hash(pInstance)));
+    return existing == null ? null : existing.get();
+  }
+
+  /** Return the number of canonical instances, including some that may be collected already. */
+  int size() {
+    expungeStaleEntries();
+    return table.size();
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  private void expungeStaleEntries() {
+    for (@Var @Nullable Reference<? extends T> ref = queue.poll();
+        ref != null;
+        ref = queue.poll()) {
+      table.remove(ref);
+    }
+  }
+}